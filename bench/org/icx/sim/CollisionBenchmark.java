@@ -0,0 +1,101 @@
+/*
+ * This file is part of JBSim.
+ * 
+ * JBSim is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * JBSim is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with JBSim.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.icx.sim;
+
+import java.io.*;
+import java.awt.geom.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures collision detection against boards of different sizes, and the
+ *  loading of collision models.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CollisionBenchmark {
+	/**
+	 * "small" is the stock board; "large" is a 12 x 12 grid of PVC cells
+	 *  (over 300 walls).
+	 */
+	@Param({"small", "large"})
+	public String board;
+
+	// The world, with one robot heading for the walls near a corner.
+	private HeadlessSimulator sim;
+	private SimRobot robot;
+
+	/**
+	 * Loads the board and places the robot.
+	 */
+	@Setup
+	public void setUp() {
+		sim = new HeadlessSimulator(null);
+		if (board.equals("small"))
+			sim.loadBoard("board.txt");
+		else
+			BoardReader.loadBoard(sim, new ByteArrayInputStream(gridBoard(12, 250)));
+		robot = sim.addRobot(SimRobot.CBC, new Location(220, 220));
+		robot.setSpeeds(500, 500);
+	}
+
+	// Builds a board file with a square grid of cells.
+	static byte[] gridBoard(int cells, int size) {
+		StringBuilder out = new StringBuilder(cells * cells * 64);
+		int x, y, end = 100 + cells * size;
+		for (int i = 0; i <= cells; i++) {
+			for (int j = 0; j < cells; j++) {
+				x = 100 + j * size + size / 2;
+				y = 100 + i * size;
+				out.append("pvc, ltr, ").append(size).append(", ").append(x).append(", ");
+				out.append(y).append('\n');
+				out.append("pvc, ttb, ").append(size).append(", ").append(y).append(", ");
+				out.append(x).append('\n');
+			}
+			out.append("inter, north, -1, 100, ").append(100 + i * size).append('\n');
+			out.append("inter, north, -1, ").append(end).append(", ");
+			out.append(100 + i * size).append('\n');
+		}
+		return out.toString().getBytes();
+	}
+
+	/**
+	 * Finds what the robot will hit in the next step.
+	 * 
+	 * @return the objects hit
+	 */
+	@Benchmark
+	public List<SimObject> collide() {
+		return robot.collide(1L);
+	}
+
+	/**
+	 * Reads a collision model from its file.
+	 * 
+	 * @return the model
+	 */
+	@Benchmark
+	public Area fromFile() {
+		return CollisionModels.fromFile("create");
+	}
+}
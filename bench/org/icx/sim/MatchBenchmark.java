@@ -0,0 +1,78 @@
+/*
+ * This file is part of JBSim.
+ * 
+ * JBSim is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * JBSim is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with JBSim.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.icx.sim;
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures a whole 120 second match without a window: a CBC robot and a
+ *  Create wander the stock board, turning every second and running into
+ *  walls, with the physics stepped as fast as it will go.
+ * 
+ * The robots are driven from here rather than by a compiled program, so
+ *  that only the physics is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MatchBenchmark {
+	// Length of a match in ms.
+	private static final long MATCH = 120000L;
+
+	// A fresh world for each match.
+	private HeadlessSimulator sim;
+	private SimRobot cbc;
+	private SimRobot create;
+
+	/**
+	 * Sets up the board and robots for a match.
+	 */
+	@Setup(Level.Invocation)
+	public void setUp() {
+		sim = new HeadlessSimulator(null);
+		sim.loadBoard("board.txt");
+		cbc = sim.addRobot(SimRobot.CBC, new Location(300, 300));
+		create = sim.addRobot("cbc2-create", new Location(800, 800));
+		create.setCreatePacketEnabled(true);
+	}
+
+	/**
+	 * Runs the match.
+	 * 
+	 * @return the simulated time covered
+	 */
+	@Benchmark
+	public long match() {
+		for (int s = 0; s < MATCH / 1000L; s++) {
+			// alternate between driving straight and turning
+			if (s % 3 == 2) {
+				cbc.setSpeeds(-400, 400);
+				create.setSpeeds(200, -200);
+			} else {
+				cbc.setSpeeds(800, 800);
+				create.setSpeeds(300, 300);
+			}
+			sim.step(1000L);
+		}
+		return sim.getEngine().getSimTime();
+	}
+}
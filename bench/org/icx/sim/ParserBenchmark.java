@@ -0,0 +1,95 @@
+/*
+ * This file is part of JBSim.
+ * 
+ * JBSim is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * JBSim is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with JBSim.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.icx.sim;
+
+import java.io.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures translating a large IC/C program (defines, globals and many
+ *  functions) into Java. The Java is written to memory, as ProgramCompiler
+ *  does, so that the disk is not measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParserBenchmark {
+	/**
+	 * Number of functions in the generated program.
+	 */
+	@Param({"2000"})
+	public int functions;
+
+	// The program text, and a file for it to claim to come from.
+	private String code;
+	private File source;
+
+	/**
+	 * Generates the program.
+	 * 
+	 * @throws IOException if the temporary file cannot be made
+	 */
+	@Setup
+	public void setUp() throws IOException {
+		source = File.createTempFile("bench", ".c");
+		source.deleteOnExit();
+		code = largeProgram(functions);
+	}
+
+	// Makes up a program which exercises each part of the parser.
+	static String largeProgram(int functions) {
+		StringBuilder out = new StringBuilder(functions * 256);
+		out.append("/* generated for benchmarking */\n");
+		for (int i = 0; i < 100; i++)
+			out.append("#define SPEED_").append(i).append(' ').append(i * 10).append('\n');
+		for (int i = 0; i < 100; i++)
+			out.append("int counter_").append(i).append(" = ").append(i).append(";\n");
+		for (int i = 0; i < functions; i++) {
+			out.append("// function ").append(i).append('\n');
+			out.append("int f").append(i).append("(int a, float b) {\n");
+			out.append("\tint i; float x = b * 2.5;\n");
+			out.append("\tfor (i = 0; i < a; i++) {\n");
+			out.append("\t\tif (digital(8) || analog(").append(i % 8).append(") > 512)\n");
+			out.append("\t\t\tmotor(0, SPEED_").append(i % 100).append(");\n");
+			out.append("\t\tx = x + (float)i / 3.0;\n");
+			out.append("\t}\n");
+			out.append("\tprintf(\"f").append(i).append(" %d\\n\", a);\n");
+			out.append("\treturn counter_").append(i % 100).append(" + a;\n");
+			out.append("}\n");
+		}
+		out.append("int main() {\n\tf0(1, 2.0);\n\treturn 0;\n}\n");
+		return out.toString();
+	}
+
+	/**
+	 * Parses the program and writes the Java code.
+	 * 
+	 * @return the length of the Java code
+	 * @throws Exception if the program does not parse
+	 */
+	@Benchmark
+	public int syntax() throws Exception {
+		StringWriter out = new StringWriter(code.length() * 2);
+		CodeParser.syntax(source, new StringReader(code), out, null);
+		return out.getBuffer().length();
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * This file is part of JBSim.
+ * 
+ * JBSim is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * JBSim is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with JBSim.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.icx.sim;
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures sensor reads on the stock board: touch sensors (a point and a
+ *  bumper shape) and the location transform every sensor goes through.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SensorBenchmark {
+	// The world, and sensors on a robot next to a wall.
+	private Environment env;
+	private ButtonSensor point;
+	private ButtonSensor bumper;
+
+	/**
+	 * Loads the board and installs the sensors.
+	 */
+	@Setup
+	public void setUp() {
+		HeadlessSimulator sim = new HeadlessSimulator(null);
+		sim.loadBoard("board.txt");
+		SimRobot robot = sim.addRobot(SimRobot.CBC, new Location(600, 250));
+		env = sim.getEnvironment();
+		point = new ButtonSensor(new Location(100, 50));
+		point.setParentRobot(robot);
+		bumper = new ButtonSensor(CollisionModels.fromFile("create-lbump"));
+		bumper.setParentRobot(robot);
+	}
+
+	/**
+	 * Reads a touch sensor which is a single point.
+	 * 
+	 * @return the value
+	 */
+	@Benchmark
+	public int pointValue() {
+		return point.realValue(env);
+	}
+
+	/**
+	 * Reads a touch sensor with bumper geometry.
+	 * 
+	 * @return the value
+	 */
+	@Benchmark
+	public int bumperValue() {
+		return bumper.realValue(env);
+	}
+
+	/**
+	 * Moves a sensor location into world coordinates.
+	 * 
+	 * @return the location
+	 */
+	@Benchmark
+	public Location realLocation() {
+		return point.getRealLocation();
+	}
+}
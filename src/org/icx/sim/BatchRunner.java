@@ -0,0 +1,154 @@
+/*
+ * This file is part of JBSim.
+ * 
+ * JBSim is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * JBSim is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with JBSim.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.icx.sim;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs a match for each of many IC/C programs and prints how each went,
+ *  for grading a batch of submissions. Run from a directory with
+ *  robots.txt and the board, like the simulator:
+ * 
+ * java org.icx.sim.BatchRunner [options] program.c ...
+ * 
+ * Options:
+ *  -workers n     worker processes (default: one per core); 0 runs the
+ *                  matches in this JVM, one at a time
+ *  -robot type    robot type from robots.txt (default cbc2)
+ *  -start x,y     where the robot starts in mm (default 600,600)
+ *  -board file    board file (default board.txt)
+ *  -time ms       match length (default 120000)
+ *  -memory mb     heap for each worker (default 256)
+ *  -seed n        seed for the robots' random noise (default 0)
+ *  -inputs file   buttons and sensor values to play back (see InputScript)
+ *  -cache dir     keep results in this directory, and print a stored
+ *                  result instead of running a match which has been
+ *                  run before
+ */
+public class BatchRunner {
+	/**
+	 * Runs the batch given on the command line.
+	 * 
+	 * @param args the options and programs
+	 * @throws Exception if the batch is interrupted
+	 */
+	public static void main(String[] args) throws Exception {
+		int workers = Runtime.getRuntime().availableProcessors(), memory = WorkerPool.DEFAULT_MEMORY;
+		String robot = SimRobot.CBC, board = "board.txt";
+		Location start = new Location(600, 600);
+		long time = MatchJob.DEFAULT_LENGTH, seed = 0L;
+		ResultCache cache = null;
+		InputScript inputs = null;
+		List<MatchJob> jobs = new ArrayList<MatchJob>(args.length);
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.startsWith("-") && i + 1 >= args.length)
+				usage("Missing value for " + arg);
+			if (arg.equals("-workers"))
+				workers = Integer.parseInt(args[++i]);
+			else if (arg.equals("-robot"))
+				robot = args[++i];
+			else if (arg.equals("-start")) {
+				String[] xy = args[++i].split(",");
+				if (xy.length != 2) usage("Start must be x,y");
+				start = new Location(Double.parseDouble(xy[0]), Double.parseDouble(xy[1]));
+			} else if (arg.equals("-board"))
+				board = args[++i];
+			else if (arg.equals("-time"))
+				time = Long.parseLong(args[++i]);
+			else if (arg.equals("-memory"))
+				memory = Integer.parseInt(args[++i]);
+			else if (arg.equals("-seed"))
+				seed = Long.parseLong(args[++i]);
+			else if (arg.equals("-inputs"))
+				inputs = InputScript.read(new File(args[++i]));
+			else if (arg.equals("-cache"))
+				cache = new ResultCache(new File(args[++i]));
+			else if (arg.startsWith("-"))
+				usage("Unknown option " + arg);
+			else {
+				MatchJob job = new MatchJob(new File(arg), robot, start);
+				job.setBoard(board);
+				job.setLength(time);
+				job.setSeed(seed);
+				job.setInputs(inputs);
+				jobs.add(job);
+			}
+		}
+		if (jobs.isEmpty()) usage("No programs given");
+		// matches run before are answered from the cache
+		int n = jobs.size();
+		byte[][] keys = new byte[n][];
+		MatchResult[] cached = new MatchResult[n];
+		List<MatchJob> toRun = new ArrayList<MatchJob>(n);
+		for (int i = 0; i < n; i++) {
+			if (cache != null) {
+				keys[i] = ResultCache.key(jobs.get(i));
+				cached[i] = cache.get(keys[i]);
+			}
+			if (cached[i] == null) toRun.add(jobs.get(i));
+		}
+		if (workers <= 0 || toRun.isEmpty()) {
+			for (int i = 0; i < n; i++)
+				if (cached[i] != null)
+					print(cached[i], true);
+				else
+					store(cache, keys[i], jobs.get(i).run());
+		} else {
+			WorkerPool pool = new WorkerPool(Math.min(workers, toRun.size()));
+			pool.setMemory(memory);
+			List<Future<MatchResult>> results = new ArrayList<Future<MatchResult>>(n);
+			for (int i = 0; i < n; i++)
+				results.add(cached[i] == null ? pool.submit(jobs.get(i)) : null);
+			for (int i = 0; i < n; i++)
+				if (cached[i] != null)
+					print(cached[i], true);
+				else
+					store(cache, keys[i], results.get(i).get());
+			pool.shutdown();
+		}
+		if (cache != null) cache.close();
+	}
+
+	// Prints a new result and keeps it in the cache (if there is one).
+	private static void store(ResultCache cache, byte[] key, MatchResult result) throws IOException {
+		print(result, false);
+		if (cache != null) cache.put(key, result);
+	}
+
+	// Prints a result and the last line on the LCD.
+	private static void print(MatchResult result, boolean cached) {
+		String lcd = result.getLCD().trim();
+		System.out.println(cached ? result + " [cached]" : result);
+		if (lcd.length() > 0)
+			System.out.println("  LCD: " + lcd.substring(lcd.lastIndexOf('\n') + 1));
+	}
+
+	// Explains how to run the batch, then exits.
+	private static void usage(String problem) {
+		System.err.println(problem);
+		System.err.println("Usage: java org.icx.sim.BatchRunner [-workers n] [-robot type] " +
+			"[-start x,y] [-board file] [-time ms] [-memory mb] [-seed n] [-inputs file] " +
+			"[-cache dir] program.c ...");
+		System.exit(1);
+	}
+
+	private BatchRunner() { }
+}
@@ -29,7 +29,7 @@ import javax.swing.*;
 public class BoardReader {
 	// Loads board into the simulator from the given file
 	//  Note that board.txt is EXTERNAL for easy modding.
-	public static void loadBoard(Simulator sim, String file) {
+	public static void loadBoard(SimHost sim, String file) {
 		try {
 			loadBoard(sim, new FileInputStream(file));
 		} catch (IOException e) {
@@ -37,7 +37,7 @@ public class BoardReader {
 		}
 	}
 	// Loads board into the simulator from the given stream
-	public static void loadBoard(Simulator sim, InputStream is) {
+	public static void loadBoard(SimHost sim, InputStream is) {
 		try {
 			BufferedReader br = new BufferedReader(new InputStreamReader(is));
 			String line, type, dir; StringTokenizer str;
@@ -19,6 +19,8 @@ package org.icx.sim;
 
 import java.lang.reflect.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 /**
  * A class which provides Botball library functions.
@@ -76,20 +78,27 @@ public class BotballProgram {
 	private long[] _counts;     // the BEMF counters
 	private int[] _pos;         // servo positions
 	private int[] _loc;         // servo actual locations
+	private static final int METER_BATCH = 1024; // instructions charged at a time
+	private static final int SPIN_LIMIT = 1000; // checks between waits before time passes
 	private List<UserThread> _threads; // all user threads
 	private int _nextID;        // next available thread ID
-	private Simulator _sim;     // parent simulator
+	private AtomicInteger _live; // user threads running, including the PID task
+	private SimHost _sim;       // parent simulator
 	private SimRobot _bot;      // robot to control
-	private volatile long _start; // timing variables
+	private SimClock _clock;    // lockstep program clock, null for the wall clock
+	private volatile long _start; // timing variables, -1 if never started
 	private volatile long _total;
 	private UserThread pidTask; // moves servos and motors
+	private long _ips;          // metered instructions per second, 0 if unlimited
+	private AtomicLong _executed; // metered instructions run since main started
 
 	/**
 	 * Initializes the most important variables
 	 */
 	public BotballProgram() {
-		_threads = new LinkedList<UserThread>();
+		_threads = new CopyOnWriteArrayList<UserThread>();
 		_nextID = 0; _shutdown = 0.f;
+		_live = new AtomicInteger(0);
 		g_create_connected = g_create_USB = 0;
 		_gc_l = _gc_r = gc_mode = 0;
 		gc_song_array = new int[16][33];
@@ -103,8 +112,12 @@ public class BotballProgram {
 		for (int i = 0; i < 4; i++)
 			_pos[i] = _loc[i] = 1023;
 		_sim = null;
-		_start = _total = 0L;
+		_clock = null;
+		_start = -1L;
+		_total = 0L;
 		pidTask = null;
+		_ips = 0L;
+		_executed = new AtomicLong(0L);
 	}
 	// CREATE LIBRARY
 	/**
@@ -133,6 +146,10 @@ public class BotballProgram {
 		else if (!_ic()) {
 			g_create_USB = 1;
 			g_create_connected = 1;
+			// odometry starts from the moment of connection
+			_bot.resetOdometry();
+			gc_distance = gc_angle = gc_total_angle = 0;
+			_bot.setCreatePacketEnabled(true);
 			create_start();
 			create_advance_led(1);
 			create_safe();
@@ -157,6 +174,7 @@ public class BotballProgram {
 		_gc_l = _gc_r = 0;
 		gc_mode = 0;
 		g_create_connected = 0;
+		_bot.setCreatePacketEnabled(false);
 	}
 	// Create Library: returns active Create mode
 	public int create_mode() {
@@ -213,47 +231,72 @@ public class BotballProgram {
 	public int create_sensor_update() {
 		_nc();
 		if (!_ic()) return -1;
-		create_buttons();
-		create_wall();
-		create_bumpdrop();
-		create_angle();
-		create_distance();
-		create_velocity();
-		create_battery_charge();
-		create_read_IR();
-		create_cargo_bay_inputs();
-		create_cliffs();
+		// the packet is computed once per physics step; just copy it
+		CreatePacket p = _bot.getCreatePacket();
+		synchronized (p) {
+			_gc_buttons(p);
+			_gc_wall(p);
+			_gc_bumpdrop(p);
+			_gc_battery(p);
+			_gc_IR(p);
+			_gc_cargo(p);
+			_gc_cliffs(p);
+		}
+		int angle = _bot.readAngle();
+		gc_angle += angle;
+		gc_total_angle += angle;
+		gc_distance += _bot.readDistance();
+		// create velocity is always up to date
 		return 0;
 	}
 	// Create Library: update bumps and wheel drops
 	public int create_bumpdrop() {
 		_nc();
 		if (!_ic()) return -1;
-		gc_lbump = _bot.extra_digital(0) ? 1 : 0;
-		gc_rbump = _bot.extra_digital(1) ? 1 : 0;
-		// Drops can never trigger.
-		gc_ldrop = gc_rdrop = gc_fdrop = 0;
+		CreatePacket p = _bot.getCreatePacket();
+		synchronized (p) {
+			_gc_bumpdrop(p);
+		}
 		return 0;
 	}
+	// Copies bumps and wheel drops from the packet.
+	private void _gc_bumpdrop(CreatePacket p) {
+		gc_lbump = p.lbump;
+		gc_rbump = p.rbump;
+		// Drops can never trigger.
+		gc_ldrop = p.ldrop;
+		gc_rdrop = p.rdrop;
+		gc_fdrop = p.fdrop;
+	}
 	// Create Library: update cliffs
 	public int create_cliffs() {
 		_nc();
 		if (!_ic()) return -1;
-		// 2D representation, so cliffs can never fire
-		// However, cliff amounts are related to the reflectance as observed with the 2010
-		//  Explorer Post oil slick detection code!!!
-		gc_rcliff = gc_rfcliff = gc_lcliff = gc_lfcliff = 0;
-		gc_lcliff_amt = _bot.extra_analog(2);
-		gc_lfcliff_amt = _bot.extra_analog(3);
-		gc_rfcliff_amt = _bot.extra_analog(4);
-		gc_rcliff_amt = _bot.extra_analog(5);
+		CreatePacket p = _bot.getCreatePacket();
+		synchronized (p) {
+			_gc_cliffs(p);
+		}
 		return 0;
 	}
+	// Copies cliffs from the packet.
+	private void _gc_cliffs(CreatePacket p) {
+		// 2D representation, so cliffs can never fire
+		gc_rcliff = p.rcliff;
+		gc_rfcliff = p.rfcliff;
+		gc_lcliff = p.lcliff;
+		gc_lfcliff = p.lfcliff;
+		gc_lcliff_amt = p.lcliffAmt;
+		gc_lfcliff_amt = p.lfcliffAmt;
+		gc_rfcliff_amt = p.rfcliffAmt;
+		gc_rcliff_amt = p.rcliffAmt;
+	}
 	// Create Library: update angle travelled
 	public int create_angle() {
 		_nc();
 		if (!_ic()) return -1;
-		gc_angle = gc_total_angle = 0;
+		int angle = _bot.readAngle();
+		gc_angle += angle;
+		gc_total_angle += angle;
 		return 0;
 	}
 	// Create Library: update requested velocity
@@ -267,54 +310,91 @@ public class BotballProgram {
 	public int create_distance() {
 		_nc();
 		if (!_ic()) return -1;
-		// this is a little unfair, as it caters to people who abuse this inaccurate
-		//  measure of distance by providing them with the raw simulator output.
-		// keep this in mind when using the simulator.
-		gc_distance = 0;
+		// like the real Create, this counts wheel travel (plus the configured
+		//  noise), not how far the robot actually got
+		gc_distance += _bot.readDistance();
 		return 0;
 	}
 	// Create Library: update battery charge
 	public int create_battery_charge() {
 		_nc();
 		if (!_ic()) return -1;
-		gc_charge_state = 0;
-		gc_batt_voltage = 16500;
-		gc_current_flow = 0; gc_batt_temp = 20;
-		gc_batt_charge = gc_batt_capacity = 2075;
+		CreatePacket p = _bot.getCreatePacket();
+		synchronized (p) {
+			_gc_battery(p);
+		}
 		return 0;
 	}
+	// Copies the battery state from the packet.
+	private void _gc_battery(CreatePacket p) {
+		gc_charge_state = p.chargeState;
+		gc_batt_voltage = p.battVoltage;
+		gc_current_flow = p.currentFlow; gc_batt_temp = p.battTemp;
+		gc_batt_charge = p.battCharge;
+		gc_batt_capacity = p.battCapacity;
+	}
 	// Create Library: update buttons
 	public int create_buttons() {
 		_nc();
 		if (!_ic()) return -1;
-		gc_advance_button = gc_play_button = 0;
+		CreatePacket p = _bot.getCreatePacket();
+		synchronized (p) {
+			_gc_buttons(p);
+		}
 		return 0;
 	}
+	// Copies the buttons from the packet.
+	private void _gc_buttons(CreatePacket p) {
+		gc_advance_button = p.advanceButton;
+		gc_play_button = p.playButton;
+	}
 	// Create Library: update wall and home base
 	public int create_wall() {
 		_nc();
 		if (!_ic()) return -1;
+		CreatePacket p = _bot.getCreatePacket();
+		synchronized (p) {
+			_gc_wall(p);
+		}
+		return 0;
+	}
+	// Copies the wall and home base from the packet.
+	private void _gc_wall(CreatePacket p) {
 		// There is no virtual wall.
-		gc_wall = 0;
-		gc_wall_amt = 0;
+		gc_wall = p.wall;
+		gc_wall_amt = p.wallAmt;
 		// never a home base
-		gc_wall_hb = 0;
-		return 0;
+		gc_wall_hb = p.wallHb;
 	}
 	// Create Library: update remote byte
 	public int create_read_IR() {
 		_nc();
 		if (!_ic()) return -1;
-		gc_IR = -1;
+		CreatePacket p = _bot.getCreatePacket();
+		synchronized (p) {
+			_gc_IR(p);
+		}
 		return 0;
 	}
+	// Copies the remote byte from the packet.
+	private void _gc_IR(CreatePacket p) {
+		gc_IR = p.ir;
+	}
 	// Create Library: update analog and digital in
 	public int create_cargo_bay_inputs() {
 		_nc();
 		if (!_ic()) return -1;
-		gc_digital_in = gc_analog_in = 0;
+		CreatePacket p = _bot.getCreatePacket();
+		synchronized (p) {
+			_gc_cargo(p);
+		}
 		return 0;
 	}
+	// Copies the cargo bay inputs from the packet.
+	private void _gc_cargo(CreatePacket p) {
+		gc_digital_in = p.digitalIn;
+		gc_analog_in = p.analogIn;
+	}
 	// Create Library: stop motors
 	public void create_stop() {
 		_nc();
@@ -579,8 +659,24 @@ public class BotballProgram {
 	}
 	// RCX/HB/XBC/CBC Library: waits for given number of milliseconds
 	public void msleep(long ms) {
+		SimEvents.Sleep event = new SimEvents.Sleep();
+		event.begin();
+		_msleep(ms);
+		if (event.shouldCommit()) {
+			event.robot = _bot.getController();
+			event.requested = ms;
+			event.commit();
+		}
+	}
+	// Waits for the given number of milliseconds
+	private void _msleep(long ms) {
 		long dest = _mseconds() + ms - 10L, time;
 		_s();
+		if (_clock != null) {
+			// exact, as the clock never runs while the program is paused
+			_wait(ms);
+			return;
+		}
 		// Fix for exotic problem:
 		//  MSLEEP appears to have slight issues with playing/pausing,
 		//   since the exit condition is true for a frame or two while the
@@ -604,9 +700,19 @@ public class BotballProgram {
 	// RCX/HB/XBC/CBC Library: yields processor time to other threads
 	public void defer() {
 		_s();
+		_wait(1L);
+	}
+	// Waits for the given number of ms of program time, letting the other
+	//  processes (and, in lockstep, the physics) run
+	private void _wait(long ms) {
+		Thread t = Thread.currentThread();
+		if (t instanceof UserThread) ((UserThread)t).spins = 0;
 		try {
-			Thread.sleep(1L);
-		} catch (Exception e) { _s(); }
+			if (_clock != null)
+				_clock.await(_clock.now() + ms);
+			else
+				Thread.sleep(ms);
+		} catch (InterruptedException e) { _s(); }
 	}
 	// RCX/HB/XBC/CBC Library: waits for given number of seconds
 	public void sleep(double seconds) {
@@ -619,6 +725,7 @@ public class BotballProgram {
 	}
 	// Returns number of milliseconds since simulation start 
 	private long _mseconds() {
+		if (_clock != null) return _clock.now() - _start + _total;
 		return System.currentTimeMillis() - _start + _total;
 	}
 	// RCX/HB/XBC Library: returns number of milliseconds since simulation start
@@ -649,9 +756,9 @@ public class BotballProgram {
 	// Controls motors and servos
 	public void pid_control_task() {
 		if (!_checkPID()) return;
-		int i, diff; long factor;
-		int left = -1, right = -1, ls, rs;
-		MotorComponent servo;
+		int left = -1, right = -1;
+		SimMetrics metrics = _sim.getEngine().getMetrics();
+		long start;
 		String drive = _bot.getDrive();
 		if (drive.startsWith("motor") && drive.indexOf(',') > 0) {
 			// motors are mapped to drive
@@ -669,50 +776,59 @@ public class BotballProgram {
 			// stop motors while paused
 			while (_sim.isPaused() && !_l()) defer();
 			if (_l()) break;
-			ls = rs = 0;
-			for (i = 0; i < 4; i++) {
-				if ((_vel[i] > 0 && _counts[i] > _dest[i]) ||
-						(_vel[i] < 0 && _counts[i] < _dest[i])) {
-					// not always exact but close
-					_counts[i] = _dest[i] + (System.currentTimeMillis() % 10L) - 5L;
-					// behavior for CBC v1, v2: freeze; XBC and earlier: off
-					if (_bot.controllerAtLeast(SimRobot.CBC_V1))
-						freeze(i);
-					else
-						off(i);
-					_speed[i] = 0;
-				} else if (_vel[i] != 0) {
-					factor = _vel[i] / 13L;
-					// slight variation
-					_counts[i] += factor + (System.currentTimeMillis() % 3L) - 1L;
-					_updateMotor(i);
-				}
-				// rotate the appropriate servo at a max rate of 0.2 sec/60 deg, 1.2 rev/s
-				servo = _bot.getServo(i);
-				if (servo.isEnabled() && _loc[i] != _pos[i]) {
-					diff = 10;
-					// slew servo to position (always exact, it's an unloaded servo)
-					if (_loc[i] < _pos[i])
-						_loc[i] = Math.min(_loc[i] + diff, _pos[i]);
-					else
-						_loc[i] = Math.max(_loc[i] - diff, _pos[i]);
-					servo.setPos(_loc[i]);
-					servo.setShaftAngle(180 * _loc[i] / 2048 - 90);
-				}
-			}
-			// TODO allow other motor types, gearing...
-			if (left >= 0 && left < _vel.length)
-				ls = _vel[left] * 9;
-			if (right >= 0 && right < _vel.length)
-				rs = _vel[right] * 9;
-			if (drive != null)
-				_bot.setSpeeds(ls, rs);
+			if (metrics.isEnabled()) {
+				start = System.nanoTime();
+				_pidStep(left, right, drive);
+				metrics.record(SimMetrics.Phase.PID, _bot, start);
+			} else
+				_pidStep(left, right, drive);
 			// resolution on CBC varies, XBC is probably locked at around 3L-4L (FPGA)
-			try {
-				Thread.sleep(6L);
-			} catch (Exception e) { }
+			_wait(6L);
 		}
 	}
+	// Moves the motors and servos one step toward their targets
+	private void _pidStep(int left, int right, String drive) {
+		int i, diff, ls, rs; long factor;
+		MotorComponent servo;
+		ls = rs = 0;
+		for (i = 0; i < 4; i++) {
+			if ((_vel[i] > 0 && _counts[i] > _dest[i]) ||
+					(_vel[i] < 0 && _counts[i] < _dest[i])) {
+				// not always exact but close
+				_counts[i] = _dest[i] + _bot.sensorNoise(-5, 4);
+				// behavior for CBC v1, v2: freeze; XBC and earlier: off
+				if (_bot.controllerAtLeast(SimRobot.CBC_V1))
+					freeze(i);
+				else
+					off(i);
+				_speed[i] = 0;
+			} else if (_vel[i] != 0) {
+				factor = _vel[i] / 13L;
+				// slight variation
+				_counts[i] += factor + _bot.sensorNoise(-1, 1);
+				_updateMotor(i);
+			}
+			// rotate the appropriate servo at a max rate of 0.2 sec/60 deg, 1.2 rev/s
+			servo = _bot.getServo(i);
+			if (servo.isEnabled() && _loc[i] != _pos[i]) {
+				diff = 10;
+				// slew servo to position (always exact, it's an unloaded servo)
+				if (_loc[i] < _pos[i])
+					_loc[i] = Math.min(_loc[i] + diff, _pos[i]);
+				else
+					_loc[i] = Math.max(_loc[i] - diff, _pos[i]);
+				servo.setPos(_loc[i]);
+				servo.setShaftAngle(180 * _loc[i] / 2048 - 90);
+			}
+		}
+		// TODO allow other motor types, gearing...
+		if (left >= 0 && left < _vel.length)
+			ls = _vel[left] * 9;
+		if (right >= 0 && right < _vel.length)
+			rs = _vel[right] * 9;
+		if (drive != null)
+			_bot.setSpeeds(ls, rs);
+	}
 	// RCX/HB/XBC/CBC Library: turns off all motors
 	public void ao() {
 		off(0);
@@ -831,12 +947,12 @@ public class BotballProgram {
 	// RCX/HB/XBC Library: turns beeper on
 	public void beeper_on() {
 		_s();
-		_sim.getGraphicsComponent().setBeeperOn();
+		_sim.setBeeper(true);
 	}
 	// RCX/HB/XBC Library: turns beeper off
 	public void beeper_off() {
 		_s();
-		_sim.getGraphicsComponent().setBeeperOff();
+		_sim.setBeeper(false);
 	}
 	// HB/XBC/CBC Library: prints message to the screen
 	public void printf(String format, Object... args) {
@@ -984,33 +1100,48 @@ public class BotballProgram {
 	// HB/RCX/XBC/CBC Library: starts named user function as a process
 	public int start_process(String fn) {
 		_s();
-		UserThread t = new UserThread(_nextID, fn);
+		UserThread t;
+		int id;
+		// the new thread may start processes itself, so it must be listed first
+		synchronized (_threads) {
+			id = _nextID++;
+			t = new UserThread(id, fn);
+			_threads.add(t);
+		}
 		t.setPriority(Thread.MIN_PRIORITY);
-		t.setName("User Thread #" + _nextID + " (" + fn + ")");
+		t.setName("User Thread #" + id + " (" + fn + ")");
 		printf(t.getName());
 		t.start();
-		_threads.add(t);
-		return _nextID++;
+		_sim.getLog().log(SimLog.Type.PROCESS_START, _bot, fn, id, 0., 0.);
+		_processEvent(fn, id, false);
+		return id;
 	}
 	// HB/RCX/XBC/CBC Library: kills the user process with given ID
 	public int kill_process(int id) {
 		_s();
-		int nid; UserThread t;
-		Iterator<UserThread> it = _threads.iterator();
-		// Note: only will properly kill when Botball function is next called
-		//  while (1);     will not terminate
-		while (it.hasNext()) {
-			t = it.next();
-			nid = t.getID();
-			if (nid == id) {
+		// user code is stopped at its next library call, function call or loop
+		for (UserThread t : _threads)
+			if (t.getID() == id) {
 				t.kill();
-				it.remove();
+				_threads.remove(t);
+				_sim.getLog().log(SimLog.Type.PROCESS_KILL, _bot, t.fn, id, 0., 0.);
+				_processEvent(t.fn, id, true);
 				return 1;
 			}
-		}
 		//_bot.print("Process %d not found\n", id);
 		return 0;
 	}
+	// Records a process starting or being killed for Flight Recorder
+	private void _processEvent(String fn, int id, boolean killed) {
+		SimEvents.Process event = new SimEvents.Process();
+		if (event.shouldCommit()) {
+			event.robot = _bot.getController();
+			event.function = fn;
+			event.id = id;
+			event.killed = killed;
+			event.commit();
+		}
+	}
 	// Does a C like test for true/false on almost any object.
 	public boolean test(Object obj) {
 		if (obj == null) return false;
@@ -1150,10 +1281,21 @@ public class BotballProgram {
 	int[] _createLEDs() {
 		return _gc_leds;
 	}
+	// Returns the robot being controlled
+	SimRobot _robot() {
+		return _bot;
+	}
+	// Returns the simulated time in ms, which only advances with the physics
+	long _simTime() {
+		if (_sim == null) return 0L;
+		return _sim.getEngine().getSimTime();
+	}
 	// Sets parent simulator and robot
-	void _setSim(Simulator sim, SimRobot bot) {
+	void _setSim(SimHost sim, SimRobot bot) {
 		_sim = sim;
 		_bot = bot;
+		_clock = sim == null ? null : sim.getClock();
+		_ips = bot == null ? 0L : RobotsFile.getParameterLong("ips." + bot.getController(), 0L);
 	}
 	// Asks the simulator to update the motor status on the given port
 	void _updateMotor(int port) {
@@ -1167,20 +1309,65 @@ public class BotballProgram {
 		_total = _mseconds();
 	}
 	void _startTiming() {
-		_start = System.currentTimeMillis();
+		_start = _clock != null ? _clock.now() : System.currentTimeMillis();
 	}
 	void _resetTiming() {
 		_total = 0L;
+		_executed.set(0L);
 	}
 	// Calls the main method of the program and starts up robot control
 	void invokeMain() {
+		invokeMain(0L);
+	}
+	// Calls main as if the program had already been running for the given ms
+	//  (for carrying on from a snapshot), and starts up robot control
+	void invokeMain(long elapsed) {
 		_killAll();
 		_threads.clear();
 		_resetTiming();
+		_total = elapsed;
+		_executed.set(elapsed * _ips / 1000L);
 		_startTiming();
 		start_pid();
 		start_process("main");
 	}
+	// Copies the motor, servo, Create and clock state into a snapshot
+	SimSnapshot.Controller _save() {
+		SimSnapshot.Controller state = new SimSnapshot.Controller();
+		state.dest = _dest.clone();
+		state.speed = _speed.clone();
+		state.vel = _vel.clone();
+		state.counts = _counts.clone();
+		state.pos = _pos.clone();
+		state.loc = _loc.clone();
+		state.create = new int[] { g_create_connected, g_create_USB, gc_mode, _gc_l, _gc_r,
+			gc_distance, gc_angle, gc_total_angle };
+		state.leds = _gc_leds.clone();
+		state.shutdown = _shutdown;
+		// never started means no time has passed
+		state.time = _start < 0L ? _total : _mseconds();
+		return state;
+	}
+	// Picks up the motor, servo and Create state from a snapshot; follow with
+	//  invokeMain(state.time) to carry on the clock too
+	void _restore(SimSnapshot.Controller state) {
+		_dest = state.dest.clone();
+		_speed = state.speed.clone();
+		_vel = state.vel.clone();
+		_counts = state.counts.clone();
+		_pos = state.pos.clone();
+		_loc = state.loc.clone();
+		g_create_connected = state.create[0];
+		g_create_USB = state.create[1];
+		gc_mode = state.create[2];
+		_gc_l = state.create[3];
+		_gc_r = state.create[4];
+		gc_distance = state.create[5];
+		gc_angle = state.create[6];
+		gc_total_angle = state.create[7];
+		_gc_leds = state.leds.clone();
+		_shutdown = state.shutdown;
+	}
 	// Starts PID control task for motors, servos
 	void start_pid() {
 		if (pidTask == null) {
@@ -1189,10 +1376,14 @@ public class BotballProgram {
 			pidTask.start();
 		}
 	}
+	// Counts the user threads (and PID task) which have not yet finished
+	int _liveThreads() {
+		return _live.get();
+	}
 	// Checks to see if program is still running
 	boolean _isRunning() {
 		for (UserThread t : _threads)
-			if (t.isAlive())
+			if (!t.done && t.isAlive())
 				return true;
 		_threads.clear();
 		if (pidTask != null) {
@@ -1234,12 +1425,51 @@ public class BotballProgram {
 	//  called by all library functions to enable universal pause
 	private void _s() {
 		if (_l()) throw new Killed();
+		if (_clock != null) _spin();
 		while (_sim.isPaused()) try {
 			Thread.sleep(1L);
 		} catch (Exception e) {
 			if (_l()) throw new Killed();
 		}
 	}
+	/**
+	 * Stops the calling user thread if it was killed, or waits while the
+	 *  simulator is paused. ICClassLoader adds calls to this at the start of
+	 *  each user function and each loop, so that loops which never call the
+	 *  library can still be stopped.
+	 */
+	protected static void _safepoint() {
+		Thread t = Thread.currentThread();
+		if (t instanceof UserThread)
+			((UserThread)t)._safepoint();
+	}
+	/**
+	 * Counts instructions run by the calling user thread, then acts as
+	 *  _safepoint(). When metering is on, ICClassLoader adds calls to this at
+	 *  the start of each basic block (in place of _safepoint()) with the
+	 *  number of instructions in the block.
+	 * 
+	 * @param count the number of instructions about to run
+	 */
+	protected static void _meter(int count) {
+		Thread t = Thread.currentThread();
+		if (t instanceof UserThread)
+			((UserThread)t)._meter(count);
+	}
+	// Charges instructions run by a user thread against the controller's
+	//  speed, holding the thread back while the program is ahead of its clock
+	private void _charge(int count) {
+		if (_ips <= 0L) return;
+		long due = _executed.addAndGet(count) * 1000L / _ips;
+		while (_mseconds() < due) defer();
+	}
+	// Holds back a user thread which has gone too long without waiting, so
+	//  that simulated time can pass while it polls
+	private void _spin() {
+		Thread t = Thread.currentThread();
+		if (t instanceof UserThread && ++((UserThread)t).spins >= SPIN_LIMIT)
+			_wait(1L);
+	}
 	// Checks to see if simulator was killed
 	private boolean _l() {
 		Thread t = Thread.currentThread();
@@ -1262,6 +1492,12 @@ public class BotballProgram {
 		private int id;
 		// used to stop the thread
 		private volatile boolean killme;
+		// metered instructions not yet charged to the program
+		private int pending;
+		// checks since the thread last waited on the lockstep clock
+		private int spins;
+		// set once the user function has returned (or failed)
+		private volatile boolean done;
 
 		/**
 		 * Creates a new user thread with the given ID # and function.
@@ -1284,16 +1520,29 @@ public class BotballProgram {
 		public int getID() {
 			return id;
 		}
+		public void start() {
+			// its turns on the lockstep clock start now, not whenever it gets going
+			if (_clock != null) _clock.join(this);
+			super.start();
+		}
 		public void run() {
+			_live.incrementAndGet();
 			try {
+				if (_clock != null) _clock.begin();
 				// call user function
 				_invoke(fn);
+			} catch (InterruptedException e) {
+				// killed before its first turn
 			} catch (NoSuchMethodError e) {
 			} catch (Throwable e) {
 				if (e.getCause() != null) e = e.getCause();
 				if (e instanceof Killed) return;
 				e.printStackTrace(System.out);
 				_bot.printf("Run-time Error, in thread " + getName() + ":" + e.getClass().getSimpleName() + "\n");
+			} finally {
+				done = true;
+				_live.decrementAndGet();
+				if (_clock != null) _clock.leave();
 			}
 		}
 		/**
@@ -1306,6 +1555,27 @@ public class BotballProgram {
 				return killme;
 			}
 		}
+		/**
+		 * Dies if the thread was killed, or waits if the simulator is paused.
+		 */
+		private void _safepoint() {
+			if (killme) throw new Killed();
+			if (_sim.isPaused()) _s();
+			else if (_clock != null) _spin();
+		}
+		/**
+		 * Counts instructions, charging them to the program in batches.
+		 * 
+		 * @param count the number of instructions about to run
+		 */
+		private void _meter(int count) {
+			_safepoint();
+			if ((pending += count) >= METER_BATCH) {
+				count = pending;
+				pending = 0;
+				_charge(count);
+			}
+		}
 		/**
 		 * Kills the thread; it will die on next _s() call.
 		 */
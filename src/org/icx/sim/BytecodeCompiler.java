@@ -0,0 +1,2537 @@
+/*
+ * This file is part of JBSim.
+ * 
+ * JBSim is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * JBSim is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with JBSim.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.icx.sim;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+/**
+ * Compiles the code written by CodeParser straight to a class file, without
+ *  javac. This takes milliseconds where javac takes seconds, and works on a
+ *  JRE which has no compiler at all.
+ * 
+ * Only the part of Java that translated KISS-C programs use is understood:
+ *  primitive, String and array variables, functions, the usual statements
+ *  (if, while, do, for, switch, break, continue, return) and expressions,
+ *  and calls to the library in BotballProgram. The same type rules as
+ *  javac are applied, so a program means the same thing either way. Locals
+ *  must be definitely assigned before they are read; where javac's flow
+ *  analysis would prove more than the simpler one here (assignments in the
+ *  right side of && or ||, say), the program is rejected and javac gets to
+ *  decide. Likewise a final local may only be assigned where it is
+ *  definitely unassigned.
+ *  Anything else is rejected with a CompileError, and the caller can fall
+ *  back to javac.
+ */
+public class BytecodeCompiler {
+	/**
+	 * Thrown when a program has an error or uses something this compiler
+	 *  does not handle.
+	 */
+	public static class CompileError extends Exception {
+		private static final long serialVersionUID = 0L;
+
+		// Line of translated code which has the problem.
+		private int line;
+
+		/**
+		 * Creates a compile error.
+		 * 
+		 * @param line the line number in the translated code
+		 * @param message what is wrong
+		 */
+		public CompileError(int line, String message) {
+			super("Line " + line + ": " + message);
+			this.line = line;
+		}
+
+		/**
+		 * Gets the line the error is on.
+		 * 
+		 * @return the line number in the translated code
+		 */
+		public int getLine() {
+			return line;
+		}
+	}
+
+	// Type descriptors.
+	private static final String INT = "I";
+	private static final String LONG = "J";
+	private static final String FLOAT = "F";
+	private static final String DOUBLE = "D";
+	private static final String BOOLEAN = "Z";
+	private static final String CHAR = "C";
+	private static final String VOID = "V";
+	private static final String STRING = "Ljava/lang/String;";
+	private static final String OBJECT = "Ljava/lang/Object;";
+	private static final String NULL = "null";
+	// The class every program extends.
+	private static final String SUPER = "org/icx/sim/BotballProgram";
+	// Primitive type names and their descriptors.
+	private static final Map<String, String> PRIMITIVES = new HashMap<String, String>(16);
+	// Public fields and methods of BotballProgram by name.
+	private static final Map<String, Member> LIBRARY_FIELDS = new HashMap<String, Member>(64);
+	private static final Map<String, List<Member>> LIBRARY_METHODS =
+		new HashMap<String, List<Member>>(256);
+	// Binary operators by precedence, lowest first.
+	private static final Map<String, Integer> PRECEDENCE = new HashMap<String, Integer>(32);
+	private static final String[][] BINARY = {
+		{ "||" }, { "&&" }, { "|" }, { "^" }, { "&" }, { "==", "!=" },
+		{ "<", ">", "<=", ">=" }, { "<<", ">>", ">>>" }, { "+", "-" }, { "*", "/", "%" }
+	};
+	// Comparisons in the order of their jump opcodes (eq ne lt ge gt le).
+	private static final List<String> COMPARISONS = Arrays.asList("==", "!=", "<", ">=", ">",
+		"<=");
+	// Operators, longest first so that the lexer takes the longest match.
+	private static final String[] OPERATORS = {
+		">>>=", "<<=", ">>=", ">>>", "==", "!=", "<=", ">=", "&&", "||", "++", "--",
+		"+=", "-=", "*=", "/=", "%=", "&=", "|=", "^=", "<<", ">>"
+	};
+	// Token types.
+	private static final int EOF = 0;
+	private static final int WORD = 1;
+	private static final int NUMBER = 2;
+	private static final int TEXT = 3;
+	private static final int OP = 4;
+	// Node kinds.
+	private static final int LITERAL = 1;
+	private static final int NAME = 2;
+	private static final int INDEX = 3;
+	private static final int LENGTH = 4;
+	private static final int CALL = 5;
+	private static final int NEW_ARRAY = 6;
+	private static final int ARRAY_INIT = 7;
+	private static final int UNARY = 8;
+	private static final int PRE = 9;
+	private static final int POST = 10;
+	private static final int CAST = 11;
+	private static final int BINARY_OP = 12;
+	private static final int CONDITIONAL = 13;
+	private static final int ASSIGN = 14;
+	private static final int BLOCK = 20;
+	private static final int SEQUENCE = 21;
+	private static final int LOCAL = 22;
+	private static final int EXPRESSION = 23;
+	private static final int IF = 24;
+	private static final int WHILE = 25;
+	private static final int DO = 26;
+	private static final int FOR = 27;
+	private static final int BREAK = 28;
+	private static final int CONTINUE = 29;
+	private static final int RETURN = 30;
+	private static final int SWITCH = 31;
+	private static final int CASE = 32;
+	private static final int EMPTY = 33;
+
+	static {
+		PRIMITIVES.put("int", INT);
+		PRIMITIVES.put("long", LONG);
+		PRIMITIVES.put("float", FLOAT);
+		PRIMITIVES.put("double", DOUBLE);
+		PRIMITIVES.put("boolean", BOOLEAN);
+		PRIMITIVES.put("char", CHAR);
+		PRIMITIVES.put("short", "S");
+		PRIMITIVES.put("byte", "B");
+		PRIMITIVES.put("void", VOID);
+		for (int i = 0; i < BINARY.length; i++)
+			for (String op : BINARY[i])
+				PRECEDENCE.put(op, Integer.valueOf(i));
+		for (Field f : BotballProgram.class.getFields())
+			LIBRARY_FIELDS.put(f.getName(), new Member(f));
+		for (Method m : BotballProgram.class.getMethods()) {
+			List<Member> list = LIBRARY_METHODS.get(m.getName());
+			if (list == null) LIBRARY_METHODS.put(m.getName(), list = new ArrayList<Member>(2));
+			list.add(new Member(m));
+		}
+	}
+
+	/**
+	 * A field or method, of the program or the library.
+	 */
+	private static class Member {
+		// Internal name of the declaring class.
+		private String owner;
+		private String name;
+		// Type of a field, or return type of a method.
+		private String type;
+		// Parameter types of a method, or null for a field.
+		private String[] params;
+		private boolean isStatic;
+		private boolean varargs;
+		// Access flags when declared by the program.
+		private int flags;
+		// Value of a library constant, or null.
+		private Object constant;
+
+		// Creates a member declared by the program.
+		public Member(String owner, String name, String type, String[] params, int flags) {
+			this.owner = owner;
+			this.name = name;
+			this.type = type;
+			this.params = params;
+			this.flags = flags;
+			isStatic = (flags & ClassFile.ACC_STATIC) != 0;
+			varargs = false;
+			constant = null;
+		}
+		// Creates a member for a library field.
+		public Member(Field f) {
+			this(internalName(f.getDeclaringClass()), f.getName(), typeOf(f.getType()), null,
+				f.getModifiers());
+			if (isStatic && Modifier.isFinal(f.getModifiers())) try {
+				constant = f.get(null);
+			} catch (Exception e) {
+				constant = null;
+			}
+		}
+		// Creates a member for a library method.
+		public Member(Method m) {
+			this(internalName(m.getDeclaringClass()), m.getName(), typeOf(m.getReturnType()),
+				null, m.getModifiers());
+			Class<?>[] types = m.getParameterTypes();
+			params = new String[types.length];
+			for (int i = 0; i < types.length; i++)
+				params[i] = typeOf(types[i]);
+			varargs = m.isVarArgs();
+		}
+		// Gets the method descriptor.
+		public String descriptor() {
+			StringBuilder out = new StringBuilder(32);
+			out.append('(');
+			for (String p : params)
+				out.append(p);
+			return out.append(')').append(type).toString();
+		}
+	}
+
+	/**
+	 * A piece of the program: an expression or a statement.
+	 */
+	private static class Node {
+		private int kind;
+		// Operator, name, or type descriptor, depending on the kind.
+		private String text;
+		// Sub-expressions or statements.
+		private Node[] kids;
+		// Statements under a case label.
+		private Node[] body;
+		// Literal value; whether a local is final; the parameters of a method body.
+		private Object value;
+		// Where it came from.
+		private int line;
+		// Type of an expression, once worked out.
+		private String type;
+		// Method called, once resolved.
+		private Member method;
+		// Line of the closing brace of a block.
+		private int end;
+
+		public Node(int kind, String text, int line, Node... kids) {
+			this.kind = kind;
+			this.text = text;
+			this.line = line;
+			this.kids = kids;
+			body = null;
+			end = 0;
+			value = null;
+			type = null;
+			method = null;
+		}
+	}
+
+	/**
+	 * A local variable.
+	 */
+	private static class Local {
+		private String name;
+		private String type;
+		private int slot;
+		// Whether it is final, and if so whether it is a parameter or was
+		//  declared without a value.
+		private boolean isFinal;
+		private boolean isParameter;
+		private boolean blank;
+		// Line where it was last assigned.
+		private int assignedAt;
+
+		public Local(String name, String type, int slot) {
+			this.name = name;
+			this.type = type;
+			this.slot = slot;
+			isFinal = isParameter = blank = false;
+			assignedAt = 0;
+		}
+	}
+
+	/**
+	 * A loop or switch which break (and for loops, continue) can leave.
+	 */
+	private static class Target {
+		private ClassFile.Label exit;
+		// Where continue goes, or null for a switch.
+		private ClassFile.Label next;
+		// Whether anything breaks out of it.
+		private boolean broken;
+		// Locals assigned at every break and continue so far (null if none).
+		private BitSet atBreak;
+		private BitSet atNext;
+
+		public Target(ClassFile.Label exit, ClassFile.Label next) {
+			this.exit = exit;
+			this.next = next;
+			broken = false;
+			atBreak = atNext = null;
+		}
+	}
+
+	/**
+	 * Compiles translated code into a class file.
+	 * 
+	 * @param code the Java code written by CodeParser
+	 * @return the class file for Program (in the package named by the code, if any)
+	 * @throws CompileError if the code has an error or uses something not handled here
+	 */
+	public static byte[] compile(String code) throws CompileError {
+		return new BytecodeCompiler(code).compile();
+	}
+
+	// The code being read.
+	private String src;
+	private int pos;
+	private int line;
+	// The current token.
+	private int tok;
+	private String text;
+	private Object value;
+	private int tokLine;
+	// The class being written.
+	private ClassFile out;
+	private String className;
+	// Fields and methods of the program by name.
+	private Map<String, Member> fields;
+	private Map<String, List<Member>> methods;
+	// Field declarations and method bodies in order.
+	private List<Node> fieldInits;
+	private List<Member> bodyMembers;
+	private List<Node> bodies;
+	// State of the method being compiled.
+	private ClassFile.Code code;
+	private Member method;
+	private List<Map<String, Local>> scopes;
+	private int nextSlot;
+	// What is known of the locals at this point in the code: bit 2s is set
+	//  if the local in slot s is definitely assigned, and bit 2s + 1 if it
+	//  is a blank final which is definitely unassigned.
+	private BitSet assigned;
+	private List<Target> targets;
+
+	// Creates a compiler for the given code.
+	private BytecodeCompiler(String src) {
+		this.src = src;
+		pos = 0;
+		line = 1;
+		out = new ClassFile();
+		fields = new LinkedHashMap<String, Member>(32);
+		methods = new LinkedHashMap<String, List<Member>>(32);
+		fieldInits = new ArrayList<Node>(32);
+		bodyMembers = new ArrayList<Member>(32);
+		bodies = new ArrayList<Node>(32);
+		scopes = new ArrayList<Map<String, Local>>(16);
+		targets = new ArrayList<Target>(8);
+	}
+
+	// Reads the class, then writes each part of it.
+	private byte[] compile() throws CompileError {
+		next();
+		String pkg = null;
+		if (accept("package")) {
+			StringBuilder name = new StringBuilder(expectWord());
+			while (accept("."))
+				name.append('/').append(expectWord());
+			expect(";");
+			pkg = name.toString();
+		}
+		expect("public");
+		expect("class");
+		expect("Program");
+		expect("extends");
+		for (String part : SUPER.split("/")) {
+			expect(part);
+			if (!part.equals("BotballProgram")) expect(".");
+		}
+		className = pkg == null ? "Program" : pkg + "/Program";
+		expect("{");
+		while (!accept("}"))
+			member();
+		if (tok != EOF) throw error(tokLine, "class, interface, or enum expected");
+		// field initializers run in the constructor (or static initializer)
+		initializer(false);
+		initializer(true);
+		for (int i = 0; i < bodies.size(); i++)
+			methodBody(bodyMembers.get(i), bodies.get(i));
+		return out.toByteArray(ClassFile.ACC_PUBLIC | ClassFile.ACC_SUPER, className, SUPER,
+			"Program.java");
+	}
+
+	// --- reading the code ---
+
+	// Makes an error at the given line.
+	private static CompileError error(int line, String message) {
+		return new CompileError(line, message);
+	}
+
+	// Reads the next token.
+	private void next() throws CompileError {
+		skipSpace();
+		tokLine = line;
+		value = null;
+		if (pos >= src.length()) {
+			tok = EOF;
+			text = "<EOF>";
+			return;
+		}
+		char c = src.charAt(pos);
+		int start = pos;
+		if (Character.isJavaIdentifierStart(c)) {
+			while (pos < src.length() && Character.isJavaIdentifierPart(src.charAt(pos)))
+				pos++;
+			tok = WORD;
+			text = src.substring(start, pos);
+		} else if (Character.isDigit(c) || (c == '.' && pos + 1 < src.length() &&
+				Character.isDigit(src.charAt(pos + 1))))
+			number();
+		else if (c == '"') {
+			pos++;
+			StringBuilder s = new StringBuilder(32);
+			while (true) {
+				if (pos >= src.length() || src.charAt(pos) == '\n')
+					throw error(tokLine, "unclosed string literal");
+				c = src.charAt(pos++);
+				if (c == '"') break;
+				s.append(c == '\\' ? escape() : c);
+			}
+			tok = TEXT;
+			text = s.toString();
+			value = text;
+		} else if (c == '\'') {
+			pos++;
+			if (pos >= src.length()) throw error(tokLine, "unclosed character literal");
+			c = src.charAt(pos++);
+			if (c == '\\') c = escape();
+			else if (c == '\'' || c == '\n') throw error(tokLine, "empty character literal");
+			if (pos >= src.length() || src.charAt(pos++) != '\'')
+				throw error(tokLine, "unclosed character literal");
+			tok = NUMBER;
+			text = String.valueOf(c);
+			value = Character.valueOf(c);
+		} else {
+			tok = OP;
+			text = null;
+			for (String op : OPERATORS)
+				if (src.startsWith(op, pos)) {
+					text = op;
+					break;
+				}
+			if (text == null) text = String.valueOf(c);
+			pos += text.length();
+		}
+	}
+
+	// Skips white space and comments.
+	private void skipSpace() throws CompileError {
+		while (pos < src.length()) {
+			char c = src.charAt(pos);
+			if (c == '\n') {
+				line++;
+				pos++;
+			} else if (Character.isWhitespace(c))
+				pos++;
+			else if (src.startsWith("//", pos)) {
+				while (pos < src.length() && src.charAt(pos) != '\n')
+					pos++;
+			} else if (src.startsWith("/*", pos)) {
+				int end = src.indexOf("*/", pos + 2);
+				if (end < 0) throw error(line, "unclosed comment");
+				for (int i = pos; i < end; i++)
+					if (src.charAt(i) == '\n') line++;
+				pos = end + 2;
+			} else
+				break;
+		}
+	}
+
+	// Reads an escape sequence after the backslash.
+	private char escape() throws CompileError {
+		if (pos >= src.length()) throw error(line, "illegal escape character");
+		char c = src.charAt(pos++);
+		switch (c) {
+		case 'n': return '\n';
+		case 't': return '\t';
+		case 'b': return '\b';
+		case 'r': return '\r';
+		case 'f': return '\f';
+		case '\'': case '"': case '\\': return c;
+		default:
+			if (c >= '0' && c <= '7') {
+				// up to 3 octal digits, no more than \377
+				int v = c - '0', max = c <= '3' ? 2 : 1;
+				for (int i = 0; i < max && pos < src.length() && src.charAt(pos) >= '0' &&
+						src.charAt(pos) <= '7'; i++)
+					v = v * 8 + src.charAt(pos++) - '0';
+				return (char)v;
+			}
+			throw error(line, "illegal escape character");
+		}
+	}
+
+	// Reads a number literal.
+	private void number() throws CompileError {
+		int start = pos;
+		boolean real = false;
+		tok = NUMBER;
+		if (src.startsWith("0x", pos) || src.startsWith("0X", pos)) {
+			pos += 2;
+			while (pos < src.length() && Character.digit(src.charAt(pos), 16) >= 0)
+				pos++;
+			integer(src.substring(start + 2, pos), 16, true);
+			return;
+		}
+		while (pos < src.length() && Character.isDigit(src.charAt(pos)))
+			pos++;
+		if (pos < src.length() && src.charAt(pos) == '.') {
+			real = true;
+			pos++;
+			while (pos < src.length() && Character.isDigit(src.charAt(pos)))
+				pos++;
+		}
+		if (pos < src.length() && (src.charAt(pos) == 'e' || src.charAt(pos) == 'E')) {
+			real = true;
+			pos++;
+			if (pos < src.length() && (src.charAt(pos) == '+' || src.charAt(pos) == '-'))
+				pos++;
+			if (pos >= src.length() || !Character.isDigit(src.charAt(pos)))
+				throw error(line, "malformed floating point literal");
+			while (pos < src.length() && Character.isDigit(src.charAt(pos)))
+				pos++;
+		}
+		char suffix = pos < src.length() ? Character.toLowerCase(src.charAt(pos)) : ' ';
+		String digits = src.substring(start, pos);
+		if (suffix == 'f' || suffix == 'd' || real) {
+			if (suffix == 'f' || suffix == 'd') pos++;
+			text = digits;
+			if (suffix == 'f')
+				value = Float.valueOf(digits);
+			else
+				value = Double.valueOf(digits);
+		} else if (digits.length() > 1 && digits.charAt(0) == '0')
+			integer(digits.substring(1), 8, true);
+		else
+			integer(digits, 10, false);
+	}
+
+	// Reads an integer literal in the given base, with an optional L after it.
+	private void integer(String digits, int radix, boolean unsigned) throws CompileError {
+		boolean isLong = pos < src.length() && (src.charAt(pos) == 'l' || src.charAt(pos) == 'L');
+		if (isLong) pos++;
+		if (digits.length() == 0) {
+			if (radix != 8) throw error(line, "malformed integer literal");
+			digits = "0";
+		}
+		text = digits;
+		try {
+			if (isLong) {
+				value = unsigned ? Long.valueOf(new java.math.BigInteger(digits, radix).
+					longValue()) : Long.valueOf(Long.parseLong(digits));
+				if (unsigned && new java.math.BigInteger(digits, radix).bitLength() > 64)
+					throw new NumberFormatException();
+			} else {
+				long v = Long.parseLong(digits, radix);
+				if (unsigned ? v > 0xFFFFFFFFL : v > 0x80000000L)
+					throw new NumberFormatException();
+				// 2147483648 is only allowed after a minus sign, see unary()
+				value = v == 0x80000000L && !unsigned ? (Object)Long.valueOf(v) :
+					(Object)Integer.valueOf((int)v);
+			}
+		} catch (NumberFormatException e) {
+			throw error(line, "integer number too large");
+		}
+	}
+
+	// Checks whether the current token is the given word or operator.
+	private boolean is(String what) {
+		return (tok == WORD || tok == OP) && text.equals(what);
+	}
+
+	// Skips the given word or operator if it is next.
+	private boolean accept(String what) throws CompileError {
+		if (is(what)) {
+			next();
+			return true;
+		}
+		return false;
+	}
+
+	// Skips the given word or operator, which must be next.
+	private void expect(String what) throws CompileError {
+		if (!accept(what)) throw error(tokLine, "'" + what + "' expected");
+	}
+
+	// Reads a name.
+	private String expectWord() throws CompileError {
+		if (tok != WORD) throw error(tokLine, "<identifier> expected");
+		String word = text;
+		next();
+		return word;
+	}
+
+	// Checks whether a type starts here.
+	private boolean isType() {
+		return tok == WORD && (PRIMITIVES.containsKey(text) || text.equals("String"));
+	}
+
+	// Reads a type, with any [] after it.
+	private String type() throws CompileError {
+		String type = tok == WORD ? PRIMITIVES.get(text) : null;
+		if (type == null) {
+			if (!is("String")) throw error(tokLine, "unsupported type " + text);
+			type = STRING;
+		}
+		next();
+		return dims(type);
+	}
+
+	// Adds any [] after a type or name.
+	private String dims(String type) throws CompileError {
+		while (is("[")) {
+			next();
+			expect("]");
+			if (type.equals(VOID)) throw error(tokLine, "'void' type not allowed here");
+			type = "[" + type;
+		}
+		return type;
+	}
+
+	// Reads modifiers as access flags.
+	private int modifiers() throws CompileError {
+		int flags = 0;
+		while (tok == WORD) {
+			if (text.equals("public")) flags |= ClassFile.ACC_PUBLIC;
+			else if (text.equals("private")) flags |= ClassFile.ACC_PRIVATE;
+			else if (text.equals("protected")) flags |= ClassFile.ACC_PROTECTED;
+			else if (text.equals("static")) flags |= ClassFile.ACC_STATIC;
+			else if (text.equals("final")) flags |= ClassFile.ACC_FINAL;
+			else if (text.equals("volatile")) flags |= ClassFile.ACC_VOLATILE;
+			else break;
+			next();
+		}
+		return flags;
+	}
+
+	// Reads a field or method of the class.
+	private void member() throws CompileError {
+		if (accept(";")) return;
+		int at = tokLine, flags = modifiers();
+		if (!isType()) throw error(tokLine, "unsupported declaration " + text);
+		String type = type();
+		String name = expectWord();
+		if (is("(")) {
+			// method
+			next();
+			List<String> params = new ArrayList<String>(4);
+			List<Node> formals = new ArrayList<Node>(4);
+			if (!is(")")) do {
+				boolean isFinal = (modifiers() & ClassFile.ACC_FINAL) != 0;
+				if (!isType()) throw error(tokLine, "unsupported parameter type " + text);
+				String p = type();
+				Node formal = new Node(LOCAL, expectWord(), tokLine, (Node)null);
+				formal.value = Boolean.valueOf(isFinal);
+				formals.add(formal);
+				params.add(dims(p));
+				if (p.equals(VOID)) throw error(tokLine, "'void' type not allowed here");
+			} while (accept(","));
+			expect(")");
+			type = dims(type);
+			Member m = new Member(className, name, type, params.toArray(new String[params.size()]),
+				flags & ~ClassFile.ACC_VOLATILE);
+			declare(m, at);
+			// prototypes which CodeParser could not strip are an error to javac too
+			if (is(";")) throw error(tokLine, "missing method body, or declare abstract");
+			Node body = block();
+			body.value = formals;
+			bodyMembers.add(m);
+			bodies.add(body);
+		} else {
+			if (type.equals(VOID)) throw error(at, "'void' type not allowed here");
+			while (true) {
+				String t = dims(type);
+				if (fields.containsKey(name))
+					throw error(at, "variable " + name + " is already defined in class Program");
+				Member f = new Member(className, name, t, null, flags);
+				fields.put(name, f);
+				out.addField(flags, name, t);
+				if (accept("=")) {
+					Node init = new Node(LOCAL, name, tokLine, is("{") ? arrayInit() : expression());
+					init.type = t;
+					fieldInits.add(init);
+				}
+				if (!accept(",")) break;
+				name = expectWord();
+			}
+			expect(";");
+		}
+	}
+
+	// Adds a method of the program, checking it against those already known.
+	private void declare(Member m, int at) throws CompileError {
+		List<Member> list = methods.get(m.name);
+		if (list == null) methods.put(m.name, list = new ArrayList<Member>(2));
+		for (Member other : list)
+			if (Arrays.equals(other.params, m.params))
+				throw error(at, "method " + m.name + " is already defined in class Program");
+		List<Member> inherited = LIBRARY_METHODS.get(m.name);
+		if (inherited != null)
+			for (Member other : inherited)
+				if (Arrays.equals(other.params, m.params)) {
+					if (!other.type.equals(m.type))
+						throw error(at, m.name + " in Program cannot override " + m.name +
+							" in BotballProgram; return type " + m.type + " is not compatible");
+					if ((m.flags & ClassFile.ACC_PUBLIC) == 0 && (other.flags &
+							Modifier.PUBLIC) != 0)
+						throw error(at, m.name + " in Program cannot override " + m.name +
+							" in BotballProgram; attempting to assign weaker access privileges");
+					if (other.isStatic != m.isStatic)
+						throw error(at, m.name + " in Program cannot override " + m.name +
+							" in BotballProgram");
+				}
+		list.add(m);
+	}
+
+	// Reads a { block }.
+	private Node block() throws CompileError {
+		int at = tokLine;
+		expect("{");
+		List<Node> list = new ArrayList<Node>(16);
+		while (!is("}")) {
+			if (tok == EOF) throw error(tokLine, "reached end of file while parsing");
+			list.add(statement());
+		}
+		Node block = new Node(BLOCK, null, at, list.toArray(new Node[list.size()]));
+		block.end = tokLine;
+		next();
+		return block;
+	}
+
+	// Reads a statement.
+	private Node statement() throws CompileError {
+		int at = tokLine;
+		if (is("{")) return block();
+		if (accept(";")) return new Node(EMPTY, null, at);
+		if (tok == WORD) {
+			if (accept("if")) {
+				Node cond = condition(), then = statement();
+				if (accept("else"))
+					return new Node(IF, null, at, cond, then, statement());
+				return new Node(IF, null, at, cond, then, null);
+			}
+			if (accept("while")) {
+				Node cond = condition();
+				return new Node(WHILE, null, at, cond, statement());
+			}
+			if (accept("do")) {
+				Node body = statement();
+				expect("while");
+				Node cond = condition();
+				expect(";");
+				return new Node(DO, null, at, body, cond);
+			}
+			if (accept("for")) {
+				expect("(");
+				Node init = null, cond = null, update = null;
+				if (!is(";")) init = isType() || is("final") ? locals() : expressions();
+				expect(";");
+				if (!is(";")) cond = expression();
+				expect(";");
+				if (!is(")")) update = expressions();
+				expect(")");
+				return new Node(FOR, null, at, init, cond, update, statement());
+			}
+			if (accept("break")) {
+				expect(";");
+				return new Node(BREAK, null, at);
+			}
+			if (accept("continue")) {
+				expect(";");
+				return new Node(CONTINUE, null, at);
+			}
+			if (accept("return")) {
+				Node result = is(";") ? null : expression();
+				expect(";");
+				return new Node(RETURN, null, at, result);
+			}
+			if (accept("switch")) return switchStatement(at);
+			if (isType() || is("final")) {
+				Node decl = locals();
+				expect(";");
+				return decl;
+			}
+		}
+		Node e = new Node(EXPRESSION, null, at, expression());
+		expect(";");
+		return e;
+	}
+
+	// Reads ( condition ).
+	private Node condition() throws CompileError {
+		expect("(");
+		Node cond = expression();
+		expect(")");
+		return cond;
+	}
+
+	// Reads local variable declarations, without the ;
+	private Node locals() throws CompileError {
+		int at = tokLine;
+		boolean isFinal = (modifiers() & ClassFile.ACC_FINAL) != 0;
+		String type = type();
+		if (type.equals(VOID)) throw error(at, "'void' type not allowed here");
+		List<Node> list = new ArrayList<Node>(4);
+		do {
+			int nameAt = tokLine;
+			String name = expectWord();
+			Node decl = new Node(LOCAL, name, nameAt, (Node)null);
+			decl.type = dims(type);
+			decl.value = Boolean.valueOf(isFinal);
+			if (accept("="))
+				decl.kids[0] = is("{") ? arrayInit() : expression();
+			list.add(decl);
+		} while (accept(","));
+		return new Node(SEQUENCE, null, at, list.toArray(new Node[list.size()]));
+	}
+
+	// Reads expression statements separated by commas.
+	private Node expressions() throws CompileError {
+		int at = tokLine;
+		List<Node> list = new ArrayList<Node>(4);
+		do {
+			list.add(new Node(EXPRESSION, null, tokLine, expression()));
+		} while (accept(","));
+		return new Node(SEQUENCE, null, at, list.toArray(new Node[list.size()]));
+	}
+
+	// Reads a switch statement after the word switch.
+	private Node switchStatement(int at) throws CompileError {
+		Node selector = condition();
+		List<Node> cases = new ArrayList<Node>(8);
+		cases.add(selector);
+		expect("{");
+		while (!accept("}")) {
+			int caseAt = tokLine;
+			List<Node> labels = new ArrayList<Node>(2);
+			boolean other = false;
+			while (true) {
+				if (accept("case")) {
+					labels.add(expression());
+					expect(":");
+				} else if (accept("default")) {
+					expect(":");
+					other = true;
+				} else break;
+			}
+			if (labels.isEmpty() && !other) throw error(tokLine, "'case', 'default', or '}' expected");
+			List<Node> list = new ArrayList<Node>(8);
+			while (!is("case") && !is("default") && !is("}")) {
+				if (tok == EOF) throw error(tokLine, "reached end of file while parsing");
+				list.add(statement());
+			}
+			Node group = new Node(CASE, other ? "default" : null, caseAt,
+				labels.toArray(new Node[labels.size()]));
+			group.body = list.toArray(new Node[list.size()]);
+			cases.add(group);
+		}
+		return new Node(SWITCH, null, at, cases.toArray(new Node[cases.size()]));
+	}
+
+	// Reads { array, initializer }.
+	private Node arrayInit() throws CompileError {
+		int at = tokLine;
+		expect("{");
+		List<Node> list = new ArrayList<Node>(16);
+		while (!accept("}")) {
+			list.add(is("{") ? arrayInit() : expression());
+			if (!is("}")) expect(",");
+		}
+		return new Node(ARRAY_INIT, null, at, list.toArray(new Node[list.size()]));
+	}
+
+	// Reads an expression.
+	private Node expression() throws CompileError {
+		Node left = conditional();
+		if (tok == OP && text.endsWith("=") && !text.equals("==") && !text.equals("!=") &&
+				!text.equals("<=") && !text.equals(">=")) {
+			int at = tokLine;
+			String op = text;
+			if (left.kind != NAME && left.kind != INDEX)
+				throw error(at, "unexpected type; required: variable, found: value");
+			next();
+			return new Node(ASSIGN, op, at, left, expression());
+		}
+		return left;
+	}
+
+	// Reads a ? b : c, or anything tighter.
+	private Node conditional() throws CompileError {
+		Node cond = binary(0);
+		if (is("?")) {
+			int at = tokLine;
+			next();
+			Node a = expression();
+			expect(":");
+			return new Node(CONDITIONAL, null, at, cond, a, conditional());
+		}
+		return cond;
+	}
+
+	// Reads binary operators of the given precedence or tighter.
+	private Node binary(int level) throws CompileError {
+		Node left = unary();
+		Integer precedence;
+		while (tok == OP && (precedence = PRECEDENCE.get(text)) != null &&
+				precedence.intValue() >= level) {
+			int at = tokLine;
+			String op = text;
+			next();
+			left = new Node(BINARY_OP, op, at, left, binary(precedence.intValue() + 1));
+		}
+		return left;
+	}
+
+	// Reads a prefix operator, cast, or anything tighter.
+	private Node unary() throws CompileError {
+		int at = tokLine;
+		if (tok == OP) {
+			String op = text;
+			if (op.equals("-") || op.equals("+") || op.equals("!") || op.equals("~")) {
+				next();
+				if (op.equals("-") && tok == NUMBER && value instanceof Number && !(value instanceof
+						Character))
+					// fold negative literals, so that -2147483648 is allowed
+					return postfix(negative(at));
+				return new Node(UNARY, op, at, unary());
+			}
+			if (op.equals("++") || op.equals("--")) {
+				next();
+				return new Node(PRE, op, at, target(unary()));
+			}
+			if (op.equals("(")) {
+				// primitive cast?
+				int savePos = pos, saveLine = line;
+				next();
+				if (isType()) {
+					String type = type();
+					expect(")");
+					return new Node(CAST, type, at, unary());
+				}
+				// no, put it back
+				pos = savePos;
+				line = saveLine;
+				tok = OP;
+				text = "(";
+				tokLine = at;
+			}
+		}
+		return postfix(primary());
+	}
+
+	// Makes a negative number literal from the current token.
+	private Node negative(int at) throws CompileError {
+		Number n = (Number)value;
+		Node lit = new Node(LITERAL, null, at);
+		if (n instanceof Integer) lit.value = Integer.valueOf(-n.intValue());
+		else if (n instanceof Long && Character.toLowerCase(src.charAt(pos - 1)) != 'l')
+			// this is the int 2147483648
+			lit.value = Integer.valueOf(Integer.MIN_VALUE);
+		else if (n instanceof Long) lit.value = Long.valueOf(-n.longValue());
+		else if (n instanceof Float) lit.value = Float.valueOf(-n.floatValue());
+		else lit.value = Double.valueOf(-n.doubleValue());
+		lit.type = literalType(lit.value);
+		next();
+		return lit;
+	}
+
+	// Gets the type of a literal value.
+	private static String literalType(Object value) {
+		if (value instanceof Integer) return INT;
+		if (value instanceof Long) return LONG;
+		if (value instanceof Float) return FLOAT;
+		if (value instanceof Double) return DOUBLE;
+		if (value instanceof Character) return CHAR;
+		if (value instanceof Boolean) return BOOLEAN;
+		if (value instanceof String) return STRING;
+		return NULL;
+	}
+
+	// Checks that an expression can be assigned to.
+	private Node target(Node e) throws CompileError {
+		if (e.kind != NAME && e.kind != INDEX)
+			throw error(e.line, "unexpected type; required: variable, found: value");
+		return e;
+	}
+
+	// Reads postfix operators after a primary expression.
+	private Node postfix(Node e) throws CompileError {
+		while (true) {
+			int at = tokLine;
+			if (accept("[")) {
+				Node index = expression();
+				expect("]");
+				e = new Node(INDEX, null, at, e, index);
+			} else if (accept(".")) {
+				if (!accept("length")) throw error(at, "unsupported member access");
+				e = new Node(LENGTH, null, at, e);
+			} else if (is("++") || is("--")) {
+				String op = text;
+				next();
+				e = new Node(POST, op, at, target(e));
+			} else
+				return e;
+		}
+	}
+
+	// Reads a literal, name, call, new array or parenthesized expression.
+	private Node primary() throws CompileError {
+		int at = tokLine;
+		if (tok == NUMBER || tok == TEXT) {
+			Node lit = new Node(LITERAL, null, at);
+			if (value instanceof Long && Character.toLowerCase(src.charAt(pos - 1)) != 'l')
+				throw error(at, "integer number too large");
+			lit.value = value;
+			lit.type = literalType(value);
+			next();
+			return lit;
+		}
+		if (accept("(")) {
+			Node e = expression();
+			expect(")");
+			return e;
+		}
+		if (tok != WORD) throw error(at, "illegal start of expression");
+		String word = text;
+		next();
+		if (word.equals("true") || word.equals("false") || word.equals("null")) {
+			Node lit = new Node(LITERAL, null, at);
+			lit.value = word.equals("null") ? null : Boolean.valueOf(word);
+			lit.type = literalType(lit.value);
+			return lit;
+		}
+		if (word.equals("new")) {
+			if (!isType()) throw error(at, "unsupported use of new");
+			String type = tok == WORD ? PRIMITIVES.get(text) : null;
+			if (type == null) type = STRING;
+			next();
+			List<Node> sizes = new ArrayList<Node>(2);
+			boolean open = false;
+			while (accept("[")) {
+				if (accept("]"))
+					open = true;
+				else {
+					if (open) throw error(tokLine, "']' expected");
+					sizes.add(expression());
+					expect("]");
+				}
+				type = "[" + type;
+			}
+			if (is("{") && sizes.isEmpty()) {
+				Node init = arrayInit();
+				init.type = type;
+				return init;
+			}
+			if (sizes.isEmpty()) throw error(at, "array dimension missing");
+			return new Node(NEW_ARRAY, type, at, sizes.toArray(new Node[sizes.size()]));
+		}
+		if (PRIMITIVES.containsKey(word) || word.equals("this") || word.equals("super") ||
+				word.equals("class"))
+			throw error(at, "unsupported expression " + word);
+		if (accept("(")) {
+			List<Node> args = new ArrayList<Node>(4);
+			if (!is(")")) do {
+				args.add(expression());
+			} while (accept(","));
+			expect(")");
+			return new Node(CALL, word, at, args.toArray(new Node[args.size()]));
+		}
+		return new Node(NAME, word, at);
+	}
+
+	// --- types ---
+
+	// Gets the descriptor of a class.
+	private static String typeOf(Class<?> c) {
+		if (c.isPrimitive()) {
+			if (c == int.class) return INT;
+			if (c == long.class) return LONG;
+			if (c == float.class) return FLOAT;
+			if (c == double.class) return DOUBLE;
+			if (c == boolean.class) return BOOLEAN;
+			if (c == char.class) return CHAR;
+			if (c == short.class) return "S";
+			if (c == byte.class) return "B";
+			return VOID;
+		}
+		if (c.isArray()) return c.getName().replace('.', '/');
+		return "L" + internalName(c) + ";";
+	}
+
+	// Gets the internal name of a class.
+	private static String internalName(Class<?> c) {
+		return c.getName().replace('.', '/');
+	}
+
+	// Makes a type readable for error messages.
+	private static String typeName(String type) {
+		if (type.startsWith("[")) return typeName(type.substring(1)) + "[]";
+		if (type.equals(NULL)) return "<null>";
+		if (type.startsWith("L")) {
+			String name = type.substring(1, type.length() - 1);
+			return name.substring(name.lastIndexOf('/') + 1);
+		}
+		for (Map.Entry<String, String> e : PRIMITIVES.entrySet())
+			if (e.getValue().equals(type)) return e.getKey();
+		return type;
+	}
+
+	// Checks for numeric primitive types.
+	private static boolean isNumeric(String type) {
+		return type.length() == 1 && "BSCIJFD".indexOf(type.charAt(0)) >= 0;
+	}
+
+	// Checks for integer primitive types.
+	private static boolean isIntegral(String type) {
+		return type.length() == 1 && "BSCIJ".indexOf(type.charAt(0)) >= 0;
+	}
+
+	// Checks for reference types (including null).
+	private static boolean isReference(String type) {
+		return type.length() > 1;
+	}
+
+	// Gets the number of stack or local slots a type takes.
+	private static int width(String type) {
+		if (type.equals(VOID)) return 0;
+		return type.equals(LONG) || type.equals(DOUBLE) ? 2 : 1;
+	}
+
+	// Applies unary numeric promotion.
+	private static String promote(String type) {
+		return type.equals("B") || type.equals("S") || type.equals(CHAR) ? INT : type;
+	}
+
+	// Applies binary numeric promotion.
+	private static String promote(String a, String b) {
+		if (a.equals(DOUBLE) || b.equals(DOUBLE)) return DOUBLE;
+		if (a.equals(FLOAT) || b.equals(FLOAT)) return FLOAT;
+		if (a.equals(LONG) || b.equals(LONG)) return LONG;
+		return INT;
+	}
+
+	// Gets 0 for int, 1 long, 2 float, 3 double or 4 reference, for choosing opcodes.
+	private static int kind(String type) {
+		switch (type.charAt(0)) {
+		case 'J': return 1;
+		case 'F': return 2;
+		case 'D': return 3;
+		case 'L': case '[': case 'n': return 4;
+		default: return 0;
+		}
+	}
+
+	// Checks whether a primitive widens to another.
+	private static boolean widens(String from, String to) {
+		if (from.equals(to)) return true;
+		if (from.equals(BOOLEAN) || to.equals(BOOLEAN) || to.equals(CHAR)) return false;
+		String order = "BSIJFD";
+		if (from.equals(CHAR)) return "IJFD".contains(to);
+		int f = order.indexOf(from), t = order.indexOf(to);
+		return f >= 0 && t > f;
+	}
+
+	// Checks method invocation conversion, optionally with boxing.
+	private static boolean converts(String from, String to, boolean boxing) {
+		if (from.equals(to)) return true;
+		if (isReference(from) && isReference(to))
+			return to.equals(OBJECT) || from.equals(NULL);
+		if (!isReference(from) && !isReference(to)) return widens(from, to);
+		if (!boxing || isReference(from) || from.equals(VOID)) return false;
+		return to.equals(OBJECT) || to.equals(boxType(from)) || (isNumeric(from) &&
+			to.equals("Ljava/lang/Number;"));
+	}
+
+	// Gets the box class descriptor of a primitive.
+	private static String boxType(String type) {
+		switch (type.charAt(0)) {
+		case 'I': return "Ljava/lang/Integer;";
+		case 'J': return "Ljava/lang/Long;";
+		case 'F': return "Ljava/lang/Float;";
+		case 'D': return "Ljava/lang/Double;";
+		case 'Z': return "Ljava/lang/Boolean;";
+		case 'C': return "Ljava/lang/Character;";
+		case 'S': return "Ljava/lang/Short;";
+		default: return "Ljava/lang/Byte;";
+		}
+	}
+
+	// Checks assignment conversion, which also allows int constants into
+	//  smaller types when they fit.
+	private boolean assignable(Node e, String to) throws CompileError {
+		String from = type(e);
+		if (converts(from, to, false)) return true;
+		if (to.equals("B") || to.equals("S") || to.equals(CHAR)) {
+			Long c = constant(e);
+			if (c != null && (from.equals(INT) || from.equals("S") || from.equals("B") ||
+					from.equals(CHAR))) {
+				long v = c.longValue();
+				if (to.equals("B")) return v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE;
+				if (to.equals("S")) return v >= Short.MIN_VALUE && v <= Short.MAX_VALUE;
+				return v >= 0 && v <= Character.MAX_VALUE;
+			}
+		}
+		return false;
+	}
+
+	// Checks an assignment and throws the javac error if it is not allowed.
+	private void checkAssignable(Node e, String to) throws CompileError {
+		if (!assignable(e, to)) {
+			String from = type(e);
+			if (isNumeric(from) && isNumeric(to))
+				throw error(e.line, "incompatible types: possible lossy conversion from " +
+					typeName(from) + " to " + typeName(to));
+			throw error(e.line, "incompatible types: " + typeName(from) + " cannot be converted to "
+				+ typeName(to));
+		}
+	}
+
+	// Works out the value of an integer constant expression, or null if the
+	//  expression is not constant.
+	private Long constant(Node e) throws CompileError {
+		switch (e.kind) {
+		case LITERAL:
+			if (e.value instanceof Integer || e.value instanceof Long)
+				return Long.valueOf(((Number)e.value).longValue());
+			if (e.value instanceof Character)
+				return Long.valueOf(((Character)e.value).charValue());
+			return null;
+		case NAME:
+			if (findLocal(e.text) != null || fields.containsKey(e.text)) return null;
+			Member f = LIBRARY_FIELDS.get(e.text);
+			if (f != null && f.constant instanceof Integer)
+				return Long.valueOf(((Integer)f.constant).longValue());
+			return null;
+		case UNARY: {
+			Long v = constant(e.kids[0]);
+			if (v == null || !isIntegral(type(e))) return null;
+			if (e.text.equals("-")) return wrap(-v.longValue(), type(e));
+			if (e.text.equals("~")) return wrap(~v.longValue(), type(e));
+			if (e.text.equals("+")) return v;
+			return null;
+		}
+		case CAST: {
+			Long v = constant(e.kids[0]);
+			if (v == null || !isIntegral(e.text)) return null;
+			return wrap(v.longValue(), e.text);
+		}
+		case BINARY_OP: {
+			if (!isIntegral(type(e))) return null;
+			Long l = constant(e.kids[0]), r = constant(e.kids[1]);
+			if (l == null || r == null) return null;
+			long a = l.longValue(), b = r.longValue();
+			String op = e.text;
+			if (op.equals("+")) return wrap(a + b, type(e));
+			if (op.equals("-")) return wrap(a - b, type(e));
+			if (op.equals("*")) return wrap(a * b, type(e));
+			if (op.equals("&")) return wrap(a & b, type(e));
+			if (op.equals("|")) return wrap(a | b, type(e));
+			if (op.equals("^")) return wrap(a ^ b, type(e));
+			if (op.equals("<<")) return wrap(type(e).equals(LONG) ? a << b : (long)((int)a <<
+				(int)b), type(e));
+			if (op.equals(">>")) return wrap(type(e).equals(LONG) ? a >> b : (long)((int)a >>
+				(int)b), type(e));
+			if ((op.equals("/") || op.equals("%")) && b != 0)
+				return wrap(op.equals("/") ? (type(e).equals(LONG) ? a / b : (long)((int)a / (int)b)) :
+					(type(e).equals(LONG) ? a % b : (long)((int)a % (int)b)), type(e));
+			return null;
+		}
+		default:
+			return null;
+		}
+	}
+
+	// Cuts a constant down to the size of its type.
+	private static Long wrap(long value, String type) {
+		switch (type.charAt(0)) {
+		case 'B': return Long.valueOf((byte)value);
+		case 'S': return Long.valueOf((short)value);
+		case 'C': return Long.valueOf((char)value);
+		case 'J': return Long.valueOf(value);
+		default: return Long.valueOf((int)value);
+		}
+	}
+
+	// Checks whether an expression is the constant true (such as "1 == 1").
+	private boolean isTrue(Node e) throws CompileError {
+		return e != null && Boolean.TRUE.equals(truth(e));
+	}
+
+	// Works out the value of a boolean constant expression, or null if the
+	//  expression is not constant.
+	private Boolean truth(Node e) throws CompileError {
+		if (e.kind == LITERAL)
+			return e.value instanceof Boolean ? (Boolean)e.value : null;
+		if (e.kind == UNARY && e.text.equals("!")) {
+			Boolean v = truth(e.kids[0]);
+			return v == null ? null : Boolean.valueOf(!v.booleanValue());
+		}
+		if (e.kind != BINARY_OP) return null;
+		String op = e.text;
+		if (op.equals("&&") || op.equals("||") || ((op.equals("&") || op.equals("|") ||
+				op.equals("^") || op.equals("==") || op.equals("!=")) && type(e.kids[0]).equals(BOOLEAN))) {
+			Boolean l = truth(e.kids[0]), r = truth(e.kids[1]);
+			if (l == null || r == null) return null;
+			boolean a = l.booleanValue(), b = r.booleanValue();
+			if (op.equals("&&") || op.equals("&")) return Boolean.valueOf(a && b);
+			if (op.equals("||") || op.equals("|")) return Boolean.valueOf(a || b);
+			return Boolean.valueOf(op.equals("==") ? a == b : a != b);
+		}
+		Long l = constant(e.kids[0]), r = constant(e.kids[1]);
+		if (l == null || r == null) return null;
+		long a = l.longValue(), b = r.longValue();
+		if (op.equals("==")) return Boolean.valueOf(a == b);
+		if (op.equals("!=")) return Boolean.valueOf(a != b);
+		if (op.equals("<")) return Boolean.valueOf(a < b);
+		if (op.equals("<=")) return Boolean.valueOf(a <= b);
+		if (op.equals(">")) return Boolean.valueOf(a > b);
+		if (op.equals(">=")) return Boolean.valueOf(a >= b);
+		return null;
+	}
+
+	// --- names ---
+
+	// Checks that a local is definitely assigned before it is read.
+	private void checkAssigned(Local v, Node e) throws CompileError {
+		if (!assigned.get(2 * v.slot))
+			throw error(e.line, "variable " + e.text + " might not have been initialized");
+	}
+
+	// Marks a local as assigned, checking first that it may be if it is final.
+	private void assignLocal(Local v, Node e) throws CompileError {
+		if (v.isFinal) {
+			if (v.isParameter)
+				throw error(e.line, "final parameter " + v.name + " may not be assigned");
+			if (!v.blank)
+				throw error(e.line, "cannot assign a value to final variable " + v.name);
+			if (!assigned.get(2 * v.slot + 1))
+				throw error(e.line, "variable " + v.name + " might already have been assigned");
+			assigned.clear(2 * v.slot + 1);
+			v.assignedAt = e.line;
+		}
+		assigned.set(2 * v.slot);
+	}
+
+	// Finds a local variable.
+	private Local findLocal(String name) {
+		for (int i = scopes.size() - 1; i >= 0; i--) {
+			Local v = scopes.get(i).get(name);
+			if (v != null) return v;
+		}
+		return null;
+	}
+
+	// Finds the local variable in scope which has the given slot.
+	private Local localAt(int slot) {
+		for (Map<String, Local> scope : scopes)
+			for (Local v : scope.values())
+				if (v.slot == slot) return v;
+		return null;
+	}
+
+	// Finds a field of the program or library.
+	private Member findField(Node e) throws CompileError {
+		Member f = fields.get(e.text);
+		if (f == null) f = LIBRARY_FIELDS.get(e.text);
+		if (f == null) throw error(e.line, "cannot find symbol: variable " + e.text);
+		if (!f.isStatic && method != null && method.isStatic)
+			throw error(e.line, "non-static variable " + e.text +
+				" cannot be referenced from a static context");
+		return f;
+	}
+
+	// Finds the method a call goes to, as javac would.
+	private Member resolve(Node call) throws CompileError {
+		if (call.method != null) return call.method;
+		List<Member> candidates = new ArrayList<Member>(4);
+		List<Member> own = methods.get(call.text), inherited = LIBRARY_METHODS.get(call.text);
+		if (own != null) candidates.addAll(own);
+		if (inherited != null)
+			for (Member m : inherited) {
+				boolean hidden = false;
+				if (own != null)
+					for (Member o : own)
+						hidden |= Arrays.equals(o.params, m.params);
+				if (!hidden) candidates.add(m);
+			}
+		if (candidates.isEmpty())
+			throw error(call.line, "cannot find symbol: method " + call.text);
+		String[] args = new String[call.kids.length];
+		for (int i = 0; i < args.length; i++) {
+			args[i] = type(call.kids[i]);
+			if (args[i].equals(VOID))
+				throw error(call.kids[i].line, "'void' type not allowed here");
+		}
+		Member found = null;
+		// strict, then with boxing, then with varargs
+		for (int phase = 0; phase < 3 && found == null; phase++) {
+			List<Member> applicable = new ArrayList<Member>(2);
+			for (Member m : candidates)
+				if (applies(m, args, phase)) applicable.add(m);
+			for (Member m : applicable) {
+				boolean best = true;
+				for (Member other : applicable)
+					if (other != m && !moreSpecific(m, other))
+						best = false;
+				if (best) {
+					found = m;
+					break;
+				}
+			}
+			if (found == null && applicable.size() > 1)
+				throw error(call.line, "reference to " + call.text + " is ambiguous");
+		}
+		if (found == null) {
+			StringBuilder list = new StringBuilder(32);
+			for (String a : args)
+				list.append(list.length() > 0 ? "," : "").append(typeName(a));
+			throw error(call.line, "method " + call.text + " cannot be applied to given types (" +
+				list + ")");
+		}
+		if (!found.isStatic && method != null && method.isStatic)
+			throw error(call.line, "non-static method " + call.text +
+				" cannot be referenced from a static context");
+		call.method = found;
+		return found;
+	}
+
+	// Checks whether a method can take the given arguments in a lookup phase.
+	private static boolean applies(Member m, String[] args, int phase) {
+		String[] p = m.params;
+		if (phase < 2 || !m.varargs) {
+			if (p.length != args.length) return false;
+			for (int i = 0; i < p.length; i++)
+				if (!converts(args[i], p[i], phase > 0)) return false;
+			return true;
+		}
+		if (args.length < p.length - 1) return false;
+		for (int i = 0; i < p.length - 1; i++)
+			if (!converts(args[i], p[i], true)) return false;
+		String rest = p[p.length - 1].substring(1);
+		for (int i = p.length - 1; i < args.length; i++)
+			if (!converts(args[i], rest, true)) return false;
+		return true;
+	}
+
+	// Checks whether one method is at least as specific as another.
+	private static boolean moreSpecific(Member a, Member b) {
+		if (a.params.length != b.params.length) return a.params.length > b.params.length;
+		for (int i = 0; i < a.params.length; i++)
+			if (!converts(a.params[i], b.params[i], false)) return false;
+		return true;
+	}
+
+	// --- expression types ---
+
+	// Works out the type of an expression, checking it on the way.
+	private String type(Node e) throws CompileError {
+		if (e.type != null) return e.type;
+		String t;
+		switch (e.kind) {
+		case NAME: {
+			Local v = findLocal(e.text);
+			t = v != null ? v.type : findField(e).type;
+			// locals may change meaning in another scope, so are not remembered
+			if (v != null) return t;
+			break;
+		}
+		case INDEX: {
+			String array = type(e.kids[0]);
+			if (!array.startsWith("["))
+				throw error(e.line, "array required, but " + typeName(array) + " found");
+			checkIndex(e.kids[1]);
+			t = array.substring(1);
+			break;
+		}
+		case LENGTH: {
+			String array = type(e.kids[0]);
+			if (!array.startsWith("[")) throw error(e.line, "unsupported member access");
+			t = INT;
+			break;
+		}
+		case CALL:
+			t = resolve(e).type;
+			break;
+		case NEW_ARRAY:
+			for (Node size : e.kids)
+				checkIndex(size);
+			t = e.text;
+			break;
+		case ARRAY_INIT:
+			throw error(e.line, "illegal initializer");
+		case UNARY: {
+			String a = type(e.kids[0]);
+			if (e.text.equals("!")) {
+				if (!a.equals(BOOLEAN)) throw badOperand(e, a);
+				t = BOOLEAN;
+			} else if (e.text.equals("~")) {
+				if (!isIntegral(a)) throw badOperand(e, a);
+				t = promote(a);
+			} else {
+				if (!isNumeric(a)) throw badOperand(e, a);
+				t = promote(a);
+			}
+			break;
+		}
+		case PRE:
+		case POST:
+			t = type(e.kids[0]);
+			if (!isNumeric(t)) throw badOperand(e, t);
+			break;
+		case CAST: {
+			String a = type(e.kids[0]);
+			t = e.text;
+			if (!(a.equals(t) || (isNumeric(a) && isNumeric(t)) || (isReference(a) &&
+					t.equals(OBJECT))))
+				throw error(e.line, "incompatible types: " + typeName(a) + " cannot be converted to "
+					+ typeName(t));
+			break;
+		}
+		case BINARY_OP:
+			t = binaryType(e);
+			break;
+		case CONDITIONAL: {
+			if (!type(e.kids[0]).equals(BOOLEAN))
+				throw error(e.kids[0].line, "incompatible types: " + typeName(type(e.kids[0])) +
+					" cannot be converted to boolean");
+			String a = type(e.kids[1]), b = type(e.kids[2]);
+			if (a.equals(b))
+				t = a;
+			else if (isNumeric(a) && isNumeric(b))
+				t = conditionalType(e.kids[1], e.kids[2], a, b);
+			else if (isReference(a) && isReference(b) && (a.equals(NULL) || b.equals(NULL)))
+				t = a.equals(NULL) ? b : a;
+			else
+				throw error(e.line, "incompatible types in conditional expression");
+			break;
+		}
+		case ASSIGN:
+			t = type(e.kids[0]);
+			break;
+		default:
+			t = e.type;
+		}
+		if (e.kind != NAME) e.type = t;
+		return t;
+	}
+
+	// Works out the type of a ? b : c with numbers on both sides.
+	private String conditionalType(Node a, Node b, String ta, String tb) throws CompileError {
+		// a constant int fits into the other side's byte, short or char
+		if ((ta.equals("B") || ta.equals("S") || ta.equals(CHAR)) && tb.equals(INT) &&
+				assignable(b, ta))
+			return ta;
+		if ((tb.equals("B") || tb.equals("S") || tb.equals(CHAR)) && ta.equals(INT) &&
+				assignable(a, tb))
+			return tb;
+		if ((ta.equals("B") && tb.equals("S")) || (ta.equals("S") && tb.equals("B"))) return "S";
+		return promote(ta, tb);
+	}
+
+	// Checks that an array index or size is an int.
+	private void checkIndex(Node e) throws CompileError {
+		String t = type(e);
+		if (!isIntegral(t) || t.equals(LONG)) {
+			if (t.equals(LONG) || isNumeric(t))
+				throw error(e.line, "incompatible types: possible lossy conversion from " +
+					typeName(t) + " to int");
+			throw error(e.line, "incompatible types: " + typeName(t) + " cannot be converted to int");
+		}
+	}
+
+	// Makes the error for an operator applied to the wrong type.
+	private static CompileError badOperand(Node e, String type) {
+		return error(e.line, "bad operand type " + typeName(type) + " for unary operator '" +
+			e.text + "'");
+	}
+
+	// Works out the type of a binary operation.
+	private String binaryType(Node e) throws CompileError {
+		String a = type(e.kids[0]), b = type(e.kids[1]), op = e.text;
+		boolean ok;
+		String t;
+		if (op.equals("&&") || op.equals("||")) {
+			ok = a.equals(BOOLEAN) && b.equals(BOOLEAN);
+			t = BOOLEAN;
+		} else if (op.equals("==") || op.equals("!=")) {
+			ok = (isNumeric(a) && isNumeric(b)) || (a.equals(BOOLEAN) && b.equals(BOOLEAN)) ||
+				(isReference(a) && isReference(b) && (a.equals(b) || a.equals(NULL) ||
+				b.equals(NULL) || a.equals(OBJECT) || b.equals(OBJECT)));
+			t = BOOLEAN;
+		} else if (op.equals("<") || op.equals(">") || op.equals("<=") || op.equals(">=")) {
+			ok = isNumeric(a) && isNumeric(b);
+			t = BOOLEAN;
+		} else if (op.equals("&") || op.equals("|") || op.equals("^")) {
+			if (a.equals(BOOLEAN) && b.equals(BOOLEAN)) {
+				ok = true;
+				t = BOOLEAN;
+			} else {
+				ok = isIntegral(a) && isIntegral(b);
+				t = promote(a, b);
+			}
+		} else if (op.equals("<<") || op.equals(">>") || op.equals(">>>")) {
+			ok = isIntegral(a) && isIntegral(b);
+			t = promote(a);
+		} else {
+			if (op.equals("+") && (a.equals(STRING) || b.equals(STRING)))
+				throw error(e.line, "string concatenation is not supported");
+			ok = isNumeric(a) && isNumeric(b);
+			t = promote(a, b);
+		}
+		if (!ok)
+			throw error(e.line, "bad operand types for binary operator '" + op + "' (" +
+				typeName(a) + ", " + typeName(b) + ")");
+		return t;
+	}
+
+	// --- writing code ---
+
+	// Writes a static or instance initializer for the fields, if needed.
+	private void initializer(boolean statics) throws CompileError {
+		method = new Member(className, statics ? "<clinit>" : "<init>", VOID, new String[0],
+			statics ? ClassFile.ACC_STATIC : ClassFile.ACC_PUBLIC);
+		begin(method);
+		if (!statics) {
+			code.op(42, 1);
+			code.op2(183, out.methodRef(SUPER, "<init>", "()V"), -1);
+		}
+		boolean any = false;
+		for (Node init : fieldInits) {
+			Member f = fields.get(init.text);
+			if (f.isStatic != statics) continue;
+			any = true;
+			code.line(init.line);
+			if (!statics) code.op(42, 1);
+			value(init.kids[0], f.type);
+			code.op2(statics ? 179 : 181, out.fieldRef(className, f.name, f.type),
+				-width(f.type) - (statics ? 0 : 1));
+		}
+		code.op(177, 0);
+		if (!statics || any) finish(method);
+	}
+
+	// Compiles the body of a method.
+	private void methodBody(Member m, Node body) throws CompileError {
+		method = m;
+		@SuppressWarnings("unchecked")
+		List<Node> formals = (List<Node>)body.value;
+		begin(m);
+		for (int i = 0; i < formals.size(); i++) {
+			Local v = declareLocal(formals.get(i).text, m.params[i], body.line);
+			v.isFinal = v.isParameter = ((Boolean)formals.get(i).value).booleanValue();
+			assigned.set(2 * v.slot);
+		}
+		if (statement(body)) {
+			if (!m.type.equals(VOID)) throw error(body.end, "missing return statement");
+			code.op(177, 0);
+		}
+		finish(m);
+	}
+
+	// Starts the code of a method.
+	private void begin(Member m) {
+		scopes.clear();
+		scopes.add(new HashMap<String, Local>(16));
+		targets.clear();
+		assigned = new BitSet();
+		nextSlot = m.isStatic ? 0 : 1;
+		code = new ClassFile.Code(nextSlot);
+	}
+
+	// Adds the finished method to the class.
+	private void finish(Member m) throws CompileError {
+		if (code.isTooLarge()) throw error(0, "code too large in " + m.name);
+		out.addMethod(m.flags, m.name, m.descriptor(), code);
+	}
+
+	// Adds a local variable to the innermost scope.
+	private Local declareLocal(String name, String type, int at) throws CompileError {
+		if (findLocal(name) != null)
+			throw error(at, "variable " + name + " is already defined in method " + method.name);
+		Local v = new Local(name, type, nextSlot);
+		nextSlot += width(type);
+		code.useLocals(nextSlot);
+		scopes.get(scopes.size() - 1).put(name, v);
+		return v;
+	}
+
+	// Forgets whether the locals in the given slot and up were assigned, as
+	//  their scope has ended and the slots may be used again.
+	private void forget(int from) {
+		assigned.clear(2 * from, Math.max(2 * from, assigned.length()));
+	}
+
+	// Joins the path just written with another which meets it, keeping the
+	//  locals assigned on both. A path which cannot get there counts as
+	//  assigning everything.
+	private void meet(BitSet other, boolean otherLive, boolean live) {
+		if (!live) {
+			if (otherLive) assigned = other;
+		} else if (otherLive)
+			assigned.and(other);
+	}
+
+	// Keeps the locals assigned on both of two paths, either of which may
+	//  be null if nothing comes that way.
+	private static BitSet both(BitSet a, BitSet b) {
+		if (a == null) return b == null ? null : save(b);
+		BitSet out = save(a);
+		if (b != null) out.and(b);
+		return out;
+	}
+
+	// Sets the locals assigned where the paths into a label meet. If none
+	//  does, the code there is never reached and what it reads does not matter.
+	private void leave(BitSet a, BitSet b) {
+		BitSet out = both(a, b);
+		assigned = out == null ? new BitSet() : out;
+	}
+
+	// Copies the set of assigned locals, to go back to after a branch.
+	private BitSet save() {
+		return save(assigned);
+	}
+
+	// Copies a set of assigned locals.
+	private static BitSet save(BitSet set) {
+		return (BitSet)set.clone();
+	}
+
+	// Makes the set for code which a constant condition never runs, where
+	//  every local counts as both assigned and unassigned.
+	private BitSet vacuous() {
+		BitSet all = new BitSet(2 * nextSlot);
+		all.set(0, 2 * nextSlot);
+		return all;
+	}
+
+	// Goes back to the set from before code which may not run, keeping only
+	//  the blank finals still unassigned after it too.
+	private void skipped(BitSet before) {
+		BitSet after = assigned;
+		assigned = before;
+		for (int i = before.nextSetBit(0); i >= 0; i = before.nextSetBit(i + 1))
+			if ((i & 1) != 0 && !after.get(i))
+				assigned.clear(i);
+	}
+
+	// Checks that a loop leaves the blank finals unassigned at its top still
+	//  unassigned where it goes round again (null if it never does), as
+	//  otherwise the second time round would assign them again.
+	private void checkLoop(BitSet top, BitSet again) throws CompileError {
+		if (again == null) return;
+		for (int i = top.nextSetBit(0); i >= 0; i = top.nextSetBit(i + 1))
+			if ((i & 1) != 0 && !again.get(i)) {
+				Local v = localAt(i / 2);
+				if (v != null && v.blank)
+					throw error(v.assignedAt, "variable " + v.name + " might be assigned in loop");
+			}
+	}
+
+	// Writes a statement, and returns whether the code after it can be reached.
+	private boolean statement(Node s) throws CompileError {
+		if (s.kind != BLOCK && s.kind != SEQUENCE) code.line(s.line);
+		switch (s.kind) {
+		case BLOCK: {
+			int saveSlot = nextSlot;
+			scopes.add(new HashMap<String, Local>(8));
+			boolean live = statements(s.kids);
+			scopes.remove(scopes.size() - 1);
+			nextSlot = saveSlot;
+			forget(saveSlot);
+			return live;
+		}
+		case SEQUENCE:
+			for (Node k : s.kids)
+				statement(k);
+			return true;
+		case LOCAL: {
+			Node init = s.kids[0];
+			if (init != null)
+				value(init, s.type);
+			else
+				// never read before it is assigned; zero keeps the verifier happy
+				zero(s.type);
+			Local v = declareLocal(s.text, s.type, s.line);
+			code.local(54 + kind(s.type), v.slot, -width(s.type));
+			v.isFinal = ((Boolean)s.value).booleanValue();
+			v.blank = v.isFinal && init == null;
+			assigned.set(2 * v.slot, init != null);
+			assigned.set(2 * v.slot + 1, v.blank);
+			return true;
+		}
+		case EXPRESSION:
+			effect(s.kids[0]);
+			return true;
+		case IF: {
+			ClassFile.Label otherwise = new ClassFile.Label();
+			condition(s.kids[0], otherwise, false);
+			// a branch which a constant condition never takes starts out with
+			//  everything assigned (and unassigned)
+			Boolean known = truth(s.kids[0]);
+			BitSet before = save();
+			if (Boolean.FALSE.equals(known)) assigned = vacuous();
+			boolean live = statement(s.kids[1]);
+			BitSet then = assigned;
+			assigned = Boolean.TRUE.equals(known) ? vacuous() : before;
+			if (s.kids[2] == null) {
+				code.place(otherwise);
+				meet(then, live, true);
+				return true;
+			}
+			ClassFile.Label end = new ClassFile.Label();
+			if (live) code.jump(167, end, 0);
+			code.place(otherwise);
+			boolean elseLive = statement(s.kids[2]);
+			meet(then, live, elseLive);
+			code.place(end);
+			return live || elseLive;
+		}
+		case WHILE: {
+			ClassFile.Label top = new ClassFile.Label(), end = new ClassFile.Label();
+			Target t = new Target(end, top);
+			BitSet first = save();
+			code.place(top);
+			if (Boolean.FALSE.equals(truth(s.kids[0])))
+				throw error(s.kids[1].line, "unreachable statement");
+			if (!isTrue(s.kids[0])) condition(s.kids[0], end, false);
+			// the loop is left when the condition is tested, or by a break
+			BitSet after = isTrue(s.kids[0]) ? null : save();
+			boolean live = loop(t, s.kids[1]);
+			checkLoop(first, both(live ? assigned : null, t.atNext));
+			leave(after, t.atBreak);
+			code.jump(167, top, 0);
+			code.place(end);
+			return !isTrue(s.kids[0]) || t.broken;
+		}
+		case DO: {
+			ClassFile.Label top = new ClassFile.Label(), next = new ClassFile.Label(),
+				end = new ClassFile.Label();
+			Target t = new Target(end, next);
+			BitSet first = save();
+			code.place(top);
+			boolean live = loop(t, s.kids[0]);
+			BitSet after = null;
+			if (live || next.isUsed()) {
+				leave(live ? assigned : null, t.atNext);
+				code.place(next);
+				code.line(s.kids[1].line);
+				condition(s.kids[1], top, true);
+				if (!Boolean.FALSE.equals(truth(s.kids[1]))) checkLoop(first, assigned);
+				if (!isTrue(s.kids[1])) after = assigned;
+			}
+			leave(after, t.atBreak);
+			code.place(end);
+			return ((live || next.isUsed()) && !isTrue(s.kids[1])) || t.broken;
+		}
+		case FOR: {
+			int saveSlot = nextSlot;
+			scopes.add(new HashMap<String, Local>(4));
+			if (s.kids[0] != null) statement(s.kids[0]);
+			ClassFile.Label top = new ClassFile.Label(), next = new ClassFile.Label(),
+				end = new ClassFile.Label();
+			Target t = new Target(end, next);
+			Node cond = s.kids[1];
+			BitSet first = save();
+			code.place(top);
+			if (cond != null && Boolean.FALSE.equals(truth(cond)))
+				throw error(s.kids[3].line, "unreachable statement");
+			if (cond != null && !isTrue(cond)) condition(cond, end, false);
+			BitSet after = cond != null && !isTrue(cond) ? save() : null;
+			boolean live = loop(t, s.kids[3]);
+			if (live || next.isUsed()) {
+				leave(live ? assigned : null, t.atNext);
+				code.place(next);
+				if (s.kids[2] != null) statement(s.kids[2]);
+				checkLoop(first, assigned);
+				code.jump(167, top, 0);
+			}
+			leave(after, t.atBreak);
+			code.place(end);
+			scopes.remove(scopes.size() - 1);
+			nextSlot = saveSlot;
+			forget(saveSlot);
+			return (cond != null && !isTrue(cond)) || t.broken;
+		}
+		case BREAK: {
+			if (targets.isEmpty()) throw error(s.line, "break outside switch or loop");
+			Target t = targets.get(targets.size() - 1);
+			t.broken = true;
+			t.atBreak = both(t.atBreak, assigned);
+			code.jump(167, t.exit, 0);
+			return false;
+		}
+		case CONTINUE: {
+			for (int i = targets.size() - 1; i >= 0; i--)
+				if (targets.get(i).next != null) {
+					targets.get(i).atNext = both(targets.get(i).atNext, assigned);
+					code.jump(167, targets.get(i).next, 0);
+					return false;
+				}
+			throw error(s.line, "continue outside of loop");
+		}
+		case RETURN:
+			if (s.kids[0] == null) {
+				if (!method.type.equals(VOID))
+					throw error(s.line, "incompatible types: missing return value");
+				code.op(177, 0);
+			} else {
+				if (method.type.equals(VOID))
+					throw error(s.line, "incompatible types: unexpected return value");
+				value(s.kids[0], method.type);
+				code.op(172 + kind(method.type), -width(method.type));
+			}
+			return false;
+		case SWITCH:
+			return switchStatement(s);
+		case EMPTY:
+			return true;
+		default:
+			throw error(s.line, "not a statement");
+		}
+	}
+
+	// Writes statements in order, and returns whether the end can be reached.
+	private boolean statements(Node[] list) throws CompileError {
+		boolean live = true;
+		for (Node k : list) {
+			if (!live) throw error(k.line, "unreachable statement");
+			live = statement(k);
+		}
+		return live;
+	}
+
+	// Writes the body of a loop.
+	private boolean loop(Target t, Node body) throws CompileError {
+		targets.add(t);
+		boolean live = statement(body);
+		targets.remove(targets.size() - 1);
+		return live;
+	}
+
+	// Writes a switch statement.
+	private boolean switchStatement(Node s) throws CompileError {
+		Node selector = s.kids[0];
+		String t = type(selector);
+		if (!isIntegral(t) || t.equals(LONG))
+			throw error(selector.line, "switch on " + typeName(t) + " is not supported");
+		value(selector, INT);
+		ClassFile.Label end = new ClassFile.Label(), other = end;
+		Map<Long, ClassFile.Label> cases = new TreeMap<Long, ClassFile.Label>();
+		ClassFile.Label[] starts = new ClassFile.Label[s.kids.length];
+		for (int i = 1; i < s.kids.length; i++) {
+			Node group = s.kids[i];
+			starts[i] = new ClassFile.Label();
+			if (group.text != null) {
+				if (other != end) throw error(group.line, "duplicate default label");
+				other = starts[i];
+			}
+			for (Node label : group.kids) {
+				Long v = constant(label);
+				if (v == null) throw error(label.line, "constant expression required");
+				if (!assignable(label, t))
+					throw error(label.line, "incompatible types: possible lossy conversion from " +
+						typeName(type(label)) + " to " + typeName(t));
+				if (cases.put(v, starts[i]) != null)
+					throw error(label.line, "duplicate case label");
+			}
+		}
+		int[] keys = new int[cases.size()];
+		ClassFile.Label[] labels = new ClassFile.Label[keys.length];
+		int n = 0;
+		for (Map.Entry<Long, ClassFile.Label> e : cases.entrySet()) {
+			keys[n] = e.getKey().intValue();
+			labels[n++] = e.getValue();
+		}
+		code.lookupSwitch(keys, labels, other);
+		Target target = new Target(end, null);
+		targets.add(target);
+		int saveSlot = nextSlot;
+		scopes.add(new HashMap<String, Local>(8));
+		// any case can be jumped to straight from the selector
+		BitSet before = save();
+		boolean live = true;
+		for (int i = 1; i < s.kids.length; i++) {
+			code.place(starts[i]);
+			// a case can also be reached by falling through from the one above
+			assigned = i > 1 && live ? both(before, assigned) : save(before);
+			live = true;
+			for (Node k : s.kids[i].body) {
+				if (!live) throw error(k.line, "unreachable statement");
+				live = statement(k);
+			}
+		}
+		scopes.remove(scopes.size() - 1);
+		nextSlot = saveSlot;
+		// without a default, the selector can skip every case
+		leave(both(live ? assigned : null, other == end ? before : null), target.atBreak);
+		forget(saveSlot);
+		targets.remove(targets.size() - 1);
+		code.place(end);
+		return live || target.broken || other == end;
+	}
+
+	// Writes an expression whose value is not needed.
+	private void effect(Node e) throws CompileError {
+		switch (e.kind) {
+		case ASSIGN:
+			assign(e, false);
+			break;
+		case PRE:
+		case POST:
+			increment(e, false);
+			break;
+		case CALL:
+			String t = type(e);
+			expression(e);
+			if (width(t) > 0) code.op(width(t) == 2 ? 88 : 87, -width(t));
+			break;
+		default:
+			throw error(e.line, "not a statement");
+		}
+	}
+
+	// Writes an expression converted to the given type, checking that the
+	//  conversion is allowed.
+	private void value(Node e, String to) throws CompileError {
+		if (e.kind == ARRAY_INIT) {
+			arrayInit(e, to);
+			return;
+		}
+		checkAssignable(e, to);
+		expression(e);
+		convert(type(e), to);
+	}
+
+	// Writes { array, initializer } for an array of the given type.
+	private void arrayInit(Node e, String type) throws CompileError {
+		if (!type.startsWith("["))
+			throw error(e.line, "illegal initializer for " + typeName(type));
+		if (e.type != null && !e.type.equals(type))
+			throw error(e.line, "incompatible types: " + typeName(e.type) +
+				" cannot be converted to " + typeName(type));
+		String element = type.substring(1);
+		push(Integer.valueOf(e.kids.length));
+		newArray(type, 1);
+		for (int i = 0; i < e.kids.length; i++) {
+			code.op(89, 1);
+			push(Integer.valueOf(i));
+			value(e.kids[i], element);
+			code.op(arrayOp(79, element), -2 - width(element));
+		}
+	}
+
+	// Creates an array with the given dimensions on the stack.
+	private void newArray(String type, int dims) {
+		String element = type.substring(1);
+		if (dims > 1)
+			code.multiArray(out.classRef(type), dims);
+		else if (isReference(element))
+			code.op2(189, out.classRef(element.startsWith("[") ? element :
+				element.substring(1, element.length() - 1)), 0);
+		else
+			code.op1(188, "  ZCFDBSIJ".indexOf(element.charAt(0)) + 2, 0);
+	}
+
+	// Gets an array load (base 46) or store (base 79) opcode for an element type.
+	private static int arrayOp(int base, String element) {
+		switch (element.charAt(0)) {
+		case 'I': return base;
+		case 'J': return base + 1;
+		case 'F': return base + 2;
+		case 'D': return base + 3;
+		case 'Z': case 'B': return base + 5;
+		case 'C': return base + 6;
+		case 'S': return base + 7;
+		default: return base + 4;
+		}
+	}
+
+	// Pushes a zero (or null) of the given type.
+	private void zero(String type) {
+		switch (kind(type)) {
+		case 1: code.op(9, 2); break;
+		case 2: code.op(11, 1); break;
+		case 3: code.op(14, 2); break;
+		case 4: code.op(1, 1); break;
+		default: code.op(3, 1);
+		}
+	}
+
+	// Pushes a constant.
+	private void push(Object v) {
+		if (v == null)
+			code.op(1, 1);
+		else if (v instanceof Boolean)
+			code.op(((Boolean)v).booleanValue() ? 4 : 3, 1);
+		else if (v instanceof Character || v instanceof Integer) {
+			int i = v instanceof Character ? ((Character)v).charValue() : ((Integer)v).intValue();
+			if (i >= -1 && i <= 5) code.op(3 + i, 1);
+			else if (i >= Byte.MIN_VALUE && i <= Byte.MAX_VALUE) code.op1(16, i, 1);
+			else if (i >= Short.MIN_VALUE && i <= Short.MAX_VALUE) code.op2(17, i, 1);
+			else ldc(out.number(Integer.valueOf(i)));
+		} else if (v instanceof Long) {
+			long l = ((Long)v).longValue();
+			if (l == 0L || l == 1L) code.op(9 + (int)l, 2);
+			else code.op2(20, out.number((Long)v), 2);
+		} else if (v instanceof Float) {
+			float f = ((Float)v).floatValue();
+			if ((f == 0f && 1f / f > 0f) || f == 1f || f == 2f) code.op(11 + (int)f, 1);
+			else ldc(out.number((Float)v));
+		} else if (v instanceof Double) {
+			double d = ((Double)v).doubleValue();
+			if ((d == 0. && 1. / d > 0.) || d == 1.) code.op(14 + (int)d, 2);
+			else code.op2(20, out.number((Double)v), 2);
+		} else
+			ldc(out.string((String)v));
+	}
+
+	// Loads a one slot constant from the pool.
+	private void ldc(int index) {
+		if (index > 255) code.op2(19, index, 1);
+		else code.op1(18, index, 1);
+	}
+
+	// Converts the value on the stack from one type to another.
+	private void convert(String from, String to) {
+		if (from.equals(to) || to.equals(VOID)) return;
+		if (isReference(to)) {
+			if (!isReference(from)) box(from);
+			return;
+		}
+		int f = kind(promote(from)), t = kind(promote(to));
+		if (f != t) {
+			// i2l i2f i2d / l2i l2f l2d / f2i f2l f2d / d2i d2l d2f
+			int op = 133 + f * 3 + (t > f ? t - 1 : t);
+			code.op(op, width(to.equals(LONG) || to.equals(DOUBLE) ? to : INT) - width(
+				from.equals(LONG) || from.equals(DOUBLE) ? from : INT));
+		}
+		// narrowing to byte, char or short (not needed when already smaller)
+		if (to.equals("B") && !from.equals("B"))
+			code.op(145, 0);
+		else if (to.equals(CHAR) && !from.equals(CHAR))
+			code.op(146, 0);
+		else if (to.equals("S") && !from.equals("S") && !from.equals("B"))
+			code.op(147, 0);
+	}
+
+	// Boxes a primitive on the stack.
+	private void box(String type) {
+		String boxed = boxType(type);
+		code.op2(184, out.methodRef(boxed.substring(1, boxed.length() - 1), "valueOf",
+			"(" + type + ")" + boxed), 1 - width(type));
+	}
+
+	// Writes an expression, leaving its value on the stack.
+	private void expression(Node e) throws CompileError {
+		String t = type(e);
+		switch (e.kind) {
+		case LITERAL:
+			push(e.value);
+			break;
+		case NAME: {
+			Local v = findLocal(e.text);
+			if (v != null) {
+				checkAssigned(v, e);
+				code.local(21 + kind(t), v.slot, width(t));
+				break;
+			}
+			Member f = findField(e);
+			if (f.isStatic)
+				code.op2(178, out.fieldRef(f.owner, f.name, f.type), width(t));
+			else {
+				code.op(42, 1);
+				code.op2(180, out.fieldRef(f.owner, f.name, f.type), width(t) - 1);
+			}
+			break;
+		}
+		case INDEX:
+			expression(e.kids[0]);
+			value(e.kids[1], INT);
+			code.op(arrayOp(46, t), width(t) - 2);
+			break;
+		case LENGTH:
+			expression(e.kids[0]);
+			code.op(190, 0);
+			break;
+		case CALL:
+			call(e);
+			break;
+		case NEW_ARRAY:
+			for (Node size : e.kids)
+				value(size, INT);
+			newArray(t, e.kids.length);
+			break;
+		case UNARY:
+			if (e.text.equals("!")) {
+				bool(e);
+			} else if (e.text.equals("+")) {
+				expression(e.kids[0]);
+				convert(type(e.kids[0]), t);
+			} else if (e.text.equals("-")) {
+				expression(e.kids[0]);
+				convert(type(e.kids[0]), t);
+				code.op(116 + kind(t), 0);
+			} else {
+				// ~x is x ^ -1
+				expression(e.kids[0]);
+				convert(type(e.kids[0]), t);
+				push(t.equals(LONG) ? (Object)Long.valueOf(-1L) : (Object)Integer.valueOf(-1));
+				code.op(130 + kind(t), -width(t));
+			}
+			break;
+		case PRE:
+		case POST:
+			increment(e, true);
+			break;
+		case CAST:
+			expression(e.kids[0]);
+			convert(type(e.kids[0]), t);
+			break;
+		case BINARY_OP: {
+			String op = e.text;
+			if (t.equals(BOOLEAN) && !op.equals("&") && !op.equals("|") && !op.equals("^"))
+				bool(e);
+			else if (t.equals(BOOLEAN)) {
+				// non-short-circuit logic on booleans
+				expression(e.kids[0]);
+				expression(e.kids[1]);
+				code.op(arithmetic(op, INT), -1);
+			} else {
+				String right = op.equals("<<") || op.equals(">>") || op.equals(">>>") ?
+					INT : t;
+				expression(e.kids[0]);
+				convert(type(e.kids[0]), t);
+				expression(e.kids[1]);
+				convert(promote(type(e.kids[1])), right);
+				code.op(arithmetic(op, t), -width(right));
+			}
+			break;
+		}
+		case CONDITIONAL: {
+			ClassFile.Label otherwise = new ClassFile.Label(), end = new ClassFile.Label();
+			condition(e.kids[0], otherwise, false);
+			BitSet before = save();
+			expression(e.kids[1]);
+			convert(type(e.kids[1]), t);
+			BitSet first = assigned;
+			assigned = before;
+			code.jump(167, end, 0);
+			code.place(otherwise);
+			expression(e.kids[2]);
+			convert(type(e.kids[2]), t);
+			assigned.and(first);
+			code.place(end);
+			break;
+		}
+		case ASSIGN:
+			assign(e, true);
+			break;
+		default:
+			throw error(e.line, "illegal start of expression");
+		}
+	}
+
+	// Gets the opcode of an arithmetic operator.
+	private static int arithmetic(String op, String type) {
+		int k = kind(type);
+		char c = op.charAt(0);
+		switch (c) {
+		case '+': return 96 + k;
+		case '-': return 100 + k;
+		case '*': return 104 + k;
+		case '/': return 108 + k;
+		case '%': return 112 + k;
+		case '&': return 126 + k;
+		case '|': return 128 + k;
+		case '^': return 130 + k;
+		default:
+			if (op.startsWith("<<")) return 120 + k;
+			if (op.startsWith(">>>")) return 124 + k;
+			return 122 + k;
+		}
+	}
+
+	// Writes a boolean expression as 1 or 0.
+	private void bool(Node e) throws CompileError {
+		ClassFile.Label otherwise = new ClassFile.Label(), end = new ClassFile.Label();
+		condition(e, otherwise, false);
+		code.op(4, 1);
+		code.jump(167, end, 0);
+		code.place(otherwise);
+		code.op(3, 1);
+		code.place(end);
+	}
+
+	// Writes a jump to the target if a boolean expression has the given value.
+	private void condition(Node e, ClassFile.Label target, boolean when) throws CompileError {
+		String t = type(e);
+		if (!t.equals(BOOLEAN))
+			throw error(e.line, "incompatible types: " + typeName(t) + " cannot be converted to boolean");
+		if (e.kind == LITERAL) {
+			if (((Boolean)e.value).booleanValue() == when) code.jump(167, target, 0);
+			return;
+		}
+		if (e.kind == UNARY) {
+			condition(e.kids[0], target, !when);
+			return;
+		}
+		if (e.kind == BINARY_OP) {
+			String op = e.text;
+			if (op.equals("&&") || op.equals("||")) {
+				// the right side may not be evaluated, so what it assigns does not count
+				if (op.equals("&&") == when) {
+					ClassFile.Label skip = new ClassFile.Label();
+					condition(e.kids[0], skip, !when);
+					BitSet after = save();
+					condition(e.kids[1], target, when);
+					skipped(after);
+					code.place(skip);
+				} else {
+					condition(e.kids[0], target, when);
+					BitSet after = save();
+					condition(e.kids[1], target, when);
+					skipped(after);
+				}
+				return;
+			}
+			if (COMPARISONS.contains(op)) {
+				compare(e, op, target, when);
+				return;
+			}
+		}
+		expression(e);
+		code.jump(when ? 154 : 153, target, -1);
+	}
+
+	// Writes a comparison which jumps to the target if it has the given value.
+	private void compare(Node e, String op, ClassFile.Label target, boolean when)
+			throws CompileError {
+		String a = type(e.kids[0]), b = type(e.kids[1]);
+		int test = COMPARISONS.indexOf(op);
+		if (!when) test ^= 1;
+		if (isReference(a)) {
+			expression(e.kids[0]);
+			expression(e.kids[1]);
+			code.jump(165 + test, target, -2);
+			return;
+		}
+		String t = a.equals(BOOLEAN) ? INT : promote(a, b);
+		expression(e.kids[0]);
+		convert(a, t);
+		expression(e.kids[1]);
+		convert(b, t);
+		switch (kind(t)) {
+		case 0:
+			code.jump(159 + test, target, -2);
+			return;
+		case 1:
+			code.op(148, -3);
+			break;
+		default:
+			// NaN makes < and <= false with cmpg, > and >= false with cmpl
+			boolean g = op.equals("<") || op.equals("<=");
+			code.op((t.equals(FLOAT) ? 149 : 151) + (g ? 1 : 0), 1 - 2 * width(t));
+		}
+		code.jump(153 + test, target, -1);
+	}
+
+	// Writes a method call.
+	private void call(Node e) throws CompileError {
+		Member m = resolve(e);
+		if (!m.isStatic) code.op(42, 1);
+		String[] p = m.params;
+		int fixed = p.length;
+		boolean spread = m.varargs && !applies(m, argTypes(e), 1);
+		if (spread) fixed--;
+		for (int i = 0; i < fixed; i++)
+			argument(e.kids[i], p[i]);
+		if (spread) {
+			String array = p[p.length - 1], element = array.substring(1);
+			push(Integer.valueOf(e.kids.length - fixed));
+			newArray(array, 1);
+			for (int i = fixed; i < e.kids.length; i++) {
+				code.op(89, 1);
+				push(Integer.valueOf(i - fixed));
+				argument(e.kids[i], element);
+				code.op(arrayOp(79, element), -2 - width(element));
+			}
+		}
+		int popped = m.isStatic ? 0 : 1;
+		for (String param : p)
+			popped += width(param);
+		code.op2(m.isStatic ? 184 : 182, out.methodRef(m.owner, m.name, m.descriptor()),
+			width(m.type) - popped);
+	}
+
+	// Gets the types of the arguments of a call.
+	private String[] argTypes(Node call) throws CompileError {
+		String[] args = new String[call.kids.length];
+		for (int i = 0; i < args.length; i++)
+			args[i] = type(call.kids[i]);
+		return args;
+	}
+
+	// Writes one argument converted to the parameter type.
+	private void argument(Node e, String param) throws CompileError {
+		expression(e);
+		convert(type(e), param);
+	}
+
+	// Writes an assignment, leaving the value on the stack if wanted.
+	private void assign(Node e, boolean want) throws CompileError {
+		Node target = e.kids[0], source = e.kids[1];
+		String t = type(target), op = e.text.substring(0, e.text.length() - 1);
+		if (op.length() == 0) {
+			int under = open(target);
+			value(source, t);
+			if (want) dup(t, under);
+			store(target);
+			return;
+		}
+		String s = type(source), work;
+		boolean shift = op.startsWith("<<") || op.startsWith(">>");
+		if (t.equals(BOOLEAN) && s.equals(BOOLEAN) && (op.equals("&") || op.equals("|") ||
+				op.equals("^")))
+			work = INT;
+		else if (op.equals("+") && t.equals(STRING))
+			throw error(e.line, "string concatenation is not supported");
+		else if (shift ? isIntegral(t) && isIntegral(s) : (op.equals("&") || op.equals("|") ||
+				op.equals("^")) ? isIntegral(t) && isIntegral(s) : isNumeric(t) && isNumeric(s))
+			work = shift ? promote(t) : promote(t, s);
+		else
+			throw error(e.line, "bad operand types for binary operator '" + op + "' (" +
+				typeName(t) + ", " + typeName(s) + ")");
+		int under = open(target);
+		reload(target, under);
+		convert(t, work);
+		expression(source);
+		convert(promote(s), shift ? INT : work);
+		code.op(arithmetic(op, work), -width(shift ? INT : work));
+		// compound assignment casts back to the variable's type
+		convert(work, t);
+		if (want) dup(t, under);
+		store(target);
+	}
+
+	// Writes ++ or --, leaving the value on the stack if wanted.
+	private void increment(Node e, boolean want) throws CompileError {
+		Node target = e.kids[0];
+		String t = type(target), work = promote(t);
+		int delta = e.text.equals("++") ? 1 : -1;
+		Local v = target.kind == NAME ? findLocal(target.text) : null;
+		if (v != null && t.equals(INT)) {
+			checkAssigned(v, target);
+			assignLocal(v, target);
+			if (want && e.kind == POST) code.local(21, v.slot, 1);
+			code.iinc(v.slot, delta);
+			if (want && e.kind == PRE) code.local(21, v.slot, 1);
+			return;
+		}
+		int under = open(target);
+		reload(target, under);
+		if (want && e.kind == POST) dup(t, under);
+		convert(t, work);
+		push(work.equals(LONG) ? (Object)Long.valueOf(1L) : work.equals(FLOAT) ? (Object)Float.
+			valueOf(1f) : work.equals(DOUBLE) ? (Object)Double.valueOf(1.) : (Object)Integer.
+			valueOf(1));
+		code.op((delta > 0 ? 96 : 100) + kind(work), -width(work));
+		convert(work, t);
+		if (want && e.kind == PRE) dup(t, under);
+		store(target);
+	}
+
+	// Pushes whatever a store to the target needs under the value, and
+	//  returns how many slots that is.
+	private int open(Node target) throws CompileError {
+		if (target.kind == INDEX) {
+			expression(target.kids[0]);
+			value(target.kids[1], INT);
+			return 2;
+		}
+		if (findLocal(target.text) != null) return 0;
+		Member f = findField(target);
+		if ((f.flags & ClassFile.ACC_FINAL) != 0)
+			throw error(target.line, "cannot assign a value to final variable " + f.name);
+		if (f.isStatic) return 0;
+		code.op(42, 1);
+		return 1;
+	}
+
+	// Loads the current value of a target opened with open().
+	private void reload(Node target, int under) throws CompileError {
+		String t = type(target);
+		if (target.kind == INDEX) {
+			code.op(92, 2);
+			code.op(arrayOp(46, t), width(t) - 2);
+		} else if (under == 1) {
+			code.op(89, 1);
+			Member f = findField(target);
+			code.op2(180, out.fieldRef(f.owner, f.name, f.type), width(t) - 1);
+		} else
+			expression(target);
+	}
+
+	// Copies the value on the stack below the given number of slots.
+	private void dup(String type, int under) {
+		int w = width(type);
+		code.op((w == 2 ? 92 : 89) + under, w);
+	}
+
+	// Stores the value on the stack into a target opened with open().
+	private void store(Node target) throws CompileError {
+		String t = type(target);
+		if (target.kind == INDEX) {
+			code.op(arrayOp(79, t), -2 - width(t));
+			return;
+		}
+		Local v = findLocal(target.text);
+		if (v != null) {
+			assignLocal(v, target);
+			code.local(54 + kind(t), v.slot, -width(t));
+			return;
+		}
+		Member f = findField(target);
+		code.op2(f.isStatic ? 179 : 181, out.fieldRef(f.owner, f.name, f.type),
+			-width(t) - (f.isStatic ? 0 : 1));
+	}
+}
@@ -0,0 +1,626 @@
+/*
+ * This file is part of JBSim.
+ * 
+ * JBSim is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * JBSim is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with JBSim.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.icx.sim;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Writes a Java class file, for BytecodeCompiler. Only what a translated
+ *  program needs is here: fields, methods with code and line numbers, and
+ *  the constants they use.
+ * 
+ * Files are written as version 49 (Java 5) so that no stack map frames are
+ *  needed; the JVM checks such classes by inferring types instead.
+ */
+class ClassFile {
+	// Access flags.
+	public static final int ACC_PUBLIC = 0x0001;
+	public static final int ACC_PRIVATE = 0x0002;
+	public static final int ACC_PROTECTED = 0x0004;
+	public static final int ACC_STATIC = 0x0008;
+	public static final int ACC_FINAL = 0x0010;
+	public static final int ACC_SUPER = 0x0020;
+	public static final int ACC_VOLATILE = 0x0040;
+	// Constant pool tags.
+	private static final int UTF8 = 1;
+	private static final int INTEGER = 3;
+	private static final int FLOAT = 4;
+	private static final int LONG = 5;
+	private static final int DOUBLE = 6;
+	private static final int CLASS = 7;
+	private static final int STRING = 8;
+	private static final int FIELD = 9;
+	private static final int METHOD = 10;
+	private static final int NAME_AND_TYPE = 12;
+
+	// The constant pool as written so far.
+	private ByteArrayOutputStream poolBytes;
+	private DataOutputStream pool;
+	// Index of each constant already in the pool.
+	private Map<String, Integer> constants;
+	// Next free pool index.
+	private int poolSize;
+	// Fields and methods, already written.
+	private ByteArrayOutputStream members;
+	private int fieldCount;
+	private List<byte[]> methods;
+
+	/**
+	 * Creates an empty class file.
+	 */
+	public ClassFile() {
+		poolBytes = new ByteArrayOutputStream(4096);
+		pool = new DataOutputStream(poolBytes);
+		constants = new HashMap<String, Integer>(256);
+		poolSize = 1;
+		members = new ByteArrayOutputStream(256);
+		fieldCount = 0;
+		methods = new ArrayList<byte[]>(32);
+	}
+
+	// Finds a constant in the pool, or returns -1 if it has not been added.
+	private int find(String key) {
+		Integer index = constants.get(key);
+		return index == null ? -1 : index.intValue();
+	}
+
+	// Notes that a constant was just added and returns its index.
+	private int added(String key, int slots) {
+		int index = poolSize;
+		if (index + slots > 0xFFFF)
+			throw new IllegalStateException("too many constants");
+		constants.put(key, index);
+		poolSize += slots;
+		return index;
+	}
+
+	/**
+	 * Adds text to the constant pool.
+	 * 
+	 * @param text the text
+	 * @return its index
+	 */
+	public int utf8(String text) {
+		String key = "U" + text;
+		int index = find(key);
+		if (index < 0) try {
+			pool.writeByte(UTF8);
+			pool.writeUTF(text);
+			index = added(key, 1);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return index;
+	}
+
+	// Adds a constant which refers to one or two others.
+	private int reference(int tag, String key, int first, int second) {
+		int index = find(key);
+		if (index < 0) try {
+			pool.writeByte(tag);
+			pool.writeShort(first);
+			if (second >= 0) pool.writeShort(second);
+			index = added(key, 1);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return index;
+	}
+
+	/**
+	 * Adds a class to the constant pool.
+	 * 
+	 * @param name the internal name (e.g. "java/lang/String")
+	 * @return its index
+	 */
+	public int classRef(String name) {
+		return reference(CLASS, "C" + name, utf8(name), -1);
+	}
+
+	/**
+	 * Adds a string to the constant pool.
+	 * 
+	 * @param text the string value
+	 * @return its index
+	 */
+	public int string(String text) {
+		return reference(STRING, "S" + text, utf8(text), -1);
+	}
+
+	// Adds a name and type to the constant pool.
+	private int nameAndType(String name, String desc) {
+		return reference(NAME_AND_TYPE, "N" + name + ' ' + desc, utf8(name), utf8(desc));
+	}
+
+	/**
+	 * Adds a field reference to the constant pool.
+	 * 
+	 * @param owner the internal name of the class with the field
+	 * @param name the field name
+	 * @param desc the field type descriptor
+	 * @return its index
+	 */
+	public int fieldRef(String owner, String name, String desc) {
+		return reference(FIELD, "F" + owner + '.' + name + ' ' + desc, classRef(owner),
+			nameAndType(name, desc));
+	}
+
+	/**
+	 * Adds a method reference to the constant pool.
+	 * 
+	 * @param owner the internal name of the class with the method
+	 * @param name the method name
+	 * @param desc the method descriptor
+	 * @return its index
+	 */
+	public int methodRef(String owner, String name, String desc) {
+		return reference(METHOD, "M" + owner + '.' + name + desc, classRef(owner),
+			nameAndType(name, desc));
+	}
+
+	/**
+	 * Adds a number to the constant pool.
+	 * 
+	 * @param value an Integer, Long, Float or Double
+	 * @return its index
+	 */
+	public int number(Number value) {
+		String key = value.getClass().getSimpleName() + value;
+		int index = find(key);
+		if (index < 0) try {
+			if (value instanceof Integer) {
+				pool.writeByte(INTEGER);
+				pool.writeInt(value.intValue());
+				index = added(key, 1);
+			} else if (value instanceof Float) {
+				pool.writeByte(FLOAT);
+				pool.writeFloat(value.floatValue());
+				index = added(key, 1);
+			} else if (value instanceof Long) {
+				pool.writeByte(LONG);
+				pool.writeLong(value.longValue());
+				index = added(key, 2);
+			} else {
+				pool.writeByte(DOUBLE);
+				pool.writeDouble(value.doubleValue());
+				index = added(key, 2);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return index;
+	}
+
+	/**
+	 * Adds a field.
+	 * 
+	 * @param flags the access flags
+	 * @param name the field name
+	 * @param desc the type descriptor
+	 */
+	public void addField(int flags, String name, String desc) {
+		DataOutputStream out = new DataOutputStream(members);
+		try {
+			out.writeShort(flags);
+			out.writeShort(utf8(name));
+			out.writeShort(utf8(desc));
+			out.writeShort(0);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		fieldCount++;
+	}
+
+	/**
+	 * Adds a method.
+	 * 
+	 * @param flags the access flags
+	 * @param name the method name
+	 * @param desc the method descriptor
+	 * @param code the finished code of the method
+	 */
+	public void addMethod(int flags, String name, String desc, Code code) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(code.size() + 64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeShort(flags);
+			out.writeShort(utf8(name));
+			out.writeShort(utf8(desc));
+			out.writeShort(1);
+			// Code attribute, with a line number table inside
+			int lines = code.lines.size() / 2;
+			out.writeShort(utf8("Code"));
+			out.writeInt(12 + code.size() + (lines > 0 ? 8 + 4 * lines : 0));
+			out.writeShort(code.maxStack);
+			out.writeShort(code.maxLocals);
+			out.writeInt(code.size());
+			out.write(code.bytes, 0, code.size());
+			out.writeShort(0);
+			if (lines > 0) {
+				out.writeShort(1);
+				out.writeShort(utf8("LineNumberTable"));
+				out.writeInt(2 + 4 * lines);
+				out.writeShort(lines);
+				for (int i = 0; i < code.lines.size(); i++)
+					out.writeShort(code.lines.get(i));
+			} else
+				out.writeShort(0);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		methods.add(bytes.toByteArray());
+	}
+
+	/**
+	 * Writes out the class.
+	 * 
+	 * @param flags the class access flags
+	 * @param name the internal name of the class
+	 * @param superName the internal name of its superclass
+	 * @param source the source file name, or null
+	 * @return the class file
+	 */
+	public byte[] toByteArray(int flags, String name, String superName, String source) {
+		int thisClass = classRef(name), superClass = classRef(superName);
+		int sourceName = source == null ? 0 : utf8("SourceFile"), sourceFile = source ==
+			null ? 0 : utf8(source);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(poolBytes.size() +
+			members.size() + 1024);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(49);
+			out.writeShort(poolSize);
+			poolBytes.writeTo(out);
+			out.writeShort(flags);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(0);
+			out.writeShort(fieldCount);
+			members.writeTo(out);
+			out.writeShort(methods.size());
+			for (byte[] method : methods)
+				out.write(method);
+			if (source != null) {
+				out.writeShort(1);
+				out.writeShort(sourceName);
+				out.writeInt(2);
+				out.writeShort(sourceFile);
+			} else
+				out.writeShort(0);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * A place in the code which jumps can go to before it is known.
+	 */
+	public static class Label {
+		// Where the label is, or -1 if not yet placed.
+		private int pos;
+		// Stack depth on arrival, or -1 if nothing jumps here yet.
+		private int stack;
+		// Jumps waiting for the label: pairs of instruction and offset positions.
+		private List<Integer> jumps;
+
+		/**
+		 * Creates a label which is not yet placed.
+		 */
+		public Label() {
+			pos = -1;
+			stack = -1;
+			jumps = null;
+		}
+
+		/**
+		 * Checks whether anything jumps to this label.
+		 * 
+		 * @return whether the label is used
+		 */
+		public boolean isUsed() {
+			return stack >= 0;
+		}
+	}
+
+	/**
+	 * The bytecode of one method. Keeps track of how deep the operand stack
+	 *  gets, so every instruction is added with its effect on the stack.
+	 */
+	public static class Code {
+		// The instructions.
+		private byte[] bytes;
+		private int size;
+		// Current and largest operand stack depth.
+		private int stack;
+		private int maxStack;
+		// Local variable slots used.
+		private int maxLocals;
+		// Pairs of code position and line number.
+		private List<Integer> lines;
+		// Whether a branch went further than 16 bits can reach.
+		private boolean tooFar;
+
+		/**
+		 * Creates empty code.
+		 * 
+		 * @param locals the slots taken by "this" and the parameters
+		 */
+		public Code(int locals) {
+			bytes = new byte[256];
+			size = 0;
+			stack = 0;
+			maxStack = 0;
+			maxLocals = locals;
+			lines = new ArrayList<Integer>(64);
+			tooFar = false;
+		}
+
+		// Makes room for more bytes.
+		private void ensure(int more) {
+			if (size + more > bytes.length)
+				bytes = Arrays.copyOf(bytes, Math.max(size + more, bytes.length * 2));
+		}
+
+		// Adds one byte.
+		private void put1(int value) {
+			ensure(1);
+			bytes[size++] = (byte)value;
+		}
+
+		// Adds two bytes.
+		private void put2(int value) {
+			ensure(2);
+			bytes[size++] = (byte)(value >> 8);
+			bytes[size++] = (byte)value;
+		}
+
+		// Adds four bytes.
+		private void put4(int value) {
+			put2(value >> 16);
+			put2(value);
+		}
+
+		// Changes the stack depth.
+		private void adjust(int delta) {
+			stack += delta;
+			if (stack > maxStack) maxStack = stack;
+		}
+
+		/**
+		 * Gets the size of the code so far.
+		 * 
+		 * @return the size in bytes
+		 */
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * Checks whether the code is too large for a method, or jumps too far.
+		 * 
+		 * @return whether the method cannot be written
+		 */
+		public boolean isTooLarge() {
+			return tooFar || size > 0xFFFF;
+		}
+
+		/**
+		 * Gets the current operand stack depth.
+		 * 
+		 * @return the number of stack slots in use
+		 */
+		public int getStack() {
+			return stack;
+		}
+
+		/**
+		 * Notes that local variable slots up to the given number are used.
+		 * 
+		 * @param locals the number of slots in use
+		 */
+		public void useLocals(int locals) {
+			if (locals > maxLocals) maxLocals = locals;
+		}
+
+		/**
+		 * Notes that the code from here on comes from the given line.
+		 * 
+		 * @param line the source line number
+		 */
+		public void line(int line) {
+			int last = lines.size() - 2;
+			if (last >= 0 && lines.get(last) == size)
+				lines.set(last + 1, line);
+			else if (last < 0 || lines.get(last + 1) != line) {
+				lines.add(size);
+				lines.add(line);
+			}
+		}
+
+		/**
+		 * Adds an instruction with no operands.
+		 * 
+		 * @param opcode the instruction
+		 * @param delta its effect on the stack depth
+		 */
+		public void op(int opcode, int delta) {
+			put1(opcode);
+			adjust(delta);
+		}
+
+		/**
+		 * Adds an instruction with a one byte operand.
+		 * 
+		 * @param opcode the instruction
+		 * @param operand the operand
+		 * @param delta its effect on the stack depth
+		 */
+		public void op1(int opcode, int operand, int delta) {
+			put1(opcode);
+			put1(operand);
+			adjust(delta);
+		}
+
+		/**
+		 * Adds an instruction with a two byte operand.
+		 * 
+		 * @param opcode the instruction
+		 * @param operand the operand
+		 * @param delta its effect on the stack depth
+		 */
+		public void op2(int opcode, int operand, int delta) {
+			put1(opcode);
+			put2(operand);
+			adjust(delta);
+		}
+
+		/**
+		 * Adds an instruction using a local variable slot, widening it if the
+		 *  slot is past 255.
+		 * 
+		 * @param opcode the instruction
+		 * @param slot the variable slot
+		 * @param delta its effect on the stack depth
+		 */
+		public void local(int opcode, int slot, int delta) {
+			if (slot > 255) {
+				put1(196);
+				op2(opcode, slot, delta);
+			} else
+				op1(opcode, slot, delta);
+		}
+
+		/**
+		 * Adds a constant to a local int variable.
+		 * 
+		 * @param slot the variable slot
+		 * @param amount the amount to add
+		 */
+		public void iinc(int slot, int amount) {
+			if (slot > 255 || amount < -128 || amount > 127) {
+				put1(196);
+				put1(132);
+				put2(slot);
+				put2(amount);
+			} else {
+				put1(132);
+				put1(slot);
+				put1(amount);
+			}
+		}
+
+		/**
+		 * Adds multianewarray.
+		 * 
+		 * @param type the class pool index of the array type
+		 * @param dims the dimensions given
+		 */
+		public void multiArray(int type, int dims) {
+			put1(197);
+			put2(type);
+			put1(dims);
+			adjust(1 - dims);
+		}
+
+		/**
+		 * Adds a jump.
+		 * 
+		 * @param opcode the jump instruction
+		 * @param target where to jump
+		 * @param delta its effect on the stack depth
+		 */
+		public void jump(int opcode, Label target, int delta) {
+			int at = size;
+			put1(opcode);
+			adjust(delta);
+			target.stack = stack;
+			if (target.pos >= 0)
+				put2(offset(target.pos - at));
+			else {
+				if (target.jumps == null) target.jumps = new ArrayList<Integer>(4);
+				target.jumps.add(at);
+				target.jumps.add(size);
+				put2(0);
+			}
+		}
+
+		// Checks that a jump fits in 16 bits.
+		private int offset(int offset) {
+			if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) tooFar = true;
+			return offset;
+		}
+
+		/**
+		 * Places a label here, filling in the jumps to it. If anything jumps
+		 *  to it, the stack depth becomes the depth at those jumps.
+		 * 
+		 * @param label the label
+		 */
+		public void place(Label label) {
+			label.pos = size;
+			if (label.stack >= 0) stack = label.stack;
+			if (label.jumps != null) {
+				for (int i = 0; i < label.jumps.size(); i += 2) {
+					int offset = offset(size - label.jumps.get(i)), at = label.jumps.get(i + 1);
+					bytes[at] = (byte)(offset >> 8);
+					bytes[at + 1] = (byte)offset;
+				}
+				label.jumps = null;
+			}
+		}
+
+		/**
+		 * Adds a lookupswitch on the int on top of the stack.
+		 * 
+		 * @param keys the case values, in increasing order
+		 * @param targets where each case goes
+		 * @param other where any other value goes
+		 */
+		public void lookupSwitch(int[] keys, Label[] targets, Label other) {
+			int at = size;
+			put1(171);
+			adjust(-1);
+			while (size % 4 != 0) put1(0);
+			switchTarget(at, other);
+			put4(keys.length);
+			for (int i = 0; i < keys.length; i++) {
+				put4(keys[i]);
+				switchTarget(at, targets[i]);
+			}
+		}
+
+		// Adds a 32 bit offset from a switch to a label.
+		private void switchTarget(int at, Label target) {
+			target.stack = stack;
+			if (target.pos >= 0)
+				put4(target.pos - at);
+			else {
+				// patched as a 16 bit jump would be, after the sign bytes
+				if (target.jumps == null) target.jumps = new ArrayList<Integer>(4);
+				put2(0);
+				target.jumps.add(at);
+				target.jumps.add(size);
+				put2(0);
+			}
+		}
+	}
+}
@@ -19,11 +19,22 @@ package org.icx.sim;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.*;
 
 /**
  * Re-parses user C/IC code into Java code for simulator.
  * 
+ * Translation runs in linear time: tokens are held in flat arrays rather
+ *  than a list of objects, #defines are collected into a hash table while
+ *  tokenizing, and one final pass expands macros, fixes up C-isms and
+ *  streams the result to the file line by line.
+ * 
+ * Files pulled in with #include or #use are tokenized once per process and
+ *  cached by path, so a library shared by many programs (or included twice
+ *  by one) is not parsed again until it or anything it includes changes on
+ *  disk. The cache may be used by several compiles at once.
+ * 
  * @author Stephen Carlson
  */
 public class CodeParser {
@@ -32,6 +43,12 @@ public class CodeParser {
 		Pattern.DOTALL | Pattern.MULTILINE | Pattern.CASE_INSENSITIVE);
 	// Trigger Java include hot comments in generated file
 	public static final Pattern JIT = Pattern.compile("//\\s*?#");
+	// Token types, as defined by stream tokenizer
+	private static final int WORD = StreamTokenizer.TT_WORD;
+	private static final int EOL = StreamTokenizer.TT_EOL;
+	// Included files already tokenized, by canonical path.
+	private static final ConcurrentMap<String, Header> HEADERS =
+		new ConcurrentHashMap<String, Header>();
 
 	/**
 	 * Reads data from the given reader and writes to Program.java for running.
@@ -47,45 +64,100 @@ public class CodeParser {
 	 * - ...
 	 */
 	public static void syntax(File source, Reader r) throws Exception {
-		List<Token> ll = parse(source, r);
-		macroExpand(ll);
-		writeData(doFinal(ll), "Program.java");
+		syntax(source, r, new FileWriter("Program.java"), null);
 	}
 
-	// Condenses tokens down into text to be written.
-	//  Inserts lots of unnecessary spaces which are ignored.
-	private static String doFinal(List<Token> ll) throws Exception {
-		StringBuilder theFinal = new StringBuilder(32768);
-		theFinal.append("public class Program extends org.icx.sim.BotballProgram {\n");
-		// fix spacing?
-		for (Token t : ll)
-			theFinal.append(t.toString() + " ");
-		theFinal.append("\n}");
-		return theFinal.toString();
+	/**
+	 * Reads data from the given reader and writes the class Program to the
+	 *  given writer, optionally in a package. Programs translated into
+	 *  different packages can be compiled together.
+	 * 
+	 * @param source the path where the code file was obtained. If null, #include and #use
+	 *  will die with an exception if encountered.
+	 * @param r the code data source
+	 * @param w where the Java code goes; closed when done
+	 * @param pkg the package for the class, or null for the default package
+	 * @throws Exception if something goes wrong (see syntax(File, Reader))
+	 */
+	public static void syntax(File source, Reader r, Writer w, String pkg) throws Exception {
+		syntax(source, r, w, pkg, null);
 	}
 
-	// Writes data to the file, applying the last filter directives.
-	private static void writeData(String data, String name) throws Exception {
-		StringTokenizer content = new StringTokenizer(data, "\n");
-		String line;
-		BufferedWriter pr = new BufferedWriter(new FileWriter(name));
-		while (content.hasMoreTokens()) {
-			line = content.nextToken();
-			// strip function prototypes (only detectable here?)
-			Matcher m = PROTOTYPE.matcher(line);
-			if (m.find() && !m.group(1).equals("return"))
-				line = m.replaceFirst("");
-			// java inline includes
-			line = JIT.matcher(line).replaceAll("");
-			pr.write(line);
-			pr.write('\n');
+	/**
+	 * Reads data from the given reader and writes the class Program to the
+	 *  given writer, with some of the program's #defines given new values,
+	 *  as if the #define lines had been edited.
+	 * 
+	 * @param source the path where the code file was obtained. If null, #include and #use
+	 *  will die with an exception if encountered.
+	 * @param r the code data source
+	 * @param w where the Java code goes; closed when done
+	 * @param pkg the package for the class, or null for the default package
+	 * @param defines new macro bodies by name, or null for none; each must
+	 *  name a macro the program (or something it includes) #defines
+	 * @throws Exception if something goes wrong (see syntax(File, Reader)),
+	 *  or a macro to replace is not defined
+	 */
+	public static void syntax(File source, Reader r, Writer w, String pkg,
+			Map<String, String> defines) throws Exception {
+		LineWriter out = new LineWriter(new BufferedWriter(w));
+		try {
+			List<String> including = new ArrayList<String>(8);
+			if (source != null)
+				including.add(source.getCanonicalPath());
+			TokenBuffer tokens = parse(source, r, including, null);
+			Map<String, TokenBuffer> macro = builtinMacros();
+			if (tokens.macros != null)
+				macro.putAll(tokens.macros);
+			if (defines != null)
+				for (Map.Entry<String, String> define : defines.entrySet()) {
+					// a typo would otherwise quietly change nothing
+					if (tokens.macros == null || !tokens.macros.containsKey(define.getKey()))
+						throw new Exception(define.getKey() + " is not #defined.");
+					macro.put(define.getKey(), parse(null, new StringReader(define.getValue()),
+						null, null));
+				}
+			if (pkg != null)
+				out.write("package " + pkg + ";\n");
+			translate(tokens, macro, out);
+		} finally {
+			out.close();
 		}
-		pr.close();
 	}
 
-	// Breaks down input into tokens
-	private static List<Token> parse(File file, Reader r) throws Exception {
-		// handles comments and strings for us
+	/**
+	 * Forgets all included files tokenized so far. Not normally needed, since
+	 *  changed files are noticed and parsed again.
+	 */
+	public static void clearIncludeCache() {
+		HEADERS.clear();
+	}
+
+	// Creates the macro table with the type conversions every program gets.
+	private static Map<String, TokenBuffer> builtinMacros() {
+		Map<String, TokenBuffer> macro = new HashMap<String, TokenBuffer>(64);
+		macro.put("long double", singleToken("double"));
+		macro.put("float", singleToken("double"));
+		macro.put("bool", singleToken("boolean"));
+		macro.put("long long", singleToken("long"));
+		macro.put("long float", singleToken("double"));
+		macro.put("long int", singleToken("long"));
+		macro.put("short", singleToken("int"));
+		macro.put("persistent", singleToken("static"));
+		//macro.put("struct", singleToken("class"));
+		macro.put("NULL", singleToken("null"));
+		return macro;
+	}
+
+	// Utility method to make a macro body from a word
+	private static TokenBuffer singleToken(String word) {
+		TokenBuffer body = new TokenBuffer(1);
+		body.add(WORD, word, '\u0000');
+		return body;
+	}
+
+	// Sets up a stream tokenizer; it handles strings for us.
+	private static StreamTokenizer tokenizer(Reader r) {
 		StreamTokenizer str = new StreamTokenizer(r);
 		str.resetSyntax();
 		str.eolIsSignificant(true);
@@ -98,216 +170,415 @@ public class CodeParser {
 		str.ordinaryChar(',');
 		str.ordinaryChar(';');
 		str.quoteChar('"');
-		int type = 0;
-		boolean pound = false, include = false; String intern = null;
-		List<Token> ll = new LinkedList<Token>();
+		return str;
+	}
+
+	// Breaks down input into tokens. Directives are handled as they end:
+	//  #include and #use splice in the named file, #define goes into the
+	//  buffer's macro table. The files being included are listed (innermost
+	//  last) to catch cycles, and each file included is added to includes if
+	//  given. A macro body (including == null) may not contain directives;
+	//  any which appear are kept as words.
+	private static TokenBuffer parse(File file, Reader r, List<String> including,
+			List<Header> includes) throws Exception {
+		boolean body = including == null;
+		StreamTokenizer str = tokenizer(r);
+		TokenBuffer tokens = new TokenBuffer(body ? 8 : 1024);
+		StringBuilder intern = new StringBuilder(64);
+		String directive = null;
+		boolean pound = false, include = false;
+		int type;
 		// iterate through tokens
-		while (true) {
-			type = str.nextToken();
-			if (type == StreamTokenizer.TT_EOF) break;
+		while ((type = str.nextToken()) != StreamTokenizer.TT_EOF) {
 			switch (type) {
-			case StreamTokenizer.TT_WORD:
+			case WORD:
 				// pre processor
 				if (str.sval.startsWith("#") && !pound) {
 					pound = true;
-					intern = "";
-					include = str.sval.equals("#include") || str.sval.equals("#use");
-					if (!include)
-						ll.add(new Token(StreamTokenizer.TT_WORD, str.sval, '#'));
+					intern.setLength(0);
+					directive = str.sval;
+					include = directive.equals("#include") || directive.equals("#use");
 				} else if (pound)
 					// pre processor value
-					intern += str.sval + " ";
+					intern.append(str.sval).append(' ');
 				else
-					ll.add(new Token(StreamTokenizer.TT_WORD, str.sval, (char)type));
+					tokens.add(WORD, str.sval, (char)type);
 				break;
-			case StreamTokenizer.TT_EOL:
-				if (!pound)
-					ll.add(new Token(StreamTokenizer.TT_EOL, "\n", '\n'));
-				else {
+			case EOL:
+				if (pound) {
 					// close pre processor
-					if (include) {
-						// find and insert the specified file here
-						if (file == null)
-							throw new Exception("Cannot use #include or #use here.");
-						String path = intern.trim();
-						if (path.length() < 2)
-							throw new Exception("No file given to #include.");
-						if (path.startsWith("\"") && path.endsWith("\""))
-							path = path.substring(1, path.length() - 1);
-						File toInc = new File(file.getAbsoluteFile().getParentFile(), path);
-						try {
-							FileReader r2 = new FileReader(toInc);
-							ll.addAll(parse(toInc, r2));
-							r2.close();
-						} catch (IOException e) {
-							throw new Exception("Cannot include " + path + ": File not found.", e);
-						}
-					} else
-						ll.add(new Token(StreamTokenizer.TT_WORD, intern.trim(), '\u0000'));
+					if (include)
+						include(file, intern.toString().trim(), tokens, including, includes);
+					else
+						define(directive, intern.toString().trim(), tokens);
 					include = pound = false;
-					intern = null;
-					ll.add(new Token(StreamTokenizer.TT_EOL, "\n", '\n'));
 				}
+				tokens.add(EOL, "\n", '\n');
 				break;
 			default:
 				// just add item to the list
 				if (pound) {
 					if (type == '"' || type == '\'')
-						intern += (char)type + str.sval + (char)type + " ";
+						intern.append((char)type).append(str.sval).append((char)type).append(' ');
 					else
-						intern += (char)type + " ";
+						intern.append((char)type).append(' ');
 				} else
-					ll.add(new Token(type, str.sval, (char)type));
+					tokens.add(type, str.sval, (char)type);
 			}
 		}
-		return ll;
+		if (pound && !include) {
+			// directive cut off by the end of the text
+			if (!body) throw new Exception("Preprocessor missing argument.");
+			tokens.add(WORD, directive, '#');
+		}
+		return tokens;
 	}
 
-	// Utility method to fetch token based off of a word
-	private static Token singleToken(String word) {
-		return new Token(StreamTokenizer.TT_WORD, word, '\u0000');
+	// Finds and inserts the specified file.
+	private static void include(File file, String path, TokenBuffer tokens,
+			List<String> including, List<Header> includes) throws Exception {
+		if (file == null)
+			throw new Exception("Cannot use #include or #use here.");
+		if (path.length() < 2)
+			throw new Exception("No file given to #include.");
+		if (path.startsWith("\"") && path.endsWith("\""))
+			path = path.substring(1, path.length() - 1);
+		Header header = header(new File(file.getAbsoluteFile().getParentFile(), path), path,
+			including);
+		tokens.append(header.tokens);
+		if (includes != null)
+			includes.add(header);
 	}
 
-	// Expands macros in the code.
-	//  TODO support for arguments, i.e. #define f(x) -2*x*x + 3*x - 5
-	private static void macroExpand(List<Token> ll) throws Exception {
-		Map<String, List<Token>> macro = new HashMap<String, List<Token>>(32);
-		// type conversions
-		macro.put("long double", listOf(singleToken("double")));
-		macro.put("float", listOf(singleToken("double")));
-		macro.put("bool", listOf(singleToken("boolean")));
-		macro.put("long long", listOf(singleToken("long")));
-		macro.put("long float", listOf(singleToken("double")));
-		macro.put("long int", listOf(singleToken("long")));
-		macro.put("short", listOf(singleToken("int")));
-		macro.put("persistent", listOf(singleToken("static")));
-		//macro.put("struct", listOf(singleToken("class")));
-		macro.put("bool", listOf(singleToken("boolean")));
-		macro.put("NULL", listOf(singleToken("null")));
-		ListIterator<Token> it = ll.listIterator();
-		Token t; String s; int index;
-		// iterate through all tokens
-		while (it.hasNext()) {
-			t = it.next();
-			if (t.type == StreamTokenizer.TT_WORD && t.cval == '#')
-				if (it.hasNext()) {
-					s = t.sval;
-					t = it.next();
-					if (t.type == StreamTokenizer.TT_WORD) {
-						index = t.sval.indexOf(' ');
-						if (s.equals("#define") && index > 0) {
-							// resolve macro and add to the table
-							s = t.sval;
-							macro.put(s.substring(0, index).trim(),
-								parse(null, new StringReader(s.substring(index + 1))));
-							it.remove();
-							// clean off junked directive
-							it.previous();
-							it.remove();
-						} else
-							throw new Exception("Not a supported preprocessor type.");
-					} else
-						throw new Exception("Invalid preprocessor argument.");
-				} else
-					throw new Exception("Preprocessor missing argument.");
+	// Gets the tokens of an included file from the cache, or parses it.
+	//  If two compiles miss the same file at once, both parse it; waiting
+	//  on each other could deadlock if the files include each other.
+	private static Header header(File toInc, String path, List<String> including)
+			throws Exception {
+		String key;
+		try {
+			key = toInc.getCanonicalPath();
+		} catch (IOException e) {
+			throw new Exception("Cannot include " + path + ": File not found.", e);
 		}
-		// rewind and replace
-		it = ll.listIterator();
-		List<Token> ll2;
-		Iterator<Token> it2;
-		while (it.hasNext()) {
-			t = it.next();
-			if (t.type == StreamTokenizer.TT_WORD) {
-				ll2 = macro.get(t.sval);
-				if (ll2 != null) {
-					// replace with macro text
-					it.remove();
-					it2 = ll2.iterator();
-					while (it2.hasNext())
-						it.add(it2.next());
-				}
+		int cycle = including.indexOf(key);
+		if (cycle >= 0) {
+			StringBuilder chain = new StringBuilder(64);
+			for (int i = cycle; i < including.size(); i++)
+				chain.append(new File(including.get(i)).getName()).append(" -> ");
+			chain.append(toInc.getName());
+			throw new Exception("Cannot include " + path + ": it includes itself (" + chain + ").");
+		}
+		Header header = HEADERS.get(key);
+		if (header != null && header.isCurrent())
+			return header;
+		// stamp before reading, so that a change made while reading is caught next time
+		long modified = toInc.lastModified(), length = toInc.length();
+		List<Header> nested = new ArrayList<Header>(4);
+		TokenBuffer tokens;
+		including.add(key);
+		try {
+			FileReader r2 = new FileReader(toInc);
+			try {
+				tokens = parse(toInc, r2, including, nested);
+			} finally {
+				r2.close();
 			}
+		} catch (IOException e) {
+			throw new Exception("Cannot include " + path + ": File not found.", e);
+		} finally {
+			including.remove(including.size() - 1);
 		}
-		// a few odd expansions
-		String twoAgo = null, oneAgo = null;
-		it = ll.listIterator();
-		while (it.hasNext()) {
-			t = it.next();
-			if (t.cval == '[') {
+		header = new Header(toInc, modified, length, tokens, nested);
+		HEADERS.put(key, header);
+		return header;
+	}
+
+	// Adds a macro to the table. A later definition replaces an earlier one
+	//  everywhere, even where used before either.
+	//  TODO support for arguments, i.e. #define f(x) -2*x*x + 3*x - 5
+	private static void define(String directive, String text, TokenBuffer tokens)
+			throws Exception {
+		int index = text.indexOf(' ');
+		if (!directive.equals("#define") || index <= 0)
+			throw new Exception("Not a supported preprocessor type.");
+		tokens.define(text.substring(0, index).trim(),
+			parse(null, new StringReader(text.substring(index + 1)), null, null));
+	}
+
+	// Checks for a type which can have a C style array declaration.
+	private static boolean isArrayType(String word) {
+		return word != null && (word.equals("long") || word.equals("double") ||
+			word.equals("int") || word.equals("char"));
+	}
+
+	// Expands macros, applies a few odd expansions and writes out the class.
+	//  Inserts lots of unnecessary spaces which are ignored.
+	private static void translate(TokenBuffer tokens, Map<String, TokenBuffer> macro,
+			LineWriter out) throws Exception {
+		Expander it = new Expander(tokens, macro);
+		String twoAgo = null, oneAgo = null, sval;
+		int type2; String sval2; char cval2;
+		out.write("public class Program extends org.icx.sim.BotballProgram {\n");
+		while (it.next()) {
+			sval = it.sval;
+			if (it.cval == '[') {
+				out.token(it.type, sval, it.cval);
 				// fix arrays to Java style
-				Token t2 = it.next();
-				if (t2.cval != ']' && twoAgo != null && (twoAgo.equals("long") ||
-						twoAgo.equals("double") || twoAgo.equals("int") || twoAgo.equals("char"))) {
-					it.remove();
-					it.next();
+				it.require();
+				if (it.cval != ']' && isArrayType(twoAgo)) {
 					// change int x[16] to int[] x = new int[16]
-					it.add(new Token('=', "=", '='));
-					it.add(singleToken("new " + twoAgo));
-					it.add(new Token('[', "[", '['));
-					it.add(t2);
-					it.add(new Token(']', "]", ']'));
-				}
-			} else if (t.type == StreamTokenizer.TT_WORD && twoAgo != null &&
-					(twoAgo.equals("start_process") || twoAgo.equals("run_for"))) {
+					type2 = it.type;
+					sval2 = it.sval;
+					cval2 = it.cval;
+					it.require();
+					out.token(it.type, it.sval, it.cval);
+					out.token('=', "=", '=');
+					out.token(WORD, "new " + twoAgo, '\u0000');
+					out.token('[', "[", '[');
+					out.token(type2, sval2, cval2);
+					out.token(']', "]", ']');
+				} else
+					out.token(it.type, it.sval, it.cval);
+			} else if (it.type == WORD && twoAgo != null &&
+					(twoAgo.equals("start_process") || twoAgo.equals("run_for")))
 				// rudimentary function pointer fix
-				it.remove();
-				it.add(singleToken("\"" + t.sval + "\""));
-			} else if (t.cval == '(' && oneAgo != null && (oneAgo.equals("if") || oneAgo.equals("while")));
+				out.token(WORD, "\"" + sval + "\"", '\u0000');
+			else
+				out.token(it.type, sval, it.cval);
 				/*
 				 * TODO if statements are broken:
 				 * 
 				 * if (true) is OK, but if (1) is not
 				 * probably should insert if (test(1)) which would work
 				 * but need to resolve the other parenthesis
-				 * 
-				 * it.add(singleToken("test("));
 				 */
 			if (oneAgo != null) twoAgo = oneAgo.trim();
-			oneAgo = t.sval;
+			oneAgo = sval;
 		}
+		out.write("\n}");
 	}
 
 	/**
-	 * Creates and returns a list of the items given.
-	 * 
-	 * @param args the items to list
-	 * @return a list of those items
+	 * Tokens parsed from user code, stored in parallel arrays so that each
+	 *  token costs no more than its text.
+	 */
+	private static class TokenBuffer {
+		// Type as defined by stream tokenizer: word, character, line break...
+		private int[] types;
+		// value as a String
+		private String[] svals;
+		// value as character
+		private char[] cvals;
+		// Number of tokens.
+		private int size;
+		// Macros defined in this text, or null if none.
+		private Map<String, TokenBuffer> macros;
+
+		// Creates an empty buffer.
+		public TokenBuffer(int capacity) {
+			capacity = Math.max(1, capacity);
+			types = new int[capacity];
+			svals = new String[capacity];
+			cvals = new char[capacity];
+			size = 0;
+			macros = null;
+		}
+		// Makes room for more tokens.
+		private void ensure(int capacity) {
+			if (capacity <= types.length) return;
+			capacity = Math.max(capacity, types.length * 2);
+			types = Arrays.copyOf(types, capacity);
+			svals = Arrays.copyOf(svals, capacity);
+			cvals = Arrays.copyOf(cvals, capacity);
+		}
+		// Adds a token with the given values.
+		public void add(int type, String sval, char cval) {
+			ensure(size + 1);
+			if (cval == '"')
+				// auto escape string
+				sval = sval.replace("\n", "\\n").replace("\r", "").replace("\t", "\\t").
+					replace("\b", "\\b");
+			types[size] = type;
+			svals[size] = sval;
+			cvals[size] = cval;
+			size++;
+		}
+		// Adds all tokens and macros of another buffer.
+		public void append(TokenBuffer other) {
+			ensure(size + other.size);
+			System.arraycopy(other.types, 0, types, size, other.size);
+			System.arraycopy(other.svals, 0, svals, size, other.size);
+			System.arraycopy(other.cvals, 0, cvals, size, other.size);
+			size += other.size;
+			if (other.macros != null)
+				for (Map.Entry<String, TokenBuffer> entry : other.macros.entrySet())
+					define(entry.getKey(), entry.getValue());
+		}
+		// Adds a macro, replacing any earlier one of the same name.
+		public void define(String name, TokenBuffer body) {
+			if (macros == null)
+				macros = new LinkedHashMap<String, TokenBuffer>(16);
+			// keep the table in order of last definition
+			macros.remove(name);
+			macros.put(name, body);
+		}
+	}
+
+	/**
+	 * A tokenized include file. Never changed once made, so it can be
+	 *  shared between compiles.
 	 */
-	private static <T> List<T> listOf(T... args) {
-		List<T> list = new ArrayList<T>(args.length);
-		for (int i = 0; i < args.length; i++)
-			list.add(args[i]);
-		return list;
+	private static class Header {
+		// The file, and its time stamp and size when it was read.
+		private File file;
+		private long modified;
+		private long length;
+		// Its tokens and macros, with anything it includes spliced in.
+		private TokenBuffer tokens;
+		// The files it includes directly.
+		private List<Header> includes;
+
+		// Creates a header for a file which was just parsed.
+		public Header(File file, long modified, long length, TokenBuffer tokens,
+				List<Header> includes) {
+			this.file = file;
+			this.modified = modified;
+			this.length = length;
+			this.tokens = tokens;
+			this.includes = includes;
+		}
+		// Checks that neither this file nor anything it includes has changed.
+		public boolean isCurrent() {
+			if (file.lastModified() != modified || file.length() != length)
+				return false;
+			for (Header header : includes)
+				if (!header.isCurrent()) return false;
+			return true;
+		}
 	}
 
 	/**
-	 * A class which represents a token parsed from user code.
+	 * Reads tokens from a buffer with macros expanded. Macro bodies are not
+	 *  themselves expanded.
 	 */
-	private static class Token {
-		// Type as defined by stream tokenizer: word, character, line break...
+	private static class Expander {
+		// The tokens and the macros to expand.
+		private TokenBuffer tokens;
+		private Map<String, TokenBuffer> macro;
+		// Next token to read.
+		private int index;
+		// Body being expanded (or null), and the next token in it.
+		private TokenBuffer body;
+		private int bodyIndex;
+		// The current token.
 		public int type;
-		// value as a String
 		public String sval;
-		// value as character
 		public char cval;
 
-		// Creates a token with the given values
-		public Token(int type, String sval, char cval) {
-			this.type = type;
-			this.sval = sval;
-			this.cval = cval;
-			if (cval == '"')
-				// auto escape string
-				this.sval = sval.replace("\n", "\\n").replace("\r", "").replace("\t", "\\t").
-					replace("\b", "\\b");
+		// Starts reading at the first token.
+		public Expander(TokenBuffer tokens, Map<String, TokenBuffer> macro) {
+			this.tokens = tokens;
+			this.macro = macro;
+			index = 0;
+			body = null;
+			bodyIndex = 0;
+		}
+		// Moves to the next token, returning false at the end.
+		public boolean next() {
+			TokenBuffer expansion;
+			int i;
+			while (true) {
+				if (body != null) {
+					if (bodyIndex < body.size) {
+						load(body, bodyIndex++);
+						return true;
+					}
+					body = null;
+				}
+				if (index >= tokens.size) return false;
+				i = index++;
+				if (tokens.types[i] == WORD && (expansion = macro.get(tokens.svals[i])) != null) {
+					// replace with macro text
+					body = expansion;
+					bodyIndex = 0;
+				} else {
+					load(tokens, i);
+					return true;
+				}
+			}
+		}
+		// Moves to the next token, which must be there.
+		public void require() throws Exception {
+			if (!next())
+				throw new Exception("Unexpected end of file.");
+		}
+		// Copies out a token.
+		private void load(TokenBuffer from, int i) {
+			type = from.types[i];
+			sval = from.svals[i];
+			cval = from.cvals[i];
 		}
-		// Converts token to string for output
-		public String toString() {
+	}
+
+	/**
+	 * Writes the generated class a line at a time, applying the last filter
+	 *  directives to each line. Empty lines are left out.
+	 */
+	private static class LineWriter {
+		// Where the lines go.
+		private Writer out;
+		// The line being built.
+		private StringBuilder line;
+
+		// Creates a line writer for the given output.
+		public LineWriter(Writer out) {
+			this.out = out;
+			line = new StringBuilder(256);
+		}
+		// Writes a token followed by a space.
+		public void token(int type, String sval, char cval) throws IOException {
 			if (cval == '"')
-				return "\"" + sval + "\"";
-			if (type == StreamTokenizer.TT_WORD)
-				return sval;
-			return Character.toString(cval);
+				line.append('"').append(sval).append('"');
+			else if (type == WORD)
+				write(sval);
+			else if (cval == '\n')
+				endLine();
+			else
+				line.append(cval);
+			line.append(' ');
+		}
+		// Writes text which may contain line breaks.
+		public void write(String text) throws IOException {
+			int start = 0, end;
+			while ((end = text.indexOf('\n', start)) >= 0) {
+				line.append(text, start, end);
+				endLine();
+				start = end + 1;
+			}
+			line.append(text, start, text.length());
+		}
+		// Filters and writes out the current line.
+		private void endLine() throws IOException {
+			if (line.length() == 0) return;
+			String text = line.toString();
+			line.setLength(0);
+			// strip function prototypes (only detectable here?)
+			Matcher m = PROTOTYPE.matcher(text);
+			if (m.find() && !m.group(1).equals("return"))
+				text = m.replaceFirst("");
+			// java inline includes
+			text = JIT.matcher(text).replaceAll("");
+			out.write(text);
+			out.write('\n');
+		}
+		// Writes out the last line and closes the output.
+		public void close() throws IOException {
+			try {
+				endLine();
+			} finally {
+				out.close();
+			}
 		}
 	}
 }
@@ -0,0 +1,87 @@
+/*
+ * This file is part of JBSim.
+ * 
+ * JBSim is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * JBSim is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with JBSim.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.icx.sim;
+
+/**
+ * The sensor packet of a simulated iRobot Create. SimRobot refills it once
+ *  per physics step, and the Create library copies out of it, so polling
+ *  the Create in a tight loop never re-evaluates the sensors.
+ * 
+ * Lock on the packet while reading or writing it to get a consistent copy.
+ *  Distance and angle are not part of the packet; they are counted by
+ *  SimRobot's odometry and read from there.
+ */
+public class CreatePacket {
+	// Bumps and wheel drops.
+	public int lbump, rbump, ldrop, rdrop, fdrop;
+	// Cliff sensors and their reflectance amounts.
+	public int lcliff, lfcliff, rfcliff, rcliff;
+	public int lcliffAmt, lfcliffAmt, rfcliffAmt, rcliffAmt;
+	// Wall sensor, virtual wall and remote.
+	public int wall, wallAmt, wallHb, ir;
+	// Buttons.
+	public int advanceButton, playButton;
+	// Battery.
+	public int chargeState, battVoltage, currentFlow, battTemp, battCharge, battCapacity;
+	// Cargo bay.
+	public int digitalIn, analogIn;
+	// Physics step count when last filled in.
+	public long tick;
+
+	/**
+	 * Creates a packet with nothing pressed and a full battery.
+	 */
+	public CreatePacket() {
+		// 2D representation, so cliffs and drops can never fire
+		ldrop = rdrop = fdrop = 0;
+		lcliff = lfcliff = rfcliff = rcliff = 0;
+		lcliffAmt = lfcliffAmt = rfcliffAmt = rcliffAmt = 1023;
+		// There is no virtual wall and never a home base.
+		wall = wallAmt = wallHb = 0;
+		ir = -1;
+		advanceButton = playButton = 0;
+		chargeState = 0;
+		battVoltage = 16500;
+		currentFlow = 0; battTemp = 20;
+		battCharge = battCapacity = 2075;
+		digitalIn = analogIn = 0;
+		tick = -1L;
+	}
+
+	/**
+	 * Creates a copy of another packet. Lock on the other packet first if it
+	 *  may be refilled meanwhile.
+	 * 
+	 * @param other the packet to copy
+	 */
+	public CreatePacket(CreatePacket other) {
+		lbump = other.lbump; rbump = other.rbump;
+		ldrop = other.ldrop; rdrop = other.rdrop; fdrop = other.fdrop;
+		lcliff = other.lcliff; lfcliff = other.lfcliff;
+		rfcliff = other.rfcliff; rcliff = other.rcliff;
+		lcliffAmt = other.lcliffAmt; lfcliffAmt = other.lfcliffAmt;
+		rfcliffAmt = other.rfcliffAmt; rcliffAmt = other.rcliffAmt;
+		wall = other.wall; wallAmt = other.wallAmt; wallHb = other.wallHb; ir = other.ir;
+		advanceButton = other.advanceButton; playButton = other.playButton;
+		chargeState = other.chargeState; battVoltage = other.battVoltage;
+		currentFlow = other.currentFlow; battTemp = other.battTemp;
+		battCharge = other.battCharge; battCapacity = other.battCapacity;
+		digitalIn = other.digitalIn; analogIn = other.analogIn;
+		tick = other.tick;
+	}
+}
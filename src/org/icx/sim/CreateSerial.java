@@ -0,0 +1,369 @@
+/*
+ * This file is part of JBSim.
+ * 
+ * JBSim is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * JBSim is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with JBSim.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.icx.sim;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Emulates the serial link to an iRobot Create speaking the Open Interface.
+ *  Bytes written by the program are queued in a ring buffer and decoded as
+ *  whole commands arrive. Drive and mode commands are passed on to the
+ *  Create library; sensor queries and the sensor stream (opcode 148) are
+ *  answered into a fixed size receive buffer which the program reads back.
+ * 
+ * Streamed packets are produced every 15 ms of simulated time, like the
+ *  real Create. Nothing is allocated per byte; when either buffer fills up,
+ *  further bytes are dropped just as an overrun UART would.
+ */
+public class CreateSerial {
+	// Stream packets are sent this often (ms of simulated time).
+	public static final int STREAM_PERIOD = 15;
+	// Header byte of a streamed packet.
+	private static final int STREAM_HEADER = 19;
+	// Give up waiting for create_read_block() after this many ms.
+	private static final int READ_TIMEOUT = 100;
+	// Buffer sizes in bytes; the longest command (a 255 byte script or
+	//  stream list) and the byte after it fit in the transmit buffer.
+	private static final int TX_SIZE = 258;
+	private static final int RX_SIZE = 1024;
+	// Arguments taken by each opcode; -1 for variable length, 0 for none or unknown.
+	private static final int[] ARGS = new int[256];
+	// Size of the data in each sensor packet ID.
+	private static final int[] SIZE = new int[] {
+		26, 10, 6, 10, 14, 12, 52, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 2, 2, 1, 2, 2, 1,
+		2, 2, 2, 2, 2, 2, 2, 1, 2, 1, 1, 1, 1, 1, 2, 2, 2, 2
+	};
+	// First and last packet IDs in groups 0-6.
+	private static final int[] GROUP_FIRST = new int[] { 7, 7, 17, 21, 27, 35, 7 };
+	private static final int[] GROUP_LAST = new int[] { 26, 16, 20, 26, 34, 42, 42 };
+
+	static {
+		ARGS[129] = 1; ARGS[136] = 1; ARGS[137] = 4; ARGS[138] = 1;
+		ARGS[139] = 3; ARGS[140] = -1; ARGS[141] = 1; ARGS[142] = 1;
+		ARGS[144] = 3; ARGS[145] = 4; ARGS[146] = 4; ARGS[147] = 1;
+		ARGS[148] = -1; ARGS[149] = -1; ARGS[150] = 1; ARGS[151] = 1;
+		ARGS[152] = -1; ARGS[155] = 1; ARGS[156] = 2; ARGS[157] = 2;
+		ARGS[158] = 1;
+	}
+
+	// The program whose Create library is driven.
+	private BotballProgram bp;
+	// Bytes written by the program and not yet decoded.
+	private byte[] tx;
+	private int txHead;
+	private int txCount;
+	// Bytes waiting to be read by the program, kept in write mode.
+	private ByteBuffer rx;
+	// Packet IDs being streamed, and whether the stream is running.
+	private int[] stream;
+	private int streamCount;
+	private boolean streaming;
+	// Simulated time at which the next stream packet is due.
+	private long nextStream;
+
+	/**
+	 * Creates a serial link to the Create used by the given program.
+	 * 
+	 * @param bp the program which owns the Create
+	 */
+	public CreateSerial(BotballProgram bp) {
+		this.bp = bp;
+		tx = new byte[TX_SIZE];
+		txHead = txCount = 0;
+		rx = ByteBuffer.allocate(RX_SIZE);
+		stream = new int[TX_SIZE];
+		streamCount = 0;
+		streaming = false;
+		nextStream = 0L;
+	}
+
+	/**
+	 * Sends one byte to the Create. Commands are carried out as soon as
+	 *  their last byte arrives.
+	 * 
+	 * @param b the byte to send (only the low 8 bits are used)
+	 */
+	public synchronized void write(int b) {
+		if (txCount >= TX_SIZE) return;
+		tx[(txHead + txCount) % TX_SIZE] = (byte)b;
+		txCount++;
+		decode();
+	}
+
+	/**
+	 * Reads bytes sent back by the Create. Waits up to 100 ms of simulated
+	 *  time if fewer than count bytes are available.
+	 * 
+	 * @param buffer where to put the bytes
+	 * @param count the number of bytes wanted
+	 * @return the number of bytes actually read
+	 */
+	public int read(byte[] buffer, int count) {
+		count = Math.min(count, buffer.length);
+		if (count <= 0) return 0;
+		long until = bp._simTime() + READ_TIMEOUT;
+		// sim time stands still when paused; don't wait forever on a stopped engine
+		for (int i = 0; available() < count && i < READ_TIMEOUT; i++) {
+			if (bp._simTime() >= until) break;
+			bp.defer();
+		}
+		synchronized (this) {
+			pump();
+			rx.flip();
+			count = Math.min(count, rx.remaining());
+			rx.get(buffer, 0, count);
+			rx.compact();
+		}
+		return count;
+	}
+
+	/**
+	 * Throws away all bytes sent by the Create which have not been read.
+	 */
+	public synchronized void clear() {
+		pump();
+		rx.clear();
+	}
+
+	// Produces any stream packets which are due and returns the bytes waiting.
+	private synchronized int available() {
+		pump();
+		return rx.position();
+	}
+
+	// Emits all stream packets that fell due since the last call.
+	private void pump() {
+		if (!streaming || streamCount == 0) return;
+		long now = bp._simTime();
+		while (nextStream <= now) {
+			if (bp.g_create_connected != 0)
+				sendStream();
+			nextStream += STREAM_PERIOD;
+		}
+	}
+
+	// Decodes and runs every complete command in the transmit buffer.
+	private void decode() {
+		int op, len;
+		while (txCount > 0) {
+			op = peek(0);
+			len = ARGS[op];
+			if (len < 0) {
+				// variable length: the first argument tells how many follow
+				if (txCount < 2) return;
+				if (op == 140) {
+					// songs are at most 16 notes; the Create reads no more than that
+					if (txCount < 3) return;
+					len = 2 + 2 * Math.min(peek(2), 16);
+				} else
+					len = 1 + peek(1);
+			}
+			if (txCount < len + 1) return;
+			run(op, len);
+			txHead = (txHead + len + 1) % TX_SIZE;
+			txCount -= len + 1;
+		}
+	}
+
+	// Gets an unsigned byte at the given offset from the start of the transmit buffer.
+	private int peek(int offset) {
+		return tx[(txHead + offset) % TX_SIZE] & 0xFF;
+	}
+
+	// Gets a signed 16-bit big endian argument at the given offset.
+	private int peekShort(int offset) {
+		return (short)((peek(offset) << 8) | peek(offset + 1));
+	}
+
+	// Carries out one command with len argument bytes.
+	private void run(int op, int len) {
+		int i;
+		// only "start" can be heard before the program connects
+		if (bp.g_create_connected == 0 && op != 128) return;
+		switch (op) {
+		case 128:
+			// start
+			if (bp.g_create_connected == 0) bp.create_connect();
+			bp.create_passive();
+			break;
+		case 130:
+		case 131:
+			// control, safe
+			bp.create_safe();
+			break;
+		case 132:
+			bp.create_full();
+			break;
+		case 133:
+			// power down
+			bp.create_stop();
+			bp.create_passive();
+			break;
+		case 134:
+			bp.create_spot();
+			break;
+		case 135:
+			bp.create_cover();
+			break;
+		case 136:
+			bp.create_demo(peek(1));
+			break;
+		case 137:
+			// drive: velocity, radius
+			bp.create_drive(peekShort(1), peekShort(3));
+			break;
+		case 139:
+			// LEDs: bits (1 = play, 3 = advance), power color, power intensity
+			bp.create_play_led((peek(1) >> 1) & 1);
+			bp.create_advance_led((peek(1) >> 3) & 1);
+			bp.create_power_led(peek(2), peek(3));
+			break;
+		case 140:
+			// song: number, length, then note/duration pairs
+			int[] song = bp.gc_song_array[peek(1) & 15];
+			song[0] = Math.min(peek(2), 16);
+			for (i = 0; i < 2 * song[0]; i++)
+				song[i + 1] = peek(i + 3);
+			break;
+		case 141:
+			bp.create_play_song(peek(1) & 15);
+			break;
+		case 142:
+			// sensors: one packet
+			if (valid(peek(1)) && rx.remaining() >= SIZE[peek(1)])
+				sendSensor(peek(1));
+			break;
+		case 143:
+			bp.create_cover_dock();
+			break;
+		case 145:
+			// drive direct: right velocity, left velocity
+			bp.create_drive_direct(peekShort(3), peekShort(1));
+			break;
+		case 148:
+			// stream: count, packet IDs
+			streamCount = 0;
+			for (i = 2; i <= len; i++)
+				if (valid(peek(i)))
+					stream[streamCount++] = peek(i);
+			streaming = streamCount > 0;
+			nextStream = bp._simTime();
+			break;
+		case 149:
+			// query list: count, packet IDs
+			for (i = 2; i <= len; i++)
+				if (valid(peek(i)) && rx.remaining() >= SIZE[peek(i)])
+					sendSensor(peek(i));
+			break;
+		case 150:
+			// pause/resume stream
+			streaming = peek(1) != 0 && streamCount > 0;
+			if (streaming) nextStream = bp._simTime();
+			break;
+		default:
+			// scripts, outputs and unknown opcodes are accepted and ignored
+			break;
+		}
+	}
+
+	// Checks if a sensor packet ID exists.
+	private static boolean valid(int id) {
+		return id >= 0 && id < SIZE.length;
+	}
+
+	// Sends one stream packet: header, size, ID/data pairs, checksum.
+	private void sendStream() {
+		int i, size = 0, start;
+		for (i = 0; i < streamCount; i++)
+			size += SIZE[stream[i]] + 1;
+		// no room: the packet is lost, as on a real overrun
+		if (rx.remaining() < size + 3) return;
+		start = rx.position();
+		rx.put((byte)STREAM_HEADER);
+		rx.put((byte)size);
+		for (i = 0; i < streamCount; i++) {
+			rx.put((byte)stream[i]);
+			sendSensor(stream[i]);
+		}
+		// all bytes including the checksum add up to 0
+		int sum = 0;
+		for (i = start; i < rx.position(); i++)
+			sum += rx.get(i);
+		rx.put((byte)-sum);
+	}
+
+	// Sends the data of a sensor packet or group.
+	private void sendSensor(int id) {
+		if (id < GROUP_FIRST.length) {
+			for (int i = GROUP_FIRST[id]; i <= GROUP_LAST[id]; i++)
+				sendSensor(i);
+			return;
+		}
+		SimRobot bot = bp._robot();
+		CreatePacket p = bot.getCreatePacket();
+		int value;
+		synchronized (p) {
+			switch (id) {
+			case 7:
+				value = p.rbump | (p.lbump << 1) | (p.rdrop << 2) | (p.ldrop << 3) |
+					(p.fdrop << 4);
+				break;
+			case 8: value = p.wall; break;
+			case 9: value = p.lcliff; break;
+			case 10: value = p.lfcliff; break;
+			case 11: value = p.rfcliff; break;
+			case 12: value = p.rcliff; break;
+			case 13: value = p.wallHb; break;
+			case 14: value = bp.gc_overcurrents; break;
+			case 17: value = p.ir; break;
+			case 18: value = p.playButton | (p.advanceButton << 2); break;
+			// reading distance and angle resets them, just like the real Create
+			case 19: value = bot.readDistance(); break;
+			case 20: value = bot.readAngle(); break;
+			case 21: value = p.chargeState; break;
+			case 22: value = p.battVoltage; break;
+			case 23: value = p.currentFlow; break;
+			case 24: value = p.battTemp; break;
+			case 25: value = p.battCharge; break;
+			case 26: value = p.battCapacity; break;
+			case 27: value = p.wallAmt; break;
+			case 28: value = p.lcliffAmt; break;
+			case 29: value = p.lfcliffAmt; break;
+			case 30: value = p.rfcliffAmt; break;
+			case 31: value = p.rcliffAmt; break;
+			case 32: value = p.digitalIn; break;
+			case 33: value = p.analogIn; break;
+			case 35: value = bp.gc_mode; break;
+			case 38: value = streamCount; break;
+			case 39: value = bp.gc_vel; break;
+			case 40: value = bp.gc_radius; break;
+			case 41: value = bp.gc_rvel; break;
+			case 42: value = bp.gc_lvel; break;
+			default:
+				// unused, charging sources, songs
+				value = 0;
+				break;
+			}
+		}
+		if (SIZE[id] == 2) {
+			value = Math.max(-32768, Math.min(65535, value));
+			rx.put((byte)(value >> 8));
+		}
+		rx.put((byte)value);
+	}
+}
@@ -119,6 +119,18 @@ public class DisplayObject {
 	 * @param g2 the Graphics2D on which to draw
 	 */
 	public void draw(Component comp, Graphics2D g2) {
+		draw(comp, g2, 1.f);
+	}
+
+	/**
+	 * Draws an object at its location interpolated between the last two physics steps.
+	 * 
+	 * @param comp the Component on which to draw
+	 * @param g2 the Graphics2D on which to draw
+	 * @param alpha how far the display is between the last two physics steps (0-1)
+	 */
+	public void draw(Component comp, Graphics2D g2, float alpha) {
+		Location location = parent.getRenderLocation(alpha);
 		Image tinted;
 		if (tint != null) {
 			tinted = tintedVersions.get(tint);
@@ -152,7 +164,13 @@ public class DisplayObject {
 
 	// Fills in the specified bounds shape
 	public void fill(Graphics2D g2) {
+		fill(g2, 1.f);
+	}
+
+	// Fills in the specified bounds shape at the interpolated location
+	public void fill(Graphics2D g2, float alpha) {
 		if (parent.getCollision() == null) return;
+		Location location = parent.getRenderLocation(alpha);
 		// draw image scaled, moved, and rotated
 		Graphics2D g = (Graphics2D) g2.create();
 		g.translate(location.getX() * RobotConstants.MM_TO_PIXELS,
@@ -28,6 +28,9 @@ public class Environment {
 	private LinkedList<SimRobot> robots;
 	// All non-robot objects in the simulation.
 	private List<SimObject> items;
+	// Whether items is shared with another environment, and must be copied
+	//  before it is changed.
+	private boolean shared;
 	// Only one starting light.
 	private boolean light;
 
@@ -37,15 +40,42 @@ public class Environment {
 	public Environment() {
 		robots = new LinkedList<SimRobot>();
 		items = new ArrayList<SimObject>(100);
+		shared = false;
 		light = false;
 	}
 
+	/**
+	 * Creates an environment with no robots which shares the walls and other
+	 *  objects of another. Neither sees objects added to or removed from the
+	 *  other afterwards; the list is copied by whichever changes it first.
+	 * 
+	 * @param world the environment with the objects to share
+	 */
+	public Environment(Environment world) {
+		robots = new LinkedList<SimRobot>();
+		synchronized (world) {
+			items = world.items;
+			world.shared = true;
+		}
+		shared = true;
+		light = world.light;
+	}
+
+	// Takes a private copy of the object list if it is shared.
+	private synchronized void own() {
+		if (shared) {
+			items = new ArrayList<SimObject>(items);
+			shared = false;
+		}
+	}
+
 	/**
 	 * Adds an object to the simulation (wall, static, etc.)
 	 * 
 	 * @param obj the object to add
 	 */
 	public void add(StaticObject obj) {
+		own();
 		items.add(obj);
 	}
 
@@ -56,6 +86,7 @@ public class Environment {
 	 * @param obj the object to remove
 	 */
 	public void remove(StaticObject obj) {
+		own();
 		items.remove(obj);
 	}
 
@@ -50,6 +50,13 @@ public class GraphicsComponent extends JComponent {
 	//  zoom = 0, 1:1
 	//  zoom <= 1, sizes divided by (-zoom + 1)
 	private int zoom;
+	// How far the display is between the last two physics steps
+	private volatile float alpha;
+	// Paint timings.
+	private SimMetrics metrics;
+	// The simulator shown, and its performance overlay (null when hidden).
+	private Simulator sim;
+	private volatile PerfOverlay overlay;
 
 	/**
 	 * Creates a new simulation area with the given size in mm.
@@ -62,7 +69,11 @@ public class GraphicsComponent extends JComponent {
 		super();
 		realSize = new Dimension(Math.round(width * RobotConstants.MM_TO_PIXELS),
 			Math.round(height * RobotConstants.MM_TO_PIXELS));
+		metrics = sim.getEngine().getMetrics();
+		this.sim = sim;
+		overlay = null;
 		zoom = 1;
+		alpha = 1.f;
 		collision = false;
 		bg = BG;
 		display = new LinkedList<DisplayObject>();
@@ -167,6 +178,16 @@ public class GraphicsComponent extends JComponent {
 		repaint();
 	}
 
+	/**
+	 * Sets the interpolation factor used to draw moving objects between
+	 *  physics steps.
+	 * 
+	 * @param alpha 0 to draw the previous step, 1 to draw the latest one
+	 */
+	public void setInterpolation(float alpha) {
+		this.alpha = Math.max(0.f, Math.min(1.f, alpha));
+	}
+
 	/**
 	 * Turns collision indicators on and off.
 	 * 
@@ -177,7 +198,47 @@ public class GraphicsComponent extends JComponent {
 		repaint();
 	}
 
+	/**
+	 * Shows or hides the performance overlay in the top left corner.
+	 * 
+	 * @param show whether to show it
+	 */
+	public void showOverlay(boolean show) {
+		if (show && overlay == null)
+			overlay = new PerfOverlay(sim);
+		else if (!show)
+			overlay = null;
+		repaint();
+	}
+
+	/**
+	 * Checks whether the performance overlay is shown.
+	 * 
+	 * @return whether it is shown
+	 */
+	public boolean isOverlayShown() {
+		return overlay != null;
+	}
+
 	public void paint(Graphics g1) {
+		PerfOverlay o = overlay;
+		if (o == null && !metrics.isEnabled()) {
+			render(g1);
+			return;
+		}
+		long start = System.nanoTime();
+		render(g1);
+		if (metrics.isEnabled())
+			metrics.record(SimMetrics.Phase.RENDER, null, start);
+		if (o != null) {
+			// keep it in view when scrolled
+			Rectangle view = getVisibleRect();
+			o.paint(g1, view.x + 4, view.y + 4, System.nanoTime() - start);
+		}
+	}
+
+	// Paints the board and everything on it.
+	private void render(Graphics g1) {
 		Graphics2D g = (Graphics2D) g1;
 		Dimension ps = getPreferredSize();
 		g.setColor(BORDER);
@@ -194,17 +255,18 @@ public class GraphicsComponent extends JComponent {
 			RenderingHints.VALUE_ANTIALIAS_ON);
 		g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
 			RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+		float a = alpha;
 		synchronized (display) {
 			// we have the lock, so render list
 			for (DisplayObject o : display)
-				o.draw(this, g2);
+				o.draw(this, g2, a);
 		}
 		if (collision) {
 			g2.setColor(CC);
 			synchronized (display) {
 				// we have the lock, so render list
 				for (DisplayObject o : display)
-					o.fill(g2);
+					o.fill(g2, a);
 			}
 		}
 		g2.dispose();
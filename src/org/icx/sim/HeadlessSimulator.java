@@ -0,0 +1,535 @@
+/*
+ * This file is part of JBSim.
+ * 
+ * JBSim is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * JBSim is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with JBSim.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.icx.sim;
+
+import java.io.*;
+
+/**
+ * Runs a simulation without a window, for batch runs and benchmarks.
+ *  Inputs keep their "Set" values unless a sensor is installed or an
+ *  InputScript changes them, the LCD is echoed to a stream (or dropped), and nothing is ever paused.
+ *  Programs keep time by a SimClock rather than the wall clock, so matches
+ *  run as fast as the program allows and go the same way every time.
+ * 
+ * Like the windowed simulator, robots.txt, board.txt and the images and
+ *  models folders are read from the working directory.
+ */
+public class HeadlessSimulator implements SimHost {
+	// All simulated items.
+	private Environment env;
+	// Steps the physics.
+	private SimEngine engine;
+	// The program's clock, kept in step with the physics.
+	private SimClock clock;
+	// Collision, sensor and process events.
+	private SimLog log;
+	// Text on the LCD.
+	private LCDBuffer lcd;
+	// Inputs and outputs with no window to show them in.
+	private MotorComponent[] motors;
+	private MotorComponent[] servos;
+	private AnalogSlider[] analogs;
+	private LockingButton[] digitals;
+	// Controller buttons as a button mask, and the black button.
+	private volatile int buttons;
+	private volatile boolean black;
+	private volatile boolean beeper;
+	// The program being run, if any.
+	private BotballProgram instance;
+	// The snapshot last restored, which resumeMatch() carries on from.
+	private SimSnapshot origin;
+	// Scripted inputs, if any, and the next change to make.
+	private InputScript inputs;
+	private int nextInput;
+	// Physics time when the match began.
+	private long matchStart;
+	// Where the first robot is meant to get to, how close counts, and the
+	//  match time it first got there (-1 if it has not).
+	private Location goal;
+	private double goalRadius;
+	private long goalTime;
+	// Whether the match should end now, as asked by another thread.
+	private volatile boolean cancelled;
+
+	/**
+	 * Creates an empty headless simulator.
+	 * 
+	 * @param out where to echo the LCD and event log, or null to discard them
+	 */
+	public HeadlessSimulator(PrintStream out) {
+		this(new Environment(), out);
+	}
+
+	/**
+	 * Creates a headless simulator which carries on from a snapshot. It
+	 *  shares the snapshot's walls and collision models, and gets its own copy
+	 *  of everything else. Load a program and call resumeMatch() to go on.
+	 * 
+	 * @param from the snapshot to start from
+	 * @param out where to echo the LCD and event log, or null to discard them
+	 */
+	public HeadlessSimulator(SimSnapshot from, PrintStream out) {
+		this(new Environment(from.getWorld()), out);
+		for (SimRobot bot : from.getRobots())
+			env.addRobot(new SimRobot(this, bot));
+		restore(from);
+	}
+
+	// Creates a headless simulator of the given environment.
+	private HeadlessSimulator(Environment env, PrintStream out) {
+		this.env = env;
+		engine = new SimEngine(env);
+		clock = new SimClock(engine);
+		if (out == null) {
+			lcd = new LCDBuffer(LCDBuffer.DEFAULT_LINES);
+			log = new SimLog(engine, new PrintStream(new OutputStream() {
+				public void write(int b) { }
+				public void write(byte[] b, int off, int len) { }
+			}));
+		} else {
+			lcd = new LCDBuffer(out);
+			log = new SimLog(engine, out);
+		}
+		motors = new MotorComponent[4];
+		servos = new MotorComponent[4];
+		for (int i = 0; i < 4; i++) {
+			motors[i] = new MotorComponent("M" + i);
+			servos[i] = new MotorComponent("S" + i);
+		}
+		// 8 analog ports and the accelerometer
+		analogs = new AnalogSlider[11];
+		for (int i = 0; i < 8; i++)
+			analogs[i] = new AnalogSlider(Integer.toString(i));
+		// level and at rest, as on screen
+		analogs[8] = new AnalogSlider("AX");
+		analogs[8].setValueType(1);
+		analogs[8].setValue(512);
+		analogs[9] = new AnalogSlider("AY");
+		analogs[9].setValueType(1);
+		analogs[9].setValue(512);
+		analogs[10] = new AnalogSlider("AZ");
+		analogs[10].setValue(512 + 128);
+		analogs[10].setValueType(1);
+		digitals = new LockingButton[8];
+		for (int i = 0; i < digitals.length; i++)
+			digitals[i] = new LockingButton(Integer.toString(i + 8));
+		buttons = 0;
+		black = beeper = false;
+		instance = null;
+		origin = null;
+		inputs = null;
+		nextInput = 0;
+		matchStart = 0L;
+		goal = null;
+		goalRadius = 0.;
+		goalTime = -1L;
+		cancelled = false;
+	}
+
+	/**
+	 * Loads walls from a board file.
+	 * 
+	 * @param file the board file name
+	 */
+	public void loadBoard(String file) {
+		BoardReader.loadBoard(this, file);
+	}
+
+	/**
+	 * Adds a robot to the simulation.
+	 * 
+	 * @param type the robot type from robots.txt
+	 * @param start where the robot starts
+	 * @return the robot
+	 */
+	public SimRobot addRobot(String type, Location start) {
+		SimRobot r = new SimRobot(this, type);
+		r.getSetup().setStart(start);
+		r.reset();
+		env.addRobot(r);
+		return r;
+	}
+
+	/**
+	 * Compiles an IC/C program for the first robot.
+	 * 
+	 * @param source the IC/C source file
+	 * @return the program, or null if it did not compile
+	 * @throws Exception if the source could not be read or parsed
+	 */
+	public BotballProgram load(File source) throws Exception {
+		instance = ProgramCompiler.compile(source, this);
+		return instance;
+	}
+
+	/**
+	 * Loads a program from a bulk compile for the first robot, printing its
+	 *  compiler messages to the LCD like load() does.
+	 * 
+	 * @param program the compiled program
+	 * @return the program, or null if it did not compile
+	 * @throws Exception if the program could not be loaded
+	 */
+	public BotballProgram load(ProgramCompiler.Submission program) throws Exception {
+		if (program.isCompiled()) {
+			instance = program.newProgram(this);
+			print("Compile succeeded.\n");
+		} else {
+			for (String message : program.getDiagnostics())
+				print(message + "\n");
+			print("Compile failed.\n");
+			instance = null;
+		}
+		return instance;
+	}
+
+	/**
+	 * Sets the inputs to play back during matches, in place of someone
+	 *  pressing buttons and changing sensors.
+	 * 
+	 * @param inputs the input timeline, or null for none
+	 */
+	public void setInputs(InputScript inputs) {
+		this.inputs = inputs;
+		nextInput = 0;
+	}
+
+	/**
+	 * Sets a place for the first robot to reach. The time it first gets
+	 *  there is recorded by each match.
+	 * 
+	 * @param goal the center of the goal, or null for none
+	 * @param radius how close the robot's center must come in mm
+	 */
+	public void setGoal(Location goal, double radius) {
+		this.goal = goal == null ? null : new Location(goal);
+		goalRadius = radius;
+	}
+
+	/**
+	 * Gets when the first robot reached the goal in the last match.
+	 * 
+	 * @return the match time in ms, or -1 if it never did (or there is no goal)
+	 */
+	public long getGoalTime() {
+		return goalTime;
+	}
+
+	/**
+	 * Ends the match being played as soon as the program next waits, and
+	 *  stops the program as at the end of a match. Matches started later end
+	 *  at once. This may be called from any thread.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Gets whether cancel() has been called.
+	 * 
+	 * @return true if matches end at once
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Gets the physics time when the current (or last) match began, which
+	 *  scripted input times count from.
+	 * 
+	 * @return the start time in ms
+	 */
+	public long getMatchStart() {
+		return matchStart;
+	}
+
+	/**
+	 * Gets the program to be run.
+	 * 
+	 * @return the program, or null if none is loaded
+	 */
+	public BotballProgram getProgram() {
+		return instance;
+	}
+
+	/**
+	 * Runs physics steps as fast as possible, without a program.
+	 * 
+	 * @param ms the simulated time to cover in milliseconds
+	 */
+	public void step(long ms) {
+		long end = engine.getSimTime() + ms;
+		while (engine.getSimTime() < end) {
+			engine.step();
+			update();
+		}
+	}
+
+	// Makes any scripted input changes which have come due, and checks the goal.
+	private void update() {
+		long time = engine.getSimTime() - matchStart;
+		if (inputs != null)
+			nextInput = inputs.apply(this, nextInput, time);
+		if (goal != null && goalTime < 0L) {
+			SimRobot bot = env.getFirstRobot();
+			Location loc = bot == null ? null : bot.getLocation();
+			if (loc != null && Math.hypot(loc.getX() - goal.getX(), loc.getY() - goal.getY()) <=
+					goalRadius)
+				goalTime = time;
+		}
+	}
+
+	/**
+	 * Copies the state of the simulation, to restore() later or to start
+	 *  new simulators from. Any program keeps running.
+	 * 
+	 * @return the snapshot
+	 */
+	public SimSnapshot snapshot() {
+		synchronized (engine) {
+			return new SimSnapshot(this);
+		}
+	}
+
+	/**
+	 * Puts the simulation back as it was in a snapshot of this simulator (or
+	 *  one with the same robots). Stop any program first; load one and call
+	 *  resumeMatch() to carry on.
+	 * 
+	 * @param from the snapshot to go back to
+	 */
+	public void restore(SimSnapshot from) {
+		synchronized (engine) {
+			from.restore(this);
+		}
+		origin = from;
+		matchStart = from.getMatchStart();
+	}
+
+	/**
+	 * Runs the loaded program for a match. The physics is stepped whenever
+	 *  the program waits, up to the time it waits for, so the match takes no
+	 *  longer than the program's own computing. The match ends when the time
+	 *  is up or the program finishes, after which everything is stopped.
+	 * 
+	 * @param ms the match length in milliseconds
+	 * @return the simulated time the match lasted in milliseconds
+	 */
+	public long runMatch(long ms) {
+		for (SimRobot bot : env.getRobots())
+			bot.reset();
+		matchStart = engine.getSimTime();
+		nextInput = 0;
+		goalTime = -1L;
+		update();
+		if (instance != null) instance.invokeMain();
+		return play(ms);
+	}
+
+	/**
+	 * Runs the loaded program on from the snapshot last restored, without
+	 *  putting the robots back at the start. The program's motors, servos,
+	 *  Create connection and clock carry on from the snapshot, but it starts
+	 *  again at main(), as running threads cannot be copied.
+	 * 
+	 * @param ms how much longer to run in milliseconds
+	 * @return the simulated time run in milliseconds
+	 */
+	public long resumeMatch(long ms) {
+		goalTime = -1L;
+		// scripted changes from before the snapshot have been made already
+		if (inputs != null)
+			nextInput = inputs.indexAfter(engine.getSimTime() - matchStart);
+		if (instance != null) {
+			SimSnapshot.Controller state = origin == null ? null : origin.getController();
+			if (state == null)
+				instance.invokeMain();
+			else {
+				instance._restore(state);
+				instance.invokeMain(state.time);
+			}
+		}
+		return play(ms);
+	}
+
+	// Steps the physics in lockstep with the program until the time is up,
+	//  the program ends or the match is cancelled.
+	private long play(long ms) {
+		long start = engine.getSimTime(), end = start + ms, next;
+		try {
+			while (engine.getSimTime() < end && !cancelled) {
+				// let the program run until all of its processes are waiting
+				next = Math.min(clock.settle(), end);
+				if (instance != null && !instance._isRunning()) break;
+				do {
+					engine.step();
+					update();
+				} while (engine.getSimTime() < next && !cancelled);
+				clock.wake();
+			}
+		} catch (InterruptedException e) {
+			// stop early
+		}
+		stop();
+		lcd.refresh();
+		log.drain();
+		return engine.getSimTime() - start;
+	}
+
+	/**
+	 * Stops the program, motors and servos.
+	 */
+	public void stop() {
+		if (instance != null) {
+			instance._killAll();
+			if (instance.gc_mode != 0)
+				instance._create_disconnect();
+		}
+		disableServos();
+		ao();
+		for (SimRobot bot : env.getRobots())
+			bot.setSpeeds(0, 0);
+	}
+
+	/**
+	 * Sets the controller buttons which are held down.
+	 * 
+	 * @param mask an XBC style button mask
+	 */
+	public void setButtons(int mask) {
+		buttons = mask;
+	}
+
+	/**
+	 * Presses or releases the black button.
+	 * 
+	 * @param down whether the button is held down
+	 */
+	public void setBlackButton(boolean down) {
+		black = down;
+	}
+
+	/**
+	 * Checks whether the beeper is sounding.
+	 * 
+	 * @return whether the beeper is on
+	 */
+	public boolean isBeeperOn() {
+		return beeper;
+	}
+
+	/**
+	 * Gets the LCD text.
+	 * 
+	 * @return the buffer holding what is printed on the LCD
+	 */
+	public LCDBuffer getLCD() {
+		return lcd;
+	}
+
+	public Environment getEnvironment() {
+		return env;
+	}
+
+	public SimEngine getEngine() {
+		return engine;
+	}
+
+	public SimClock getClock() {
+		return clock;
+	}
+
+	public SimLog getLog() {
+		return log;
+	}
+
+	public void add(StaticObject obj) {
+		env.add(obj);
+	}
+
+	public boolean isPaused() {
+		return false;
+	}
+
+	public void pause() {
+		// a batch run has nobody to resume it
+	}
+
+	public void print(String text) {
+		print(text, true);
+	}
+
+	public void print(String text, boolean flush) {
+		lcd.print(text);
+		if (flush) lcd.refresh();
+	}
+
+	public void refreshLCD() {
+		lcd.refresh();
+	}
+
+	public void clearLCD() {
+		lcd.clear();
+		lcd.refresh();
+	}
+
+	public void ao() {
+		for (int i = 0; i < 4; i++) {
+			motors[i].setPower(0);
+			motors[i].setDest(Long.MAX_VALUE);
+		}
+	}
+
+	public void enableServos() {
+		for (int i = 0; i < 4; i++)
+			servos[i].servoEnable();
+	}
+
+	public void disableServos() {
+		for (int i = 0; i < 4; i++)
+			servos[i].servoDisable();
+	}
+
+	public int buttonMask() {
+		return buttons;
+	}
+
+	public boolean getBlackButton() {
+		return black;
+	}
+
+	public MotorComponent getMotor(int port) {
+		return motors[port];
+	}
+
+	public MotorComponent getServo(int port) {
+		return servos[port];
+	}
+
+	public AnalogSlider getAnalog(int port) {
+		return analogs[port];
+	}
+
+	public LockingButton getDigital(int port) {
+		return digitals[port - 8];
+	}
+
+	public void setBeeper(boolean on) {
+		beeper = on;
+	}
+}
@@ -18,9 +18,19 @@
 package org.icx.sim;
 
 import java.io.*;
+import java.util.*;
 
 /**
- * A class which loads the re-parsed user IC/C program.
+ * A class which loads the re-parsed user IC/C program. By default Program is
+ *  read from Program.class; a loader can instead be given the compiled
+ *  classes of one program in memory, so that many programs compiled
+ *  together each get a loader (and statics) of their own.
+ * 
+ * Loaded classes get checks added (see Instrumenter) which let them be
+ *  killed or paused even in loops which never call the library, unless the
+ *  "sim.safepoints" system property is false. If "sim.metering" is true,
+ *  the checks also count instructions, so that programs run at about the
+ *  speed given for the controller in robots.txt.
  * 
  * @author Stephen Carlson
  */
@@ -29,10 +39,49 @@ public class ICClassLoader extends ClassLoader {
 	private ByteArrayOutputStream os = new ByteArrayOutputStream(65536);
 	// Temporary byte buffer for copying
 	private byte[] buffer = new byte[1024];
+	// Whether safepoint checks are added to loaded classes (see Instrumenter)
+	private static final boolean SAFEPOINTS = !"false".equals(System.getProperty("sim.safepoints"));
+	// Whether instructions are metered against the controller's speed
+	private static final boolean METERING = Boolean.getBoolean("sim.metering");
+
+	// Class files compiled in memory by name, or null to read Program.class
+	private Map<String, byte[]> classes;
 
+	/**
+	 * Creates a class loader which reads Program from Program.class.
+	 */
+	public ICClassLoader() {
+		classes = null;
+	}
+
+	/**
+	 * Creates a class loader for classes compiled in memory.
+	 * 
+	 * @param classes the class files by binary name (e.g. "pkg.Program")
+	 */
+	public ICClassLoader(Map<String, byte[]> classes) {
+		this.classes = classes;
+	}
+
+	// Loads the program itself rather than asking the parent first, so that a
+	//  stale Program.class on the class path is never run (uninstrumented)
+	protected synchronized Class<?> loadClass(String name, boolean resolve)
+			throws ClassNotFoundException {
+		Class<?> clazz = findLoadedClass(name);
+		if (clazz == null && (classes == null ? name.equals("Program") : classes.containsKey(name)))
+			clazz = findClass(name);
+		if (clazz == null)
+			return super.loadClass(name, resolve);
+		if (resolve) resolveClass(clazz);
+		return clazz;
+	}
 	// Finds the named class, see documentation for findClass()
 	protected synchronized Class<?> findClass(String name) throws ClassNotFoundException {
-		if (name.equals("Program")) {
+		if (classes != null) {
+			byte[] data = classes.get(name);
+			if (data == null) throw new ClassNotFoundException(name);
+			return define(name, data);
+		} else if (name.equals("Program")) {
 			try {
 				// read from Program.class
 				FileInputStream r = new FileInputStream("Program.class");
@@ -40,14 +89,24 @@ public class ICClassLoader extends ClassLoader {
 				copyStream(r, os);
 				r.close();
 				// define using byte array
-				Class<?> clazz = defineClass("Program", os.toByteArray(), 0, os.size());
-				resolveClass(clazz);
-				return clazz;
+				return define("Program", os.toByteArray());
 			} catch (Exception e) {
 				throw new ClassNotFoundException("IC program", e);
 			}
 		} else throw new ClassNotFoundException(name);
 	}
+	// Defines a class, adding safepoint checks so that it can be killed anywhere.
+	private Class<?> define(String name, byte[] data) {
+		if (SAFEPOINTS || METERING) try {
+			data = Instrumenter.instrument(data, METERING);
+		} catch (IOException e) {
+			// still runs, but can only be stopped in library calls
+			System.err.println("Warning: " + name + " cannot be made stoppable: " + e.getMessage());
+		}
+		Class<?> clazz = defineClass(name, data, 0, data.length);
+		resolveClass(clazz);
+		return clazz;
+	}
 	// Copies one stream to another.
 	private void copyStream(InputStream is, OutputStream os) throws IOException {		
 		int i;
@@ -0,0 +1,291 @@
+/*
+ * This file is part of JBSim.
+ * 
+ * JBSim is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * JBSim is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with JBSim.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.icx.sim;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A timeline of button presses, sensor values and start light changes, for
+ *  running matches with nobody at the controls. HeadlessSimulator applies
+ *  each change as the physics clock passes its time, counted from the start
+ *  of the match, so the same script always does the same thing.
+ * 
+ * Each line of a script file is a time in ms, an input and a value:
+ * 
+ * 0      light    off
+ * 1000   left     down
+ * 1200   left     up
+ * 9000   light    on
+ * 9500   analog3  200
+ * 9500   digital8 on
+ * 
+ * Inputs are the buttons a, b, up, down, left, right, l, r and black, the
+ *  start light, analog0 to analog10 (8 to 10 are the accelerometer) and
+ *  digital8 to digital15. Buttons and the light take on/off (or down/up,
+ *  1/0, true/false); sensors are set to a fixed value, overriding any
+ *  sensor on that port, and stay that way. Blank lines and lines starting
+ *  with # are ignored. Changes at the same time are applied in order.
+ */
+public class InputScript implements Serializable {
+	private static final long serialVersionUID = 0L;
+	// Kinds of input.
+	private static final int BUTTON = 0;
+	private static final int BLACK = 1;
+	private static final int LIGHT = 2;
+	private static final int ANALOG = 3;
+	private static final int DIGITAL = 4;
+	// Button names and their bits in the button mask.
+	private static final String[] BUTTON_NAMES = new String[] {
+		"a", "b", "up", "down", "left", "right", "l", "r"
+	};
+	private static final int[] BUTTON_BITS = new int[] {
+		BotballProgram.A_BTN, BotballProgram.B_BTN, BotballProgram.UP_BTN,
+		BotballProgram.DOWN_BTN, BotballProgram.LEFT_BTN, BotballProgram.RIGHT_BTN,
+		BotballProgram.L_BTN, BotballProgram.R_BTN
+	};
+
+	// The changes, in order of time.
+	private List<Change> changes;
+
+	/**
+	 * Creates an empty script.
+	 */
+	public InputScript() {
+		changes = new ArrayList<Change>(32);
+	}
+
+	/**
+	 * Reads a script from a file.
+	 * 
+	 * @param file the script file
+	 * @return the script
+	 * @throws IOException if the file cannot be read, or a line is not
+	 *  understood (the message says which)
+	 */
+	public static InputScript read(File file) throws IOException {
+		InputScript script = new InputScript();
+		BufferedReader br = new BufferedReader(new FileReader(file));
+		String line; StringTokenizer str;
+		int number = 0;
+		try {
+			while ((line = br.readLine()) != null) {
+				number++;
+				line = line.trim().toLowerCase();
+				// ignore comment or blank
+				if (line.length() < 1 || line.charAt(0) == '#') continue;
+				str = new StringTokenizer(line);
+				if (str.countTokens() != 3)
+					throw new IOException(file.getName() + ":" + number + ": expected time, input " +
+						"and value");
+				try {
+					long time = Long.parseLong(str.nextToken());
+					script.add(time, str.nextToken(), str.nextToken());
+				} catch (IllegalArgumentException e) {
+					throw new IOException(file.getName() + ":" + number + ": " + e.getMessage());
+				}
+			}
+		} finally {
+			br.close();
+		}
+		return script;
+	}
+
+	/**
+	 * Adds a change to the script.
+	 * 
+	 * @param time when to make the change, in ms from the start of the match
+	 * @param input the input to change, as in a script file
+	 * @param value the new value, as in a script file
+	 * @throws IllegalArgumentException if the input or value is not understood
+	 */
+	public void add(long time, String input, String value) {
+		Change change;
+		input = input.toLowerCase();
+		if (time < 0L)
+			throw new IllegalArgumentException("Time " + time + " is before the match");
+		if (input.equals("black"))
+			change = new Change(time, BLACK, 0, onOff(value));
+		else if (input.equals("light"))
+			change = new Change(time, LIGHT, 0, onOff(value));
+		else if (input.startsWith("analog"))
+			change = new Change(time, ANALOG, port(input, 6, 0, 10), number(value, 0, 1023));
+		else if (input.startsWith("digital"))
+			change = new Change(time, DIGITAL, port(input, 7, 8, 15), onOff(value));
+		else {
+			int index = Arrays.asList(BUTTON_NAMES).indexOf(input);
+			if (index < 0) throw new IllegalArgumentException("Unknown input " + input);
+			change = new Change(time, BUTTON, BUTTON_BITS[index], onOff(value));
+		}
+		// after any others at the same time
+		int i = changes.size();
+		while (i > 0 && changes.get(i - 1).time > time) i--;
+		changes.add(i, change);
+	}
+
+	// Reads an on/off value as 1 or 0.
+	private static int onOff(String value) {
+		value = value.toLowerCase();
+		if (value.equals("on") || value.equals("down") || value.equals("1") || value.equals("true"))
+			return 1;
+		if (value.equals("off") || value.equals("up") || value.equals("0") || value.equals("false"))
+			return 0;
+		throw new IllegalArgumentException("Expected on or off, not " + value);
+	}
+
+	// Reads the port number off the end of an input name.
+	private static int port(String input, int start, int low, int high) {
+		return number(input.substring(start), low, high);
+	}
+
+	// Reads a number in the given range.
+	private static int number(String value, int low, int high) {
+		int n;
+		try {
+			n = Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Expected a number, not " + value);
+		}
+		if (n < low || n > high)
+			throw new IllegalArgumentException(n + " is not between " + low + " and " + high);
+		return n;
+	}
+
+	/**
+	 * Gets the number of changes in the script.
+	 * 
+	 * @return the number of changes
+	 */
+	public int size() {
+		return changes.size();
+	}
+
+	/**
+	 * Finds the first change after the given time, for carrying on part way
+	 *  through a match.
+	 * 
+	 * @param time the time in ms from the start of the match
+	 * @return the index of the first change later than that time
+	 */
+	public int indexAfter(long time) {
+		int i = 0;
+		while (i < changes.size() && changes.get(i).time <= time) i++;
+		return i;
+	}
+
+	/**
+	 * Makes the changes due by the given time.
+	 * 
+	 * @param sim the simulator to change
+	 * @param next the index of the first change not yet made
+	 * @param time the time in ms from the start of the match
+	 * @return the index of the first change still to come
+	 */
+	public int apply(HeadlessSimulator sim, int next, long time) {
+		Change change;
+		while (next < changes.size() && (change = changes.get(next)).time <= time) {
+			boolean on = change.value != 0;
+			switch (change.kind) {
+			case BUTTON:
+				if (on)
+					sim.setButtons(sim.buttonMask() | change.port);
+				else
+					sim.setButtons(sim.buttonMask() & ~change.port);
+				break;
+			case BLACK:
+				sim.setBlackButton(on);
+				break;
+			case LIGHT:
+				sim.getEnvironment().setLight(on);
+				break;
+			case ANALOG:
+				AnalogSlider slider = sim.getAnalog(change.port);
+				slider.setValueType(0);
+				slider.setValue(change.value);
+				break;
+			case DIGITAL:
+				LockingButton button = sim.getDigital(change.port);
+				button.setValueType(0);
+				button.setSelected(false);
+				button.setLockState(on);
+				break;
+			}
+			next++;
+		}
+		return next;
+	}
+
+	/**
+	 * Writes the script in the form read() reads, for hashing or saving.
+	 * 
+	 * @param out where to write the script
+	 */
+	public void write(PrintWriter out) {
+		for (Change change : changes) {
+			out.print(change.time);
+			out.print('\t');
+			switch (change.kind) {
+			case BUTTON:
+				for (int i = 0; i < BUTTON_BITS.length; i++)
+					if (BUTTON_BITS[i] == change.port)
+						out.print(BUTTON_NAMES[i]);
+				break;
+			case BLACK:
+				out.print("black");
+				break;
+			case LIGHT:
+				out.print("light");
+				break;
+			case ANALOG:
+				out.print("analog" + change.port);
+				break;
+			case DIGITAL:
+				out.print("digital" + change.port);
+				break;
+			}
+			out.print('\t');
+			if (change.kind == ANALOG)
+				out.println(change.value);
+			else
+				out.println(change.value != 0 ? "on" : "off");
+		}
+		out.flush();
+	}
+
+	/**
+	 * One change to an input.
+	 */
+	private static class Change implements Serializable {
+		private static final long serialVersionUID = 0L;
+
+		// When, in ms from the start of the match.
+		private long time;
+		// What kind of input, and which one (the bit for buttons).
+		private int kind;
+		private int port;
+		// The new value (0 or 1 unless an analog).
+		private int value;
+
+		public Change(long time, int kind, int port, int value) {
+			this.time = time;
+			this.kind = kind;
+			this.port = port;
+			this.value = value;
+		}
+	}
+}
@@ -0,0 +1,604 @@
+/*
+ * This file is part of JBSim.
+ * 
+ * JBSim is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * JBSim is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with JBSim.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.icx.sim;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Rewrites the class files of user programs as ICClassLoader loads them,
+ *  adding a call to BotballProgram._safepoint() at the start of each method
+ *  and before each backwards jump. Without these, a loop which never calls
+ *  the library (such as "while (1 == 1);") could not be killed or paused.
+ * 
+ * Instructions can also be metered, for running programs at about the speed
+ *  of the real controller (see instrument()).
+ * 
+ * Only calls are added, so no locals or jumps change and the stack only
+ *  holds a block's count for a moment; stack map frames stay valid and just
+ *  move. Constructors and static initializers are left alone.
+ */
+class Instrumenter {
+	// Constant pool tags.
+	private static final int UTF8 = 1;
+	private static final int LONG = 5;
+	private static final int DOUBLE = 6;
+	private static final int CLASS = 7;
+	private static final int METHOD = 10;
+	private static final int NAME_AND_TYPE = 12;
+	// Opcodes which need special handling.
+	private static final int SIPUSH = 0x11;
+	private static final int INVOKESTATIC = 0xb8;
+	private static final int TABLESWITCH = 0xaa;
+	private static final int LOOKUPSWITCH = 0xab;
+	private static final int WIDE = 0xc4;
+	private static final int GOTO_W = 0xc8;
+	private static final int JSR_W = 0xc9;
+	// Length of each fixed size instruction by opcode (0 for variable).
+	private static final byte[] LENGTHS = new byte[256];
+	static {
+		Arrays.fill(LENGTHS, (byte)1);
+		for (int op : new int[] { 0x10, 0x12, 0x15, 0x16, 0x17, 0x18, 0x19, 0x36, 0x37,
+				0x38, 0x39, 0x3a, 0xa9, 0xbc })
+			LENGTHS[op] = 2;
+		for (int op : new int[] { 0x11, 0x13, 0x14, 0x84, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6,
+				0xb7, 0xb8, 0xbb, 0xbd, 0xc0, 0xc1, 0xc6, 0xc7 })
+			LENGTHS[op] = 3;
+		for (int op = 0x99; op <= 0xa8; op++)
+			LENGTHS[op] = 3;
+		LENGTHS[0xc5] = 4;
+		LENGTHS[0xb9] = 5;
+		LENGTHS[0xba] = 5;
+		LENGTHS[GOTO_W] = 5;
+		LENGTHS[JSR_W] = 5;
+		LENGTHS[TABLESWITCH] = 0;
+		LENGTHS[LOOKUPSWITCH] = 0;
+		LENGTHS[WIDE] = 0;
+	}
+
+	// The class file being read.
+	private byte[] data;
+	private int pos;
+	// The UTF-8 constants by pool index (null for other constants).
+	private String[] strings;
+	// Whether blocks are metered (instead of just checked).
+	private boolean meter;
+	// Pool indexes of BotballProgram._safepoint() and _meter().
+	private int safepoint;
+	private int meterRef;
+
+	private Instrumenter(byte[] data, boolean meter) {
+		this.data = data;
+		this.meter = meter;
+		pos = 0;
+	}
+
+	/**
+	 * Adds safepoint checks to a class file. If metering, a call to
+	 *  BotballProgram._meter() with the number of instructions in the block
+	 *  is added at the start of every basic block instead; as every loop
+	 *  goes back to the start of a block, this checks for kills too.
+	 * 
+	 * @param data the class file
+	 * @param meter whether to count instructions
+	 * @return the changed class file
+	 * @throws IOException if the class file is damaged, or a method would
+	 *  become too large
+	 */
+	public static byte[] instrument(byte[] data, boolean meter) throws IOException {
+		try {
+			return new Instrumenter(data, meter).rewrite();
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException("Class file is truncated");
+		}
+	}
+
+	// Reads one byte.
+	private int u1() {
+		return data[pos++] & 0xff;
+	}
+	// Reads a big endian short.
+	private int u2() {
+		return (u1() << 8) | u1();
+	}
+	// Reads a big endian int.
+	private int u4() {
+		return (u2() << 16) | u2();
+	}
+	// Gets a big endian int from the code without moving.
+	private static int s4(byte[] code, int at) {
+		return ((code[at] & 0xff) << 24) | ((code[at + 1] & 0xff) << 16) |
+			((code[at + 2] & 0xff) << 8) | (code[at + 3] & 0xff);
+	}
+	// Copies bytes from the input.
+	private void copy(DataOutputStream out, int length) throws IOException {
+		out.write(data, pos, length);
+		pos += length;
+	}
+	// Copies a list of attributes unchanged.
+	private void copyAttributes(DataOutputStream out) throws IOException {
+		int count = u2();
+		out.writeShort(count);
+		for (int i = 0; i < count; i++) {
+			out.writeShort(u2());
+			int length = u4();
+			out.writeInt(length);
+			copy(out, length);
+		}
+	}
+
+	// Rewrites the whole class file.
+	private byte[] rewrite() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length + 1024);
+		DataOutputStream out = new DataOutputStream(bytes);
+		if (u4() != 0xcafebabe) throw new IOException("Not a class file");
+		// version
+		out.writeInt(0xcafebabe);
+		out.writeInt(u4());
+		readPool(out);
+		// access, this, super, interfaces
+		copy(out, 6);
+		int count = u2();
+		out.writeShort(count);
+		copy(out, 2 * count);
+		// fields
+		count = u2();
+		out.writeShort(count);
+		for (int i = 0; i < count; i++) {
+			copy(out, 6);
+			copyAttributes(out);
+		}
+		// methods
+		count = u2();
+		out.writeShort(count);
+		for (int i = 0; i < count; i++) {
+			int access = u2(), name = u2(), descriptor = u2(), attributes = u2();
+			// constructors and initializers only run on the loading thread
+			boolean skip = strings[name] == null || strings[name].startsWith("<");
+			out.writeShort(access);
+			out.writeShort(name);
+			out.writeShort(descriptor);
+			out.writeShort(attributes);
+			for (int j = 0; j < attributes; j++) {
+				int attrName = u2(), length = u4();
+				out.writeShort(attrName);
+				if ("Code".equals(strings[attrName]) && !skip) {
+					byte[] code = rewriteCode(length);
+					out.writeInt(code.length);
+					out.write(code);
+				} else {
+					out.writeInt(length);
+					copy(out, length);
+				}
+			}
+		}
+		// class attributes
+		copy(out, data.length - pos);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	// Copies the constant pool, adding references to _safepoint() and _meter()
+	//  at the end.
+	private void readPool(DataOutputStream out) throws IOException {
+		int count = u2(), start = pos, tag;
+		strings = new String[count];
+		for (int i = 1; i < count; i++) {
+			tag = u1();
+			switch (tag) {
+			case UTF8:
+				int length = u2();
+				strings[i] = new DataInputStream(new ByteArrayInputStream(data, pos - 2,
+					length + 2)).readUTF();
+				pos += length;
+				break;
+			case LONG:
+			case DOUBLE:
+				pos += 8;
+				i++;
+				break;
+			case 15:
+				// method handle
+				pos += 3;
+				break;
+			case CLASS:
+			case 8:
+			case 16:
+			case 19:
+			case 20:
+				// string, method type, module, package
+				pos += 2;
+				break;
+			case 3:
+			case 4:
+			case 9:
+			case METHOD:
+			case 11:
+			case NAME_AND_TYPE:
+			case 17:
+			case 18:
+				// int, float, field/method/interface method, name and type, dynamic
+				pos += 4;
+				break;
+			default:
+				throw new IOException("Unknown constant pool tag " + tag);
+			}
+		}
+		out.writeShort(count + 10);
+		out.write(data, start, pos - start);
+		// the class, name and type of the check
+		out.writeByte(UTF8);
+		out.writeUTF("org/icx/sim/BotballProgram");
+		out.writeByte(CLASS);
+		out.writeShort(count);
+		out.writeByte(UTF8);
+		out.writeUTF("_safepoint");
+		out.writeByte(UTF8);
+		out.writeUTF("()V");
+		out.writeByte(NAME_AND_TYPE);
+		out.writeShort(count + 2);
+		out.writeShort(count + 3);
+		out.writeByte(METHOD);
+		out.writeShort(count + 1);
+		out.writeShort(count + 4);
+		safepoint = count + 5;
+		out.writeByte(UTF8);
+		out.writeUTF("_meter");
+		out.writeByte(UTF8);
+		out.writeUTF("(I)V");
+		out.writeByte(NAME_AND_TYPE);
+		out.writeShort(count + 6);
+		out.writeShort(count + 7);
+		out.writeByte(METHOD);
+		out.writeShort(count + 1);
+		out.writeShort(count + 8);
+		meterRef = count + 9;
+	}
+
+	// Finds the length of the instruction at the given offset.
+	private static int length(byte[] code, int at) {
+		int op = code[at] & 0xff, pad = 3 - (at & 3);
+		switch (op) {
+		case TABLESWITCH:
+			return 1 + pad + 12 + 4 * (s4(code, at + pad + 9) - s4(code, at + pad + 5) + 1);
+		case LOOKUPSWITCH:
+			return 1 + pad + 8 + 8 * s4(code, at + pad + 5);
+		case WIDE:
+			return (code[at + 1] & 0xff) == 0x84 ? 6 : 4;
+		default:
+			return LENGTHS[op];
+		}
+	}
+
+	// Checks whether the instruction at the given offset is a jump or branch.
+	private static boolean isBranch(byte[] code, int at) {
+		int op = code[at] & 0xff;
+		return (op >= 0x99 && op <= 0xa8) || op == 0xc6 || op == 0xc7 || op == GOTO_W ||
+			op == JSR_W;
+	}
+
+	// Gets the jump offset of a branch instruction.
+	private static int branch(byte[] code, int at) {
+		int op = code[at] & 0xff;
+		if (op == GOTO_W || op == JSR_W)
+			return s4(code, at + 1);
+		return (short)(((code[at + 1] & 0xff) << 8) | (code[at + 2] & 0xff));
+	}
+
+	// Finds where the instruction at the given offset can jump to, or returns
+	//  null if it is not a jump, branch or switch.
+	private static int[] jumps(byte[] code, int at) {
+		int op = code[at] & 0xff, base = at + 1 + 3 - (at & 3), count;
+		int[] targets;
+		if (isBranch(code, at))
+			return new int[] { at + branch(code, at) };
+		if (op == TABLESWITCH) {
+			count = s4(code, base + 8) - s4(code, base + 4) + 1;
+			targets = new int[count + 1];
+			for (int i = 0; i < count; i++)
+				targets[i] = at + s4(code, base + 12 + 4 * i);
+		} else if (op == LOOKUPSWITCH) {
+			count = s4(code, base + 4);
+			targets = new int[count + 1];
+			for (int i = 0; i < count; i++)
+				targets[i] = at + s4(code, base + 12 + 8 * i);
+		} else
+			return null;
+		targets[count] = at + s4(code, base);
+		return targets;
+	}
+
+	// Checks whether control never falls through an instruction to the next.
+	private static boolean endsBlock(int op) {
+		// goto, jsr, ret, switches, returns, athrow, goto_w, jsr_w
+		return (op >= 0xa7 && op <= 0xb1) || op == 0xbf || op == GOTO_W || op == JSR_W;
+	}
+
+	// Rewrites one Code attribute, returning its new contents.
+	private byte[] rewriteCode(int attrLength) throws IOException {
+		int end = pos + attrLength, maxStack = u2(), maxLocals = u2(), length = u4();
+		byte[] code = new byte[length];
+		System.arraycopy(data, pos, code, 0, length);
+		pos += length;
+		// find instructions and where checks go
+		boolean[] starts = new boolean[length + 1];
+		int[] checks = new int[length + 1];
+		int at = 0;
+		while (at < length) {
+			starts[at] = true;
+			at += length(code, at);
+		}
+		if (at != length) throw new IOException("Instruction runs past end of code");
+		starts[length] = true;
+		if (meter)
+			findBlocks(code, starts, checks);
+		else
+			for (at = 0; at < length; at += length(code, at)) {
+				int[] targets = jumps(code, at);
+				if (at == 0) checks[at] = 1;
+				// a jump to itself (as in "while (1 == 1);") counts as backwards
+				if (targets != null)
+					for (int target : targets)
+						if (target <= at) checks[at] = 1;
+			}
+		// lay out the new code: moved[i] is where the check (or instruction) at i goes
+		int[] moved = new int[length + 1], body = new int[length + 1];
+		int next = 0, prefix = meter ? 6 : 3;
+		for (at = 0; at < length; at += length(code, at)) {
+			moved[at] = next;
+			if (checks[at] > 0) next += prefix;
+			body[at] = next;
+			int op = code[at] & 0xff;
+			if (op == TABLESWITCH || op == LOOKUPSWITCH)
+				next += length(code, at) - (3 - (at & 3)) + (3 - (next & 3));
+			else
+				next += length(code, at);
+		}
+		moved[length] = body[length] = next;
+		if (next > 65535) throw new IOException("Method too large to instrument");
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(attrLength + (next - length));
+		DataOutputStream out = new DataOutputStream(bytes);
+		// the count of a metered block goes on the stack
+		out.writeShort(meter ? maxStack + 1 : maxStack);
+		out.writeShort(maxLocals);
+		out.writeInt(next);
+		for (at = 0; at < length; at += length(code, at)) {
+			if (checks[at] > 0 && meter) {
+				out.writeByte(SIPUSH);
+				out.writeShort(checks[at]);
+				out.writeByte(INVOKESTATIC);
+				out.writeShort(meterRef);
+			} else if (checks[at] > 0) {
+				out.writeByte(INVOKESTATIC);
+				out.writeShort(safepoint);
+			}
+			writeInstruction(out, code, at, starts, moved, body[at]);
+		}
+		// exception table
+		int count = u2();
+		out.writeShort(count);
+		for (int i = 0; i < count; i++) {
+			out.writeShort(moved[offset(u2(), starts)]);
+			out.writeShort(moved[offset(u2(), starts)]);
+			out.writeShort(moved[offset(u2(), starts)]);
+			out.writeShort(u2());
+		}
+		// code attributes; those which are not understood are dropped
+		int attributes = u2(), kept = 0;
+		ByteArrayOutputStream attrBytes = new ByteArrayOutputStream(256);
+		DataOutputStream attrOut = new DataOutputStream(attrBytes);
+		for (int i = 0; i < attributes; i++) {
+			int name = u2(), size = u4(), stop = pos + size;
+			String type = strings[name];
+			byte[] attr = null;
+			if ("LineNumberTable".equals(type))
+				attr = lineNumbers(starts, moved);
+			else if ("LocalVariableTable".equals(type) || "LocalVariableTypeTable".equals(type))
+				attr = localVariables(starts, moved);
+			else if ("StackMapTable".equals(type))
+				attr = stackMap(starts, moved, body);
+			pos = stop;
+			if (attr != null) {
+				attrOut.writeShort(name);
+				attrOut.writeInt(attr.length);
+				attrOut.write(attr);
+				kept++;
+			}
+		}
+		if (pos != end) throw new IOException("Code attribute has the wrong length");
+		out.writeShort(kept);
+		attrOut.close();
+		out.write(attrBytes.toByteArray());
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	// Finds the basic blocks of a method, setting the first instruction of
+	//  each to the number of instructions in the block. The exception table
+	//  (which follows the code) is read without moving past it.
+	private void findBlocks(byte[] code, boolean[] starts, int[] counts) throws IOException {
+		int length = code.length, first = 0, mark = pos, count = u2();
+		boolean[] leaders = new boolean[length + 1];
+		leaders[0] = true;
+		for (int i = 0; i < count; i++) {
+			pos += 4;
+			leaders[offset(u2(), starts)] = true;
+			pos += 2;
+		}
+		pos = mark;
+		for (int at = 0; at < length; at += length(code, at)) {
+			int[] targets = jumps(code, at);
+			if (targets != null)
+				for (int target : targets)
+					leaders[offset(target, starts)] = true;
+			if (targets != null || endsBlock(code[at] & 0xff))
+				leaders[at + length(code, at)] = true;
+		}
+		for (int at = 0; at < length; at += length(code, at)) {
+			if (leaders[at]) first = at;
+			// blocks longer than a short can hold are split
+			if (counts[first] == Short.MAX_VALUE) counts[first = at] = 0;
+			counts[first]++;
+		}
+	}
+
+	// Checks that an offset is the start of an instruction.
+	private static int offset(int at, boolean[] starts) throws IOException {
+		if (at < 0 || at >= starts.length || !starts[at])
+			throw new IOException("Bad code offset " + at);
+		return at;
+	}
+
+	// Writes one instruction at its new place, moving any jumps.
+	private static void writeInstruction(DataOutputStream out, byte[] code, int at,
+			boolean[] starts, int[] moved, int here) throws IOException {
+		int op = code[at] & 0xff;
+		if (op == TABLESWITCH || op == LOOKUPSWITCH) {
+			int base = at + 1 + 3 - (at & 3), count;
+			out.writeByte(op);
+			for (int i = 3 - (here & 3); i > 0; i--)
+				out.writeByte(0);
+			out.writeInt(moved[offset(at + s4(code, base), starts)] - here);
+			if (op == TABLESWITCH) {
+				int low = s4(code, base + 4), high = s4(code, base + 8);
+				out.writeInt(low);
+				out.writeInt(high);
+				count = high - low + 1;
+				for (int i = 0; i < count; i++)
+					out.writeInt(moved[offset(at + s4(code, base + 12 + 4 * i), starts)] - here);
+			} else {
+				count = s4(code, base + 4);
+				out.writeInt(count);
+				for (int i = 0; i < count; i++) {
+					out.writeInt(s4(code, base + 8 + 8 * i));
+					out.writeInt(moved[offset(at + s4(code, base + 12 + 8 * i), starts)] - here);
+				}
+			}
+		} else if (isBranch(code, at)) {
+			int target = moved[offset(at + branch(code, at), starts)] - here;
+			out.writeByte(op);
+			if (op == GOTO_W || op == JSR_W)
+				out.writeInt(target);
+			else if (target < Short.MIN_VALUE || target > Short.MAX_VALUE)
+				throw new IOException("Jump too far after instrumenting");
+			else
+				out.writeShort(target);
+		} else
+			out.write(code, at, length(code, at));
+	}
+
+	// Moves the offsets in a LineNumberTable.
+	private byte[] lineNumbers(boolean[] starts, int[] moved) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		int count = u2();
+		out.writeShort(count);
+		for (int i = 0; i < count; i++) {
+			out.writeShort(moved[offset(u2(), starts)]);
+			out.writeShort(u2());
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	// Moves the ranges in a LocalVariableTable or LocalVariableTypeTable.
+	private byte[] localVariables(boolean[] starts, int[] moved) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		int count = u2();
+		out.writeShort(count);
+		for (int i = 0; i < count; i++) {
+			int start = offset(u2(), starts), end = offset(start + u2(), starts);
+			out.writeShort(moved[start]);
+			out.writeShort(moved[end] - moved[start]);
+			// name, descriptor and slot
+			out.writeShort(u2());
+			out.writeShort(u2());
+			out.writeShort(u2());
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	// Moves the frames in a StackMapTable. Frames may need a longer form when
+	//  the gap to the last frame grows.
+	private byte[] stackMap(boolean[] starts, int[] moved, int[] body) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		DataOutputStream out = new DataOutputStream(bytes);
+		int count = u2(), last = -1, lastMoved = -1;
+		out.writeShort(count);
+		for (int i = 0; i < count; i++) {
+			int type = u1(), delta;
+			if (type < 64) delta = type;
+			else if (type < 128) delta = type - 64;
+			else if (type >= 247) delta = u2();
+			else throw new IOException("Unknown stack map frame " + type);
+			int at = offset(last + delta + 1, starts), now = moved[at];
+			int newDelta = now - lastMoved - 1;
+			last = at;
+			lastMoved = now;
+			if (type < 64) {
+				if (newDelta < 64)
+					out.writeByte(newDelta);
+				else {
+					out.writeByte(251);
+					out.writeShort(newDelta);
+				}
+			} else if (type < 128) {
+				if (newDelta < 64)
+					out.writeByte(64 + newDelta);
+				else {
+					out.writeByte(247);
+					out.writeShort(newDelta);
+				}
+				verificationType(out, starts, body);
+			} else {
+				out.writeByte(type);
+				out.writeShort(newDelta);
+				if (type == 247)
+					verificationType(out, starts, body);
+				else if (type >= 252 && type <= 254)
+					for (int j = type - 251; j > 0; j--)
+						verificationType(out, starts, body);
+				else if (type == 255) {
+					for (int k = 0; k < 2; k++) {
+						int items = u2();
+						out.writeShort(items);
+						for (int j = 0; j < items; j++)
+							verificationType(out, starts, body);
+					}
+				}
+			}
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	// Copies one verification type, moving the offset of uninitialized objects.
+	private void verificationType(DataOutputStream out, boolean[] starts, int[] body)
+			throws IOException {
+		int tag = u1();
+		out.writeByte(tag);
+		if (tag == 7)
+			// object
+			out.writeShort(u2());
+		else if (tag == 8)
+			// uninitialized (offset of the "new" instruction)
+			out.writeShort(body[offset(u2(), starts)]);
+	}
+}
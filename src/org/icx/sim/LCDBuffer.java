@@ -0,0 +1,218 @@
+/*
+ * This file is part of JBSim.
+ * 
+ * JBSim is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * JBSim is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with JBSim.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.icx.sim;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.swing.*;
+
+/**
+ * The text on the LCD screen, kept as a fixed number of lines like the CBC
+ *  console's scrollback. Once full, the oldest line is dropped for every
+ *  new one, so a program that prints forever uses a constant amount of memory.
+ * 
+ * Any number of threads may print. Their text goes onto a lock-free queue
+ *  and is only added to the lines by a single consumer: the event dispatch
+ *  thread when the LCD is on screen, or a background thread which echoes
+ *  the text to a stream when running headless. refresh() wakes the consumer;
+ *  any number of refreshes requested before it runs are coalesced into one.
+ */
+public class LCDBuffer {
+	// Lines of scrollback kept by default.
+	public static final int DEFAULT_LINES = 100;
+	// Longer lines are wrapped.
+	public static final int MAX_WIDTH = 256;
+	// Queued prints after which the consumer is woken even without a refresh.
+	private static final int MAX_BACKLOG = 1024;
+	// Marks a clear in the queue (compared by identity).
+	private static final String CLEAR = new String("");
+
+	// Text printed but not yet added to the lines, in order.
+	private Queue<String> queue;
+	private AtomicInteger backlog;
+	// Whether the consumer has been asked to run and has not yet started.
+	private AtomicBoolean pending;
+	// Ring of lines; the last one is the line being written.
+	private StringBuilder[] lines;
+	private int first;
+	private int count;
+	// Where the text is shown (on screen or echoed), or null if nowhere.
+	private JTextArea target;
+	private PrintStream echo;
+	// Runs the consumer when headless.
+	private Executor consumer;
+	// Consumer only: the text being assembled, and the update job.
+	private StringBuilder text;
+	private Runnable update;
+
+	/**
+	 * Creates an empty LCD buffer with the default scrollback shown on screen.
+	 * 
+	 * @param target the text area to show it in
+	 */
+	public LCDBuffer(JTextArea target) {
+		this(DEFAULT_LINES);
+		this.target = target;
+	}
+
+	/**
+	 * Creates an empty LCD buffer with the default scrollback which is
+	 *  not on screen; printed text is copied to the stream instead.
+	 * 
+	 * @param echo the stream to print to, or null to keep the text only
+	 */
+	public LCDBuffer(PrintStream echo) {
+		this(DEFAULT_LINES);
+		this.echo = echo;
+		consumer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "LCD");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Creates an empty LCD buffer which is not shown anywhere.
+	 * 
+	 * @param size the number of lines to keep
+	 */
+	public LCDBuffer(int size) {
+		queue = new ConcurrentLinkedQueue<String>();
+		backlog = new AtomicInteger(0);
+		pending = new AtomicBoolean(false);
+		lines = new StringBuilder[Math.max(1, size)];
+		for (int i = 0; i < lines.length; i++)
+			lines[i] = new StringBuilder(80);
+		first = 0;
+		count = 1;
+		target = null;
+		echo = null;
+		consumer = null;
+		text = new StringBuilder(lines.length * 40);
+		update = new Runnable() {
+			public void run() {
+				pending.set(false);
+				drain();
+			}
+		};
+	}
+
+	/**
+	 * Prints text on the LCD. Never blocks; the text appears after the next
+	 *  refresh().
+	 * 
+	 * @param str the text to print
+	 */
+	public void print(String str) {
+		queue.offer(str);
+		// keep the queue short even if nobody ever refreshes
+		if (backlog.incrementAndGet() > MAX_BACKLOG) refresh();
+	}
+
+	/**
+	 * Erases all text, in order with anything printed before.
+	 */
+	public void clear() {
+		print(CLEAR);
+	}
+
+	/**
+	 * Wakes the consumer to add the queued text and update the screen.
+	 *  Returns at once; if an update is already waiting, it will pick up
+	 *  this text too.
+	 */
+	public void refresh() {
+		if (!pending.compareAndSet(false, true)) return;
+		if (target != null)
+			SwingUtilities.invokeLater(update);
+		else if (consumer != null)
+			consumer.execute(update);
+		else
+			update.run();
+	}
+
+	// Moves queued text into the lines and shows it (consumer).
+	private void drain() {
+		String str;
+		synchronized (this) {
+			while ((str = queue.poll()) != null) {
+				backlog.decrementAndGet();
+				if (str == CLEAR) {
+					lines[first].setLength(0);
+					count = 1;
+				} else {
+					append(str);
+					if (echo != null) echo.print(str);
+				}
+			}
+		}
+		if (echo != null) echo.flush();
+		if (target != null) {
+			text.setLength(0);
+			getText(text);
+			target.setText(text.toString());
+			target.setCaretPosition(text.length());
+		}
+	}
+
+	// Writes characters at the end of the last line.
+	private void append(String str) {
+		StringBuilder line = lines[(first + count - 1) % lines.length];
+		char c;
+		for (int i = 0; i < str.length(); i++) {
+			c = str.charAt(i);
+			if (c == '\n' || line.length() >= MAX_WIDTH)
+				line = newLine();
+			if (c != '\n') line.append(c);
+		}
+	}
+
+	// Starts a new line, recycling the oldest one if the buffer is full.
+	private StringBuilder newLine() {
+		if (count < lines.length)
+			count++;
+		else
+			first = (first + 1) % lines.length;
+		StringBuilder line = lines[(first + count - 1) % lines.length];
+		line.setLength(0);
+		return line;
+	}
+
+	/**
+	 * Copies the text added so far into the given builder, lines separated
+	 *  by newlines.
+	 * 
+	 * @param out where to put the text
+	 */
+	public synchronized void getText(StringBuilder out) {
+		for (int i = 0; i < count; i++) {
+			if (i > 0) out.append('\n');
+			out.append(lines[(first + i) % lines.length]);
+		}
+	}
+
+	public String toString() {
+		StringBuilder out = new StringBuilder(count * 40);
+		getText(out);
+		return out.toString();
+	}
+}
@@ -134,6 +134,14 @@ public class Location implements java.io.Serializable {
 	 * @param dt the time difference in milliseconds
 	 */
 	public void increment(long dt) {
+		increment((double)dt);
+	}
+	/**
+	 * Moves the location forward by the velocity in the direction.
+	 * 
+	 * @param dt the time difference in (possibly fractional) milliseconds
+	 */
+	public void increment(double dt) {
 		x += r * Math.cos(t) * dt / 1000.;
 		y += r * Math.sin(t) * dt / 1000.;
 	}
@@ -0,0 +1,317 @@
+/*
+ * This file is part of JBSim.
+ * 
+ * JBSim is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * JBSim is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with JBSim.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.icx.sim;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * One match to run in a batch: a program, the robot that runs it, where it
+ *  starts, and the board. Jobs can be run here with run() or sent to a
+ *  worker process by WorkerPool.
+ */
+public class MatchJob implements Serializable {
+	private static final long serialVersionUID = 0L;
+	// Default match length in ms.
+	public static final long DEFAULT_LENGTH = 120000L;
+	// How long stopped user threads get to finish after a match in ms.
+	private static final long STOP_WAIT = 500L;
+
+	// The IC/C program.
+	private File source;
+	// The robot type from robots.txt and where it starts.
+	private String robot;
+	private Location start;
+	// The board file.
+	private String board;
+	// Match length in ms.
+	private long length;
+	// Seed for the robot's random noise.
+	private long seed;
+	// Scripted button presses and sensor values, or null for none.
+	private InputScript inputs;
+	// Spread of the wheels' speed errors, as a fraction of the commanded speed.
+	private double motorNoise;
+	// Where the robot should get to and how close counts (mm), or null.
+	private Location goal;
+	private double goalRadius;
+	// Whether the match should end early, and the simulator running it here.
+	private transient volatile boolean cancelled;
+	private transient volatile HeadlessSimulator running;
+
+	/**
+	 * Creates a match of the default length on board.txt.
+	 * 
+	 * @param source the IC/C program to run
+	 * @param robot the robot type from robots.txt
+	 * @param start where the robot starts
+	 */
+	public MatchJob(File source, String robot, Location start) {
+		this.source = source;
+		this.robot = robot;
+		this.start = new Location(start);
+		board = "board.txt";
+		length = DEFAULT_LENGTH;
+		seed = 0L;
+		inputs = null;
+		motorNoise = 0.;
+		goal = null;
+		goalRadius = 0.;
+	}
+
+	/**
+	 * Gets the program to run.
+	 * 
+	 * @return the IC/C source file
+	 */
+	public File getSource() {
+		return source;
+	}
+
+	/**
+	 * Gets the robot type which runs the program.
+	 * 
+	 * @return the type from robots.txt
+	 */
+	public String getRobot() {
+		return robot;
+	}
+
+	/**
+	 * Gets where the robot starts.
+	 * 
+	 * @return the start location
+	 */
+	public Location getStart() {
+		return start;
+	}
+
+	/**
+	 * Gets the board the match is played on.
+	 * 
+	 * @return the board file name
+	 */
+	public String getBoard() {
+		return board;
+	}
+
+	/**
+	 * Changes the board the match is played on.
+	 * 
+	 * @param board the board file name
+	 */
+	public void setBoard(String board) {
+		this.board = board;
+	}
+
+	/**
+	 * Gets the match length.
+	 * 
+	 * @return the length in ms
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Changes the match length.
+	 * 
+	 * @param length the length in ms
+	 */
+	public void setLength(long length) {
+		this.length = length;
+	}
+
+	/**
+	 * Gets the seed for the robot's random noise.
+	 * 
+	 * @return the seed
+	 */
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Changes the seed for the robot's random noise.
+	 * 
+	 * @param seed the seed
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Gets the inputs played back during the match.
+	 * 
+	 * @return the input timeline, or null if nothing is pressed
+	 */
+	public InputScript getInputs() {
+		return inputs;
+	}
+
+	/**
+	 * Changes the inputs played back during the match.
+	 * 
+	 * @param inputs the input timeline, or null for none
+	 */
+	public void setInputs(InputScript inputs) {
+		this.inputs = inputs;
+	}
+
+	/**
+	 * Gets the spread of the robot's motor mismatch.
+	 * 
+	 * @return the standard deviation of each wheel's speed error, as a fraction
+	 */
+	public double getMotorNoise() {
+		return motorNoise;
+	}
+
+	/**
+	 * Makes the robot's wheels turn a little faster or slower than they are
+	 *  told to, by an amount drawn from the seed for each match.
+	 * 
+	 * @param motorNoise the standard deviation of each wheel's speed error,
+	 *  as a fraction (0 for exact wheels)
+	 */
+	public void setMotorNoise(double motorNoise) {
+		this.motorNoise = motorNoise;
+	}
+
+	/**
+	 * Gets the place the robot should reach.
+	 * 
+	 * @return the center of the goal, or null if there is none
+	 */
+	public Location getGoal() {
+		return goal;
+	}
+
+	/**
+	 * Gets how close the robot must come to the goal.
+	 * 
+	 * @return the distance from the center of the goal in mm
+	 */
+	public double getGoalRadius() {
+		return goalRadius;
+	}
+
+	/**
+	 * Sets a place for the robot to reach; the result says when it got there.
+	 * 
+	 * @param goal the center of the goal, or null for none
+	 * @param radius how close the robot's center must come in mm
+	 */
+	public void setGoal(Location goal, double radius) {
+		this.goal = goal == null ? null : new Location(goal);
+		goalRadius = radius;
+	}
+
+	/**
+	 * Ends the match early if it is running in this JVM, or makes it end at
+	 *  once if it has not started; its result is then CANCELLED. This may be
+	 *  called from any thread. Jobs sent to a WorkerPool cannot be cancelled.
+	 */
+	public void cancel() {
+		HeadlessSimulator sim;
+		cancelled = true;
+		sim = running;
+		if (sim != null) sim.cancel();
+	}
+
+	/**
+	 * Runs the match in this JVM. A program which never stops, runs out of
+	 *  memory or exits takes this JVM with it; use WorkerPool to run
+	 *  untrusted programs.
+	 * 
+	 * @return the result
+	 */
+	public MatchResult run() {
+		return run(null, null);
+	}
+
+	/**
+	 * Runs the match in this JVM, optionally starting from a snapshot of a
+	 *  simulator with the board and this job's robot type already loaded (so
+	 *  that many matches share one copy of them) and with the program already
+	 *  compiled.
+	 * 
+	 * @param world the snapshot to start from, or null to load the board
+	 * @param compiled the compiled program, or null to compile the source
+	 * @return the result
+	 */
+	public MatchResult run(SimSnapshot world, ProgramCompiler.Submission compiled) {
+		long began = System.currentTimeMillis();
+		String name = source.getName();
+		MatchResult result;
+		try {
+			HeadlessSimulator sim;
+			SimRobot bot;
+			if (world == null) {
+				sim = new HeadlessSimulator(null);
+				sim.loadBoard(board);
+				bot = sim.addRobot(robot, start);
+			} else {
+				sim = new HeadlessSimulator(world, null);
+				bot = sim.getEnvironment().getFirstRobot();
+				bot.getSetup().setStart(new Location(start));
+			}
+			// cancel() may come before or after this
+			running = sim;
+			if (cancelled) sim.cancel();
+			bot.setSeed(seed);
+			if (motorNoise > 0.) {
+				// drawn apart from the odometry noise, which uses the seed itself
+				Random mismatch = new Random(~seed);
+				bot.setWheelBias((float)(1. + mismatch.nextGaussian() * motorNoise),
+					(float)(1. + mismatch.nextGaussian() * motorNoise));
+			}
+			sim.setInputs(inputs);
+			sim.setGoal(goal, goalRadius);
+			// in memory, so that jobs running side by side do not share Program.java
+			if (compiled == null)
+				compiled = ProgramCompiler.compileAll(Collections.singletonList(source)).get(0);
+			BotballProgram program = sim.load(compiled);
+			if (program == null) {
+				sim.refreshLCD();
+				result = new MatchResult(name, MatchResult.Status.COMPILE_FAILED,
+					sim.getLCD().toString(), 0L, null, 0);
+			} else {
+				long time = sim.runMatch(length), until = System.currentTimeMillis() + STOP_WAIT;
+				// killed threads stop at their next check, which should be soon
+				while (program._liveThreads() > 0 && System.currentTimeMillis() < until)
+					Thread.sleep(1L);
+				result = new MatchResult(name, sim.isCancelled() ? MatchResult.Status.CANCELLED :
+					MatchResult.Status.COMPLETED, sim.getLCD().toString(), time, bot.getLocation(),
+					program._liveThreads());
+				result.setCollisions(bot.getCollisionCount());
+				result.setGoalTime(sim.getGoalTime());
+			}
+		} catch (Exception e) {
+			result = new MatchResult(name, MatchResult.Status.CRASHED, e.toString());
+		} finally {
+			running = null;
+		}
+		result.setWallTime(System.currentTimeMillis() - began);
+		return result;
+	}
+
+	public String toString() {
+		return source.getName() + " on " + robot + " at " + start;
+	}
+}
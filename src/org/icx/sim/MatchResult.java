@@ -0,0 +1,238 @@
+/*
+ * This file is part of JBSim.
+ * 
+ * JBSim is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * JBSim is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with JBSim.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.icx.sim;
+
+import java.io.*;
+
+/**
+ * How one match (see MatchJob) turned out.
+ */
+public class MatchResult implements Serializable {
+	private static final long serialVersionUID = 0L;
+
+	/**
+	 * How a match ended.
+	 */
+	public enum Status {
+		// The program ran until it finished or the time was up.
+		COMPLETED,
+		// The program did not compile (see the LCD for why).
+		COMPILE_FAILED,
+		// The match ran over its wall clock limit and its worker was killed.
+		TIMEOUT,
+		// The worker ran out of memory.
+		OUT_OF_MEMORY,
+		// The worker died, or the match could not be set up.
+		CRASHED,
+		// The match was stopped early by MatchJob.cancel().
+		CANCELLED
+	}
+
+	// The program run.
+	private String source;
+	// How it ended and why.
+	private Status status;
+	private String message;
+	// What was on the LCD at the end.
+	private String lcd;
+	// Simulated and wall clock time taken in ms.
+	private long simTime;
+	private long wallTime;
+	// Where the robot ended up, or null if the match never started.
+	private Location end;
+	// User threads still running after the match was stopped.
+	private int threadsLeft;
+	// Times the robot ran into something.
+	private int collisions;
+	// Match time the robot reached its goal in ms, or -1 if it did not.
+	private long goalTime;
+
+	/**
+	 * Creates a result for a match which did not complete.
+	 * 
+	 * @param source the program's name
+	 * @param status how the match ended
+	 * @param message what went wrong
+	 */
+	public MatchResult(String source, Status status, String message) {
+		this.source = source;
+		this.status = status;
+		this.message = message;
+		lcd = "";
+		simTime = wallTime = 0L;
+		end = null;
+		threadsLeft = 0;
+		collisions = 0;
+		goalTime = -1L;
+	}
+
+	/**
+	 * Creates a result for a match which ran.
+	 * 
+	 * @param source the program's name
+	 * @param status COMPLETED or COMPILE_FAILED
+	 * @param lcd the text on the LCD
+	 * @param simTime the simulated time the match lasted in ms
+	 * @param end where the robot ended up
+	 * @param threadsLeft user threads which did not stop with the match
+	 */
+	public MatchResult(String source, Status status, String lcd, long simTime, Location end,
+			int threadsLeft) {
+		this(source, status, null);
+		this.lcd = lcd;
+		this.simTime = simTime;
+		this.end = end == null ? null : new Location(end);
+		this.threadsLeft = threadsLeft;
+	}
+
+	/**
+	 * Gets the name of the program run.
+	 * 
+	 * @return the source file name
+	 */
+	public String getSource() {
+		return source;
+	}
+
+	/**
+	 * Gets how the match ended.
+	 * 
+	 * @return the status
+	 */
+	public Status getStatus() {
+		return status;
+	}
+
+	/**
+	 * Gets what went wrong, for matches which did not run.
+	 * 
+	 * @return the message, or null if there is none
+	 */
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * Gets the text on the LCD at the end of the match, including any
+	 *  compiler messages.
+	 * 
+	 * @return the LCD text
+	 */
+	public String getLCD() {
+		return lcd;
+	}
+
+	/**
+	 * Gets the simulated time the match lasted.
+	 * 
+	 * @return the time in ms
+	 */
+	public long getSimTime() {
+		return simTime;
+	}
+
+	/**
+	 * Gets the wall clock time taken to run the match, including compiling.
+	 * 
+	 * @return the time in ms
+	 */
+	public long getWallTime() {
+		return wallTime;
+	}
+
+	/**
+	 * Sets the wall clock time taken to run the match.
+	 * 
+	 * @param wallTime the time in ms
+	 */
+	public void setWallTime(long wallTime) {
+		this.wallTime = wallTime;
+	}
+
+	/**
+	 * Gets where the robot ended up.
+	 * 
+	 * @return the final location, or null if the match never started
+	 */
+	public Location getEnd() {
+		return end;
+	}
+
+	/**
+	 * Gets the number of user threads still running after the match was
+	 *  stopped. Anything but 0 means the worker which ran it was replaced.
+	 * 
+	 * @return the thread count
+	 */
+	public int getThreadsLeft() {
+		return threadsLeft;
+	}
+
+	/**
+	 * Gets the number of times the robot ran into something.
+	 * 
+	 * @return the collision count
+	 */
+	public int getCollisions() {
+		return collisions;
+	}
+
+	/**
+	 * Sets the number of times the robot ran into something.
+	 * 
+	 * @param collisions the collision count
+	 */
+	public void setCollisions(int collisions) {
+		this.collisions = collisions;
+	}
+
+	/**
+	 * Gets when the robot reached the match's goal.
+	 * 
+	 * @return the match time in ms, or -1 if it never did (or there was no goal)
+	 */
+	public long getGoalTime() {
+		return goalTime;
+	}
+
+	/**
+	 * Sets when the robot reached the match's goal.
+	 * 
+	 * @param goalTime the match time in ms, or -1 if it never did
+	 */
+	public void setGoalTime(long goalTime) {
+		this.goalTime = goalTime;
+	}
+
+	public String toString() {
+		StringBuilder out = new StringBuilder(128);
+		out.append(source).append(": ").append(status);
+		if (message != null)
+			out.append(" (").append(message).append(')');
+		if (end != null)
+			out.append(String.format(", %.1f s, ended at (%.0f, %.0f)", simTime / 1000.,
+				end.getX(), end.getY()));
+		if (collisions > 0)
+			out.append(", ").append(collisions).append(" collisions");
+		if (goalTime >= 0L)
+			out.append(String.format(", goal at %.1f s", goalTime / 1000.));
+		if (threadsLeft > 0)
+			out.append(", ").append(threadsLeft).append(" threads left running");
+		return out.toString();
+	}
+}
@@ -0,0 +1,65 @@
+/*
+ * This file is part of JBSim.
+ * 
+ * JBSim is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * JBSim is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with JBSim.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.icx.sim;
+
+import java.io.*;
+
+/**
+ * The main class of a worker process started by WorkerPool. Jobs arrive on
+ *  standard input as serialized MatchJobs, one at a time; after each one,
+ *  the MatchResult and whether this worker can take another job are
+ *  written to standard output.
+ * 
+ * Anything else printed (such as a program's stack traces) goes to
+ *  standard error, so that it cannot get mixed into the results.
+ */
+public class MatchWorker {
+	/**
+	 * Runs jobs until standard input is closed.
+	 * 
+	 * @param args ignored
+	 * @throws Exception if the coordinator goes away
+	 */
+	public static void main(String[] args) throws Exception {
+		ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(
+			new FileOutputStream(FileDescriptor.out)));
+		System.setOut(System.err);
+		// the header, so the coordinator knows this worker has started
+		out.flush();
+		ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(System.in));
+		while (true) {
+			MatchJob job;
+			try {
+				job = (MatchJob)in.readObject();
+			} catch (EOFException e) {
+				break;
+			}
+			MatchResult result = job.run();
+			// threads which would not die may still be running, so start afresh
+			boolean reusable = result.getThreadsLeft() == 0;
+			out.writeObject(result);
+			out.writeBoolean(reusable);
+			out.reset();
+			out.flush();
+			if (!reusable) break;
+		}
+		System.exit(0);
+	}
+
+	private MatchWorker() { }
+}
@@ -0,0 +1,299 @@
+/*
+ * This file is part of JBSim.
+ * 
+ * JBSim is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * JBSim is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with JBSim.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.icx.sim;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Runs one IC/C program many times with a slightly different start, wheel
+ *  mismatch and odometry noise each time, and sums up how the runs turned
+ *  out, to see how much a program depends on being set down in exactly the
+ *  right place. Run from a directory with robots.txt and the board, like
+ *  the simulator:
+ * 
+ * java org.icx.sim.MonteCarlo [options] program.c
+ * 
+ * Options:
+ *  -runs k        runs to make (default 100)
+ *  -threads n     runs at once (default: one per core)
+ *  -robot type    robot type from robots.txt (default cbc2)
+ *  -start x,y     where the robot is meant to start in mm (default 600,600)
+ *  -board file    board file (default board.txt)
+ *  -time ms       match length (default 120000)
+ *  -seed n        seed for the first run; run i uses n + i (default 0)
+ *  -inputs file   buttons and sensor values to play back (see InputScript)
+ *  -jitter mm     how far from the start the robot may be set down, in x
+ *                  and y (default 10)
+ *  -turn deg      how far off its heading it may be set down (default 2)
+ *  -motor f       spread of each wheel's speed error as a fraction of the
+ *                  commanded speed (default 0.02)
+ *  -goal x,y,r    report when the robot first comes within r mm of x,y
+ * 
+ * The board and robot are loaded once and every run forks from a snapshot
+ *  of them, so they are shared rather than copied; results are folded into
+ *  running statistics as they come in, so memory does not grow with the
+ *  number of runs. The runs share this JVM, so only use it on trusted
+ *  programs (BatchRunner runs untrusted ones in workers).
+ */
+public class MonteCarlo {
+	// The quantiles reported.
+	private static final double[] QUANTILES = new double[] { 0.1, 0.5, 0.9 };
+
+	/**
+	 * Runs the program as given on the command line and prints the summary.
+	 * 
+	 * @param args the options and program
+	 * @throws Exception if the runs are interrupted
+	 */
+	public static void main(String[] args) throws Exception {
+		int runs = 100, threads = Runtime.getRuntime().availableProcessors();
+		String robot = SimRobot.CBC, board = "board.txt";
+		Location start = new Location(600, 600), goal = null;
+		long time = MatchJob.DEFAULT_LENGTH, seed = 0L;
+		double jitter = 10., turn = 2., motor = 0.02, goalRadius = 0.;
+		InputScript inputs = null;
+		File source = null;
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.startsWith("-") && i + 1 >= args.length)
+				usage("Missing value for " + arg);
+			if (arg.equals("-runs"))
+				runs = Integer.parseInt(args[++i]);
+			else if (arg.equals("-threads"))
+				threads = Integer.parseInt(args[++i]);
+			else if (arg.equals("-robot"))
+				robot = args[++i];
+			else if (arg.equals("-start")) {
+				String[] xy = args[++i].split(",");
+				if (xy.length != 2) usage("Start must be x,y");
+				start = new Location(Double.parseDouble(xy[0]), Double.parseDouble(xy[1]));
+			} else if (arg.equals("-board"))
+				board = args[++i];
+			else if (arg.equals("-time"))
+				time = Long.parseLong(args[++i]);
+			else if (arg.equals("-seed"))
+				seed = Long.parseLong(args[++i]);
+			else if (arg.equals("-inputs"))
+				inputs = InputScript.read(new File(args[++i]));
+			else if (arg.equals("-jitter"))
+				jitter = Double.parseDouble(args[++i]);
+			else if (arg.equals("-turn"))
+				turn = Double.parseDouble(args[++i]);
+			else if (arg.equals("-motor"))
+				motor = Double.parseDouble(args[++i]);
+			else if (arg.equals("-goal")) {
+				String[] xyr = args[++i].split(",");
+				if (xyr.length != 3) usage("Goal must be x,y,r");
+				goal = new Location(Double.parseDouble(xyr[0]), Double.parseDouble(xyr[1]));
+				goalRadius = Double.parseDouble(xyr[2]);
+			} else if (arg.startsWith("-"))
+				usage("Unknown option " + arg);
+			else if (source != null)
+				usage("Only one program can be run");
+			else
+				source = new File(arg);
+		}
+		if (source == null) usage("No program given");
+		if (runs < 1 || threads < 1) usage("Runs and threads must be at least 1");
+		// load and compile once for every run
+		HeadlessSimulator base = new HeadlessSimulator(null);
+		base.loadBoard(board);
+		base.addRobot(robot, start);
+		SimSnapshot world = base.snapshot();
+		ProgramCompiler.Submission program = ProgramCompiler.compileAll(
+			Collections.singletonList(source)).get(0);
+		if (!program.isCompiled()) {
+			System.err.println(source.getName() + " did not compile:");
+			for (String message : program.getDiagnostics())
+				System.err.println("  " + message);
+			System.exit(1);
+		}
+		Trial trial = new Trial(source, robot, start, world, program);
+		trial.board = board;
+		trial.length = time;
+		trial.seed = seed;
+		trial.inputs = inputs;
+		trial.jitter = jitter;
+		trial.turn = Math.toRadians(turn);
+		trial.motor = motor;
+		trial.goal = goal;
+		trial.goalRadius = goalRadius;
+		long began = System.currentTimeMillis();
+		trial.run(runs, Math.min(threads, runs));
+		System.out.println(String.format("%s: %d runs in %.1f s", source.getName(), runs,
+			(System.currentTimeMillis() - began) / 1000.));
+		trial.print(System.out);
+	}
+
+	/**
+	 * Picks where a run sets the robot down, somewhere near where it should.
+	 *  The same seed always gives the same place.
+	 * 
+	 * @param start where the robot is meant to start
+	 * @param seed the run's seed
+	 * @param jitter how far off it may be in x and y, in mm
+	 * @param turn how far off its heading may be, in radians
+	 * @return the start for the run
+	 */
+	static Location perturb(Location start, long seed, double jitter, double turn) {
+		// drawn apart from the run's own seed, which drives the odometry noise
+		Random random = new Random(seed * 0x5DEECE66DL + 11L);
+		Location where = new Location(start.getX() + (2. * random.nextDouble() - 1.) * jitter,
+			start.getY() + (2. * random.nextDouble() - 1.) * jitter);
+		where.setTheta(start.getTheta() + (2. * random.nextDouble() - 1.) * turn);
+		return where;
+	}
+
+	// Explains how to run it, then exits.
+	private static void usage(String problem) {
+		System.err.println(problem);
+		System.err.println("Usage: java org.icx.sim.MonteCarlo [-runs k] [-threads n] [-robot type] " +
+			"[-start x,y] [-board file] [-time ms] [-seed n] [-inputs file] [-jitter mm] " +
+			"[-turn deg] [-motor f] [-goal x,y,r] program.c");
+		System.exit(1);
+	}
+
+	/**
+	 * The runs of one program and what has come of them so far.
+	 */
+	private static class Trial {
+		// What to run and where.
+		private File source;
+		private String robot;
+		private Location start;
+		private SimSnapshot world;
+		private ProgramCompiler.Submission program;
+		private String board;
+		private long length;
+		private long seed;
+		private InputScript inputs;
+		// Start tolerance (mm and radians) and motor mismatch.
+		private double jitter;
+		private double turn;
+		private double motor;
+		// Where the robot should get to, or null.
+		private Location goal;
+		private double goalRadius;
+		// The next run to start.
+		private AtomicInteger next;
+		// How the runs ended.
+		private EnumMap<MatchResult.Status, Integer> statuses;
+		private int reached;
+		// Where the robots ended up, how often they hit something, when they
+		//  got to the goal and how long the matches lasted.
+		private RunningStats endX;
+		private RunningStats endY;
+		private RunningStats endHeading;
+		private RunningStats collisions;
+		private RunningStats goalTime;
+		private RunningStats simTime;
+
+		public Trial(File source, String robot, Location start, SimSnapshot world,
+				ProgramCompiler.Submission program) {
+			this.source = source;
+			this.robot = robot;
+			this.start = start;
+			this.world = world;
+			this.program = program;
+			next = new AtomicInteger(0);
+			statuses = new EnumMap<MatchResult.Status, Integer>(MatchResult.Status.class);
+			reached = 0;
+			endX = new RunningStats(QUANTILES);
+			endY = new RunningStats(QUANTILES);
+			endHeading = new RunningStats(QUANTILES);
+			collisions = new RunningStats(QUANTILES);
+			goalTime = new RunningStats(QUANTILES);
+			simTime = new RunningStats(QUANTILES);
+		}
+
+		// Makes the runs on the given number of threads, and waits for them.
+		public void run(final int runs, int threads) throws InterruptedException {
+			Thread[] workers = new Thread[threads];
+			for (int i = 0; i < threads; i++) {
+				workers[i] = new Thread(new Runnable() {
+					public void run() {
+						int index;
+						while ((index = next.getAndIncrement()) < runs)
+							record(runOne(index));
+					}
+				}, "Monte Carlo " + i);
+				workers[i].start();
+			}
+			for (Thread worker : workers)
+				worker.join();
+		}
+
+		// Makes one run with its own start and noise.
+		private MatchResult runOne(int index) {
+			long runSeed = seed + index;
+			MatchJob job = new MatchJob(source, robot, perturb(start, runSeed, jitter, turn));
+			job.setBoard(board);
+			job.setLength(length);
+			job.setSeed(runSeed);
+			job.setInputs(inputs);
+			job.setMotorNoise(motor);
+			job.setGoal(goal, goalRadius);
+			return job.run(world, program);
+		}
+
+		// Folds a run's result into the totals.
+		private void record(MatchResult result) {
+			synchronized (statuses) {
+				Integer n = statuses.get(result.getStatus());
+				statuses.put(result.getStatus(), n == null ? 1 : n + 1);
+				if (result.getGoalTime() >= 0L) reached++;
+			}
+			Location end = result.getEnd();
+			if (end == null) return;
+			endX.add(end.getX());
+			endY.add(end.getY());
+			endHeading.add(Math.toDegrees(end.getTheta()));
+			collisions.add(result.getCollisions());
+			simTime.add(result.getSimTime() / 1000.);
+			if (result.getGoalTime() >= 0L)
+				goalTime.add(result.getGoalTime() / 1000.);
+		}
+
+		// Prints the summary.
+		public void print(PrintStream out) {
+			for (Map.Entry<MatchResult.Status, Integer> e : statuses.entrySet())
+				out.println("  " + e.getKey() + ": " + e.getValue());
+			out.println("  end x (mm):     " + endX);
+			out.println("  end y (mm):     " + endY);
+			out.println("  heading (deg):  " + endHeading);
+			out.println("  collisions:     " + collisions);
+			out.println("  match time (s): " + simTime);
+			if (goal != null) {
+				out.println(String.format("  reached goal:   %d of %d runs", reached, total()));
+				out.println("  goal time (s):  " + goalTime);
+			}
+		}
+
+		// Counts the runs made.
+		private int total() {
+			int n = 0;
+			for (Integer count : statuses.values())
+				n += count;
+			return n;
+		}
+	}
+
+	private MonteCarlo() { }
+}
@@ -23,6 +23,8 @@ import javax.swing.*;
 
 /**
  * A class representing a motor or servo.
+ *  Each value may be set from any thread without locking; the component
+ *  repaints itself on the event thread.
  * 
  * @author Stephen Carlson
  */
@@ -35,14 +37,14 @@ public class MotorComponent extends JComponent {
 	private static ImageIcon stopImg = Simulator.getIcon("dest");
 	// Current power.
 	//  Integer.MIN_VALUE = "Off", Integer.MAX_VALUE = "On", -100 to 100 = value, else = "Hold"
-	private int power;
+	private volatile int power;
 	// Current position.
-	private long pos;
+	private volatile long pos;
 	// Destination position.
 	//  Long.MAX_VALUE or Long.MIN_VALUE = "None", else = value
-	private long dest;
+	private volatile long dest;
 	// The shaft angle in degrees.
-	private int angle;
+	private volatile int angle;
 	// The label of the motor/servo.
 	private String label;
 	// The arrow which shows where the shaft is pointing.
@@ -78,6 +80,24 @@ public class MotorComponent extends JComponent {
 		repaint();
 	}
 
+	/**
+	 * Gets the shaft angle of the motor/servo.
+	 * 
+	 * @return the angle in degrees from 0 (pointing DOWN)
+	 */
+	public int getShaftAngle() {
+		return angle;
+	}
+
+	/**
+	 * Gets the power of the motor/servo.
+	 * 
+	 * @return the power level as given to setPower()
+	 */
+	public int getPower() {
+		return power;
+	}
+
 	/**
 	 * Sets the power of the motor/servo.
 	 * 
@@ -113,6 +133,15 @@ public class MotorComponent extends JComponent {
 		setPower(Integer.MAX_VALUE);
 	}
 
+	/**
+	 * Gets the current position of the motor/servo.
+	 * 
+	 * @return the real position in ticks (motor) or servo counts
+	 */
+	public long getPos() {
+		return pos;
+	}
+
 	/**
 	 * Sets the current position of the motor/servo.
 	 * 
@@ -123,6 +152,15 @@ public class MotorComponent extends JComponent {
 		repaint();
 	}
 
+	/**
+	 * Gets the desired position of the motor/servo.
+	 * 
+	 * @return the destination in ticks/servo counts, or either end bound for "None"
+	 */
+	public long getDest() {
+		return dest;
+	}
+
 	/**
 	 * Sets the desired position of the motor/servo.
 	 * 
@@ -24,11 +24,51 @@ package org.icx.sim;
  * @author Stephen Carlson
  */
 public abstract class MovableObject extends SimObject {
+	// The location as of the previous physics step.
+	private Location previous;
+	// Scratch location handed out for rendering (only used by the painter).
+	private Location render;
+
 	public MovableObject(String image) {
 		super(image);
+		previous = new Location();
+		render = new Location();
 	}
 
 	public void setLocation(Location loc) {
 		super.setLocation(loc);
+		savePrevious();
+	}
+
+	/**
+	 * Remembers the current location as the previous physics state.
+	 *  Called by the engine just before each step.
+	 */
+	public void savePrevious() {
+		Location loc = getLocation();
+		if (loc != null) {
+			previous.setX(loc.getX());
+			previous.setY(loc.getY());
+			previous.setTheta(loc.getTheta());
+		}
+	}
+
+	/**
+	 * Gets the location to draw, interpolated between the previous and current
+	 *  physics states so that motion looks smooth at any frame rate.
+	 * 
+	 * @param alpha how far to go from the previous state (0) to the current one (1)
+	 * @return the location to draw; do not keep or modify it
+	 */
+	public Location getRenderLocation(float alpha) {
+		Location loc = getLocation();
+		if (alpha >= 1.f || loc == null) return loc;
+		double dt = loc.getTheta() - previous.getTheta();
+		// turn the short way around
+		dt = Math.IEEEremainder(dt, 2. * Math.PI);
+		render.setX(previous.getX() + (loc.getX() - previous.getX()) * alpha);
+		render.setY(previous.getY() + (loc.getY() - previous.getY()) * alpha);
+		render.setTheta(previous.getTheta() + dt * alpha);
+		return render;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,650 @@
+/*
+ * This file is part of JBSim.
+ * 
+ * JBSim is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * JBSim is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with JBSim.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.icx.sim;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Tunes the #define constants of an IC/C program (turn times, thresholds,
+ *  speeds...) by running variants of it with different values and scoring
+ *  how each did. Run from a directory with robots.txt and the board, like
+ *  the simulator:
+ * 
+ * java org.icx.sim.ParameterSweep [options] -define NAME=values ... program.c
+ * 
+ * Values are a range lo:hi:step (lo:hi steps by 1 if both are whole
+ *  numbers, else by a tenth of the range) or a list a,b,c. Each NAME must
+ *  be #defined by the program; its body is replaced by the value.
+ * 
+ * Options:
+ *  -search kind   grid tries every combination; random tries -variants of
+ *                  them at random; evolve starts with -variants at random,
+ *                  then breeds the best for -generations more (default grid)
+ *  -variants n    variants for random search, or in each generation (default 16)
+ *  -generations g generations after the first for evolve (default 4)
+ *  -repeats r     runs of each variant, each with its own seed and start
+ *                  (default 3); every variant's run i is set up the same way
+ *  -score kind    what to make as small as possible: goal (time to reach
+ *                  the goal; runs which never do score the match length
+ *                  plus a second per 100 mm short), distance (from the goal
+ *                  at the end in mm), collisions, or time (match time, for
+ *                  programs which stop when done); default goal with -goal,
+ *                  else collisions
+ *  -goal x,y,r    the goal, as for MonteCarlo
+ *  -threads n, -robot type, -start x,y, -board file, -time ms, -seed n,
+ *  -inputs file, -jitter mm, -turn deg, -motor f
+ *                 as for MonteCarlo (but -jitter, -turn and -motor default
+ *                  to 5, 1 and 0.01)
+ * 
+ * All the variants in a search (or generation) are compiled in one go, and
+ *  the board and robot are loaded once and shared by every run. Runs are
+ *  handed out one round of repeats at a time, and a variant which is
+ *  clearly losing (its mean score is worse than the leader's by more than
+ *  two standard errors of each, using the spread of scores pooled over the
+ *  variants, so that one run can be enough) is dropped: it gets no more
+ *  runs and its runs in progress are stopped, so the threads go to the
+ *  variants still in the race. Programs run in this JVM, so only use it on
+ *  trusted programs.
+ */
+public class ParameterSweep {
+	// Largest grid searched before asking for a random search instead.
+	private static final int MAX_GRID = 100000;
+
+	// Program, robot and board.
+	private File source;
+	private String robot;
+	private Location start;
+	private String board;
+	private SimSnapshot world;
+	private long length;
+	private InputScript inputs;
+	// Noise, as for MonteCarlo.
+	private long seed;
+	private double jitter;
+	private double turn;
+	private double motor;
+	// Where the robot should get to, or null.
+	private Location goal;
+	private double goalRadius;
+	// How to score a run, runs per variant and threads running them.
+	private Score score;
+	private int repeats;
+	private int threads;
+	// The constants to tune.
+	private List<Param> params;
+	// Every variant tried so far, by its values.
+	private Map<String, Variant> tried;
+	// Runs made, and variants dropped early.
+	private int runs;
+	private int dropped;
+
+	/**
+	 * Runs the search given on the command line and prints the best variants.
+	 * 
+	 * @param args the options, constants and program
+	 * @throws Exception if the search is interrupted
+	 */
+	public static void main(String[] args) throws Exception {
+		ParameterSweep sweep = new ParameterSweep();
+		String search = "grid", scoreKind = null;
+		int variants = 16, generations = 4;
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.startsWith("-") && i + 1 >= args.length)
+				usage("Missing value for " + arg);
+			if (arg.equals("-define"))
+				sweep.params.add(Param.parse(args[++i]));
+			else if (arg.equals("-search"))
+				search = args[++i];
+			else if (arg.equals("-variants"))
+				variants = Integer.parseInt(args[++i]);
+			else if (arg.equals("-generations"))
+				generations = Integer.parseInt(args[++i]);
+			else if (arg.equals("-repeats"))
+				sweep.repeats = Integer.parseInt(args[++i]);
+			else if (arg.equals("-score"))
+				scoreKind = args[++i];
+			else if (arg.equals("-threads"))
+				sweep.threads = Integer.parseInt(args[++i]);
+			else if (arg.equals("-robot"))
+				sweep.robot = args[++i];
+			else if (arg.equals("-start")) {
+				String[] xy = args[++i].split(",");
+				if (xy.length != 2) usage("Start must be x,y");
+				sweep.start = new Location(Double.parseDouble(xy[0]), Double.parseDouble(xy[1]));
+			} else if (arg.equals("-board"))
+				sweep.board = args[++i];
+			else if (arg.equals("-time"))
+				sweep.length = Long.parseLong(args[++i]);
+			else if (arg.equals("-seed"))
+				sweep.seed = Long.parseLong(args[++i]);
+			else if (arg.equals("-inputs"))
+				sweep.inputs = InputScript.read(new File(args[++i]));
+			else if (arg.equals("-jitter"))
+				sweep.jitter = Double.parseDouble(args[++i]);
+			else if (arg.equals("-turn"))
+				sweep.turn = Math.toRadians(Double.parseDouble(args[++i]));
+			else if (arg.equals("-motor"))
+				sweep.motor = Double.parseDouble(args[++i]);
+			else if (arg.equals("-goal")) {
+				String[] xyr = args[++i].split(",");
+				if (xyr.length != 3) usage("Goal must be x,y,r");
+				sweep.goal = new Location(Double.parseDouble(xyr[0]), Double.parseDouble(xyr[1]));
+				sweep.goalRadius = Double.parseDouble(xyr[2]);
+			} else if (arg.startsWith("-"))
+				usage("Unknown option " + arg);
+			else if (sweep.source != null)
+				usage("Only one program can be tuned");
+			else
+				sweep.source = new File(arg);
+		}
+		if (sweep.source == null) usage("No program given");
+		if (sweep.params.isEmpty()) usage("No constants given to -define");
+		if (sweep.repeats < 1 || sweep.threads < 1 || variants < 1 || generations < 0)
+			usage("Repeats, threads and variants must be at least 1");
+		if (scoreKind == null)
+			scoreKind = sweep.goal == null ? "collisions" : "goal";
+		sweep.score = sweep.score(scoreKind);
+		if (sweep.score == null) usage("Unknown score " + scoreKind);
+		if (!search.equals("grid") && !search.equals("random") && !search.equals("evolve"))
+			usage("Unknown search " + search);
+		long began = System.currentTimeMillis();
+		sweep.load();
+		if (search.equals("grid"))
+			sweep.grid();
+		else if (search.equals("random"))
+			sweep.random(variants);
+		else
+			sweep.evolve(variants, generations);
+		System.out.println(String.format("%d variants, %d runs, %d dropped early, in %.1f s",
+			sweep.tried.size(), sweep.runs, sweep.dropped,
+			(System.currentTimeMillis() - began) / 1000.));
+		sweep.printBest(System.out, 5);
+	}
+
+	// Explains how to run it, then exits.
+	private static void usage(String problem) {
+		System.err.println(problem);
+		System.err.println("Usage: java org.icx.sim.ParameterSweep [-search grid|random|evolve] " +
+			"[-variants n] [-generations g] [-repeats r] " +
+			"[-score goal|distance|collisions|time] [-goal x,y,r] [-threads n] [-robot type] " +
+			"[-start x,y] [-board file] [-time ms] [-seed n] [-inputs file] [-jitter mm] " +
+			"[-turn deg] [-motor f] -define NAME=lo:hi[:step]|a,b,... ... program.c");
+		System.exit(1);
+	}
+
+	// Creates a sweep with the default settings.
+	private ParameterSweep() {
+		robot = SimRobot.CBC;
+		start = new Location(600, 600);
+		board = "board.txt";
+		length = MatchJob.DEFAULT_LENGTH;
+		inputs = null;
+		seed = 0L;
+		jitter = 5.;
+		turn = Math.toRadians(1.);
+		motor = 0.01;
+		goal = null;
+		goalRadius = 0.;
+		repeats = 3;
+		threads = Runtime.getRuntime().availableProcessors();
+		params = new ArrayList<Param>(4);
+		tried = new LinkedHashMap<String, Variant>(64);
+		runs = dropped = 0;
+	}
+
+	// Gets the score of the given kind, or null if there is no such kind.
+	private Score score(String kind) {
+		if (kind.equals("collisions"))
+			return new Score() {
+				public double score(MatchResult result) {
+					return result.getCollisions();
+				}
+			};
+		if (kind.equals("time"))
+			return new Score() {
+				public double score(MatchResult result) {
+					return result.getSimTime() / 1000.;
+				}
+			};
+		if (goal == null && (kind.equals("goal") || kind.equals("distance")))
+			usage("Score " + kind + " needs a -goal");
+		if (kind.equals("distance"))
+			return new Score() {
+				public double score(MatchResult result) {
+					return distance(result.getEnd());
+				}
+			};
+		if (kind.equals("goal"))
+			return new Score() {
+				public double score(MatchResult result) {
+					if (result.getGoalTime() >= 0L)
+						return result.getGoalTime() / 1000.;
+					// nearer misses are better misses
+					return length / 1000. + Math.max(0., distance(result.getEnd()) - goalRadius) /
+						100.;
+				}
+			};
+		return null;
+	}
+
+	// Gets how far a location is from the goal in mm.
+	private double distance(Location where) {
+		return Math.hypot(where.getX() - goal.getX(), where.getY() - goal.getY());
+	}
+
+	// Loads the board and robot which every run shares.
+	private void load() {
+		HeadlessSimulator base = new HeadlessSimulator(null);
+		base.loadBoard(board);
+		base.addRobot(robot, start);
+		world = base.snapshot();
+	}
+
+	// Tries every combination of values.
+	private void grid() throws Exception {
+		long size = 1L;
+		for (Param p : params)
+			size *= p.size();
+		if (size > MAX_GRID)
+			usage("The grid has " + size + " variants; use -search random or evolve");
+		List<Variant> variants = new ArrayList<Variant>((int)size);
+		int[] index = new int[params.size()];
+		for (long n = 0L; n < size; n++) {
+			variants.add(variant(index.clone()));
+			// count up, lowest constant fastest
+			for (int i = index.length - 1; i >= 0; i--) {
+				if (++index[i] < params.get(i).size()) break;
+				index[i] = 0;
+			}
+		}
+		race(variants);
+	}
+
+	// Tries the given number of combinations, picked at random.
+	private void random(int count) throws Exception {
+		Random random = new Random(seed);
+		race(fresh(count, random, null));
+	}
+
+	// Starts with random combinations, then makes each generation from the
+	//  best of all those tried so far.
+	private void evolve(int count, int generations) throws Exception {
+		Random random = new Random(seed);
+		race(fresh(count, random, null));
+		for (int g = 1; g <= generations; g++) {
+			List<Variant> best = ranked();
+			if (best.isEmpty()) break;
+			// the top quarter (at least two if there are) are the parents
+			List<Variant> parents = best.subList(0, Math.min(best.size(), Math.max(2, count / 4)));
+			List<Variant> children = fresh(count, random, parents);
+			if (children.isEmpty()) break;
+			race(children);
+			Variant leader = ranked().get(0);
+			System.out.println(String.format("generation %d: best %s: %s", g, leader,
+				leader.stats));
+		}
+	}
+
+	// Makes up to the given number of variants not tried before: at random,
+	//  or if parents are given, by mixing two of them and nudging the result.
+	private List<Variant> fresh(int count, Random random, List<Variant> parents) {
+		List<Variant> variants = new ArrayList<Variant>(count);
+		Set<String> seen = new HashSet<String>(count * 2);
+		// a small space may not have that many left
+		for (int tries = 0; variants.size() < count && tries < count * 20; tries++) {
+			int[] index = new int[params.size()];
+			if (parents == null)
+				for (int i = 0; i < index.length; i++)
+					index[i] = random.nextInt(params.get(i).size());
+			else {
+				int[] a = parents.get(random.nextInt(parents.size())).index;
+				int[] b = parents.get(random.nextInt(parents.size())).index;
+				for (int i = 0; i < index.length; i++) {
+					int size = params.get(i).size();
+					index[i] = random.nextBoolean() ? a[i] : b[i];
+					if (random.nextInt(index.length) == 0 || Arrays.equals(a, b))
+						index[i] += (int)Math.round(random.nextGaussian() * Math.max(1., size / 10.));
+					index[i] = Math.max(0, Math.min(size - 1, index[i]));
+				}
+			}
+			String key = key(index);
+			if (!tried.containsKey(key) && seen.add(key))
+				variants.add(variant(index));
+		}
+		return variants;
+	}
+
+	// Makes the variant with the given value indices.
+	private Variant variant(int[] index) {
+		Map<String, String> defines = new LinkedHashMap<String, String>(index.length * 2);
+		for (int i = 0; i < index.length; i++)
+			defines.put(params.get(i).name, params.get(i).value(index[i]));
+		return new Variant(index, defines);
+	}
+
+	// Makes the key of a set of value indices.
+	private static String key(int[] index) {
+		return Arrays.toString(index);
+	}
+
+	// Compiles the variants together, then runs them until each has made all
+	//  its runs, failed or been dropped.
+	private void race(List<Variant> variants) throws Exception {
+		List<File> sources = new ArrayList<File>(variants.size());
+		List<Map<String, String>> defines = new ArrayList<Map<String, String>>(variants.size());
+		for (Variant v : variants) {
+			tried.put(key(v.index), v);
+			sources.add(source);
+			defines.add(v.defines);
+		}
+		List<ProgramCompiler.Submission> compiled = ProgramCompiler.compileAll(sources, defines);
+		List<Variant> racing = new ArrayList<Variant>(variants.size());
+		for (int i = 0; i < variants.size(); i++) {
+			Variant v = variants.get(i);
+			v.program = compiled.get(i);
+			if (v.program.isCompiled())
+				racing.add(v);
+			else {
+				List<String> messages = v.program.getDiagnostics();
+				v.failure = "did not compile" + (messages.isEmpty() ? "" : ": " + messages.get(0));
+				v.program = null;
+				System.out.println(v + ": " + v.failure);
+			}
+		}
+		if (racing.isEmpty()) return;
+		final Race race = new Race(racing);
+		Thread[] workers = new Thread[Math.min(threads, racing.size() * repeats)];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Thread(new Runnable() {
+				public void run() {
+					Run run;
+					while ((run = race.next()) != null)
+						race.record(run, run.job.run(world, run.variant.program));
+				}
+			}, "Sweep " + i);
+			workers[i].start();
+		}
+		for (Thread worker : workers)
+			worker.join();
+		for (Variant v : racing) {
+			// compiled classes are only needed while it runs
+			v.program = null;
+			if (v.failure == null)
+				System.out.println(v + ": " + v.stats + (v.dropped ? " [dropped]" : ""));
+		}
+	}
+
+	// Sets up one of the runs of a variant.
+	private MatchJob job(int repeat) {
+		long runSeed = seed + repeat;
+		// every variant's run of the same number starts the same way
+		MatchJob job = new MatchJob(source, robot, MonteCarlo.perturb(start, runSeed, jitter,
+			turn));
+		job.setBoard(board);
+		job.setLength(length);
+		job.setSeed(runSeed);
+		job.setInputs(inputs);
+		job.setMotorNoise(motor);
+		job.setGoal(goal, goalRadius);
+		return job;
+	}
+
+	// Gets the variants which made all their runs, best first.
+	private List<Variant> ranked() {
+		List<Variant> done = new ArrayList<Variant>(tried.size());
+		for (Variant v : tried.values())
+			if (v.failure == null && !v.dropped && v.stats.getCount() >= repeats)
+				done.add(v);
+		Collections.sort(done, new Comparator<Variant>() {
+			public int compare(Variant a, Variant b) {
+				return Double.compare(a.stats.getMean(), b.stats.getMean());
+			}
+		});
+		return done;
+	}
+
+	// Prints the best few variants.
+	private void printBest(PrintStream out, int count) {
+		List<Variant> best = ranked();
+		if (best.isEmpty()) {
+			out.println("No variant made all its runs.");
+			return;
+		}
+		out.println("Best:");
+		for (Variant v : best.subList(0, Math.min(count, best.size())))
+			out.println(String.format("  %s: mean %.3f sd %.3f", v, v.stats.getMean(),
+				v.stats.getStdDev()));
+	}
+
+	/**
+	 * Turns the outcome of a run into a number; smaller is better.
+	 */
+	private interface Score {
+		// Scores a completed run.
+		public double score(MatchResult result);
+	}
+
+	/**
+	 * The values one constant may take.
+	 */
+	private static class Param {
+		// The macro's name.
+		private String name;
+		// The values, if listed.
+		private String[] list;
+		// Otherwise the first value, the step and how many there are.
+		private double lo;
+		private double step;
+		private int count;
+		// Whether the range holds whole numbers.
+		private boolean whole;
+
+		// Reads NAME=lo:hi[:step] or NAME=a,b,c.
+		public static Param parse(String spec) {
+			int eq = spec.indexOf('=');
+			if (eq <= 0 || eq == spec.length() - 1)
+				usage("Constants must be NAME=lo:hi[:step] or NAME=a,b,...");
+			Param p = new Param();
+			p.name = spec.substring(0, eq).trim();
+			String values = spec.substring(eq + 1).trim();
+			if (values.indexOf(':') < 0) {
+				p.list = values.split(",");
+				for (int i = 0; i < p.list.length; i++)
+					p.list[i] = p.list[i].trim();
+				return p;
+			}
+			String[] range = values.split(":");
+			if (range.length < 2 || range.length > 3)
+				usage("Range for " + p.name + " must be lo:hi[:step]");
+			double hi;
+			try {
+				p.lo = Double.parseDouble(range[0]);
+				hi = Double.parseDouble(range[1]);
+				p.whole = isWhole(range[0]) && isWhole(range[1]);
+				if (range.length == 3) {
+					p.step = Double.parseDouble(range[2]);
+					p.whole &= isWhole(range[2]);
+				} else
+					p.step = p.whole ? 1. : (hi - p.lo) / 10.;
+			} catch (NumberFormatException e) {
+				usage("Range for " + p.name + " must be numbers");
+				return null;
+			}
+			if (hi < p.lo || p.step <= 0. && hi > p.lo)
+				usage("Range for " + p.name + " must go up by a positive step");
+			// allow for rounding, so 0:1:0.1 includes 1
+			p.count = hi > p.lo ? (int)Math.floor((hi - p.lo) / p.step + 1e-9) + 1 : 1;
+			return p;
+		}
+
+		// Checks whether a number is written without a fraction or exponent.
+		private static boolean isWhole(String number) {
+			return number.trim().matches("[-+]?\\d+");
+		}
+
+		// Gets how many values there are.
+		public int size() {
+			return list != null ? list.length : count;
+		}
+
+		// Gets a value as it goes in the program.
+		public String value(int i) {
+			if (list != null) return list[i];
+			double v = lo + i * step;
+			if (whole) return Long.toString(Math.round(v));
+			// float literals (1.5, not 1.5E-4) so that IC reads them as written
+			return new java.math.BigDecimal(v).round(new java.math.MathContext(10))
+				.stripTrailingZeros().toPlainString();
+		}
+	}
+
+	/**
+	 * One set of values for the constants, and how it has done.
+	 */
+	private static class Variant {
+		// Which value of each constant, and the values by name.
+		private int[] index;
+		private Map<String, String> defines;
+		// The compiled program, while it is being run.
+		private ProgramCompiler.Submission program;
+		// Scores of its runs.
+		private RunningStats stats;
+		// Runs handed out, and those still going.
+		private int started;
+		private List<MatchJob> running;
+		// Whether it was dropped for losing, or why it failed.
+		private boolean dropped;
+		private String failure;
+
+		public Variant(int[] index, Map<String, String> defines) {
+			this.index = index;
+			this.defines = defines;
+			program = null;
+			stats = new RunningStats();
+			started = 0;
+			running = new ArrayList<MatchJob>(4);
+			dropped = false;
+			failure = null;
+		}
+
+		public String toString() {
+			StringBuilder out = new StringBuilder(64);
+			for (Map.Entry<String, String> e : defines.entrySet()) {
+				if (out.length() > 0) out.append(' ');
+				out.append(e.getKey()).append('=').append(e.getValue());
+			}
+			return out.toString();
+		}
+	}
+
+	/**
+	 * A run handed out: which variant, and the match to run.
+	 */
+	private static class Run {
+		private Variant variant;
+		private MatchJob job;
+
+		public Run(Variant variant, MatchJob job) {
+			this.variant = variant;
+			this.job = job;
+		}
+	}
+
+	/**
+	 * Hands out the runs of a set of variants and drops the losers.
+	 */
+	private class Race {
+		// The variants in the race.
+		private List<Variant> variants;
+
+		public Race(List<Variant> variants) {
+			this.variants = variants;
+		}
+
+		// Gets a variant to run next, or null if none has runs left. Each
+		//  round of repeats is handed out before the next, so that losers are
+		//  found before they use up many runs.
+		public synchronized Run next() {
+			for (int round = 0; round < repeats; round++)
+				for (Variant v : variants)
+					if (v.started == round && !v.dropped && v.failure == null) {
+						MatchJob job = job(round);
+						v.started++;
+						v.running.add(job);
+						runs++;
+						return new Run(v, job);
+					}
+			return null;
+		}
+
+		// Takes in the result of a run, then drops any clear losers.
+		public synchronized void record(Run run, MatchResult result) {
+			Variant v = run.variant;
+			v.running.remove(run.job);
+			// runs of dropped or failed variants are stopped, and not counted
+			if (v.dropped || v.failure != null) return;
+			if (result.getStatus() != MatchResult.Status.COMPLETED) {
+				v.failure = result.getStatus() + (result.getMessage() == null ? "" : " (" +
+					result.getMessage() + ")");
+				System.out.println(v + ": " + v.failure);
+				stop(v);
+				return;
+			}
+			v.stats.add(score.score(result));
+			// every variant's run i is set up the same way, so their spreads
+			//  are pooled; a variant with one run has no spread of its own
+			double sum = 0., weight = 0.;
+			for (Variant u : variants) {
+				long n = u.stats.getCount();
+				if (u.failure == null && n >= 2L) {
+					sum += (n - 1L) * u.stats.getStdDev() * u.stats.getStdDev();
+					weight += n - 1L;
+				}
+			}
+			if (weight <= 0.) return;
+			double spread = Math.sqrt(sum / weight);
+			Variant leader = null;
+			for (Variant u : variants)
+				if (u.failure == null && !u.dropped && u.stats.getCount() > 0L && (leader ==
+						null || u.stats.getMean() < leader.stats.getMean()))
+					leader = u;
+			double bar = leader.stats.getMean() + 2. * error(leader, spread);
+			for (Variant u : variants)
+				if (u != leader && !u.dropped && u.failure == null && u.stats.getCount() > 0L &&
+						u.stats.getCount() < repeats && u.stats.getMean() - 2. * error(u, spread) >
+						bar) {
+					u.dropped = true;
+					dropped++;
+					stop(u);
+				}
+		}
+
+		// Stops the runs of a variant still going.
+		private void stop(Variant v) {
+			for (MatchJob job : v.running)
+				job.cancel();
+		}
+
+		// Gets the standard error of a variant's mean score.
+		private double error(Variant v, double spread) {
+			return spread / Math.sqrt(v.stats.getCount());
+		}
+	}
+}
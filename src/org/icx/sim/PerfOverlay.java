@@ -0,0 +1,159 @@
+/*
+ * This file is part of JBSim.
+ * 
+ * JBSim is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * JBSim is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with JBSim.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.icx.sim;
+
+import java.awt.*;
+import java.awt.image.*;
+import java.lang.management.*;
+
+/**
+ * A small box of performance figures drawn over the board, for seeing at a
+ *  glance when the simulation falls behind real time. The text is drawn
+ *  into an image at most a few times per second; every other frame just
+ *  copies the image, so the overlay costs next to nothing per frame.
+ */
+public class PerfOverlay {
+	// How often the figures are updated in ns.
+	private static final long UPDATE_INTERVAL = 250000000L;
+	// Box colors and size.
+	private static final Color BACK = new Color(0, 0, 0, 160);
+	private static final Color TEXT = new Color(224, 255, 224);
+	private static final Color SLOW = new Color(255, 160, 128);
+	private static final int LINES = 6;
+	private static final int WIDTH = 220;
+	private static final int LINE_HEIGHT = 14;
+	private static final Font FONT = new Font(Font.MONOSPACED, Font.PLAIN, 12);
+
+	// Where the figures come from.
+	private Simulator sim;
+	// Allocation counters, if this JVM has them.
+	private com.sun.management.ThreadMXBean threads;
+	// The rendered box.
+	private BufferedImage image;
+	// Frame count and time spent painting since the last update.
+	private int frames;
+	private long paintTime;
+	// Values at the last update.
+	private long lastUpdate;
+	private long lastTicks;
+	private long lastSim;
+	private long lastAllocated;
+
+	/**
+	 * Creates an overlay for the given simulator.
+	 * 
+	 * @param sim the simulator to report on
+	 */
+	public PerfOverlay(Simulator sim) {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		this.sim = sim;
+		threads = null;
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			threads = (com.sun.management.ThreadMXBean)bean;
+			if (threads.isThreadAllocatedMemorySupported())
+				threads.setThreadAllocatedMemoryEnabled(true);
+			else
+				threads = null;
+		}
+		image = new BufferedImage(WIDTH, LINES * LINE_HEIGHT + 8, BufferedImage.TYPE_INT_ARGB);
+		frames = 0;
+		paintTime = 0L;
+		lastUpdate = System.nanoTime();
+		lastTicks = sim.getEngine().getTicks();
+		lastSim = sim.getEngine().getSimTime();
+		lastAllocated = allocated();
+		Graphics2D g = begin();
+		line(g, 0, "measuring...");
+		g.dispose();
+	}
+
+	// Adds up the bytes allocated by all live threads.
+	private long allocated() {
+		if (threads == null) return 0L;
+		long total = 0L;
+		for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds()))
+			if (bytes > 0L) total += bytes;
+		return total;
+	}
+
+	/**
+	 * Draws the overlay, updating the figures if they are old enough.
+	 * 
+	 * @param g the graphics to draw on
+	 * @param x the left edge of the box
+	 * @param y the top edge of the box
+	 * @param frameTime how long the board just took to paint in ns
+	 */
+	public void paint(Graphics g, int x, int y, long frameTime) {
+		long now = System.nanoTime();
+		frames++;
+		paintTime += frameTime;
+		if (now - lastUpdate >= UPDATE_INTERVAL)
+			update(now);
+		g.drawImage(image, x, y, null);
+	}
+
+	// Works out new figures and draws them into the image.
+	private void update(long now) {
+		SimEngine engine = sim.getEngine();
+		BotballProgram program = sim.getProgram();
+		long ticks = engine.getTicks(), simTime = engine.getSimTime(), bytes = allocated();
+		double secs = Math.max(1L, now - lastUpdate) / 1e9, ratio;
+		int candidates = 0;
+		for (SimRobot bot : sim.getEnvironment().getRobots())
+			candidates += bot.getCandidateCount();
+		ratio = (simTime - lastSim) / 1000. / secs;
+		Graphics2D g = begin();
+		line(g, 0, String.format("frame   %.1f ms (%.0f fps)", frames == 0 ? 0. :
+			paintTime / 1e6 / frames, frames / secs));
+		line(g, 1, String.format("ticks   %.0f /s", (ticks - lastTicks) / secs));
+		line(g, 3, "hits    " + candidates + " candidates/tick");
+		line(g, 4, "threads " + (program == null ? 0 : program._liveThreads()) + " user");
+		// threads which ended take their counts with them, so this can dip below 0
+		line(g, 5, threads == null ? "alloc   n/a" : String.format("alloc   %.1f MB/s",
+			Math.max(0L, bytes - lastAllocated) / 1048576. / secs));
+		// falling behind real time (unless paused) shows up in a different color
+		if (ratio < 0.95 && !sim.isPaused()) g.setColor(SLOW);
+		line(g, 2, String.format("sim     %.2fx real time", ratio));
+		g.dispose();
+		frames = 0;
+		paintTime = 0L;
+		lastUpdate = now;
+		lastTicks = ticks;
+		lastSim = simTime;
+		lastAllocated = bytes;
+	}
+
+	// Clears the image for new text.
+	private Graphics2D begin() {
+		Graphics2D g = image.createGraphics();
+		g.setComposite(AlphaComposite.Src);
+		g.setColor(BACK);
+		g.fillRect(0, 0, image.getWidth(), image.getHeight());
+		g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+			RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+		g.setFont(FONT);
+		g.setColor(TEXT);
+		return g;
+	}
+
+	// Draws one line of text.
+	private static void line(Graphics2D g, int index, String text) {
+		g.drawString(text, 6, 4 + (index + 1) * LINE_HEIGHT - 3);
+	}
+}
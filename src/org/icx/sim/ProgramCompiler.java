@@ -0,0 +1,447 @@
+/*
+ * This file is part of JBSim.
+ * 
+ * JBSim is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * JBSim is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with JBSim.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.icx.sim;
+
+import java.io.*;
+import java.net.URI;
+import java.util.*;
+import javax.tools.*;
+
+/**
+ * Turns IC/C source into a runnable BotballProgram.
+ * 
+ * Many programs (such as a folder of submissions to grade) can be compiled
+ *  at once with compileAll(). Each is translated into a package of its own,
+ *  all of them go through a single javac task in memory, and each is loaded
+ *  by its own class loader when run.
+ * 
+ * Translated code is first given to BytecodeCompiler, which needs no JDK
+ *  and takes milliseconds; javac only sees programs which that rejects, so
+ *  that its error messages are the ones shown. The "sim.compiler" system
+ *  property can be set to "javac" or "bytecode" to use only one of them.
+ */
+public class ProgramCompiler {
+	// Which compilers to use: "javac", "bytecode", or "auto" for both.
+	private static final String BACKEND = System.getProperty("sim.compiler", "auto");
+
+	/**
+	 * One program from a bulk compile.
+	 */
+	public static class Submission {
+		// The IC/C source file.
+		private File source;
+		// The package the program was translated into.
+		private String pkg;
+		// The translated Java code, until it is compiled.
+		private String code;
+		// Compiler messages about this program.
+		private List<String> diagnostics;
+		// Whether any of them were errors (or the program would not parse).
+		private boolean failed;
+		// Compiled class files by binary name.
+		private Map<String, byte[]> classes;
+
+		// Creates a submission for the given file.
+		private Submission(File source, String pkg) {
+			this.source = source;
+			this.pkg = pkg;
+			code = null;
+			diagnostics = new ArrayList<String>(4);
+			failed = false;
+			classes = new HashMap<String, byte[]>(4);
+		}
+
+		/**
+		 * Gets the IC/C source file.
+		 * 
+		 * @return the file compiled
+		 */
+		public File getSource() {
+			return source;
+		}
+
+		/**
+		 * Gets the messages from translating and compiling this program.
+		 * 
+		 * @return the messages, in the order they were reported
+		 */
+		public List<String> getDiagnostics() {
+			return Collections.unmodifiableList(diagnostics);
+		}
+
+		/**
+		 * Checks whether the program compiled.
+		 * 
+		 * @return whether newProgram() can be called
+		 */
+		public boolean isCompiled() {
+			return !failed && classes.containsKey(pkg + ".Program");
+		}
+
+		/**
+		 * Loads a fresh copy of the program in a class loader of its own, so
+		 *  that nothing (not even persistent globals) is shared with other
+		 *  programs or other runs of this one.
+		 * 
+		 * @param host where the program will run
+		 * @return the program, attached to the host's first robot
+		 * @throws Exception if the program did not compile or cannot be loaded
+		 */
+		public BotballProgram newProgram(SimHost host) throws Exception {
+			if (!isCompiled())
+				throw new IllegalStateException(source.getName() + " did not compile");
+			BotballProgram instance = null;
+			SimEvents.Compile event = begin("define", source.getName());
+			try {
+				ICClassLoader icLoader = new ICClassLoader(classes);
+				Class<?> program = icLoader.loadClass(pkg + ".Program");
+				instance = (BotballProgram)program.getDeclaredConstructor().newInstance();
+			} finally {
+				end(event, instance != null);
+			}
+			instance._setSim(host, host.getEnvironment().getFirstRobot());
+			return instance;
+		}
+
+		// Records a compiler message.
+		private void report(String message, boolean error) {
+			diagnostics.add(message);
+			failed |= error;
+		}
+	}
+
+	/**
+	 * Translated Java code held in memory.
+	 */
+	private static class Source extends SimpleJavaFileObject {
+		// The program it came from.
+		private Submission submission;
+
+		public Source(Submission submission) {
+			super(URI.create("string:///" + submission.pkg + "/Program.java"), Kind.SOURCE);
+			this.submission = submission;
+		}
+		public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+			return submission.code;
+		}
+	}
+
+	/**
+	 * A class file written to memory.
+	 */
+	private static class Output extends SimpleJavaFileObject {
+		// The program it belongs to, and the class name.
+		private Submission submission;
+		private String name;
+
+		public Output(Submission submission, String name) {
+			super(URI.create("mem:///" + name.replace('.', '/') + ".class"), Kind.CLASS);
+			this.submission = submission;
+			this.name = name;
+		}
+		public OutputStream openOutputStream() {
+			return new ByteArrayOutputStream(4096) {
+				public void close() throws IOException {
+					super.close();
+					submission.classes.put(name, toByteArray());
+				}
+			};
+		}
+	}
+
+	/**
+	 * Sends class files to the submission whose package they are in.
+	 */
+	private static class MemoryFileManager extends
+			ForwardingJavaFileManager<StandardJavaFileManager> {
+		// Submissions by package.
+		private Map<String, Submission> packages;
+
+		public MemoryFileManager(StandardJavaFileManager fileManager,
+				Map<String, Submission> packages) {
+			super(fileManager);
+			this.packages = packages;
+		}
+		public JavaFileObject getJavaFileForOutput(Location location, String className,
+				JavaFileObject.Kind kind, FileObject sibling) throws IOException {
+			int dot = className.indexOf('.');
+			Submission owner = dot < 0 ? null : packages.get(className.substring(0, dot));
+			if (owner == null || kind != JavaFileObject.Kind.CLASS)
+				return super.getJavaFileForOutput(location, className, kind, sibling);
+			return new Output(owner, className);
+		}
+	}
+
+	/**
+	 * Parses and compiles the given source, printing the outcome to the host's
+	 *  LCD like the CBC does.
+	 * 
+	 * @param source the IC/C source file
+	 * @param host where the program will run; compile errors are printed here
+	 * @return the program, attached to the host's first robot, or null if the
+	 *  compile failed
+	 * @throws Exception if the source could not be read or parsed
+	 */
+	public static BotballProgram compile(File source, SimHost host) throws Exception {
+		BotballProgram instance = null;
+		String name = source.getName();
+		boolean ok = false;
+		// call up code parsing
+		SimEvents.Compile event = begin("parse", name);
+		StringWriter code = new StringWriter(8192);
+		Reader r = new FileReader(source);
+		try {
+			CodeParser.syntax(source, r, code, null);
+			ok = true;
+		} finally {
+			r.close();
+			end(event, ok);
+		}
+		// still written out, for javac and for anyone wondering what went wrong
+		Writer w = new FileWriter("Program.java");
+		try {
+			w.write(code.toString());
+		} finally {
+			w.close();
+		}
+		// compile user code
+		ICClassLoader icLoader = null;
+		JavaCompiler compiler = null;
+		List<String> errors = new ArrayList<String>(4);
+		if (!BACKEND.equals("javac")) {
+			byte[] program = bytecode(code.toString(), name, errors);
+			if (program != null)
+				icLoader = new ICClassLoader(Collections.singletonMap("Program", program));
+		}
+		if (icLoader == null && !BACKEND.equals("bytecode") &&
+				(compiler = ToolProvider.getSystemJavaCompiler()) == null)
+			errors.add("No Java compiler is available.");
+		if (icLoader == null && compiler != null) {
+			errors.clear();
+			event = begin("javac", name);
+			DiagnosticCollector<JavaFileObject> diagnostics =
+				new DiagnosticCollector<JavaFileObject>();
+			StandardJavaFileManager fileManager =
+				compiler.getStandardFileManager(diagnostics, null, null);
+			Iterable<? extends JavaFileObject> compilationUnits = fileManager
+				.getJavaFileObjectsFromStrings(Arrays.asList("Program.java"));
+			JavaCompiler.CompilationTask task = compiler.getTask(null,
+				fileManager, diagnostics, null, null, compilationUnits);
+			ok = task.call();
+			end(event, ok);
+			if (ok)
+				icLoader = new ICClassLoader();
+			else
+				for(Diagnostic d : diagnostics.getDiagnostics()) {
+					errors.add(d.getMessage(null));
+				}
+		}
+		if (icLoader != null) {
+			// load into memory
+			event = begin("define", name);
+			try {
+				Class<?> program = icLoader.loadClass("Program");
+				instance = (BotballProgram)program.newInstance();
+			} finally {
+				end(event, instance != null);
+			}
+			instance._setSim(host, host.getEnvironment().getFirstRobot());
+			// moved down to avoid dup message if loading fails
+			host.print("Compile succeeded.\n");
+		} else {
+			for (String error : errors)
+				host.print(error + "\n");
+			host.print("Compile failed.\n");
+		}
+		new File("Program.class").delete();
+		return instance;
+	}
+
+	// Compiles translated code with BytecodeCompiler, or returns null (and
+	//  notes why) if it cannot.
+	private static byte[] bytecode(String code, String name, List<String> errors) {
+		byte[] program = null;
+		SimEvents.Compile event = begin("bytecode", name);
+		try {
+			program = BytecodeCompiler.compile(code);
+		} catch (BytecodeCompiler.CompileError e) {
+			errors.add(e.getMessage());
+		} finally {
+			end(event, program != null);
+		}
+		return program;
+	}
+
+	/**
+	 * Compiles many programs together. Programs which fail to translate or
+	 *  compile do not stop the others; their messages are kept with them.
+	 * 
+	 * @param sources the IC/C source files
+	 * @return the result for each file, in the same order
+	 * @throws IOException if the compiler cannot be set up
+	 */
+	public static List<Submission> compileAll(List<File> sources) throws IOException {
+		return compileAll(sources, null);
+	}
+
+	/**
+	 * Compiles many programs together, each with some of its #defines given
+	 *  new values. The same file may be listed many times with different
+	 *  values, to compile variants of one program in one go.
+	 * 
+	 * @param sources the IC/C source files
+	 * @param defines for each file, new macro bodies by name (or null for
+	 *  none); null if no file has any
+	 * @return the result for each file, in the same order
+	 * @throws IOException if the compiler cannot be set up
+	 */
+	public static List<Submission> compileAll(List<File> sources,
+			List<Map<String, String>> defines) throws IOException {
+		if (defines != null && defines.size() != sources.size())
+			throw new IllegalArgumentException("Defines given for " + defines.size() +
+				" programs, not " + sources.size());
+		List<Submission> all = new ArrayList<Submission>(sources.size());
+		List<Submission> parsed = new ArrayList<Submission>(sources.size());
+		// translate each into its own package
+		for (File source : sources) {
+			Submission s = new Submission(source, "submission" + all.size());
+			all.add(s);
+			SimEvents.Compile event = begin("parse", source.getName());
+			try {
+				StringWriter w = new StringWriter(8192);
+				Reader r = new FileReader(source);
+				try {
+					CodeParser.syntax(source, r, w, s.pkg, defines == null ? null :
+						defines.get(all.size() - 1));
+				} finally {
+					r.close();
+				}
+				s.code = w.toString();
+			} catch (Exception e) {
+				s.report(e.getMessage() == null ? e.toString() : e.getMessage(), true);
+			} finally {
+				end(event, !s.failed);
+			}
+			if (s.failed) continue;
+			// most programs need nothing more than this
+			List<String> errors = new ArrayList<String>(1);
+			byte[] program = BACKEND.equals("javac") ? null : bytecode(s.code, source.getName(),
+				errors);
+			if (program != null) {
+				s.classes.put(s.pkg + ".Program", program);
+				s.code = null;
+			} else if (BACKEND.equals("bytecode")) {
+				s.report(errors.get(0), true);
+				s.code = null;
+			} else
+				parsed.add(s);
+		}
+		if (parsed.isEmpty()) return all;
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		if (compiler == null) {
+			for (Submission s : parsed) {
+				s.code = null;
+				s.report("No Java compiler is available.", true);
+			}
+			return all;
+		}
+		StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
+		try {
+			javac(compiler, fileManager, parsed);
+			// javac may stop writing classes once any unit has errors, and a
+			//  retry may find errors in units it never got to, so the clean
+			//  programs left without classes are compiled again while that
+			//  gets anywhere, then one at a time
+			List<Submission> left = unwritten(parsed);
+			int before = parsed.size();
+			while (!left.isEmpty() && left.size() < before) {
+				before = left.size();
+				javac(compiler, fileManager, left);
+				left = unwritten(left);
+			}
+			for (Submission s : left)
+				javac(compiler, fileManager, Collections.singletonList(s));
+		} finally {
+			fileManager.close();
+		}
+		for (Submission s : parsed) {
+			s.code = null;
+			if (!s.failed && !s.isCompiled())
+				s.report("No class file was written.", true);
+		}
+		return all;
+	}
+
+	// Gets the programs without errors which have no class yet, forgetting
+	//  their warnings (they will be reported again when they are compiled).
+	private static List<Submission> unwritten(List<Submission> programs) {
+		List<Submission> left = new ArrayList<Submission>(programs.size());
+		for (Submission s : programs)
+			if (!s.failed && !s.isCompiled()) {
+				s.diagnostics.clear();
+				left.add(s);
+			}
+		return left;
+	}
+
+	// Runs one javac task over the given programs, filing messages by program.
+	private static void javac(JavaCompiler compiler, StandardJavaFileManager fileManager,
+			final List<Submission> programs) {
+		if (programs.isEmpty()) return;
+		Map<String, Submission> packages = new HashMap<String, Submission>(programs.size() * 2);
+		List<JavaFileObject> units = new ArrayList<JavaFileObject>(programs.size());
+		for (Submission s : programs) {
+			packages.put(s.pkg, s);
+			units.add(new Source(s));
+		}
+		DiagnosticListener<JavaFileObject> listener = new DiagnosticListener<JavaFileObject>() {
+			public void report(Diagnostic<? extends JavaFileObject> d) {
+				boolean error = d.getKind() == Diagnostic.Kind.ERROR;
+				if (d.getSource() instanceof Source)
+					((Source)d.getSource()).submission.report(d.getMessage(null), error);
+				else
+					// not about any one file, so everyone hears about it
+					for (Submission s : programs)
+						s.report(d.getMessage(null), error);
+			}
+		};
+		SimEvents.Compile event = begin("javac", programs.size() + " programs");
+		boolean ok = false;
+		try {
+			ok = compiler.getTask(null, new MemoryFileManager(fileManager, packages),
+				listener, null, null, units).call();
+		} finally {
+			end(event, ok);
+		}
+	}
+
+	// Starts timing a compile phase for Flight Recorder.
+	private static SimEvents.Compile begin(String phase, String source) {
+		SimEvents.Compile event = new SimEvents.Compile();
+		event.phase = phase;
+		event.source = source;
+		event.begin();
+		return event;
+	}
+
+	// Finishes timing a compile phase.
+	private static void end(SimEvents.Compile event, boolean succeeded) {
+		event.succeeded = succeeded;
+		event.commit();
+	}
+}
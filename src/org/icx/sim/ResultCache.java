@@ -0,0 +1,302 @@
+/*
+ * This file is part of JBSim.
+ * 
+ * JBSim is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * JBSim is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with JBSim.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.icx.sim;
+
+import java.io.*;
+import java.nio.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * Match results stored on disk by a hash of everything that goes into the
+ *  match, so that running the same program on the same board, robot, start
+ *  and seed again can return the old result instead.
+ * 
+ * The store is two append-only files in one directory: results.log holds
+ *  each key with its serialized result, and results.idx holds each key with
+ *  where its record starts in the log. The index is read into memory when
+ *  the cache is opened (16 bytes per entry), so lookups take one seek
+ *  however many results there are. Records are only ever added; a newer
+ *  result for the same key hides the older one.
+ * 
+ * Only matches which completed or failed to compile are stored; timeouts
+ *  and crashes may not happen again. Headless matches run on a lockstep
+ *  clock (see SimClock), so a key gives the same result every time, with
+ *  one exception: with "sim.safepoints" off, a program which loops without
+ *  calling the library runs beside the physics on the wall clock, and its
+ *  entry is only one sample of a run that cannot be repeated.
+ */
+public class ResultCache {
+	// Bumped whenever the key or record layout changes.
+	private static final String VERSION = "JBSim match cache 4";
+	// Size of a key (SHA-256) and of an index entry in bytes.
+	private static final int KEY_SIZE = 32;
+	private static final int ENTRY_SIZE = KEY_SIZE + 8;
+
+	// The log and the index.
+	private RandomAccessFile log;
+	private FileOutputStream index;
+	// Log offsets by the first 8 bytes of their keys, in an open addressed
+	//  table (0 is an empty slot, so offsets are stored plus 1).
+	private long[] keys;
+	private long[] offsets;
+	private int size;
+
+	/**
+	 * Opens (or creates) a cache in the given directory.
+	 * 
+	 * @param dir the directory holding the cache files
+	 * @throws IOException if the files cannot be opened
+	 */
+	public ResultCache(File dir) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create cache directory " + dir);
+		File indexFile = new File(dir, "results.idx");
+		log = new RandomAccessFile(new File(dir, "results.log"), "rw");
+		keys = new long[1024];
+		offsets = new long[1024];
+		size = 0;
+		long valid = readIndex(indexFile);
+		// drop half-written entries from a run that was killed
+		RandomAccessFile trim = new RandomAccessFile(indexFile, "rw");
+		try {
+			trim.setLength(valid);
+		} finally {
+			trim.close();
+		}
+		index = new FileOutputStream(indexFile, true);
+	}
+
+	// Reads the index into memory, returning the length of the good part.
+	private long readIndex(File indexFile) throws IOException {
+		if (!indexFile.exists()) return 0L;
+		long logLength = log.length(), valid = 0L;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+			indexFile), 65536));
+		byte[] key = new byte[KEY_SIZE];
+		try {
+			while (true) {
+				in.readFully(key);
+				long offset = in.readLong();
+				// an entry for a record which never made it to the log ends the index
+				if (offset < 0L || offset >= logLength) break;
+				insert(prefix(key), offset);
+				valid += ENTRY_SIZE;
+			}
+		} catch (EOFException e) {
+		} finally {
+			in.close();
+		}
+		return valid;
+	}
+
+	// Gets the first 8 bytes of a key.
+	private static long prefix(byte[] key) {
+		return ByteBuffer.wrap(key).getLong();
+	}
+
+	// Finds the slot of a key prefix, or the empty slot where it would go.
+	private int slot(long prefix) {
+		int mask = keys.length - 1, i = (int)(prefix ^ (prefix >>> 32)) & mask;
+		while (offsets[i] != 0L && keys[i] != prefix)
+			i = (i + 1) & mask;
+		return i;
+	}
+
+	// Adds or replaces the log offset for a key prefix.
+	private void insert(long prefix, long offset) {
+		if (size * 2 >= keys.length) {
+			long[] oldKeys = keys, oldOffsets = offsets;
+			keys = new long[oldKeys.length * 2];
+			offsets = new long[oldKeys.length * 2];
+			for (int i = 0; i < oldKeys.length; i++)
+				if (oldOffsets[i] != 0L) {
+					int j = slot(oldKeys[i]);
+					keys[j] = oldKeys[i];
+					offsets[j] = oldOffsets[i];
+				}
+		}
+		int i = slot(prefix);
+		if (offsets[i] == 0L) size++;
+		keys[i] = prefix;
+		offsets[i] = offset + 1L;
+	}
+
+	/**
+	 * Works out the key of a match: a hash of the translated program
+	 *  (includes and all), the board and collision model files, the robot's
+	 *  entries in robots.txt, the start, match length, seed, motor noise, goal
+	 *  and scripted inputs, the physics step and sub-step limit, and whether
+	 *  safepoints are added and instructions metered (workers get the same
+	 *  "sim.*" properties as this JVM).
+	 * 
+	 * @param job the match
+	 * @return the key
+	 * @throws IOException if a file cannot be read
+	 */
+	public static byte[] key(MatchJob job) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("SHA-256 is not available");
+		}
+		DataOutputStream out = new DataOutputStream(new DigestOutputStream(new OutputStream() {
+			public void write(int b) { }
+			public void write(byte[] b, int off, int len) { }
+		}, digest));
+		String robot = job.getRobot();
+		SortedMap<String, String> entry = RobotsFile.getParameters(robot + ".");
+		out.writeUTF(VERSION);
+		// the program as compiled, or as written if it does not translate
+		StringWriter code = new StringWriter(8192);
+		Reader r = new FileReader(job.getSource());
+		try {
+			CodeParser.syntax(job.getSource(), r, code, null);
+			out.writeUTF("translated");
+			out.write(code.toString().getBytes("UTF-8"));
+		} catch (Exception e) {
+			out.writeUTF("untranslatable");
+			hashFile(out, job.getSource());
+		} finally {
+			r.close();
+		}
+		hashFile(out, new File(job.getBoard()));
+		hashFile(out, new File("models", entry.get(robot + ".model") + ".txt"));
+		for (Map.Entry<String, String> e : entry.entrySet()) {
+			out.writeUTF(e.getKey());
+			out.writeUTF(e.getValue());
+		}
+		out.writeUTF(RobotsFile.getParameter("ips." + entry.get(robot + ".type"), ""));
+		out.writeUTF(RobotsFile.getParameter("create.radius", ""));
+		out.writeDouble(job.getStart().getX());
+		out.writeDouble(job.getStart().getY());
+		out.writeDouble(job.getStart().getTheta());
+		out.writeLong(job.getLength());
+		out.writeLong(job.getSeed());
+		out.writeDouble(job.getMotorNoise());
+		out.writeBoolean(job.getGoal() != null);
+		if (job.getGoal() != null) {
+			out.writeDouble(job.getGoal().getX());
+			out.writeDouble(job.getGoal().getY());
+			out.writeDouble(job.getGoalRadius());
+		}
+		StringWriter inputs = new StringWriter(256);
+		if (job.getInputs() != null)
+			job.getInputs().write(new PrintWriter(inputs));
+		out.writeUTF(inputs.toString());
+		out.writeInt(Integer.getInteger("sim.step", SimEngine.DEFAULT_STEP));
+		out.writeInt(Integer.getInteger("sim.substeps", SimEngine.DEFAULT_MAX_SUBSTEPS));
+		out.writeBoolean(!"false".equals(System.getProperty("sim.safepoints")));
+		out.writeBoolean(Boolean.getBoolean("sim.metering"));
+		out.close();
+		return digest.digest();
+	}
+
+	// Adds a file's length and contents to a hash (or a marker if it is missing).
+	private static void hashFile(DataOutputStream out, File file) throws IOException {
+		if (!file.isFile()) {
+			out.writeLong(-1L);
+			return;
+		}
+		out.writeLong(file.length());
+		InputStream in = new FileInputStream(file);
+		byte[] buffer = new byte[8192];
+		int n;
+		try {
+			while ((n = in.read(buffer)) > 0)
+				out.write(buffer, 0, n);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Looks up the stored result of a match.
+	 * 
+	 * @param key the key from key()
+	 * @return the result, or null if none is stored
+	 * @throws IOException if the log cannot be read
+	 */
+	public synchronized MatchResult get(byte[] key) throws IOException {
+		long offset = offsets[slot(prefix(key))] - 1L;
+		if (offset < 0L) return null;
+		log.seek(offset);
+		byte[] stored = new byte[KEY_SIZE];
+		log.readFully(stored);
+		// the prefixes matched; make sure the whole key does
+		if (!Arrays.equals(stored, key)) return null;
+		byte[] data = new byte[log.readInt()];
+		log.readFully(data);
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+		try {
+			return (MatchResult)in.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Damaged result in cache");
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Stores the result of a match, if it is worth keeping.
+	 * 
+	 * @param key the key from key()
+	 * @param result the result
+	 * @throws IOException if the files cannot be written
+	 */
+	public synchronized void put(byte[] key, MatchResult result) throws IOException {
+		MatchResult.Status status = result.getStatus();
+		if (status != MatchResult.Status.COMPLETED && status != MatchResult.Status.COMPILE_FAILED)
+			return;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(result);
+		out.close();
+		// the record goes in the log before the index points at it
+		long offset = log.length();
+		log.seek(offset);
+		log.write(key);
+		log.writeInt(bytes.size());
+		log.write(bytes.toByteArray());
+		ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+		entry.put(key).putLong(offset);
+		index.write(entry.array());
+		index.flush();
+		insert(prefix(key), offset);
+	}
+
+	/**
+	 * Gets the number of keys stored.
+	 * 
+	 * @return the number of results
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Closes the cache files.
+	 * 
+	 * @throws IOException if the files cannot be closed
+	 */
+	public synchronized void close() throws IOException {
+		log.close();
+		index.close();
+	}
+}
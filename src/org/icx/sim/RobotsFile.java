@@ -56,6 +56,21 @@ public class RobotsFile {
 			return 0l;
 		}
 	}
+	/**
+	 * Gets the specified parameter as a long, with the specified default.
+	 * 
+	 * @param name the parameter name
+	 * @param def the default value if the parameter is not defined
+	 * @return its value as a long
+	 */
+	public static long getParameterLong(String name, long def) {
+		try {
+			return Long.parseLong(getParameter(name, Long.toString(def)));
+		} catch (NumberFormatException e) {
+			Simulator.die("In robots.txt, parameter " + name + " must be a number.");
+			return def;
+		}
+	}
 	/**
 	 * Gets the specified parameter as a float.
 	 * 
@@ -70,6 +85,21 @@ public class RobotsFile {
 			return 0.f;
 		}
 	}
+	/**
+	 * Gets the specified parameter as a float, with the specified default.
+	 * 
+	 * @param name the parameter name
+	 * @param def the default value if the parameter is not defined
+	 * @return its value as a float
+	 */
+	public static float getParameterFloat(String name, float def) {
+		try {
+			return Float.parseFloat(getParameter(name, Float.toString(def)));
+		} catch (NumberFormatException e) {
+			Simulator.die("In robots.txt, parameter " + name + " must be a number.");
+			return def;
+		}
+	}
 	/**
 	 * Gets the specified parameter as a double.
 	 * 
@@ -110,6 +140,20 @@ public class RobotsFile {
 		if (prop.length() < 1) return def;
 		return prop;
 	}
+	/**
+	 * Gets all parameters whose names start with the given prefix.
+	 * 
+	 * @param prefix the start of the names (e.g. "cbc2.")
+	 * @return the parameters and their values, sorted by name
+	 */
+	public static SortedMap<String, String> getParameters(String prefix) {
+		if (data == null) readFile();
+		SortedMap<String, String> found = new TreeMap<String, String>();
+		for (String name : data.stringPropertyNames())
+			if (name.startsWith(prefix))
+				found.put(name, data.getProperty(name).trim());
+		return found;
+	}
 	/**
 	 * Fetches an array of enabled robot designs.
 	 * 
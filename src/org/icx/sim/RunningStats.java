@@ -0,0 +1,247 @@
+/*
+ * This file is part of JBSim.
+ * 
+ * JBSim is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * JBSim is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with JBSim.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.icx.sim;
+
+import java.util.*;
+
+/**
+ * Count, mean, spread, range and chosen quantiles of a stream of numbers,
+ *  kept without storing the numbers, so that any number of runs can be
+ *  summed up in the same small space. The mean and variance are updated
+ *  one value at a time (Welford's method). Quantiles are worked out exactly
+ *  from the first 50 values, and after that estimated with the P-squared
+ *  method (Jain and Chlamtac), which tracks five markers per quantile.
+ * 
+ * Values may be added from several threads at once.
+ */
+public class RunningStats {
+	// Values kept to give exact quantiles for small counts.
+	private static final int EXACT = 50;
+
+	// Values added so far.
+	private long count;
+	// Running mean and sum of squared differences from it.
+	private double mean;
+	private double m2;
+	// Smallest and largest values.
+	private double min;
+	private double max;
+	// Quantile estimators, in the order given.
+	private Quantile[] quantiles;
+	// The first values, while there are few enough to keep.
+	private double[] first;
+
+	/**
+	 * Creates an empty set of statistics.
+	 * 
+	 * @param quantiles the quantiles to estimate (0.5 is the median), each
+	 *  between 0 and 1
+	 */
+	public RunningStats(double... quantiles) {
+		count = 0L;
+		mean = m2 = 0.;
+		min = Double.POSITIVE_INFINITY;
+		max = Double.NEGATIVE_INFINITY;
+		first = new double[EXACT];
+		this.quantiles = new Quantile[quantiles.length];
+		for (int i = 0; i < quantiles.length; i++) {
+			if (quantiles[i] < 0. || quantiles[i] > 1.)
+				throw new IllegalArgumentException("Quantile " + quantiles[i] + " is not between 0 and 1");
+			this.quantiles[i] = new Quantile(quantiles[i]);
+		}
+	}
+
+	/**
+	 * Adds a value.
+	 * 
+	 * @param x the value
+	 */
+	public synchronized void add(double x) {
+		count++;
+		double delta = x - mean;
+		mean += delta / count;
+		m2 += delta * (x - mean);
+		if (x < min) min = x;
+		if (x > max) max = x;
+		if (count <= EXACT) first[(int)count - 1] = x;
+		for (Quantile q : quantiles)
+			q.add(x);
+	}
+
+	/**
+	 * Gets the number of values added.
+	 * 
+	 * @return the count
+	 */
+	public synchronized long getCount() {
+		return count;
+	}
+
+	/**
+	 * Gets the mean of the values.
+	 * 
+	 * @return the mean, or NaN if there are none
+	 */
+	public synchronized double getMean() {
+		return count < 1L ? Double.NaN : mean;
+	}
+
+	/**
+	 * Gets the sample standard deviation of the values.
+	 * 
+	 * @return the standard deviation, or NaN if there are fewer than two
+	 */
+	public synchronized double getStdDev() {
+		return count < 2L ? Double.NaN : Math.sqrt(m2 / (count - 1L));
+	}
+
+	/**
+	 * Gets the smallest value.
+	 * 
+	 * @return the minimum, or NaN if there are none
+	 */
+	public synchronized double getMin() {
+		return count < 1L ? Double.NaN : min;
+	}
+
+	/**
+	 * Gets the largest value.
+	 * 
+	 * @return the maximum, or NaN if there are none
+	 */
+	public synchronized double getMax() {
+		return count < 1L ? Double.NaN : max;
+	}
+
+	/**
+	 * Gets the estimate of a quantile given to the constructor.
+	 * 
+	 * @param p the quantile
+	 * @return the estimate, or NaN if there are no values
+	 * @throws IllegalArgumentException if the quantile is not being estimated
+	 */
+	public synchronized double getQuantile(double p) {
+		for (Quantile q : quantiles)
+			if (q.p == p)
+				return quantile(q);
+		throw new IllegalArgumentException("Quantile " + p + " is not being estimated");
+	}
+
+	public synchronized String toString() {
+		if (count < 1L) return "no values";
+		StringBuilder out = new StringBuilder(128);
+		out.append(String.format("mean %.2f", mean));
+		if (count > 1L)
+			out.append(String.format(" sd %.2f", getStdDev()));
+		out.append(String.format(", min %.2f", min));
+		for (Quantile q : quantiles)
+			out.append(String.format(", p%s %.2f", percent(q.p), quantile(q)));
+		out.append(String.format(", max %.2f (n=%d)", max, count));
+		return out.toString();
+	}
+
+	// Gets a quantile, exactly if the values are still kept.
+	private double quantile(Quantile q) {
+		if (count < 1L) return Double.NaN;
+		if (count > EXACT) return q.get();
+		double[] sorted = Arrays.copyOf(first, (int)count);
+		Arrays.sort(sorted);
+		return sorted[(int)Math.round(q.p * (count - 1L))];
+	}
+
+	// Writes a quantile as a percentage without a needless ".0".
+	private static String percent(double p) {
+		double pct = p * 100.;
+		if (pct == Math.rint(pct)) return Integer.toString((int)pct);
+		return Double.toString(pct);
+	}
+
+	/**
+	 * A P-squared estimator of one quantile.
+	 */
+	private static class Quantile {
+		// The quantile estimated.
+		private double p;
+		// Marker heights, actual positions (from 1), desired positions and
+		//  how far each desired position moves per value.
+		private double[] q;
+		private double[] n;
+		private double[] want;
+		private double[] step;
+		// Values seen, while there are fewer than five.
+		private int seen;
+
+		public Quantile(double p) {
+			this.p = p;
+			q = new double[5];
+			n = new double[] { 1., 2., 3., 4., 5. };
+			want = new double[] { 1., 1. + 2. * p, 1. + 4. * p, 3. + 2. * p, 5. };
+			step = new double[] { 0., p / 2., p, (1. + p) / 2., 1. };
+			seen = 0;
+		}
+
+		// Adds a value.
+		public void add(double x) {
+			if (seen < 5) {
+				q[seen++] = x;
+				if (seen == 5) Arrays.sort(q);
+				return;
+			}
+			// find the cell the value falls in, stretching the ends if need be
+			int k;
+			if (x < q[0]) {
+				q[0] = x;
+				k = 0;
+			} else if (x >= q[4]) {
+				q[4] = x;
+				k = 3;
+			} else {
+				k = 0;
+				while (x >= q[k + 1]) k++;
+			}
+			for (int i = k + 1; i < 5; i++)
+				n[i]++;
+			for (int i = 0; i < 5; i++)
+				want[i] += step[i];
+			// move the middle markers toward where they should be
+			for (int i = 1; i < 4; i++) {
+				double d = want[i] - n[i];
+				if ((d >= 1. && n[i + 1] - n[i] > 1.) || (d <= -1. && n[i - 1] - n[i] < -1.)) {
+					int s = d > 0. ? 1 : -1;
+					double h = parabolic(i, s);
+					if (q[i - 1] < h && h < q[i + 1])
+						q[i] = h;
+					else
+						q[i] += s * (q[i + s] - q[i]) / (n[i + s] - n[i]);
+					n[i] += s;
+				}
+			}
+		}
+
+		// Predicts a marker's new height from its neighbors.
+		private double parabolic(int i, int s) {
+			return q[i] + s / (n[i + 1] - n[i - 1]) * ((n[i] - n[i - 1] + s) * (q[i + 1] - q[i]) /
+				(n[i + 1] - n[i]) + (n[i + 1] - n[i] - s) * (q[i] - q[i - 1]) / (n[i] - n[i - 1]));
+		}
+
+		// Gets the estimate, once there have been at least five values.
+		public double get() {
+			return q[2];
+		}
+	}
+}
@@ -217,15 +217,17 @@ public abstract class Sensor {
 	protected abstract int realValue(Environment env);
 
 	/**
-	 * Returns a random sensor value in the given bounds.
+	 * Returns a random sensor value in the given bounds. The values come from
+	 *  the parent robot, so they repeat when its seed is set and carry on
+	 *  where they were when it is restored from a snapshot.
 	 * 
 	 * @param low the lower bound
 	 * @param high the upper bound
 	 * @return a value between those bounds inclusive
 	 */
 	public int random(int low, int high) {
-		// Find a way to replicate these outputs?
-		//  But if you're using random in the first place, you want it to be random, right?
+		SimRobot parent = robot;
+		if (parent != null) return parent.sensorNoise(low, high);
 		return (int)Math.floor(Math.random() * (high - low + 1) + low);
 	}
 }
\ No newline at end of file
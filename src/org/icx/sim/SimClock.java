@@ -0,0 +1,202 @@
+/*
+ * This file is part of JBSim.
+ * 
+ * JBSim is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * JBSim is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with JBSim.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.icx.sim;
+
+import java.util.*;
+
+/**
+ * The clock programs keep time by when a headless simulator steps the
+ *  physics in lockstep with them, in place of the wall clock. One process of
+ *  the program runs at a time, until it waits for simulated time to pass
+ *  (in msleep(), defer() and the like); then the next process whose time
+ *  has come takes its turn, earliest wake-up first and then in the order
+ *  the processes were started. Once every process is waiting, the physics
+ *  is stepped straight to the earliest time any of them wants.
+ * 
+ * So a match goes the same way every time it is run with the same seed and
+ *  inputs, and takes only as long as its computing does rather than as long
+ *  as the match. A process which never waits is held back now and then by
+ *  BotballProgram so that time can pass; one which loops without even
+ *  reaching a safepoint (with "sim.safepoints" off) is given up on after a
+ *  second, and the physics then runs beside it as it would on the wall clock.
+ */
+public class SimClock {
+	// Stop waiting for the running process after this many ms on the wall clock.
+	private static final long STALL = 1000L;
+
+	// The engine whose simulated time this is.
+	private SimEngine engine;
+	// Order in which each process joined, to break ties, and the next number.
+	private Map<Thread, Long> order;
+	private long joined;
+	// Processes waiting for a time, and the time each wants.
+	private Map<Thread, Long> sleeping;
+	// Processes whose time has come, in the order they get their turn.
+	private LinkedList<Thread> ready;
+	// Processes killed while waiting, which run on freely until they end.
+	private Set<Thread> dying;
+	// The process running now, or null if none is.
+	private Thread turn;
+
+	/**
+	 * Creates a clock which follows the simulated time of an engine.
+	 * 
+	 * @param engine the physics engine
+	 */
+	public SimClock(SimEngine engine) {
+		this.engine = engine;
+		order = new HashMap<Thread, Long>(8);
+		joined = 0L;
+		sleeping = new HashMap<Thread, Long>(8);
+		ready = new LinkedList<Thread>();
+		dying = new HashSet<Thread>(4);
+		turn = null;
+	}
+
+	/**
+	 * Gets the time.
+	 * 
+	 * @return the simulated time in milliseconds
+	 */
+	public long now() {
+		return engine.getSimTime();
+	}
+
+	/**
+	 * Adds a process, which gets a turn after those already waiting for
+	 *  one. Call this before starting its thread.
+	 * 
+	 * @param process the thread of the new process
+	 */
+	public synchronized void join(Thread process) {
+		order.put(process, joined++);
+		ready.add(process);
+		pass();
+	}
+
+	/**
+	 * Waits for the calling process to get its first turn.
+	 * 
+	 * @throws InterruptedException if the process is killed first
+	 */
+	public synchronized void begin() throws InterruptedException {
+		take(Thread.currentThread());
+	}
+
+	/**
+	 * Takes out the calling process as it ends, passing on its turn.
+	 */
+	public synchronized void leave() {
+		Thread process = Thread.currentThread();
+		dying.remove(process);
+		drop(process);
+	}
+
+	/**
+	 * Waits until the clock reaches the given time, letting the other
+	 *  processes and the physics run meanwhile. A time which has already
+	 *  come only lets the others have a turn. Threads which are not processes
+	 *  of the program return at once.
+	 * 
+	 * @param time the simulated time to wait for in milliseconds
+	 * @throws InterruptedException if the process is killed while waiting
+	 */
+	public synchronized void await(long time) throws InterruptedException {
+		Thread process = Thread.currentThread();
+		if (!order.containsKey(process)) return;
+		if (time <= now())
+			ready.add(process);
+		else
+			sleeping.put(process, time);
+		if (turn == process) turn = null;
+		pass();
+		take(process);
+	}
+
+	/**
+	 * Waits until no process is running, which is when the physics can be
+	 *  stepped. Called by the simulator between steps.
+	 * 
+	 * @return the earliest time a process is waiting for, Long.MAX_VALUE if
+	 *  none is, or the next millisecond if the running process was given up on
+	 * @throws InterruptedException if the simulator is interrupted
+	 */
+	public synchronized long settle() throws InterruptedException {
+		long giveUp = System.currentTimeMillis() + STALL, left;
+		while (turn != null || !ready.isEmpty() || !dying.isEmpty()) {
+			left = giveUp - System.currentTimeMillis();
+			if (left <= 0L) return now() + 1L;
+			wait(left);
+		}
+		long next = Long.MAX_VALUE;
+		for (long time : sleeping.values())
+			next = Math.min(next, time);
+		return next;
+	}
+
+	/**
+	 * Wakes the processes whose time has come, once the physics has been
+	 *  stepped up to it. Called by the simulator.
+	 */
+	public synchronized void wake() {
+		long now = now();
+		List<Thread> due = new ArrayList<Thread>(sleeping.size());
+		for (Map.Entry<Thread, Long> e : sleeping.entrySet())
+			if (e.getValue() <= now)
+				due.add(e.getKey());
+		Collections.sort(due, new Comparator<Thread>() {
+			public int compare(Thread a, Thread b) {
+				int c = sleeping.get(a).compareTo(sleeping.get(b));
+				return c != 0 ? c : order.get(a).compareTo(order.get(b));
+			}
+		});
+		for (Thread process : due)
+			sleeping.remove(process);
+		ready.addAll(due);
+		pass();
+	}
+
+	// Waits for a process's turn; if it is killed meanwhile, it runs on
+	//  freely until it ends.
+	private void take(Thread process) throws InterruptedException {
+		try {
+			while (turn != process)
+				wait();
+		} catch (InterruptedException e) {
+			drop(process);
+			dying.add(process);
+			throw e;
+		}
+	}
+
+	// Takes a process out of the turns.
+	private void drop(Thread process) {
+		order.remove(process);
+		sleeping.remove(process);
+		ready.remove(process);
+		if (turn == process) turn = null;
+		pass();
+	}
+
+	// Gives the turn to the next ready process if nobody has it.
+	private void pass() {
+		if (turn == null && !ready.isEmpty())
+			turn = ready.removeFirst();
+		notifyAll();
+	}
+}
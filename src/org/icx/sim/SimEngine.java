@@ -0,0 +1,263 @@
+/*
+ * This file is part of JBSim.
+ * 
+ * JBSim is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * JBSim is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with JBSim.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.icx.sim;
+
+import java.util.*;
+
+/**
+ * Advances the simulation in fixed physics steps. Wall clock time handed to
+ *  advance() is banked in an accumulator and spent one step at a time, so the
+ *  outcome of a run no longer depends on how fast the host machine is.
+ * 
+ * The step size and the maximum number of sub-steps taken per advance() can
+ *  be changed to trade accuracy against throughput. They default to the
+ *  "sim.step" (ms) and "sim.substeps" system properties if those are set.
+ */
+public class SimEngine {
+	// Default physics step in milliseconds.
+	public static final int DEFAULT_STEP = 1;
+	// Default cap on the number of steps run by a single advance().
+	public static final int DEFAULT_MAX_SUBSTEPS = 100;
+
+	// The world being simulated.
+	private Environment env;
+	// Physics step in ms, and the same in ns for the accumulator.
+	private int step;
+	private long stepNanos;
+	// At most this many steps are taken per call to advance().
+	private int maxSubSteps;
+	// Wall clock time (ns) not yet turned into physics steps.
+	private long accumulator;
+	// Number of steps taken so far.
+	private volatile long ticks;
+	// Simulated time in ms (ticks * step if the step is never changed).
+	private volatile long simTime;
+	// Step timings.
+	private SimMetrics metrics;
+
+	/**
+	 * Creates a physics engine for the given environment.
+	 * 
+	 * @param env the environment to simulate
+	 */
+	public SimEngine(Environment env) {
+		this.env = env;
+		setStep(Integer.getInteger("sim.step", DEFAULT_STEP));
+		setMaxSubSteps(Integer.getInteger("sim.substeps", DEFAULT_MAX_SUBSTEPS));
+		ticks = simTime = 0L;
+		accumulator = 0L;
+		metrics = new SimMetrics(this);
+	}
+
+	/**
+	 * Gets the timings of the simulation loop.
+	 * 
+	 * @return the metrics for this engine
+	 */
+	public SimMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Gets the physics step.
+	 * 
+	 * @return the step size in milliseconds
+	 */
+	public int getStep() {
+		return step;
+	}
+
+	/**
+	 * Changes the physics step. Smaller steps are more accurate but cost more
+	 *  wall clock time per simulated second.
+	 * 
+	 * @param step the new step size in milliseconds (at least 1)
+	 */
+	public synchronized void setStep(int step) {
+		this.step = Math.max(1, step);
+		stepNanos = this.step * 1000000L;
+		accumulator = 0L;
+	}
+
+	/**
+	 * Gets the sub-step limit.
+	 * 
+	 * @return the maximum number of steps taken by one call to advance()
+	 */
+	public int getMaxSubSteps() {
+		return maxSubSteps;
+	}
+
+	/**
+	 * Changes the sub-step limit. If the host falls further behind than this,
+	 *  the backlog is dropped and the simulation runs slower than real time
+	 *  instead of trying to catch up forever.
+	 * 
+	 * @param maxSubSteps the maximum number of steps per advance() (at least 1)
+	 */
+	public synchronized void setMaxSubSteps(int maxSubSteps) {
+		this.maxSubSteps = Math.max(1, maxSubSteps);
+	}
+
+	/**
+	 * Gets the number of physics steps taken so far.
+	 * 
+	 * @return the tick count
+	 */
+	public long getTicks() {
+		return ticks;
+	}
+
+	/**
+	 * Gets the simulated time.
+	 * 
+	 * @return the time in milliseconds covered by the steps taken so far
+	 */
+	public long getSimTime() {
+		return simTime;
+	}
+
+	/**
+	 * Sets the clock, when restoring a snapshot.
+	 * 
+	 * @param ticks the number of steps taken
+	 * @param simTime the simulated time in milliseconds
+	 */
+	synchronized void setTime(long ticks, long simTime) {
+		this.ticks = ticks;
+		this.simTime = simTime;
+		accumulator = 0L;
+	}
+
+	/**
+	 * Gets how far the accumulator is into the next step, for interpolating
+	 *  the display between the last two physics states.
+	 * 
+	 * @return a value from 0 (last state) to 1 (next state)
+	 */
+	public synchronized float getAlpha() {
+		return (float)accumulator / (float)stepNanos;
+	}
+
+	/**
+	 * Throws away any banked time. Used when the simulation is paused so
+	 *  that it does not race forward when resumed.
+	 */
+	public synchronized void resetAccumulator() {
+		accumulator = 0L;
+	}
+
+	/**
+	 * Advances the simulation by the given wall clock time, running as many
+	 *  fixed steps as fit (up to the sub-step limit).
+	 * 
+	 * @param elapsed the wall clock time elapsed in nanoseconds
+	 * @return the number of steps run
+	 */
+	public synchronized int advance(long elapsed) {
+		int steps = 0;
+		accumulator += Math.max(0L, elapsed);
+		while (accumulator >= stepNanos && steps < maxSubSteps) {
+			step();
+			accumulator -= stepNanos;
+			steps++;
+		}
+		// fell too far behind: drop the backlog but keep the fractional part
+		if (accumulator >= stepNanos)
+			accumulator %= stepNanos;
+		return steps;
+	}
+
+	/**
+	 * Runs exactly one physics step.
+	 */
+	public synchronized void step() {
+		if (metrics.isEnabled()) {
+			timedStep();
+			return;
+		}
+		List<SimObject> hits;
+		SimEvents.Tick event = new SimEvents.Tick();
+		event.begin();
+		for (SimRobot bot : env.getRobots()) {
+			SimEvents.Collision query = new SimEvents.Collision();
+			bot.savePrevious();
+			hits = collide(bot, query);
+			bot.move(step, hits);
+			commit(query, bot, hits);
+			bot.updateCreatePacket(ticks + 1);
+		}
+		ticks++;
+		simTime += step;
+		commit(event);
+	}
+
+	// Runs one physics step, timing each phase.
+	private void timedStep() {
+		long start = System.nanoTime(), phase;
+		List<SimObject> hits;
+		SimEvents.Tick event = new SimEvents.Tick();
+		event.begin();
+		for (SimRobot bot : env.getRobots()) {
+			bot.savePrevious();
+			SimEvents.Collision query = new SimEvents.Collision();
+			phase = System.nanoTime();
+			hits = collide(bot, query);
+			metrics.record(SimMetrics.Phase.COLLISION, bot, phase);
+			phase = System.nanoTime();
+			bot.move(step, hits);
+			metrics.record(SimMetrics.Phase.MOVEMENT, bot, phase);
+			commit(query, bot, hits);
+			// sensor reads time themselves
+			bot.updateCreatePacket(ticks + 1);
+		}
+		ticks++;
+		simTime += step;
+		metrics.record(SimMetrics.Phase.TICK, null, start);
+		commit(event);
+	}
+
+	// Finds what a robot hits this step, timing the query for Flight Recorder.
+	private List<SimObject> collide(SimRobot bot, SimEvents.Collision event) {
+		event.begin();
+		List<SimObject> hits = bot.collide(step);
+		event.end();
+		return hits;
+	}
+
+	// Records a collision query once the robot has moved, so that the counts
+	//  include any sweeps made while it slid.
+	private void commit(SimEvents.Collision event, SimRobot bot, List<SimObject> hits) {
+		if (event.shouldCommit()) {
+			event.robot = bot.getController();
+			event.candidates = bot.getCandidateCount();
+			event.exactTests = bot.getExactTestCount();
+			event.hits = hits.size();
+			event.commit();
+		}
+	}
+
+	// Records a finished step for Flight Recorder.
+	private void commit(SimEvents.Tick event) {
+		if (event.shouldCommit()) {
+			event.tick = ticks;
+			event.robots = env.getRobots().size();
+			event.commit();
+		}
+	}
+}
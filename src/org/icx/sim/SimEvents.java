@@ -0,0 +1,140 @@
+/*
+ * This file is part of JBSim.
+ * 
+ * JBSim is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * JBSim is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with JBSim.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.icx.sim;
+
+import jdk.jfr.*;
+
+/**
+ * Java Flight Recorder events for the simulation and user programs. Start
+ *  a recording (e.g. with -XX:StartFlightRecording) and open it in JDK
+ *  Mission Control to see them under "JBSim".
+ * 
+ * Events are created and committed in the usual JFR way; while nothing is
+ *  being recorded, commit() does nothing and the JIT removes the event.
+ *  Ticks, collision queries and sensor reads come thousands of times a
+ *  second, so they are off unless turned on in the recording settings, e.g.
+ *  -XX:StartFlightRecording:settings=profile,+org.icx.sim.Tick#enabled=true
+ */
+public final class SimEvents {
+	private SimEvents() { }
+
+	/**
+	 * One physics step of the engine.
+	 */
+	@Name("org.icx.sim.Tick")
+	@Enabled(false)
+	@Label("Physics Tick")
+	@Category({"JBSim", "Physics"})
+	@StackTrace(false)
+	public static class Tick extends Event {
+		@Label("Tick")
+		public long tick;
+		@Label("Robots")
+		public int robots;
+	}
+
+	/**
+	 * Finding what a robot hits in one step. The counts include the sweeps
+	 *  made while the robot slides along what it hit as it moves.
+	 */
+	@Name("org.icx.sim.Collision")
+	@Enabled(false)
+	@Label("Collision Query")
+	@Category({"JBSim", "Physics"})
+	@StackTrace(false)
+	public static class Collision extends Event {
+		@Label("Robot")
+		public String robot;
+		@Label("Candidates")
+		@Description("Objects whose bounds overlap the path swept by the robot")
+		public int candidates;
+		@Label("Exact Tests")
+		@Description("Shape intersections computed against candidates")
+		public int exactTests;
+		@Label("Hits")
+		public int hits;
+	}
+
+	/**
+	 * A read of a simulated sensor.
+	 */
+	@Name("org.icx.sim.SensorRead")
+	@Enabled(false)
+	@Label("Sensor Read")
+	@Category({"JBSim", "Program"})
+	@StackTrace(false)
+	public static class SensorRead extends Event {
+		@Label("Robot")
+		public String robot;
+		@Label("Port")
+		public int port;
+		@Label("Create Sensor")
+		public boolean auxiliary;
+		@Label("Value")
+		public int value;
+	}
+
+	/**
+	 * A user process being started or killed.
+	 */
+	@Name("org.icx.sim.Process")
+	@Label("User Process")
+	@Category({"JBSim", "Program"})
+	public static class Process extends Event {
+		@Label("Robot")
+		public String robot;
+		@Label("Function")
+		public String function;
+		@Label("Process ID")
+		public int id;
+		@Label("Killed")
+		public boolean killed;
+	}
+
+	/**
+	 * A program waiting in msleep() or sleep().
+	 */
+	@Name("org.icx.sim.Sleep")
+	@Label("Program Sleep")
+	@Category({"JBSim", "Program"})
+	@StackTrace(false)
+	public static class Sleep extends Event {
+		@Label("Robot")
+		public String robot;
+		@Label("Requested")
+		@Timespan(Timespan.MILLISECONDS)
+		public long requested;
+	}
+
+	/**
+	 * One phase of compiling a program.
+	 */
+	@Name("org.icx.sim.Compile")
+	@Label("Compile Phase")
+	@Category({"JBSim", "Compiler"})
+	@StackTrace(false)
+	public static class Compile extends Event {
+		@Label("Phase")
+		@Description("parse (IC/C to Java), javac, or define (class loading)")
+		public String phase;
+		@Label("Source")
+		public String source;
+		@Label("Succeeded")
+		public boolean succeeded;
+	}
+}
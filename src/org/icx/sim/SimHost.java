@@ -0,0 +1,166 @@
+/*
+ * This file is part of JBSim.
+ * 
+ * JBSim is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * JBSim is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with JBSim.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.icx.sim;
+
+/**
+ * Whatever runs a simulation: the windowed Simulator, or a HeadlessSimulator
+ *  for batch runs. Robots and programs only talk to the simulation through
+ *  this interface, so they work the same under either.
+ */
+public interface SimHost {
+	/**
+	 * Gets the simulation environment.
+	 * 
+	 * @return the environment of robots and objects
+	 */
+	public Environment getEnvironment();
+
+	/**
+	 * Gets the physics engine.
+	 * 
+	 * @return the engine which moves the robots
+	 */
+	public SimEngine getEngine();
+
+	/**
+	 * Gets the clock which programs keep time by, if the physics is stepped
+	 *  in lockstep with them.
+	 * 
+	 * @return the clock, or null if programs follow the wall clock
+	 */
+	public SimClock getClock();
+
+	/**
+	 * Gets the event log.
+	 * 
+	 * @return the log of collisions, sensor trips and processes
+	 */
+	public SimLog getLog();
+
+	/**
+	 * Adds an object to the simulation (wall, static, etc.)
+	 * 
+	 * @param obj the object to add
+	 */
+	public void add(StaticObject obj);
+
+	/**
+	 * Returns whether the simulator is paused.
+	 * 
+	 * @return pause status
+	 */
+	public boolean isPaused();
+
+	/**
+	 * Pauses the simulator.
+	 */
+	public void pause();
+
+	/**
+	 * Prints the text to the LCD, and auto flushes.
+	 * 
+	 * @param text the text to print
+	 */
+	public void print(String text);
+
+	/**
+	 * Prints the text to the LCD, possibly refreshing.
+	 * 
+	 * @param text the text to print
+	 * @param flush whether the LCD should be refreshed
+	 */
+	public void print(String text, boolean flush);
+
+	/**
+	 * Refreshes the LCD screen.
+	 */
+	public void refreshLCD();
+
+	/**
+	 * Clears the LCD screen.
+	 */
+	public void clearLCD();
+
+	/**
+	 * Disables all motors.
+	 */
+	public void ao();
+
+	/**
+	 * Enables all servos.
+	 */
+	public void enableServos();
+
+	/**
+	 * Disables all servos.
+	 */
+	public void disableServos();
+
+	/**
+	 * Returns an XBC style button mask of controller buttons.
+	 * 
+	 * @return the button mask
+	 */
+	public int buttonMask();
+
+	/**
+	 * Gets the black button status.
+	 * 
+	 * @return whether the black button is pushed
+	 */
+	public boolean getBlackButton();
+
+	/**
+	 * Gets the specified motor.
+	 * 
+	 * @param port the port number
+	 * @return the motor
+	 */
+	public MotorComponent getMotor(int port);
+
+	/**
+	 * Gets the specified servo.
+	 * 
+	 * @param port the port number
+	 * @return the servo
+	 */
+	public MotorComponent getServo(int port);
+
+	/**
+	 * Gets the specified analog input.
+	 * 
+	 * @param port the analog port to fetch
+	 * @return the input
+	 */
+	public AnalogSlider getAnalog(int port);
+
+	/**
+	 * Gets the specified digital input.
+	 * 
+	 * @param port the digital port to fetch (8 and up)
+	 * @return the input
+	 */
+	public LockingButton getDigital(int port);
+
+	/**
+	 * Turns the beeper on or off.
+	 * 
+	 * @param on whether the beeper should sound
+	 */
+	public void setBeeper(boolean on);
+}
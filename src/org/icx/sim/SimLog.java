@@ -0,0 +1,290 @@
+/*
+ * This file is part of JBSim.
+ * 
+ * JBSim is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * JBSim is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with JBSim.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.icx.sim;
+
+import java.io.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A log of simulation events: collisions, sensor trips and user processes.
+ *  Logging an event only fills in a slot of a preallocated ring buffer;
+ *  formatting and printing happen later on a background thread, so the
+ *  physics thread never waits on the console.
+ * 
+ * Each type of event is limited to a number per second, and the number of
+ *  events left out is reported instead. If the writer falls a whole buffer
+ *  behind, the oldest events are lost and counted the same way.
+ * 
+ * Per-step contact details are only logged in verbose mode, which is off
+ *  unless the "sim.verbose" system property is true. The "sim.log.rate"
+ *  property changes the number of events of each type allowed per second.
+ */
+public class SimLog {
+	/**
+	 * The kinds of events which are logged.
+	 */
+	public enum Type {
+		// A robot started touching something.
+		COLLISION_BEGAN,
+		// A robot stopped touching something.
+		COLLISION_ENDED,
+		// A robot is sliding along something (verbose only).
+		CONTACT,
+		// A digital sensor changed state.
+		SENSOR_TRIP,
+		// A user process was started.
+		PROCESS_START,
+		// A user process was killed.
+		PROCESS_KILL
+	}
+
+	// Default number of events of each type allowed per second.
+	public static final int DEFAULT_RATE = 20;
+	// Number of events held waiting for the writer (a power of 2).
+	private static final int CAPACITY = 1024;
+	// How often the writer wakes up in ms.
+	private static final long WRITE_INTERVAL = 100L;
+	private static final Type[] TYPES = Type.values();
+
+	// Sequence number at which each slot was last filled (-1 while being filled).
+	private AtomicLongArray published;
+	// Event data, by slot.
+	private int[] types;
+	private long[] times;
+	private Object[] robots;
+	private Object[] objects;
+	private double[] as;
+	private double[] bs;
+	private double[] cs;
+	// Next sequence number to hand out.
+	private AtomicLong head;
+	// Writer only: next sequence number to print.
+	private long tail;
+	// Rate limiting per type: start of the current second (ns), events logged in it,
+	//  and events left out so far.
+	private AtomicLongArray window;
+	private AtomicIntegerArray used;
+	private AtomicIntegerArray suppressed;
+	private int rate;
+	private volatile boolean verbose;
+	// Source of event times.
+	private SimEngine engine;
+	// Where events go, and the thread that prints them (started on first use).
+	private PrintStream out;
+	private volatile Thread writer;
+
+	/**
+	 * Creates an event log which prints to System.out.
+	 * 
+	 * @param engine the engine whose simulated time stamps the events, or null
+	 */
+	public SimLog(SimEngine engine) {
+		this(engine, System.out);
+	}
+
+	/**
+	 * Creates an event log.
+	 * 
+	 * @param engine the engine whose simulated time stamps the events, or null
+	 * @param out where to print the events
+	 */
+	public SimLog(SimEngine engine, PrintStream out) {
+		this.engine = engine;
+		this.out = out;
+		published = new AtomicLongArray(CAPACITY);
+		for (int i = 0; i < CAPACITY; i++)
+			published.set(i, -1L);
+		types = new int[CAPACITY];
+		times = new long[CAPACITY];
+		robots = new Object[CAPACITY];
+		objects = new Object[CAPACITY];
+		as = new double[CAPACITY];
+		bs = new double[CAPACITY];
+		cs = new double[CAPACITY];
+		head = new AtomicLong(0L);
+		tail = 0L;
+		window = new AtomicLongArray(TYPES.length);
+		used = new AtomicIntegerArray(TYPES.length);
+		suppressed = new AtomicIntegerArray(TYPES.length);
+		rate = Math.max(1, Integer.getInteger("sim.log.rate", DEFAULT_RATE));
+		verbose = Boolean.getBoolean("sim.verbose");
+		writer = null;
+	}
+
+	/**
+	 * Checks for verbose mode. Check this before working out the values of
+	 *  a CONTACT event, so that they cost nothing when it is off.
+	 * 
+	 * @return whether per-step detail is being logged
+	 */
+	public boolean isVerbose() {
+		return verbose;
+	}
+
+	/**
+	 * Turns verbose mode on or off.
+	 * 
+	 * @param verbose whether to log per-step detail
+	 */
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	/**
+	 * Logs an event. Returns at once without allocating; the meaning of the
+	 *  values depends on the type:
+	 * <ul>
+	 * <li>COLLISION_BEGAN, COLLISION_ENDED: robot, object hit, robot x and y</li>
+	 * <li>CONTACT: robot, object, slide direction, heading (both in degrees)</li>
+	 * <li>SENSOR_TRIP: robot, sensor, port, new value (0 or 1), 1 if auxiliary</li>
+	 * <li>PROCESS_START, PROCESS_KILL: robot, function name, process ID</li>
+	 * </ul>
+	 * 
+	 * @param type the kind of event
+	 * @param robot the robot involved
+	 * @param object the other thing involved
+	 * @param a the first value
+	 * @param b the second value
+	 * @param c the third value
+	 */
+	public void log(Type type, Object robot, Object object, double a, double b, double c) {
+		int t = type.ordinal();
+		if (type == Type.CONTACT && !verbose) return;
+		if (!allow(t)) return;
+		long seq = head.getAndIncrement();
+		int i = (int)seq & (CAPACITY - 1);
+		published.set(i, -1L);
+		types[i] = t;
+		times[i] = engine == null ? 0L : engine.getSimTime();
+		robots[i] = robot;
+		objects[i] = object;
+		as[i] = a;
+		bs[i] = b;
+		cs[i] = c;
+		published.set(i, seq);
+		if (writer == null) startWriter();
+	}
+
+	// Counts an event against its type's limit for this second.
+	private boolean allow(int t) {
+		long now = System.nanoTime(), start = window.get(t);
+		if (now - start >= 1000000000L && window.compareAndSet(t, start, now))
+			used.set(t, 0);
+		if (used.incrementAndGet(t) <= rate) return true;
+		suppressed.incrementAndGet(t);
+		return false;
+	}
+
+	// Starts the background writer once.
+	private synchronized void startWriter() {
+		if (writer != null) return;
+		writer = new Thread("Event Log") {
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(WRITE_INTERVAL);
+					} catch (InterruptedException e) {
+						return;
+					}
+					drain();
+				}
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Prints all events logged so far. Normally called by the writer thread,
+	 *  but may be called directly (e.g. at the end of a run) to flush the log.
+	 */
+	public synchronized void drain() {
+		long end = head.get(), seq;
+		int i, lost = 0;
+		while (tail < end) {
+			i = (int)tail & (CAPACITY - 1);
+			seq = published.get(i);
+			// still being filled in: come back later
+			if (seq < tail) break;
+			if (seq > tail || !print(i, tail))
+				// overwritten by a newer event before it could be printed
+				lost++;
+			tail++;
+		}
+		if (lost > 0)
+			out.println("(" + lost + " events lost, log writer fell behind)");
+		for (i = 0; i < TYPES.length; i++)
+			if ((lost = suppressed.getAndSet(i, 0)) > 0)
+				out.println("(" + lost + " " + TYPES[i] + " events left out)");
+		out.flush();
+	}
+
+	// Formats and prints one event if it is still intact.
+	private boolean print(int i, long seq) {
+		Type type = TYPES[types[i]];
+		long time = times[i];
+		Object robot = robots[i], object = objects[i];
+		double a = as[i], b = bs[i], c = cs[i];
+		// the references are left for the next event in the slot to replace;
+		//  clearing them here could wipe out an event written since the check
+		if (published.get(i) != seq) return false;
+		StringBuilder line = new StringBuilder(80);
+		line.append('[');
+		line.append(time / 1000L).append('.');
+		line.append((char)('0' + time / 100L % 10L)).append((char)('0' + time / 10L % 10L));
+		line.append((char)('0' + time % 10L)).append("] ").append(name(robot)).append(' ');
+		switch (type) {
+		case COLLISION_BEGAN:
+			line.append("hit ").append(name(object));
+			line.append(" at (").append(Math.round(a)).append(", ").append(Math.round(b));
+			line.append(')');
+			break;
+		case COLLISION_ENDED:
+			line.append("left ").append(name(object));
+			line.append(" at (").append(Math.round(a)).append(", ").append(Math.round(b));
+			line.append(')');
+			break;
+		case CONTACT:
+			line.append("sliding along ").append(name(object)).append(", direction=");
+			line.append(Math.round(a)).append(", heading=").append(Math.round(b));
+			break;
+		case SENSOR_TRIP:
+			line.append(c != 0. ? "Create sensor " : "sensor on port ").append((int)a);
+			line.append(b != 0. ? " pressed" : " released");
+			break;
+		case PROCESS_START:
+			line.append("started process ").append((int)a).append(" (").append(object);
+			line.append(')');
+			break;
+		case PROCESS_KILL:
+			line.append("killed process ").append((int)a).append(" (").append(object);
+			line.append(')');
+			break;
+		}
+		out.println(line);
+		return true;
+	}
+
+	// Gets a short name for something in an event.
+	private static String name(Object obj) {
+		if (obj == null) return "nothing";
+		if (obj instanceof SimRobot)
+			return ((SimRobot)obj).getController();
+		return obj.getClass().getSimpleName();
+	}
+}
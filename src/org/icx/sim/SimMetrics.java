@@ -0,0 +1,389 @@
+/*
+ * This file is part of JBSim.
+ * 
+ * JBSim is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * JBSim is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with JBSim.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.icx.sim;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Timings of the simulation loop, for finding out where tick time goes
+ *  without a profiler. Each phase is recorded into a histogram for the
+ *  engine as a whole and another for the robot involved.
+ * 
+ * Metrics are off unless the "sim.metrics" system property is true or
+ *  setEnabled() is called. While off, every timed call site costs one
+ *  check of isEnabled(). While on, a summary line is printed every
+ *  "sim.metrics.interval" ms (default 10000) with the tick time
+ *  percentiles, ticks per second and the simulated/wall clock time ratio
+ *  over that interval, unless no ticks were run.
+ */
+public class SimMetrics {
+	/**
+	 * The parts of the simulation which are timed.
+	 */
+	public enum Phase {
+		// A whole physics step.
+		TICK,
+		// Finding what a robot will hit in a step.
+		COLLISION,
+		// Moving a robot (including sliding along walls).
+		MOVEMENT,
+		// Reading one sensor.
+		SENSOR,
+		// One pass of a program's motor and servo control.
+		PID,
+		// Painting the board.
+		RENDER
+	}
+
+	/**
+	 * A histogram of times in nanoseconds, with buckets of about 6% width
+	 *  spaced logarithmically (like an HDR histogram) so that anything from
+	 *  nanoseconds to minutes fits in under 1000 counters. Recording is
+	 *  lock-free and never allocates.
+	 */
+	public static class Histogram {
+		// Sub-buckets per power of 2 are 2^(SUB_BITS - 1).
+		private static final int SUB_BITS = 5;
+		private static final int SUB_COUNT = 1 << SUB_BITS;
+		private static final int HALF_COUNT = SUB_COUNT >> 1;
+		// Enough buckets for any long.
+		private static final int BUCKETS = (64 - SUB_BITS + 1) * HALF_COUNT;
+
+		// Number of values in each bucket.
+		private AtomicLongArray counts;
+		// Number of values recorded, their total and the largest.
+		private AtomicLong count;
+		private AtomicLong total;
+		private AtomicLong max;
+
+		/**
+		 * Creates an empty histogram.
+		 */
+		public Histogram() {
+			counts = new AtomicLongArray(BUCKETS);
+			count = new AtomicLong(0L);
+			total = new AtomicLong(0L);
+			max = new AtomicLong(0L);
+		}
+
+		// Finds the bucket for a value.
+		private static int bucket(long value) {
+			int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+			if (shift <= 0) return (int)value;
+			return (shift << (SUB_BITS - 1)) + (int)(value >>> shift);
+		}
+
+		// Gets the largest value which falls in a bucket.
+		private static long highest(int bucket) {
+			if (bucket < SUB_COUNT) return bucket;
+			int shift = (bucket >> (SUB_BITS - 1)) - 1;
+			long sub = bucket - (shift << (SUB_BITS - 1));
+			return ((sub + 1L) << shift) - 1L;
+		}
+
+		/**
+		 * Adds a time to the histogram.
+		 * 
+		 * @param nanos the time in nanoseconds (negative times count as 0)
+		 */
+		public void record(long nanos) {
+			long value = Math.max(0L, nanos), old;
+			counts.incrementAndGet(bucket(value));
+			count.incrementAndGet();
+			total.addAndGet(value);
+			while (value > (old = max.get()) && !max.compareAndSet(old, value));
+		}
+
+		/**
+		 * Gets the number of times recorded.
+		 * 
+		 * @return the count
+		 */
+		public long getCount() {
+			return count.get();
+		}
+
+		/**
+		 * Gets the largest time recorded.
+		 * 
+		 * @return the maximum in nanoseconds, or 0 if empty
+		 */
+		public long getMax() {
+			return max.get();
+		}
+
+		/**
+		 * Gets the average time recorded.
+		 * 
+		 * @return the mean in nanoseconds, or 0 if empty
+		 */
+		public double getMean() {
+			long n = count.get();
+			return n == 0L ? 0. : (double)total.get() / n;
+		}
+
+		/**
+		 * Gets a percentile of the times recorded. The answer is the top of the
+		 *  bucket holding it, so it is never below the true value and at most
+		 *  about 6% above it.
+		 * 
+		 * @param percentile the percentile (0-100)
+		 * @return the time in nanoseconds, or 0 if empty
+		 */
+		public long getPercentile(double percentile) {
+			long[] snapshot = new long[BUCKETS];
+			copyCounts(snapshot);
+			return percentile(snapshot, percentile);
+		}
+
+		/**
+		 * Copies the bucket counts, for comparing against a later copy.
+		 * 
+		 * @param into an array of at least bucketCount() entries
+		 */
+		public void copyCounts(long[] into) {
+			for (int i = 0; i < BUCKETS; i++)
+				into[i] = counts.get(i);
+		}
+
+		/**
+		 * Gets the number of buckets.
+		 * 
+		 * @return the size of the array needed by copyCounts()
+		 */
+		public static int bucketCount() {
+			return BUCKETS;
+		}
+
+		/**
+		 * Finds a percentile of bucket counts taken with copyCounts() (or the
+		 *  difference between two such copies).
+		 * 
+		 * @param counts the bucket counts
+		 * @param percentile the percentile (0-100)
+		 * @return the time in nanoseconds, or 0 if there are no counts
+		 */
+		public static long percentile(long[] counts, double percentile) {
+			long n = 0L, seen = 0L, rank;
+			for (int i = 0; i < BUCKETS; i++)
+				n += counts[i];
+			if (n == 0L) return 0L;
+			rank = Math.max(1L, (long)Math.ceil(n * Math.min(100., percentile) / 100.));
+			for (int i = 0; i < BUCKETS; i++)
+				if ((seen += counts[i]) >= rank)
+					return highest(i);
+			return 0L;
+		}
+
+		/**
+		 * Empties the histogram. Times recorded during a reset may be lost.
+		 */
+		public void reset() {
+			for (int i = 0; i < BUCKETS; i++)
+				counts.set(i, 0L);
+			count.set(0L);
+			total.set(0L);
+			max.set(0L);
+		}
+	}
+
+	// Default time between summary lines in ms.
+	public static final long DEFAULT_INTERVAL = 10000L;
+	private static final Phase[] PHASES = Phase.values();
+
+	// Whether times are being recorded.
+	private volatile boolean enabled;
+	// Histograms for the engine as a whole, by phase.
+	private Histogram[] phases;
+	// Histograms for each robot, by phase (created the first time it is timed).
+	private ConcurrentMap<SimRobot, Histogram[]> robots;
+	// The engine whose ticks are counted.
+	private SimEngine engine;
+	// Where summaries go, how often, and the thread that prints them.
+	private PrintStream out;
+	private long interval;
+	private Thread reporter;
+
+	/**
+	 * Creates metrics for an engine, printing summaries to System.out.
+	 * 
+	 * @param engine the engine to watch
+	 */
+	public SimMetrics(SimEngine engine) {
+		this.engine = engine;
+		out = System.out;
+		interval = Math.max(100L, Long.getLong("sim.metrics.interval", DEFAULT_INTERVAL));
+		phases = newHistograms();
+		robots = new ConcurrentHashMap<SimRobot, Histogram[]>();
+		reporter = null;
+		setEnabled(Boolean.getBoolean("sim.metrics"));
+	}
+
+	// Creates one histogram per phase.
+	private static Histogram[] newHistograms() {
+		Histogram[] list = new Histogram[PHASES.length];
+		for (int i = 0; i < list.length; i++)
+			list[i] = new Histogram();
+		return list;
+	}
+
+	/**
+	 * Checks whether times are being recorded. Call sites check this once
+	 *  and skip all timing when it is false.
+	 * 
+	 * @return whether metrics are on
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Turns recording and the summary line on or off.
+	 * 
+	 * @param enabled whether to record times
+	 */
+	public synchronized void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+		if (enabled && reporter == null) {
+			reporter = new Reporter();
+			reporter.start();
+		} else if (!enabled && reporter != null) {
+			reporter.interrupt();
+			reporter = null;
+		}
+	}
+
+	/**
+	 * Changes where the summary line is printed.
+	 * 
+	 * @param out the stream to print to, or null for no summary
+	 */
+	public synchronized void setOutput(PrintStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Records the time taken by a phase which started at the given time.
+	 *  Only call this while metrics are enabled.
+	 * 
+	 * @param phase the phase which ended
+	 * @param robot the robot involved, or null if none
+	 * @param start the System.nanoTime() when the phase started
+	 */
+	public void record(Phase phase, SimRobot robot, long start) {
+		long time = System.nanoTime() - start;
+		phases[phase.ordinal()].record(time);
+		if (robot != null)
+			getHistograms(robot)[phase.ordinal()].record(time);
+	}
+
+	// Finds or creates the histograms of a robot.
+	private Histogram[] getHistograms(SimRobot robot) {
+		Histogram[] list = robots.get(robot), old;
+		if (list == null && (old = robots.putIfAbsent(robot, list = newHistograms())) != null)
+			list = old;
+		return list;
+	}
+
+	/**
+	 * Gets the histogram of a phase for the whole engine.
+	 * 
+	 * @param phase the phase
+	 * @return the times taken by the phase
+	 */
+	public Histogram getHistogram(Phase phase) {
+		return phases[phase.ordinal()];
+	}
+
+	/**
+	 * Gets the histogram of a phase for one robot.
+	 * 
+	 * @param robot the robot
+	 * @param phase the phase
+	 * @return the times taken by the phase for that robot
+	 */
+	public Histogram getHistogram(SimRobot robot, Phase phase) {
+		return getHistograms(robot)[phase.ordinal()];
+	}
+
+	/**
+	 * Empties all histograms.
+	 */
+	public void reset() {
+		for (Histogram h : phases)
+			h.reset();
+		for (Histogram[] list : robots.values())
+			for (Histogram h : list)
+				h.reset();
+	}
+
+	// Formats a time in ns with a sensible unit.
+	static String formatTime(long nanos) {
+		if (nanos < 10000L) return nanos + "ns";
+		if (nanos < 10000000L) return (nanos / 1000L) + "us";
+		return (nanos / 1000000L) + "ms";
+	}
+
+	/**
+	 * Prints a summary line every interval while metrics are on.
+	 */
+	private class Reporter extends Thread {
+		public Reporter() {
+			super("Metrics");
+			setDaemon(true);
+		}
+		public void run() {
+			long[] last = new long[Histogram.bucketCount()], now = new long[last.length];
+			long lastTicks = engine.getTicks(), lastSim = engine.getSimTime();
+			long lastWall = System.nanoTime(), ticks, sim, wall;
+			Histogram tick = getHistogram(Phase.TICK);
+			tick.copyCounts(last);
+			while (true) {
+				try {
+					Thread.sleep(interval);
+				} catch (InterruptedException e) {
+					return;
+				}
+				tick.copyCounts(now);
+				ticks = engine.getTicks();
+				sim = engine.getSimTime();
+				wall = System.nanoTime();
+				// times over this interval only
+				for (int i = 0; i < now.length; i++) {
+					long n = now[i];
+					now[i] -= last[i];
+					last[i] = n;
+				}
+				double secs = Math.max(1L, wall - lastWall) / 1e9;
+				String line = String.format("[metrics] tick p50=%s p99=%s max=%s, %.0f ticks/s, " +
+					"sim/wall %.2f", formatTime(Histogram.percentile(now, 50.)),
+					formatTime(Histogram.percentile(now, 99.)), formatTime(Histogram.percentile(now,
+					100.)), (ticks - lastTicks) / secs, (sim - lastSim) / 1000. / secs);
+				synchronized (SimMetrics.this) {
+					// nothing to say while paused or idle
+					if (out != null && ticks != lastTicks) out.println(line);
+				}
+				lastTicks = ticks;
+				lastSim = sim;
+				lastWall = wall;
+			}
+		}
+	}
+}
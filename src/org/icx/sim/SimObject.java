@@ -66,6 +66,17 @@ public abstract class SimObject {
 		return obj.getLocation();
 	}
 
+	/**
+	 * Gets the location at which to draw the object. Objects which move
+	 *  interpolate between physics steps; everything else is drawn where it is.
+	 * 
+	 * @param alpha how far the display is between the last two physics steps (0-1)
+	 * @return the location to draw
+	 */
+	public Location getRenderLocation(float alpha) {
+		return getLocation();
+	}
+
 	/**
 	 * Sets the color of the object.
 	 * 
@@ -142,6 +153,16 @@ public abstract class SimObject {
 		return test;
 	}
 
+	/**
+	 * Gets the bounding box of the transformed collision model, for quickly
+	 *  ruling out objects which are nowhere near each other.
+	 * 
+	 * @return the world coordinate bounds of the collision model
+	 */
+	public java.awt.geom.Rectangle2D getTransformedBounds() {
+		return getTransformedCollision().getBounds2D();
+	}
+
 	/**
 	 * Transforms the specified area from device to world coordinates.
 	 * 
@@ -19,6 +19,7 @@ package org.icx.sim;
 
 import java.awt.*;
 import java.awt.geom.*;
+import java.io.*;
 import java.util.*;
 import java.util.List;
 
@@ -31,10 +32,13 @@ public class SimRobot extends MovableObject {
 	// Robot controller type
 	private String type;
 	// The parent simulator
-	private Simulator parent;
+	private SimHost parent;
 	// Left and right wheel speeds in mm/sec
 	private int lvel;
 	private int rvel;
+	// How much faster each wheel turns than it is told to (1 is exact).
+	private float leftBias;
+	private float rightBias;
 
 	// Controller types available
 	public static final String RCX = "rcx";
@@ -47,6 +51,11 @@ public class SimRobot extends MovableObject {
 	public static final String[] SORT_ORDER = new String[] {
 		RCX, HB, XBC, CBC_V1, CBC
 	};
+	// Furthest any point of the hull may move between swept collision samples (mm).
+	//  Keep well under the 26 mm PVC thickness so that nothing can be skipped.
+	private static final float SWEEP_STEP = 10.f;
+	// Number of bisections used to refine the time of impact.
+	private static final int TOI_ITERATIONS = 6;
 
 	// CACHED: Information from RobotsFile for this bot.
 	private float radius;
@@ -54,6 +63,45 @@ public class SimRobot extends MovableObject {
 	private Area model;
 	private String drive;
 
+	// Distance from the robot center to the furthest point of the model.
+	private float hullRadius;
+	// Fraction of the last collide() interval that can be travelled before contact.
+	private float contact;
+	// Scratch space for swept collision, reused every step.
+	private Location sweepEnd;
+	private Location sweepTest;
+	private AffineTransform sweepTransform;
+	private List<SimObject> candidates;
+	private List<SimObject> probe;
+	private List<SimObject> slideHits;
+	// World shapes and bounds of the candidates, which stay put during a sweep.
+	private List<Area> candidateShapes;
+	private List<Rectangle2D> candidateBounds;
+	// Broad phase candidates and exact shape tests since the last collide().
+	private int candidateCount;
+	private int exactTests;
+
+	// Wheel travel (mm) and heading change (degrees CCW) not yet read by the program.
+	private double odoDistance;
+	private double odoAngle;
+	// Odometry error after one meter of wheel travel, as a fraction; 0 is perfect.
+	private float odoNoise;
+	private Random odoRandom;
+	// Noise in the readings of the robot's sensors; replaced when restored.
+	private volatile Random sensorRandom;
+
+	// Objects being touched as of the last physics step.
+	private List<SimObject> touching;
+	// Number of times something new was touched since the last reset.
+	private int collisionCount;
+	// Last value read from each digital sensor, to log when it changes.
+	private boolean[] lastDigital;
+	private boolean[] lastExtraDigital;
+
+	// Create sensors as of the last physics step, refilled only while a program is connected.
+	private CreatePacket packet;
+	private volatile boolean packetEnabled;
+
 	// The robot's sensor and initial setup.
 	private RobotConfig setup;
 	// Any auxiliary setup required. For Creates mostly.
@@ -65,10 +113,12 @@ public class SimRobot extends MovableObject {
 	 * @param parent the simulator which owns this robot
 	 * @param robotType the robot type to use
 	 */
-	public SimRobot(Simulator parent, String robotType) {
+	public SimRobot(SimHost parent, String robotType) {
 		super(RobotsFile.getParameter(robotType + ".icon"));
 		this.parent = parent;
 		auxSetup = null;
+		leftBias = rightBias = 1.f;
+		collisionCount = 0;
 		// set type and drive from config file
 		type = RobotsFile.getParameter(robotType + ".type");
 		drive = RobotsFile.getParameter(robotType + ".map");
@@ -84,10 +134,107 @@ public class SimRobot extends MovableObject {
 		}
 		// read collision model
 		model = CollisionModels.fromFile(RobotsFile.getParameter(robotType + ".model"));
+		hullRadius = hullRadius(model);
+		contact = 1.f;
+		sweepEnd = new Location();
+		sweepTest = new Location();
+		scratch();
+		odoNoise = RobotsFile.getParameterFloat(robotType + ".odometry.noise", 0.f);
+		odoRandom = new Random();
+		sensorRandom = new Random();
+		packet = new CreatePacket();
+		packetEnabled = false;
+		touching = new ArrayList<SimObject>(4);
 		setup = new RobotConfig(robotType);
+		lastDigital = new boolean[setup.getSensors().length];
+		lastExtraDigital = new boolean[auxSetup == null ? 0 : auxSetup.getSensors().length];
 		reset();
 	}
 
+	/**
+	 * Creates a copy of a robot for another simulator, as a snapshot or a
+	 *  fork of one. The collision model and sensor setup are shared, as they
+	 *  never change during a run; where the robot is, how fast its wheels turn,
+	 *  its odometry and random noise state and its Create packet are copied.
+	 * 
+	 * @param parent the simulator which owns the copy, or null if it is
+	 *  only being kept in a snapshot
+	 * @param from the robot to copy
+	 */
+	SimRobot(SimHost parent, SimRobot from) {
+		super(RobotsFile.getParameter(from.setup.getType() + ".icon"));
+		this.parent = parent;
+		type = from.type;
+		drive = from.drive;
+		radius = from.radius;
+		factor = from.factor;
+		model = from.model;
+		hullRadius = from.hullRadius;
+		sweepEnd = new Location();
+		sweepTest = new Location();
+		scratch();
+		odoNoise = from.odoNoise;
+		touching = new ArrayList<SimObject>(4);
+		setup = new RobotConfig(from.setup.getType(), from.setup.getSensors());
+		setup.setStart(new Location(from.setup.getStart()));
+		auxSetup = from.auxSetup;
+		restore(from);
+	}
+
+	/**
+	 * Copies the moving parts of another robot of the same type into this one.
+	 * 
+	 * @param from the robot to copy
+	 */
+	synchronized void restore(SimRobot from) {
+		synchronized (from) {
+			setLocation(new Location(from.getLocation()));
+			lvel = from.lvel;
+			rvel = from.rvel;
+			leftBias = from.leftBias;
+			rightBias = from.rightBias;
+			collisionCount = from.collisionCount;
+			contact = from.contact;
+			odoDistance = from.odoDistance;
+			odoAngle = from.odoAngle;
+			odoRandom = copy(from.odoRandom);
+			sensorRandom = copy(from.sensorRandom);
+			touching.clear();
+			touching.addAll(from.touching);
+			lastDigital = from.lastDigital.clone();
+			lastExtraDigital = from.lastExtraDigital.clone();
+		}
+		synchronized (from.packet) {
+			packet = new CreatePacket(from.packet);
+		}
+		packetEnabled = from.packetEnabled;
+	}
+
+	// Creates the scratch space for swept collision.
+	private void scratch() {
+		sweepTransform = new AffineTransform();
+		candidates = new ArrayList<SimObject>(16);
+		probe = new ArrayList<SimObject>(4);
+		slideHits = new ArrayList<SimObject>(4);
+		candidateShapes = new ArrayList<Area>(16);
+		candidateBounds = new ArrayList<Rectangle2D>(16);
+	}
+
+	// Copies a random number generator, part way through its sequence and all.
+	private static Random copy(Random random) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(random);
+			out.close();
+			return (Random)new ObjectInputStream(new ByteArrayInputStream(
+				bytes.toByteArray())).readObject();
+		} catch (Exception e) {
+			// cannot happen, Random is always serializable
+			throw new IllegalStateException(e);
+		}
+	}
+
 	/**
 	 * Used to set the robot's code behavior.
 	 * 
@@ -117,6 +264,8 @@ public class SimRobot extends MovableObject {
 	 */
 	public void reset() {
 		setSpeeds(0, 0);
+		resetOdometry();
+		collisionCount = 0;
 		// copy to avoid messing with setup
 		setLocation(new Location(setup.getStart()));
 	}
@@ -218,11 +367,8 @@ public class SimRobot extends MovableObject {
 	}
 
 	public void printf(String text, Object... args) {
-		synchronized (parent) {
-			// Fixed the caret bug with this statement.
-			parent.getLCDWriter().format(text, args);
-			parent.refreshLCD();
-		}
+		// formatted by the calling thread, then queued in one piece
+		parent.print(String.format(text, args));
 	}
 
 	public MotorComponent getMotor(int port) {
@@ -250,42 +396,214 @@ public class SimRobot extends MovableObject {
 	 * @param r the right wheel speed
 	 */
 	public void setSpeeds(int l, int r) {
-		lvel = l; rvel = r;
+		lvel = Math.round(l * leftBias);
+		rvel = Math.round(r * rightBias);
+	}
+
+	/**
+	 * Makes the wheels turn faster or slower than they are told to, as
+	 *  mismatched motors do. Applies from the next setSpeeds() on.
+	 * 
+	 * @param left the left wheel's actual speed over its commanded speed
+	 * @param right the same for the right wheel
+	 */
+	public void setWheelBias(float left, float right) {
+		leftBias = left;
+		rightBias = right;
+	}
+
+	/**
+	 * Gets the number of times the robot has run into something since it was
+	 *  last reset. Sliding along a wall counts once.
+	 * 
+	 * @return the number of collisions
+	 */
+	public int getCollisionCount() {
+		return collisionCount;
 	}
 
 	/**
 	 * Modifies the robot's location from wheel speeds in mm/sec.
+	 *  The robot travels freely up to the contact time found by collide(), and
+	 *  spends the rest of the interval sliding along whatever it hit.
 	 * 
 	 * @param dt the time difference is milliseconds across which interval is computed
 	 * @param collisions the colliding objects
 	 */
 	public void move(long dt, List<SimObject> collisions) {
-		// where + is CCW and - is CW
+		Location dest = getLocation(), dir;
+		SimLog log = parent.getLog();
+		odometry(dt);
+		touch(log, collisions);
+		if (collisions.isEmpty()) {
+			moveLocation(dest, (double)dt);
+			return;
+		}
+		// travel freely until first contact
+		double free = contact * dt, rest = dt - free;
+		if (free > 0.)
+			moveLocation(dest, free);
+		// where + is CW and - is CCW (y is down on the screen)
 		float torque = (lvel * factor - rvel * factor) / 2.f;
 		// convert "torque" to angular velocity, rad / sec
 		float omega = torque / radius;
-		Location dest = getLocation(), dir;
 		// Not really forces and torques, but suitable enough names.
-		float force = (lvel * factor + rvel * factor) / 2.f;
+		double force = (lvel * factor + rvel * factor) / 2.f, along = dest.getTheta();
 		for (SimObject obj : collisions) {
 			// use the slide vector to kill velocities
 			dir = obj.hitDirection(this);
 			if (dir == null) {
 				// stop now
-				force = 0.f; break;
+				force = 0.; break;
 			} else {
-				System.out.println("Collision, || vector direction=" +
-					Math.toDegrees(dir.getTheta()) + ", personal direction=" +
-					Math.toDegrees(dest.getTheta()) + ", loc=" + dest);
-				// adjust force to "component in direction of given vector"
-				force = force * (float)Math.cos(dest.getTheta() - dir.getTheta());
+				if (log.isVerbose())
+					log.log(SimLog.Type.CONTACT, this, obj, Math.toDegrees(dir.getTheta()),
+						Math.toDegrees(dest.getTheta()), 0.);
+				// keep only the component of motion parallel to the given vector
+				force = force * Math.cos(along - dir.getTheta());
+				along = dir.getTheta();
 			}
 		}
 		// rotate robot
-		dest.setTheta(dest.getTheta() + omega * dt / 1000.f);
-		// install force
+		dest.setTheta(dest.getTheta() + omega * rest / 1000.);
 		dest.setVelocity(force);
-		dest.increment(dt);
+		if (force == 0. || rest <= 0.) return;
+		// slide, but stop short of anything else in the way (e.g. the next wall in a corner)
+		sweepEnd.setX(dest.getX() + force * Math.cos(along) * rest / 1000.);
+		sweepEnd.setY(dest.getY() + force * Math.sin(along) * rest / 1000.);
+		sweepEnd.setTheta(dest.getTheta());
+		float t = sweep(dest, sweepEnd, collisions, slideHits);
+		dest.setX(dest.getX() + (sweepEnd.getX() - dest.getX()) * t);
+		dest.setY(dest.getY() + (sweepEnd.getY() - dest.getY()) * t);
+	}
+
+	// Logs the objects which started or stopped being touched since the last step.
+	private void touch(SimLog log, List<SimObject> collisions) {
+		if (collisions.isEmpty() && touching.isEmpty()) return;
+		Location loc = getLocation();
+		for (SimObject obj : collisions)
+			if (!touching.contains(obj)) {
+				collisionCount++;
+				log.log(SimLog.Type.COLLISION_BEGAN, this, obj, loc.getX(), loc.getY(), 0.);
+			}
+		for (SimObject obj : touching)
+			if (!collisions.contains(obj))
+				log.log(SimLog.Type.COLLISION_ENDED, this, obj, loc.getX(), loc.getY(), 0.);
+		touching.clear();
+		touching.addAll(collisions);
+	}
+
+	// Counts wheel travel over the interval like the Create's encoders do; wheels
+	//  that spin against a wall still count, just as on the real robot.
+	private synchronized void odometry(long dt) {
+		double l = lvel * factor * dt / 1000., r = rvel * factor * dt / 1000.;
+		if (odoNoise > 0.f) {
+			// error grows with the square root of distance, so the step size does not matter
+			l += odoRandom.nextGaussian() * odoNoise * Math.sqrt(Math.abs(l) * 1000.);
+			r += odoRandom.nextGaussian() * odoNoise * Math.sqrt(Math.abs(r) * 1000.);
+		}
+		odoDistance += (l + r) / 2.;
+		if (radius > 0.f)
+			odoAngle += Math.toDegrees((r - l) / (2. * radius));
+	}
+
+	/**
+	 * Reads and resets the distance travelled since the last call.
+	 *  Any fraction of a millimeter is kept for the next read.
+	 * 
+	 * @return the distance in mm, positive forward
+	 */
+	public synchronized int readDistance() {
+		int ret = (int)odoDistance;
+		odoDistance -= ret;
+		return ret;
+	}
+
+	/**
+	 * Reads and resets the heading change since the last call.
+	 *  Any fraction of a degree is kept for the next read.
+	 * 
+	 * @return the angle in degrees, positive counterclockwise
+	 */
+	public synchronized int readAngle() {
+		int ret = (int)odoAngle;
+		odoAngle -= ret;
+		return ret;
+	}
+
+	/**
+	 * Throws away any odometry not yet read.
+	 */
+	public synchronized void resetOdometry() {
+		odoDistance = odoAngle = 0.;
+	}
+
+	/**
+	 * Seeds the odometry and sensor noise, so that a headless run (which
+	 *  keeps to a lockstep clock) can be repeated exactly.
+	 * 
+	 * @param seed the random seed
+	 */
+	public synchronized void setSeed(long seed) {
+		odoRandom.setSeed(seed);
+		// a different stream, so reading sensors does not shift the odometry
+		sensorRandom.setSeed(seed ^ 0x5DEECE66DL);
+	}
+
+	/**
+	 * Draws the noise for a reading of one of this robot's sensors.
+	 * 
+	 * @param low the lower bound
+	 * @param high the upper bound
+	 * @return a value between those bounds inclusive
+	 */
+	public int sensorNoise(int low, int high) {
+		return low + sensorRandom.nextInt(high - low + 1);
+	}
+
+	/**
+	 * Gets the Create sensor packet. Lock on it while copying values out.
+	 * 
+	 * @return the packet as of the last physics step
+	 */
+	public CreatePacket getCreatePacket() {
+		return packet;
+	}
+
+	/**
+	 * Turns the per-step Create sensor packet on or off. It is only worth
+	 *  computing while a program is connected to the Create.
+	 * 
+	 * @param enabled whether to refill the packet every physics step
+	 */
+	public void setCreatePacketEnabled(boolean enabled) {
+		packetEnabled = enabled;
+		if (enabled) updateCreatePacket(packet.tick);
+	}
+
+	/**
+	 * Refills the Create sensor packet from the auxiliary sensors.
+	 *  Does nothing if the packet is disabled or this is not a Create.
+	 * 
+	 * @param tick the current physics step count
+	 */
+	public void updateCreatePacket(long tick) {
+		if (!packetEnabled || auxSetup == null) return;
+		// evaluate outside the lock so that readers are never held up by the sensors
+		int lbump = extra_digital(0) ? 1 : 0, rbump = extra_digital(1) ? 1 : 0;
+		// cliff amounts are related to the reflectance as observed with the 2010
+		//  Explorer Post oil slick detection code!!!
+		int lcliff = extra_analog(2), lfcliff = extra_analog(3);
+		int rfcliff = extra_analog(4), rcliff = extra_analog(5);
+		synchronized (packet) {
+			packet.lbump = lbump;
+			packet.rbump = rbump;
+			packet.lcliffAmt = lcliff;
+			packet.lfcliffAmt = lfcliff;
+			packet.rfcliffAmt = rfcliff;
+			packet.rcliffAmt = rcliff;
+			packet.tick = tick;
+		}
 	}
 
 	// Paints this robot's sensors.
@@ -315,25 +633,150 @@ public class SimRobot extends MovableObject {
 	}
 
 	/**
-	 * Collides with the given object.
+	 * Finds what the robot would hit in the next time interval. The whole path
+	 *  from the current pose to the end pose is swept, so fast robots and long
+	 *  intervals cannot tunnel through thin walls.
 	 * 
-	 * @param env the world in which to collide
 	 * @param dt the time difference in milliseconds across which interval is computed
-	 * @return whether moving would collide
+	 * @return the objects touched at the earliest contact, or an empty list
+	 *  if the path is clear; see getContactTime() for when contact happens
 	 */
 	public List<SimObject> collide(long dt) {
 		List<SimObject> ret = new LinkedList<SimObject>();
-		Location loc = new Location(getLocation());
-		moveLocation(loc, dt);
-		Area shape = getTransformedCollision(), test;
-		for (SimObject obj : parent.getEnvironment().getObjects()) {
-			if (obj == this) continue;
+		Location loc = getLocation();
+		sweepEnd.setX(loc.getX());
+		sweepEnd.setY(loc.getY());
+		sweepEnd.setTheta(loc.getTheta());
+		moveLocation(sweepEnd, (double)dt);
+		candidateCount = exactTests = 0;
+		contact = sweep(loc, sweepEnd, null, ret);
+		return ret;
+	}
+
+	/**
+	 * Gets the number of objects which passed the broad phase (bounding box)
+	 *  test since the last collide(), including any sweeps made while sliding.
+	 * 
+	 * @return the candidate count
+	 */
+	public int getCandidateCount() {
+		return candidateCount;
+	}
+
+	/**
+	 * Gets the number of exact shape intersections computed since the last
+	 *  collide(), including any sweeps made while sliding.
+	 * 
+	 * @return the exact test count
+	 */
+	public int getExactTestCount() {
+		return exactTests;
+	}
+
+	/**
+	 * Gets the time of impact found by the last collide().
+	 * 
+	 * @return the fraction of the interval (0-1) which can be travelled
+	 *  before touching something; 1 if nothing is in the way
+	 */
+	public float getContactTime() {
+		return contact;
+	}
+
+	/**
+	 * Sweeps the collision model in a straight line between two poses.
+	 * 
+	 * @param from the starting pose
+	 * @param to the ending pose
+	 * @param ignore objects to leave out (already being slid along), or null
+	 * @param hits filled in with the objects touched at the first contact
+	 * @return the fraction of the path (0-1) that is free of contact
+	 */
+	private float sweep(Location from, Location to, List<SimObject> ignore, List<SimObject> hits) {
+		double dx = to.getX() - from.getX(), dy = to.getY() - from.getY();
+		double travel = Math.sqrt(dx * dx + dy * dy) +
+			Math.abs(to.getTheta() - from.getTheta()) * hullRadius;
+		// broad phase: the hull never leaves this box during the sweep
+		Rectangle2D box = new Rectangle2D.Double(Math.min(from.getX(), to.getX()) - hullRadius,
+			Math.min(from.getY(), to.getY()) - hullRadius, Math.abs(dx) + 2 * hullRadius,
+			Math.abs(dy) + 2 * hullRadius);
+		Rectangle2D bounds;
+		candidates.clear();
+		candidateShapes.clear();
+		candidateBounds.clear();
+		for (SimObject obj : parent.getEnvironment().getObjects())
+			if (obj != this && (ignore == null || !ignore.contains(obj)) &&
+					(bounds = obj.getTransformedBounds()).intersects(box)) {
+				candidates.add(obj);
+				// transformed once here rather than at every sample
+				candidateShapes.add(obj.getTransformedCollision());
+				candidateBounds.add(bounds);
+			}
+		candidateCount += candidates.size();
+		if (candidates.isEmpty()) return 1.f;
+		// narrow phase: sample the path finely enough that no wall fits between samples
+		int n = Math.max(1, (int)Math.ceil(travel / SWEEP_STEP)), i = 0;
+		float lo = 0.f, hi = -1.f, mid;
+		if (overlaps(from, to, 0.f, hits)) {
+			// already touching; only counts if the robot is not backing away
+			if (overlaps(from, to, 1.f / n, probe)) return 0.f;
+			hits.clear();
+			lo = 1.f / n;
+			i = 1;
+		}
+		for (i++; i <= n; i++) {
+			mid = (float)i / n;
+			if (overlaps(from, to, mid, hits)) {
+				hi = mid;
+				break;
+			}
+			lo = mid;
+		}
+		if (hi < 0.f) return 1.f;
+		// refine the time of impact
+		for (i = 0; i < TOI_ITERATIONS; i++) {
+			mid = (lo + hi) / 2.f;
+			if (overlaps(from, to, mid, probe)) {
+				hi = mid;
+				hits.clear();
+				hits.addAll(probe);
+			} else
+				lo = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Tests the collision model part of the way between two poses against
+	 *  the current broad phase candidates.
+	 * 
+	 * @param from the starting pose
+	 * @param to the ending pose
+	 * @param t how far along (0-1)
+	 * @param hits cleared and filled in with the objects touched
+	 * @return whether anything was touched
+	 */
+	private boolean overlaps(Location from, Location to, float t, List<SimObject> hits) {
+		sweepTest.setX(from.getX() + (to.getX() - from.getX()) * t);
+		sweepTest.setY(from.getY() + (to.getY() - from.getY()) * t);
+		sweepTest.setTheta(from.getTheta() + (to.getTheta() - from.getTheta()) * t);
+		// same as transformArea(), with one transform reused
+		sweepTransform.setToTranslation(sweepTest.getX(), sweepTest.getY());
+		sweepTransform.rotate(sweepTest.getTheta());
+		// copying an Area shares its curves, where adding to an empty one would merge them
+		Area shape = new Area(model), test;
+		shape.transform(sweepTransform);
+		Rectangle2D bounds = shape.getBounds2D();
+		hits.clear();
+		for (int i = 0; i < candidates.size(); i++) {
+			if (!candidateBounds.get(i).intersects(bounds)) continue;
 			// do a good intersection
-			test = new Area(obj.getTransformedCollision());
+			exactTests++;
+			test = new Area(candidateShapes.get(i));
 			test.intersect(shape);
-			if (!test.isEmpty()) ret.add(obj);
+			if (!test.isEmpty()) hits.add(candidates.get(i));
 		}
-		return ret;
+		return !hits.isEmpty();
 	}
 
 	/**
@@ -343,19 +786,90 @@ public class SimRobot extends MovableObject {
 	 * @param dt the time difference in milliseconds across which interval is computed
 	 */
 	public void moveLocation(Location dest, long dt) {
+		moveLocation(dest, (double)dt);
+	}
+
+	/**
+	 * Modifies a location from wheel speeds in mm/sec.
+	 * 
+	 * @param dest the location to modify
+	 * @param dt the time difference in (possibly fractional) milliseconds
+	 */
+	public void moveLocation(Location dest, double dt) {
 		// Not really forces and torques, but suitable enough names.
 		float force = (lvel * factor + rvel * factor) / 2.f;
-		// where + is CCW and - is CW
-		float torque = (rvel * factor - lvel * factor) / 2.f;
+		// where + is CW and - is CCW (y is down on the screen)
+		float torque = (lvel * factor - rvel * factor) / 2.f;
 		// install force
 		dest.setVelocity(force);
 		// convert "torque" to angular velocity, rad / sec
 		float omega = torque / radius;
 		// rotate robot
-		dest.setTheta(dest.getTheta() + omega * dt / 1000.f);
+		dest.setTheta(dest.getTheta() + omega * dt / 1000.);
 		dest.increment(dt);
 	}
 
+	// Finds how far the furthest point of the model is from the robot center.
+	private static float hullRadius(Area model) {
+		Rectangle2D b = model.getBounds2D();
+		double x = Math.max(Math.abs(b.getMinX()), Math.abs(b.getMaxX()));
+		double y = Math.max(Math.abs(b.getMinY()), Math.abs(b.getMaxY()));
+		return (float)Math.sqrt(x * x + y * y);
+	}
+
+	// Reads a sensor, timing the read if metrics are on. Forks of this robot
+	//  share its sensors, so each one is pointed at this robot under its lock.
+	private int sensorValue(Sensor input, int port, boolean aux) {
+		SimEvents.SensorRead event = new SimEvents.SensorRead();
+		SimMetrics metrics = parent.getEngine().getMetrics();
+		int value;
+		event.begin();
+		synchronized (input) {
+			input.setParentRobot(this);
+			if (!metrics.isEnabled())
+				value = input.getValue(parent.getEnvironment());
+			else {
+				long start = System.nanoTime();
+				value = input.getValue(parent.getEnvironment());
+				metrics.record(SimMetrics.Phase.SENSOR, this, start);
+			}
+		}
+		if (event.shouldCommit()) {
+			event.robot = getController();
+			event.port = port;
+			event.auxiliary = aux;
+			event.value = value;
+			event.commit();
+		}
+		return value;
+	}
+
+	// Reads a sensor as a digital, timing the read if metrics are on.
+	private boolean sensorDigital(Sensor input, int port, boolean aux) {
+		SimEvents.SensorRead event = new SimEvents.SensorRead();
+		SimMetrics metrics = parent.getEngine().getMetrics();
+		boolean value;
+		event.begin();
+		synchronized (input) {
+			input.setParentRobot(this);
+			if (!metrics.isEnabled())
+				value = input.digitalValue(parent.getEnvironment());
+			else {
+				long start = System.nanoTime();
+				value = input.digitalValue(parent.getEnvironment());
+				metrics.record(SimMetrics.Phase.SENSOR, this, start);
+			}
+		}
+		if (event.shouldCommit()) {
+			event.robot = getController();
+			event.port = port;
+			event.auxiliary = aux;
+			event.value = value ? 1 : 0;
+			event.commit();
+		}
+		return value;
+	}
+
 	/**
 	 * Gets the analog value of this sensor, after factoring in the type.
 	 * 
@@ -368,9 +882,7 @@ public class SimRobot extends MovableObject {
 		if (port > 7 || (input = setup.getSensor(port)) == null || pInput.getValueType() == 0)
 			// special (accel_x, accel_y, accel_z) or not set up
 			return pInput.getValue();
-		// ugly
-		input.setParentRobot(this);
-		return input.getValue(parent.getEnvironment());
+		return sensorValue(input, port, false);
 	}
 
 	/**
@@ -385,9 +897,7 @@ public class SimRobot extends MovableObject {
 		if (auxSetup == null || (input = auxSetup.getSensor(port)) == null)
 			// special or not set up, but can't delegate to parent
 			return 1023;
-		// ugly
-		input.setParentRobot(this);
-		return input.getValue(parent.getEnvironment());
+		return sensorValue(input, port, true);
 	}
 
 	/**
@@ -402,9 +912,12 @@ public class SimRobot extends MovableObject {
 		if ((input = setup.getSensor(port)) == null || pInput.getValueType() == 0)
 			// not set up
 			return pInput.isSelected();
-		// ugly
-		input.setParentRobot(this);
-		return input.digitalValue(parent.getEnvironment());
+		boolean value = sensorDigital(input, port, false);
+		if (value != lastDigital[port]) {
+			lastDigital[port] = value;
+			parent.getLog().log(SimLog.Type.SENSOR_TRIP, this, input, port, value ? 1. : 0., 0.);
+		}
+		return value;
 	}
 
 	/**
@@ -419,8 +932,11 @@ public class SimRobot extends MovableObject {
 		if (auxSetup == null || (input = auxSetup.getSensor(port)) == null)
 			// special or not set up, but can't delegate to parent
 			return false;
-		// ugly
-		input.setParentRobot(this);
-		return input.digitalValue(parent.getEnvironment());
+		boolean value = sensorDigital(input, port, true);
+		if (value != lastExtraDigital[port]) {
+			lastExtraDigital[port] = value;
+			parent.getLog().log(SimLog.Type.SENSOR_TRIP, this, input, port, value ? 1. : 0., 1.);
+		}
+		return value;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,243 @@
+/*
+ * This file is part of JBSim.
+ * 
+ * JBSim is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * JBSim is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with JBSim.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.icx.sim;
+
+import java.util.*;
+
+/**
+ * The state of a headless simulation at one moment, taken with
+ *  HeadlessSimulator.snapshot(). It can be put back into the simulator it
+ *  came from with restore(), or used to start any number of new simulators
+ *  which carry on from that moment, each on its own thread if need be.
+ * 
+ * Walls, collision models and sensor setups are shared by the snapshot and
+ *  everything forked from it, as they never change during a match (adding
+ *  or removing an object copies the list first). Everything that moves is
+ *  copied: robot poses, wheel speeds, odometry and its random noise, Create
+ *  packets, motor and servo positions and PID targets, inputs, the start
+ *  light, the LCD and the clocks.
+ * 
+ * A running program's threads cannot be copied, so a snapshot holds the
+ *  state the program left in the controller, not the program itself. Load a
+ *  program into the fork and call resumeMatch() to carry on from there.
+ */
+public class SimSnapshot {
+	// Walls and other objects, shared by every fork.
+	private Environment world;
+	// Robots, detached from any simulator.
+	private List<SimRobot> robots;
+	// Physics clock, and when the match began.
+	private long ticks;
+	private long simTime;
+	private long matchStart;
+	// Motors 0-3 then servos 0-3: power, position, destination and shaft angle.
+	private int[] power;
+	private long[] pos;
+	private long[] dest;
+	private int[] angle;
+	// Analog sliders and their value types.
+	private int[] analogs;
+	private int[] analogTypes;
+	// Digital buttons: locked down, inverted and value type.
+	private boolean[] locked;
+	private boolean[] inverted;
+	private int[] digitalTypes;
+	// Controller buttons, beeper and the text on the LCD.
+	private int buttons;
+	private boolean black;
+	private boolean beeper;
+	private String lcd;
+	// State the program left in the controller, or null if none was loaded.
+	private Controller controller;
+
+	/**
+	 * Takes a snapshot of a simulator. The caller holds the engine lock, so
+	 *  that no physics step happens part way through.
+	 * 
+	 * @param sim the simulator to copy
+	 */
+	SimSnapshot(HeadlessSimulator sim) {
+		Environment env = sim.getEnvironment();
+		world = new Environment(env);
+		// fill in cached shapes now, so that forks running side by side only read them
+		for (SimObject obj : world.getObjects())
+			obj.getTransformedBounds();
+		robots = new ArrayList<SimRobot>(env.getRobots().size());
+		for (SimRobot bot : env.getRobots())
+			robots.add(new SimRobot(null, bot));
+		ticks = sim.getEngine().getTicks();
+		simTime = sim.getEngine().getSimTime();
+		matchStart = sim.getMatchStart();
+		power = new int[8];
+		pos = new long[8];
+		dest = new long[8];
+		angle = new int[8];
+		for (int i = 0; i < 8; i++) {
+			MotorComponent m = i < 4 ? sim.getMotor(i) : sim.getServo(i - 4);
+			power[i] = m.getPower();
+			pos[i] = m.getPos();
+			dest[i] = m.getDest();
+			angle[i] = m.getShaftAngle();
+		}
+		analogs = new int[11];
+		analogTypes = new int[11];
+		for (int i = 0; i < analogs.length; i++) {
+			analogs[i] = sim.getAnalog(i).getValue();
+			analogTypes[i] = sim.getAnalog(i).getValueType();
+		}
+		locked = new boolean[8];
+		inverted = new boolean[8];
+		digitalTypes = new int[8];
+		for (int i = 0; i < locked.length; i++) {
+			LockingButton b = sim.getDigital(i + 8);
+			locked[i] = b.isLocked();
+			inverted[i] = b.isSelected() != locked[i];
+			digitalTypes[i] = b.getValueType();
+		}
+		buttons = sim.buttonMask();
+		black = sim.getBlackButton();
+		beeper = sim.isBeeperOn();
+		sim.getLCD().refresh();
+		lcd = sim.getLCD().toString();
+		controller = sim.getProgram() == null ? null : sim.getProgram()._save();
+	}
+
+	/**
+	 * Puts this state back into a simulator with the same robots. The
+	 *  simulator keeps its own walls. The caller holds the engine lock.
+	 * 
+	 * @param sim the simulator to change
+	 */
+	void restore(HeadlessSimulator sim) {
+		Environment env = sim.getEnvironment();
+		if (env.getRobots().size() != robots.size())
+			throw new IllegalArgumentException("Snapshot has " + robots.size() + " robots, not " +
+				env.getRobots().size());
+		for (int i = 0; i < robots.size(); i++)
+			env.getRobots().get(i).restore(robots.get(i));
+		env.setLight(world.getStartingLight());
+		sim.getEngine().setTime(ticks, simTime);
+		for (int i = 0; i < 8; i++) {
+			MotorComponent m = i < 4 ? sim.getMotor(i) : sim.getServo(i - 4);
+			m.setPower(power[i]);
+			m.setPos(pos[i]);
+			m.setDest(dest[i]);
+			m.setShaftAngle(angle[i]);
+		}
+		for (int i = 0; i < analogs.length; i++) {
+			sim.getAnalog(i).setValueType(analogTypes[i]);
+			sim.getAnalog(i).setValue(analogs[i]);
+		}
+		for (int i = 0; i < locked.length; i++) {
+			LockingButton b = sim.getDigital(i + 8);
+			b.setValueType(digitalTypes[i]);
+			b.setLockState(locked[i]);
+			b.setSelected(inverted[i]);
+		}
+		sim.setButtons(buttons);
+		sim.setBlackButton(black);
+		sim.setBeeper(beeper);
+		sim.getLCD().clear();
+		sim.getLCD().print(lcd);
+		sim.getLCD().refresh();
+	}
+
+	/**
+	 * Gets the walls and other objects, to be shared by a fork.
+	 * 
+	 * @return the environment holding the objects (and no robots)
+	 */
+	Environment getWorld() {
+		return world;
+	}
+
+	/**
+	 * Gets the robots, to be copied by a fork.
+	 * 
+	 * @return the robots as they were
+	 */
+	List<SimRobot> getRobots() {
+		return robots;
+	}
+
+	/**
+	 * Gets the state the program left in the controller.
+	 * 
+	 * @return the motor, servo, Create and clock state, or null if no
+	 *  program was loaded
+	 */
+	Controller getController() {
+		return controller;
+	}
+
+	/**
+	 * Gets the simulated time when the snapshot was taken.
+	 * 
+	 * @return the physics clock in milliseconds
+	 */
+	public long getSimTime() {
+		return simTime;
+	}
+
+	/**
+	 * Gets when the match the snapshot was taken from began.
+	 * 
+	 * @return the physics time at the start of the match in milliseconds
+	 */
+	public long getMatchStart() {
+		return matchStart;
+	}
+
+	/**
+	 * Gets the program's clock when the snapshot was taken.
+	 * 
+	 * @return the time seconds() would have returned in milliseconds, or 0 if
+	 *  no program was loaded
+	 */
+	public long getProgramTime() {
+		return controller == null ? 0L : controller.time;
+	}
+
+	/**
+	 * Gets where a robot was when the snapshot was taken.
+	 * 
+	 * @param index the robot number (0 is the first robot)
+	 * @return the robot's location
+	 */
+	public Location getLocation(int index) {
+		return new Location(robots.get(index).getLocation());
+	}
+
+	/**
+	 * The library state of a program: PID targets and counters, servo
+	 *  positions, the Create connection and the program clock.
+	 */
+	static class Controller {
+		long[] dest;
+		int[] speed;
+		int[] vel;
+		long[] counts;
+		int[] pos;
+		int[] loc;
+		// connected, USB, mode, left and right speeds, distance, angle, total angle
+		int[] create;
+		int[] leds;
+		float shutdown;
+		long time;
+	}
+}
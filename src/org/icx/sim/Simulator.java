@@ -22,9 +22,7 @@ import javax.swing.*;
 import java.awt.event.*;
 import java.awt.*;
 import java.net.*;
-import java.util.Arrays;
 import java.util.HashSet;
-import javax.tools.*;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
 /**
@@ -32,7 +30,7 @@ import javax.swing.filechooser.FileNameExtensionFilter;
  * 
  * @author Stephen Carlson, CBCJVM and compiler modifications: Benjamin Woodruff
  */
-public class Simulator extends JFrame implements Runnable {
+public class Simulator extends JFrame implements Runnable, SimHost {
 	// all images are sourced as /images/name.ext
 	private static final String imageExtension = ".png";
 	private static final long serialVersionUID = 0L;
@@ -41,6 +39,10 @@ public class Simulator extends JFrame implements Runnable {
 	private GraphicsComponent gc;
 	// All simulated items excluding robots.
 	private Environment env;
+	// Steps the physics at a fixed rate.
+	private SimEngine engine;
+	// Collision, sensor and process events.
+	private SimLog log;
 	// The play/pause button.
 	private JButton pp;
 	// The Hand of God button.
@@ -66,9 +68,8 @@ public class Simulator extends JFrame implements Runnable {
 	// Icons for pause and play.
 	private Icon playIcon;
 	private Icon pauseIcon;
-	// Delegate writer for the LCD.
-	private PrintWriter lcdWriter;
-	private ClearableStringWriter str;
+	// Text on the LCD.
+	private LCDBuffer str;
 	// The dialog box shown when "Load(ing) Code"
 	private JFileChooser cFileChooser;
 	private JFileChooser javaFileChooser;
@@ -77,6 +78,9 @@ public class Simulator extends JFrame implements Runnable {
 	private MotorComponent[] servos;
 	// The current program (currently only one)
 	private BotballProgram instance;
+	// Whether code is being compiled, and whether Play was pressed meanwhile
+	private volatile boolean compiling;
+	private volatile boolean playWhenReady;
 	// Sensor configuration window
 	private JDialog sensorSetup;
 	// The names of the installed sensors on the screen
@@ -89,22 +93,23 @@ public class Simulator extends JFrame implements Runnable {
 	 */
 	public Simulator() {
 		super("Botball Simulator");
+		env = new Environment();
+		engine = new SimEngine(env);
+		log = new SimLog(engine);
 		setupUI();
 		playIcon = getIcon("play");
 		pauseIcon = getIcon("pause");
-		str = new ClearableStringWriter();
-		lcdWriter = new PrintWriter(str);
-		env = new Environment();
+		str = new LCDBuffer(lcd);
 		setPP(true);
 	}
 
 	/**
-	 * Gets the LCD writer.
+	 * Gets the LCD text.
 	 * 
-	 * @return a PrintWriter which will write to the LCD screen
+	 * @return the buffer holding what is printed on the LCD screen
 	 */
-	public PrintWriter getLCDWriter() {
-		return lcdWriter;
+	public LCDBuffer getLCD() {
+		return str;
 	}
 
 	/**
@@ -128,7 +133,7 @@ public class Simulator extends JFrame implements Runnable {
 	 * 
 	 * @param text the text to print
 	 */
-	public synchronized void print(String text) {
+	public void print(String text) {
 		print(text, true);
 	}
 
@@ -138,8 +143,8 @@ public class Simulator extends JFrame implements Runnable {
 	 * @param text the text to print
 	 * @param flush whether the LCD should be refreshed
 	 */
-	public synchronized void print(String text, boolean flush) {
-		lcdWriter.print(text);
+	public void print(String text, boolean flush) {
+		str.print(text);
 		if (flush) refreshLCD();
 	}
 
@@ -153,27 +158,56 @@ public class Simulator extends JFrame implements Runnable {
 	}
 
 	/**
-	 * Refreshes the LCD screen.
+	 * Gets the physics engine.
+	 * 
+	 * @return the engine which moves the robots
 	 */
-	public synchronized void refreshLCD() {
-		lcd.setText(str.toString());
-		try {
-			lcd.setCaretPosition(str.length());
-		} catch (Exception e) {
-			// This exception was caused by a sync problem in SimRobot.java
-			//  Basically, printf() was using format() and then refresh(), but
-			//  multi threading printf() could cause bad positions.
-			//  That has been fixed, but if it reappears, it will show up here.
-			e.printStackTrace();
-		}
+	public SimEngine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * Gets the program clock. Programs run in the window follow the wall
+	 *  clock, so there is none.
+	 * 
+	 * @return null
+	 */
+	public SimClock getClock() {
+		return null;
+	}
+
+	/**
+	 * Gets the program being run.
+	 * 
+	 * @return the compiled program, or null if none is loaded
+	 */
+	public BotballProgram getProgram() {
+		return instance;
+	}
+
+	/**
+	 * Gets the event log.
+	 * 
+	 * @return the log of collisions, sensor trips and processes
+	 */
+	public SimLog getLog() {
+		return log;
+	}
+
+	/**
+	 * Refreshes the LCD screen. The update happens later on the event thread,
+	 *  together with any other refreshes requested in the meantime.
+	 */
+	public void refreshLCD() {
+		str.refresh();
 	}
 
 	/**
 	 * Clears the LCD screen.
 	 */
-	public synchronized void clearLCD() {
-		lcd.setText("");
+	public void clearLCD() {
 		str.clear();
+		str.refresh();
 	}
 
 	// Sets up the user interface
@@ -508,7 +542,7 @@ public class Simulator extends JFrame implements Runnable {
 	 * Disables all motors.
 	 *  Meant for reset. Do not change BotballProgram.ao() to call this!
 	 */
-	public synchronized void ao() {
+	public void ao() {
 		for (int i = 0; i < 4; i++) {
 			motors[i].setPower(0);
 			motors[i].setDest(Long.MAX_VALUE);
@@ -518,7 +552,7 @@ public class Simulator extends JFrame implements Runnable {
 	/**
 	 * Enables all servos.
 	 */
-	public synchronized void enableServos() {
+	public void enableServos() {
 		for (int i = 0; i < 4; i++)
 			servos[i].servoEnable();
 	}
@@ -526,11 +560,23 @@ public class Simulator extends JFrame implements Runnable {
 	/**
 	 * Disables all servos.
 	 */
-	public synchronized void disableServos() {
+	public void disableServos() {
 		for (int i = 0; i < 4; i++)
 			servos[i].servoDisable();
 	}
 
+	/**
+	 * Turns the beeper on or off.
+	 * 
+	 * @param on whether the beeper should sound
+	 */
+	public void setBeeper(boolean on) {
+		if (on)
+			gc.setBeeperOn();
+		else
+			gc.setBeeperOff();
+	}
+
 	/**
 	 * Gets the black button status.
 	 * 
@@ -651,7 +697,10 @@ public class Simulator extends JFrame implements Runnable {
 	 * @param message the error message
 	 */
 	public static final void die(String message) {
-		JOptionPane.showMessageDialog(null, message, "Error", JOptionPane.ERROR_MESSAGE);
+		if (GraphicsEnvironment.isHeadless())
+			System.err.println("Error: " + message);
+		else
+			JOptionPane.showMessageDialog(null, message, "Error", JOptionPane.ERROR_MESSAGE);
 		System.exit(1);
 	}
 
@@ -742,6 +791,7 @@ public class Simulator extends JFrame implements Runnable {
 	 * Emergency stops the robot and program.
 	 */
 	public void eStop() {
+		playWhenReady = false;
 		if (instance != null && instance._isRunning()) {
 			// stop program
 			instance._killAll();
@@ -763,6 +813,7 @@ public class Simulator extends JFrame implements Runnable {
 	 * Runs or pauses the program.
 	 */
 	public void play() {
+		playWhenReady = false;
 		if (instance == null) return;
 		// update status
 		setPP(!pause);
@@ -854,51 +905,40 @@ public class Simulator extends JFrame implements Runnable {
 	 * Compiles or runs user code.
 	 */
 	public void run() {
-		if (instance == null) try {
-			pause();
-			pp.setEnabled(false);
-			// call up code parsing
-			Reader r = new FileReader(cFileChooser.getSelectedFile());
-			CodeParser.syntax(cFileChooser.getSelectedFile(), r);
-			r.close();
-			// compile user code
-			JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
-			DiagnosticCollector<JavaFileObject> diagnostics =
-				new DiagnosticCollector<JavaFileObject>();
-			StandardJavaFileManager fileManager =
-				compiler.getStandardFileManager(diagnostics, null, null);
-			Iterable<? extends JavaFileObject> compilationUnits = fileManager
-				.getJavaFileObjectsFromStrings(Arrays.asList("Program.java"));
-			JavaCompiler.CompilationTask task = compiler.getTask(null,
-				fileManager, diagnostics, null, null, compilationUnits);
-			if (task.call()) {
-				// load into memory
-				ICClassLoader icLoader = new ICClassLoader();
-				Class<?> program = icLoader.loadClass("Program");
-				instance = (BotballProgram)program.newInstance();
-				instance._setSim(this, env.getFirstRobot());
-				// moved down to avoid dup message if loading fails
-				print("Compile succeeded.\n");
-			} else {
-				for(Diagnostic d : diagnostics.getDiagnostics()) {
-					print(d.getMessage(null) + "\n");
-				}
-				print("Compile failed.\n");
+		if (instance == null) {
+			try {
+				pause();
+				playWhenReady = false;
+				compiling = true;
+				instance = ProgramCompiler.compile(cFileChooser.getSelectedFile(), this);
+			} catch (Exception e) {
+				// oh no!
+				if (e.getMessage() != null)
+					print(e.getMessage() + "\n");
+				print("Compile failed!\n");
 				instance = null;
+			} finally {
+				compiling = false;
 			}
-			pp.setEnabled(true);
-			new File("Program.class").delete();
-		} catch (Exception e) {
-			// oh no!
-			if (e.getMessage() != null)
-				print(e.getMessage() + "\n");
-			print("Compile failed!\n");
-			instance = null;
-			pp.setEnabled(true);
+			// Play was pressed while compiling, so start as soon as possible
+			if (playWhenReady) SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					if (playWhenReady) {
+						pp.setIcon(playIcon);
+						play();
+					}
+				}
+			});
 		} else
 			instance.invokeMain();
 	}
 
+	// Queues or unqueues a run of the program which is still compiling.
+	private void playLater() {
+		playWhenReady = !playWhenReady;
+		pp.setIcon(playWhenReady ? pauseIcon : playIcon);
+	}
+
 	/**
 	 * Class which refreshes the screen and runs important sim tasks.
 	 */
@@ -907,9 +947,20 @@ public class Simulator extends JFrame implements Runnable {
 			super("Simulation Thread");
 		}
 		public void run() {
-			long lastRepaint = 0L, lastMove = 0L, lastUpdate = 0L, time;
+			long lastRepaint = 0L, lastUpdate = 0L, time;
+			long lastMove = System.nanoTime(), now;
 			while (true) {
 				time = System.currentTimeMillis();
+				now = System.nanoTime();
+				// move robots in fixed steps; the engine banks any left over time
+				if (isPaused()) {
+					engine.resetAccumulator();
+					gc.setInterpolation(1.f);
+				} else {
+					engine.advance(now - lastMove);
+					gc.setInterpolation(engine.getAlpha());
+				}
+				lastMove = now;
 				if (time - lastRepaint >= 33L) {
 					// handle 33ms tasks
 					lastRepaint = time;
@@ -937,14 +988,6 @@ public class Simulator extends JFrame implements Runnable {
 					}
 					lastUpdate = time;
 				}
-				if (time - lastMove >= 10L) {
-					long dt = time - lastMove;
-					// handle 10ms tasks (move robot)
-					if (!isPaused())
-						for (SimRobot bot : env.getRobots())
-							bot.move(dt, bot.collide(dt));
-					lastMove = time;
-				}
 				try {
 					Thread.sleep(2L);
 				} catch (Exception e) {
@@ -1011,6 +1054,8 @@ public class Simulator extends JFrame implements Runnable {
 				loadCode(Language.JAVA);
 			else if (cmd.equals("play") && instance != null)
 				play();
+			else if (cmd.equals("play") && compiling)
+				playLater();
 			else if (cmd.equals("god"))
 				handOfGod();
 			else if (cmd.equals("stop"))
@@ -1100,6 +1145,9 @@ public class Simulator extends JFrame implements Runnable {
 			else if (e.getKeyCode() == KeyEvent.VK_C)
 				// collision rendering on (currently no off)
 				gc.renderCollision(true);
+			else if (e.getKeyCode() == KeyEvent.VK_O)
+				// performance overlay on/off
+				gc.showOverlay(!gc.isOverlayShown());
 			else if (e.getKeyCode() == KeyEvent.VK_L)
 				// start light
 				toggleLight();
@@ -1109,34 +1157,4 @@ public class Simulator extends JFrame implements Runnable {
 		}
 		public void keyTyped(KeyEvent e) {}
 	}
-
-	/**
-	 * A string writer which can be reset (LCD clear).
-	 */
-	protected static class ClearableStringWriter extends Writer {
-		private StringBuffer buf;
-
-		// Creates an empty buffer.
-		public ClearableStringWriter() {
-			super();
-			clear();
-		}
-		// Clears the buffer.
-		public void clear() {
-			buf = new StringBuffer(4096);
-		}
-		public void close() throws IOException { }
-		public void flush() throws IOException { }
-
-		// Writes to the buffer.
-		public void write(char[] cbuf, int off, int len) throws IOException {
-			buf.append(cbuf, off, len);
-		}
-		public String toString() {
-			return buf.toString();
-		}
-		public int length() {
-			return buf.length();
-		}
-	}
 }
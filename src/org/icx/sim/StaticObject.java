@@ -27,6 +27,8 @@ import java.awt.geom.*;
 public abstract class StaticObject extends SimObject {
 	// The cached transformed collision
 	private Area transCol;
+	// The cached bounds of the transformed collision
+	private Rectangle2D transBounds;
 
 	public StaticObject(String image) {
 		super(image);
@@ -36,6 +38,7 @@ public abstract class StaticObject extends SimObject {
 	// Clears the cached collision.
 	protected void clearCollision() {
 		transCol = null;
+		transBounds = null;
 	}
 
 	// Stores the transformed collision area
@@ -44,4 +47,11 @@ public abstract class StaticObject extends SimObject {
 			transCol = super.getTransformedCollision();
 		return transCol;
 	}
+
+	// Stores the bounds of the transformed collision area
+	public Rectangle2D getTransformedBounds() {
+		if (transBounds == null)
+			transBounds = getTransformedCollision().getBounds2D();
+		return transBounds;
+	}
 }
\ No newline at end of file
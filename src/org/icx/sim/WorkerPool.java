@@ -0,0 +1,244 @@
+/*
+ * This file is part of JBSim.
+ * 
+ * JBSim is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * JBSim is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with JBSim.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.icx.sim;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs matches in separate worker JVMs (see MatchWorker), so that a program
+ *  which runs out of memory, never stops or exits cannot take the rest of
+ *  a batch with it. Workers are started once and kept for job after job,
+ *  so the JIT warms up as it would in one JVM.
+ * 
+ * A watchdog kills any worker whose job runs past its wall clock limit (the
+ *  match length plus a grace period for compiling and stopping). Workers
+ *  get a fixed heap and exit when it runs out. Either way the job is
+ *  reported as failed and a new worker is started for the next job.
+ * 
+ * Workers run in the same directory as this JVM, so they read the same
+ *  robots.txt and boards, and get the same "sim.*" system properties.
+ */
+public class WorkerPool {
+	// Default heap for each worker in MB.
+	public static final int DEFAULT_MEMORY = 256;
+	// Default extra time a job may take beyond its match length in ms.
+	public static final long DEFAULT_GRACE = 15000L;
+	// Exit code of a JVM killed by -XX:+ExitOnOutOfMemoryError.
+	private static final int OUT_OF_MEMORY_EXIT = 3;
+
+	// Workers not running a job.
+	private BlockingQueue<Worker> idle;
+	// Threads which send jobs to workers, one per worker.
+	private ExecutorService feeders;
+	// Kills workers which run too long.
+	private ScheduledExecutorService watchdog;
+	// Heap per worker in MB.
+	private volatile int memory;
+	// Time allowed beyond the match length in ms.
+	private volatile long grace;
+
+	/**
+	 * Creates a pool of the given number of workers. The worker processes
+	 *  are started when first needed.
+	 * 
+	 * @param workers the number of matches to run at once
+	 */
+	public WorkerPool(int workers) {
+		idle = new ArrayBlockingQueue<Worker>(Math.max(1, workers));
+		for (int i = 0; i < Math.max(1, workers); i++)
+			idle.add(new Worker());
+		feeders = Executors.newFixedThreadPool(Math.max(1, workers), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Worker Feeder");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Worker Watchdog");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		memory = DEFAULT_MEMORY;
+		grace = DEFAULT_GRACE;
+	}
+
+	/**
+	 * Changes the heap given to workers started from now on.
+	 * 
+	 * @param memory the heap size in MB
+	 */
+	public void setMemory(int memory) {
+		this.memory = memory;
+	}
+
+	/**
+	 * Changes how far past its match length a job may run before its worker
+	 *  is killed.
+	 * 
+	 * @param grace the extra time in ms
+	 */
+	public void setGrace(long grace) {
+		this.grace = grace;
+	}
+
+	/**
+	 * Queues a match to be run by the next free worker.
+	 * 
+	 * @param job the match to run
+	 * @return the result, when it is ready; this never fails, as problems
+	 *  with the job are reported in the result
+	 */
+	public Future<MatchResult> submit(final MatchJob job) {
+		return feeders.submit(new Callable<MatchResult>() {
+			public MatchResult call() throws InterruptedException {
+				Worker worker = idle.take();
+				try {
+					return worker.run(job);
+				} finally {
+					idle.add(worker);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stops all workers once the jobs already queued are done.
+	 */
+	public void shutdown() {
+		feeders.shutdown();
+		try {
+			feeders.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (Worker worker : idle)
+			worker.close();
+		watchdog.shutdownNow();
+	}
+
+	/**
+	 * One worker process, restarted whenever it dies.
+	 */
+	private class Worker {
+		// The process, or null if not started (or dead).
+		private Process process;
+		private ObjectOutputStream out;
+		private ObjectInputStream in;
+		// Whether the watchdog killed the process.
+		private volatile boolean timedOut;
+
+		public Worker() {
+			process = null;
+		}
+		// Starts a new worker process.
+		private void start() throws IOException {
+			List<String> command = new ArrayList<String>(16);
+			command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+			command.add("-Xmx" + memory + "m");
+			command.add("-XX:+ExitOnOutOfMemoryError");
+			command.add("-Djava.awt.headless=true");
+			for (String name : System.getProperties().stringPropertyNames())
+				if (name.startsWith("sim."))
+					command.add("-D" + name + "=" + System.getProperty(name));
+			command.add("-cp");
+			command.add(System.getProperty("java.class.path"));
+			command.add(MatchWorker.class.getName());
+			ProcessBuilder builder = new ProcessBuilder(command);
+			builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+			process = builder.start();
+			out = new ObjectOutputStream(new BufferedOutputStream(process.getOutputStream()));
+			out.flush();
+			in = null;
+		}
+		/**
+		 * Runs a job, starting or restarting the process if needed.
+		 * 
+		 * @param job the job
+		 * @return its result
+		 */
+		public MatchResult run(MatchJob job) {
+			String name = job.getSource().getName();
+			long began = System.currentTimeMillis();
+			ScheduledFuture<?> alarm = null;
+			MatchResult result;
+			try {
+				if (process == null) start();
+				final Process running = process;
+				timedOut = false;
+				alarm = watchdog.schedule(new Runnable() {
+					public void run() {
+						timedOut = true;
+						running.destroyForcibly();
+					}
+				}, job.getLength() + grace, TimeUnit.MILLISECONDS);
+				out.writeObject(job);
+				out.reset();
+				out.flush();
+				// the worker's stream header only arrives once it is up
+				if (in == null)
+					in = new ObjectInputStream(new BufferedInputStream(process.getInputStream()));
+				result = (MatchResult)in.readObject();
+				if (!in.readBoolean()) close();
+			} catch (Exception e) {
+				result = failure(name, job, e);
+				result.setWallTime(System.currentTimeMillis() - began);
+				close();
+			} finally {
+				// if the alarm went off anyway, the process is being killed
+				if (alarm != null && !alarm.cancel(false)) close();
+			}
+			return result;
+		}
+		// Works out why the process died.
+		private MatchResult failure(String name, MatchJob job, Exception e) {
+			if (timedOut)
+				return new MatchResult(name, MatchResult.Status.TIMEOUT, "killed after " +
+					(job.getLength() + grace) + " ms");
+			if (process == null)
+				return new MatchResult(name, MatchResult.Status.CRASHED, "worker did not start: " + e);
+			try {
+				int code = process.waitFor();
+				if (code == OUT_OF_MEMORY_EXIT)
+					return new MatchResult(name, MatchResult.Status.OUT_OF_MEMORY, "over " + memory +
+						" MB");
+				return new MatchResult(name, MatchResult.Status.CRASHED, "worker exited with code " +
+					code);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				return new MatchResult(name, MatchResult.Status.CRASHED, e.toString());
+			}
+		}
+		/**
+		 * Stops the process; the next job starts a new one.
+		 */
+		public void close() {
+			if (process != null) {
+				try {
+					out.close();
+				} catch (IOException e) { }
+				process.destroyForcibly();
+				process = null;
+			}
+		}
+	}
+}
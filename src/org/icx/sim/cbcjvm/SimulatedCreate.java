@@ -19,6 +19,7 @@ package org.icx.sim.cbcjvm;
 
 import cbccore.low.Create;
 import org.icx.sim.BotballProgram;
+import org.icx.sim.CreateSerial;
 
 /**
  * Contains stubs for botballsim.
@@ -31,8 +32,12 @@ import org.icx.sim.BotballProgram;
 public class SimulatedCreate extends Create {
 	
 	protected BotballProgram bp;
+	protected CreateSerial serial;
 	
-	public SimulatedCreate(BotballProgram bp) { this.bp = bp; }
+	public SimulatedCreate(BotballProgram bp) {
+		this.bp = bp;
+		serial = new CreateSerial(bp);
+	}
 	
 	/**
 	 * First step for connecting CBC to Create. This function puts the Create in
@@ -379,7 +384,18 @@ public class SimulatedCreate extends Create {
 	
 	
 	
-	public int create_read_block(byte[] buffer, int count) { return 0; }
+	/**
+	 * Reads bytes sent back by the Create, such as sensor replies and stream
+	 * packets. Waits up to 100ms of simulated time for them to arrive.
+	 * 
+	 * @param  buffer  where to put the bytes
+	 * @param  count   the number of bytes wanted
+	 * @return         the number of bytes actually read
+	 * @see            #create_write_byte
+	 */
+	public int create_read_block(byte[] buffer, int count) {
+		return serial.read(buffer, count);
+	}
 	
 	
 	
@@ -389,12 +405,17 @@ public class SimulatedCreate extends Create {
 	 * @param  write_byte  the byte to write
 	 * @see                #create_clear_serial_buffer
 	 */
-	public void create_write_byte(char write_byte) {}
+	public void create_write_byte(char write_byte) { serial.write(write_byte); }
 	
 	
 	
 	
-	public void create_clear_serial_buffer() {}
+	/**
+	 * Throws away any bytes sent by the Create that have not been read yet.
+	 * 
+	 * @see    #create_read_block
+	 */
+	public void create_clear_serial_buffer() { serial.clear(); }
 	
 	
 	public int get_g_create_connected() { return bp.g_create_connected; }